@@ -0,0 +1,210 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * A bounded, size-bucketed pool of {@code byte[]} used by the capture and save paths so that
+ * every shot doesn't allocate a multi-megabyte array.
+ *
+ * Requests are rounded up to a bucket size (quarter steps between powers of two, so at most 25%
+ * is wasted). The buffers the pool lends and keeps idle together never exceed {@code maxBytes}:
+ * a new buffer first makes room by dropping idle ones, least recently used bucket first, and
+ * past the cap it's allocated outside the pool, counted as an overflow and not taken back. A
+ * borrowed buffer that is never released stops counting once it's garbage collected.
+ *
+ * All methods are thread safe.
+ */
+public class BufferPool {
+	public static final int MIN_BUCKET_SIZE = 4 * 1024;
+
+	private final long mMaxBytes;
+	// Access ordered, so the eldest entry is the least recently used bucket
+	private final LinkedHashMap<Integer, ArrayDeque<byte[]>> mBuckets =
+			new LinkedHashMap<Integer, ArrayDeque<byte[]>>(16, 0.75f, true);
+	private long mPooledBytes;
+	// Lent and not released yet, arrays have identity equality
+	private final WeakHashMap<byte[], Boolean> mBorrowed = new WeakHashMap<>();
+	private long mAllocatingBytes; // Of the buffers being allocated, not lent yet
+
+	// Stats
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+	private long mOverflows;
+
+	public BufferPool(long maxBytes) {
+		if (maxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes cannot be negative.");
+		}
+		mMaxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the bucket size used for a request of {@code length} bytes.
+	 */
+	public static int bucketSize(int length) {
+		if (length < 0) {
+			throw new IllegalArgumentException("Length cannot be negative.");
+		}
+		if (length <= MIN_BUCKET_SIZE) {
+			return MIN_BUCKET_SIZE;
+		}
+		int highBit = Integer.highestOneBit(length - 1);
+		if (highBit >= 1 << 30) {
+			return length;
+		}
+		int step = highBit >> 2;
+		// Round up to the next multiple of a quarter of the power of two below
+		return (int) (((long) length + step - 1) / step * step);
+	}
+
+	/**
+	 * Borrows a buffer of at least {@code minLength} bytes. The content is undefined.
+	 */
+	public byte[] acquire(int minLength) {
+		int size = bucketSize(minLength);
+		long room;
+		synchronized (this) {
+			ArrayDeque<byte[]> bucket = mBuckets.get(size);
+			if (bucket != null && !bucket.isEmpty()) {
+				mHits++;
+				mPooledBytes -= size;
+				byte[] buffer = bucket.pop();
+				mBorrowed.put(buffer, Boolean.TRUE);
+				return buffer;
+			}
+			mMisses++;
+			room = mMaxBytes - borrowedBytes() - size;
+			if (room < 0) {
+				mOverflows++;
+			} else {
+				trimTo(room);
+				mAllocatingBytes += size;
+			}
+		}
+		if (room < 0) {
+			// Not the pool's, release() ignores it
+			return new byte[size];
+		}
+		byte[] buffer = null;
+		try {
+			buffer = new byte[size];
+		} finally {
+			synchronized (this) {
+				mAllocatingBytes -= size;
+				if (buffer != null) {
+					mBorrowed.put(buffer, Boolean.TRUE);
+				}
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int)} to the pool. Buffers that are not lent
+	 * by this pool, including those released already, are ignored.
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null) {
+			return;
+		}
+		synchronized (this) {
+			if (mBorrowed.remove(buffer) == null) {
+				return;
+			}
+			// Lent within the cap, so it stays within it idle
+			ArrayDeque<byte[]> bucket = mBuckets.get(buffer.length);
+			if (bucket == null) {
+				bucket = new ArrayDeque<>();
+				mBuckets.put(buffer.length, bucket);
+			}
+			bucket.push(buffer);
+			mPooledBytes += buffer.length;
+		}
+	}
+
+	/**
+	 * Drops all the idle buffers, e.g. when the app goes to background.
+	 */
+	public synchronized void clear() {
+		trimTo(0);
+	}
+
+	private void trimTo(long maxBytes) {
+		Iterator<Map.Entry<Integer, ArrayDeque<byte[]>>> iterator = mBuckets.entrySet().iterator();
+		while (mPooledBytes > maxBytes && iterator.hasNext()) {
+			Map.Entry<Integer, ArrayDeque<byte[]>> entry = iterator.next();
+			ArrayDeque<byte[]> bucket = entry.getValue();
+			while (mPooledBytes > maxBytes && !bucket.isEmpty()) {
+				bucket.removeLast();
+				mPooledBytes -= entry.getKey();
+				mEvictions++;
+			}
+			if (bucket.isEmpty()) {
+				iterator.remove();
+			}
+		}
+	}
+
+	private long borrowedBytes() {
+		long bytes = mAllocatingBytes;
+		for (byte[] buffer : mBorrowed.keySet()) {
+			bytes += buffer.length;
+		}
+		return bytes;
+	}
+
+	/**
+	 * Cap of the borrowed and idle bytes together.
+	 */
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * Idle bytes, ready to be lent.
+	 */
+	public synchronized long getPooledBytes() {
+		return mPooledBytes;
+	}
+
+	public synchronized long getBorrowedBytes() {
+		return borrowedBytes();
+	}
+
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+
+	public synchronized long getEvictions() {
+		return mEvictions;
+	}
+
+	/**
+	 * Buffers allocated outside the pool because the cap was reached.
+	 */
+	public synchronized long getOverflows() {
+		return mOverflows;
+	}
+
+	@Override
+	public synchronized String toString() {
+		Map<Integer, Integer> counts = new HashMap<>();
+		for (Map.Entry<Integer, ArrayDeque<byte[]>> entry : mBuckets.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().size());
+		}
+		return "BufferPool{pooled=" + mPooledBytes + ", borrowed=" + borrowedBytes() + "/" + mMaxBytes
+				+ ", hits=" + mHits + ", misses=" + mMisses + ", evictions=" + mEvictions
+				+ ", overflows=" + mOverflows
+				+ ", buckets=" + counts + "}";
+	}
+}
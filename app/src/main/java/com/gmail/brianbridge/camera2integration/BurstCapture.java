@@ -0,0 +1,166 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds, submits and tracks one burst of still captures.
+ *
+ * Every requested frame ends up either saved or dropped (capture failed, buffer lost or the
+ * write failed). Once all of them are accounted for, {@link Callback#onBurstFinished(Result)} is
+ * called with the achieved frame rate, measured from the sensor timestamps of the saved frames.
+ *
+ * The camera types are hidden behind {@link RequestFactory} and {@link Session}, so the
+ * sequencing can be tested without a device. Event methods are thread safe.
+ *
+ * @param <T> The request type, {@code CaptureRequest} on a device
+ */
+public class BurstCapture<T> {
+
+	public interface RequestFactory<T> {
+		T createRequest(int index) throws Exception;
+	}
+
+	public interface Session<T> {
+		void captureBurst(List<T> requests) throws Exception;
+	}
+
+	public interface Callback {
+		void onBurstFinished(Result result);
+	}
+
+	public static class Result {
+		public final int requested;
+		public final int saved;
+		public final int dropped;
+		public final long firstTimestampNs;
+		public final long lastTimestampNs;
+
+		Result(int requested, int saved, int dropped, long firstTimestampNs, long lastTimestampNs) {
+			this.requested = requested;
+			this.saved = saved;
+			this.dropped = dropped;
+			this.firstTimestampNs = firstTimestampNs;
+			this.lastTimestampNs = lastTimestampNs;
+		}
+
+		/**
+		 * @return The achieved frames per second between the first and the last saved frame,
+		 * or 0 if fewer than two frames were saved
+		 */
+		public double getFramesPerSecond() {
+			if (saved < 2 || lastTimestampNs <= firstTimestampNs) {
+				return 0;
+			}
+			return (saved - 1) * 1e9 / (lastTimestampNs - firstTimestampNs);
+		}
+
+		@Override
+		public String toString() {
+			return "Burst{requested=" + requested + ", saved=" + saved + ", dropped=" + dropped
+					+ ", fps=" + String.format("%.2f", getFramesPerSecond()) + "}";
+		}
+	}
+
+	private final int mFrameCount;
+	private final Callback mCallback;
+
+	private int mNextFrameIndex;
+	private int mSaved;
+	private int mDropped;
+	private long mFirstTimestampNs = Long.MAX_VALUE;
+	private long mLastTimestampNs = Long.MIN_VALUE;
+	private boolean mFinished;
+
+	public BurstCapture(int frameCount, Callback callback) {
+		if (frameCount < 1) {
+			throw new IllegalArgumentException("A burst needs at least one frame.");
+		}
+		mFrameCount = frameCount;
+		mCallback = callback;
+	}
+
+	/**
+	 * Builds {@code frameCount} requests and submits them as one burst. If the submission fails,
+	 * every frame is reported as dropped and the exception is rethrown.
+	 */
+	public List<T> start(RequestFactory<T> factory, Session<T> session) throws Exception {
+		List<T> requests = new ArrayList<>(mFrameCount);
+		try {
+			for (int i = 0; i < mFrameCount; i++) {
+				requests.add(factory.createRequest(i));
+			}
+			session.captureBurst(requests);
+		} catch (Exception e) {
+			onFramesDropped(mFrameCount);
+			throw e;
+		}
+		return requests;
+	}
+
+	/**
+	 * Reserves the index of the next frame delivered by the reader, used to name its file.
+	 *
+	 * @return The frame index, or -1 if every frame of the burst has already been delivered
+	 */
+	public synchronized int nextFrameIndex() {
+		if (mNextFrameIndex >= mFrameCount) {
+			return -1;
+		}
+		return mNextFrameIndex++;
+	}
+
+	public void onFrameSaved(long sensorTimestampNs) {
+		Result result;
+		synchronized (this) {
+			if (mFinished) {
+				return;
+			}
+			mSaved++;
+			mFirstTimestampNs = Math.min(mFirstTimestampNs, sensorTimestampNs);
+			mLastTimestampNs = Math.max(mLastTimestampNs, sensorTimestampNs);
+			result = finishIfDone();
+		}
+		dispatch(result);
+	}
+
+	public void onFrameDropped() {
+		onFramesDropped(1);
+	}
+
+	private void onFramesDropped(int count) {
+		Result result;
+		synchronized (this) {
+			if (mFinished) {
+				return;
+			}
+			mDropped = Math.min(mFrameCount - mSaved, mDropped + count);
+			result = finishIfDone();
+		}
+		dispatch(result);
+	}
+
+	private Result finishIfDone() {
+		if (mSaved + mDropped < mFrameCount) {
+			return null;
+		}
+		mFinished = true;
+		return new Result(mFrameCount, mSaved, mDropped,
+				mSaved == 0 ? 0 : mFirstTimestampNs,
+				mSaved == 0 ? 0 : mLastTimestampNs);
+	}
+
+	private void dispatch(Result result) {
+		if (result != null && mCallback != null) {
+			mCallback.onBurstFinished(result);
+		}
+	}
+
+	public int getFrameCount() {
+		return mFrameCount;
+	}
+
+	public synchronized boolean isFinished() {
+		return mFinished;
+	}
+}
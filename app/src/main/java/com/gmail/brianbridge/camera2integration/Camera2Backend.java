@@ -0,0 +1,441 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link CameraBackend} on a Camera2 device. The outputs are owned by the caller: the preview
+ * surface, the still reader and the optional ZSL and analysis surfaces are set before the session
+ * is created, and released by the caller after {@link #close()}.
+ */
+public class Camera2Backend implements CameraBackend<Image> {
+	public static final String TAG = Camera2Backend.class.getSimpleName();
+
+	private final CameraManager mManager;
+	private volatile Handler mHandler; // Of the camera thread, the callbacks are delivered to it
+	private volatile Listener<Image> mListener;
+
+	private volatile CameraDevice mDevice;
+	private volatile boolean mOpening;
+	private volatile CameraCaptureSession mSession;
+	private CaptureRequest.Builder mPreviewRequestBuilder;
+	private volatile CaptureRequest mPreviewRequest;
+
+	// Outputs of the next session
+	private volatile ImageReader mStillReader;
+	private Surface mPreviewSurface;
+	private Surface mZslSurface; // Fed by the repeating request in ZSL mode, null otherwise
+	private Surface mAnalysisSurface; // YUV preview frames for the analyzers, null if there's none
+	private int mZslJpegOrientation;
+	private volatile Size mThumbnailSize; // EXIF thumbnail of the stills, null if the camera has none
+
+	private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+		@Override
+		public void onOpened(@NonNull CameraDevice cameraDevice) {
+			mDevice = cameraDevice;
+			mOpening = false;
+			mListener.onOpened();
+		}
+
+		@Override
+		public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+			if (lost(cameraDevice)) {
+				mListener.onDisconnected();
+			}
+		}
+
+		@Override
+		public void onError(@NonNull CameraDevice cameraDevice, int error) {
+			if (lost(cameraDevice)) {
+				mListener.onError(error);
+			}
+		}
+
+		/**
+		 * @return false if it's a device already given up by close()
+		 */
+		private boolean lost(CameraDevice cameraDevice) {
+			cameraDevice.close();
+			if (cameraDevice != mDevice && !mOpening) {
+				return false;
+			}
+			mDevice = null;
+			mSession = null;
+			mOpening = false;
+			return true;
+		}
+	};
+
+	// Of the plain preview, only the start of the frames for the telemetry: no result is read
+	private final CameraCaptureSession.CaptureCallback mPreviewCallback = new CameraCaptureSession.CaptureCallback() {
+		@Override
+		public void onCaptureStarted(@NonNull CameraCaptureSession session,
+									 @NonNull CaptureRequest request,
+									 long timestamp, long frameNumber) {
+			mListener.onPreviewFrameStarted(timestamp);
+		}
+	};
+
+	private final CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+		@Override
+		public void onCaptureStarted(@NonNull CameraCaptureSession session,
+									 @NonNull CaptureRequest request,
+									 long timestamp, long frameNumber) {
+			mListener.onPreviewFrameStarted(timestamp);
+		}
+
+		private void process(CaptureResult result, boolean partial) {
+			mListener.onCaptureResult(
+					result.get(CaptureResult.CONTROL_AF_STATE),
+					result.get(CaptureResult.CONTROL_AE_STATE),
+					partial);
+		}
+
+		@Override
+		public void onCaptureProgressed(@NonNull CameraCaptureSession session,
+										@NonNull CaptureRequest request,
+										@NonNull CaptureResult partialResult) {
+			process(partialResult, true);
+		}
+
+		@Override
+		public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+									   @NonNull CaptureRequest request,
+									   @NonNull TotalCaptureResult result) {
+			process(result, false);
+		}
+	};
+
+	private final CameraCaptureSession.CaptureCallback mStillCallback = new CameraCaptureSession.CaptureCallback() {
+		@Override
+		public void onCaptureStarted(@NonNull CameraCaptureSession session,
+									 @NonNull CaptureRequest request,
+									 long timestamp, long frameNumber) {
+			mListener.onStillStarted(timestamp);
+		}
+
+		@Override
+		public void onCaptureCompleted(@NonNull CameraCaptureSession session,
+									   @NonNull CaptureRequest request,
+									   @NonNull TotalCaptureResult result) {
+			mListener.onStillCompleted();
+		}
+
+		@Override
+		public void onCaptureFailed(@NonNull CameraCaptureSession session,
+									@NonNull CaptureRequest request,
+									@NonNull CaptureFailure failure) {
+			Log.e(TAG, "Still capture failed: " + failure.getReason());
+			mListener.onStillFailed(failure.getReason(), failure.wasImageCaptured());
+		}
+	};
+
+	private final ImageReader.OnImageAvailableListener mOnStillAvailableListener = new ImageReader.OnImageAvailableListener() {
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			Image image = reader.acquireNextImage();
+			if (null != image) {
+				mListener.onJpegAvailable(image);
+			}
+		}
+	};
+
+	public Camera2Backend(CameraManager manager) {
+		mManager = manager;
+	}
+
+	@Override
+	public void setListener(Listener<Image> listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * The camera thread, to call with every (re)start of the camera threads.
+	 */
+	public void setHandler(Handler handler) {
+		mHandler = handler;
+	}
+
+	/**
+	 * The reader of the stills and burst frames, its images go to
+	 * {@link Listener#onJpegAvailable(Object)} on {@code handler}.
+	 */
+	public void setStillOutput(ImageReader reader, Handler handler) {
+		mStillReader = reader;
+		reader.setOnImageAvailableListener(mOnStillAvailableListener, handler);
+	}
+
+	/**
+	 * The outputs of the next {@link #createSession()}, besides the still output.
+	 *
+	 * @param zsl                Full-resolution JPEG frames of every preview frame, or null
+	 * @param analysis           YUV frames of every preview frame, or null
+	 * @param zslJpegOrientation Of the ZSL frames
+	 */
+	public void setSessionOutputs(Surface preview, Surface zsl, Surface analysis, int zslJpegOrientation) {
+		mPreviewSurface = preview;
+		mZslSurface = zsl;
+		mAnalysisSurface = analysis;
+		mZslJpegOrientation = zslJpegOrientation;
+	}
+
+	/**
+	 * Embedded in the stills and ZSL frames, null for none.
+	 */
+	public void setThumbnailSize(Size thumbnailSize) {
+		mThumbnailSize = thumbnailSize;
+	}
+
+	@Override
+	public boolean open(String cameraId) {
+		try {
+			mOpening = true;
+			mManager.openCamera(cameraId, mStateCallback, mHandler);
+			return true;
+		} catch (CameraAccessException | SecurityException | IllegalArgumentException e) {
+			Log.e(TAG, e.toString());
+			mOpening = false;
+			return false;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return null != mDevice;
+	}
+
+	@Override
+	public void createSession() {
+		final CameraDevice device = mDevice;
+		if (null == device) {
+			mListener.onSessionConfigureFailed();
+			return;
+		}
+		try {
+			// We set up a CaptureRequest.Builder with the output Surface.
+			mPreviewRequestBuilder = device.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+			mPreviewRequestBuilder.addTarget(mPreviewSurface);
+			List<Surface> outputs = new ArrayList<>(Arrays.asList(mPreviewSurface, mStillReader.getSurface()));
+			if (null != mZslSurface) {
+				// Every preview frame also lands in the ZSL ring
+				mPreviewRequestBuilder.addTarget(mZslSurface);
+				mPreviewRequestBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) 80);
+				mPreviewRequestBuilder.set(CaptureRequest.JPEG_ORIENTATION, mZslJpegOrientation);
+				if (null != mThumbnailSize) {
+					mPreviewRequestBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, mThumbnailSize);
+				}
+				outputs.add(mZslSurface);
+			}
+			if (null != mAnalysisSurface) {
+				mPreviewRequestBuilder.addTarget(mAnalysisSurface);
+				outputs.add(mAnalysisSurface);
+			}
+
+			device.createCaptureSession(outputs,
+					new CameraCaptureSession.StateCallback() {
+
+						@Override
+						public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+							// The camera is already closed
+							if (device != mDevice) {
+								return;
+							}
+							// Auto focus should be continuous for camera preview.
+							mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+							mPreviewRequest = mPreviewRequestBuilder.build();
+							mSession = cameraCaptureSession;
+							mListener.onSessionConfigured();
+						}
+
+						@Override
+						public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
+							Log.e(TAG, "onConfigureFailed");
+							if (device == mDevice) {
+								mListener.onSessionConfigureFailed();
+							}
+						}
+					}, mHandler
+			);
+		} catch (CameraAccessException e) {
+			Log.e(TAG, e.toString());
+			mListener.onSessionConfigureFailed();
+		}
+	}
+
+	@Override
+	public boolean hasSession() {
+		return null != mSession && null != mPreviewRequest;
+	}
+
+	@Override
+	public boolean startPreview() {
+		CameraCaptureSession session = mSession;
+		CaptureRequest request = mPreviewRequest;
+		if (null == session || null == request) {
+			return false;
+		}
+		try {
+			session.setRepeatingRequest(request, mPreviewCallback, mHandler);
+			return true;
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.e(TAG, e.toString());
+			return false;
+		}
+	}
+
+	@Override
+	public void stopPreview() {
+		CameraCaptureSession session = mSession;
+		if (null == session) {
+			return;
+		}
+		try {
+			session.stopRepeating();
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	@Override
+	public void lockFocus() {
+		CameraCaptureSession session = mSession;
+		CaptureRequest request = mPreviewRequest;
+		if (null == session || null == request) {
+			return;
+		}
+		try {
+			// This is how to tell the camera to lock focus.
+			mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+			session.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mHandler);
+			// The lock rarely converges in the result of the trigger, the preview reports the rest
+			session.setRepeatingRequest(request, mCaptureCallback, mHandler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	@Override
+	public void runPrecaptureSequence() {
+		CameraCaptureSession session = mSession;
+		if (null == session) {
+			return;
+		}
+		try {
+			// This is how to tell the camera to trigger.
+			mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
+					CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
+			session.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mHandler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	@Override
+	public void captureStill(int jpegOrientation) {
+		CameraDevice device = mDevice;
+		CameraCaptureSession session = mSession;
+		if (null == device || null == session) {
+			return;
+		}
+		try {
+			// This is the CaptureRequest.Builder that we use to take a picture.
+			CaptureRequest.Builder captureBuilder = createStillRequestBuilder(device, jpegOrientation);
+			// Embedded for the review image
+			Size thumbnailSize = mThumbnailSize;
+			if (null != thumbnailSize) {
+				captureBuilder.set(CaptureRequest.JPEG_THUMBNAIL_SIZE, thumbnailSize);
+			}
+			session.stopRepeating();
+			session.capture(captureBuilder.build(), mStillCallback, mHandler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	@Override
+	public void unlockFocus() {
+		CameraCaptureSession session = mSession;
+		CaptureRequest request = mPreviewRequest;
+		if (null == session || null == request) {
+			return;
+		}
+		try {
+			// Reset the auto-focus trigger
+			mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
+			session.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mHandler);
+			session.setRepeatingRequest(request, mCaptureCallback, mHandler);
+		} catch (CameraAccessException | IllegalStateException e) {
+			Log.e(TAG, e.toString());
+		}
+	}
+
+	/**
+	 * A request of a burst frame, without the focus lock and precapture sequence.
+	 */
+	public CaptureRequest createBurstRequest(int jpegOrientation) throws CameraAccessException {
+		CameraDevice device = mDevice;
+		if (null == device) {
+			throw new IllegalStateException("The camera is closed.");
+		}
+		return createStillRequestBuilder(device, jpegOrientation).build();
+	}
+
+	public void captureBurst(List<CaptureRequest> requests, CameraCaptureSession.CaptureCallback callback)
+			throws CameraAccessException {
+		CameraCaptureSession session = mSession;
+		if (null == session) {
+			throw new IllegalStateException("No session.");
+		}
+		session.captureBurst(requests, callback, mHandler);
+	}
+
+	private CaptureRequest.Builder createStillRequestBuilder(CameraDevice device, int jpegOrientation)
+			throws CameraAccessException {
+		CaptureRequest.Builder captureBuilder = device.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+		captureBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) 80);
+		captureBuilder.addTarget(mStillReader.getSurface());
+		// Use the same AE and AF modes as the preview.
+		captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+		captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, jpegOrientation);
+		return captureBuilder;
+	}
+
+	@Override
+	public Runnable close() {
+		final CameraCaptureSession session = mSession;
+		final CameraDevice device = mDevice;
+		mSession = null;
+		mDevice = null;
+		mOpening = false;
+		mPreviewRequest = null;
+		return new Runnable() {
+			@Override
+			public void run() {
+				if (null != session) {
+					session.close();
+				}
+				if (null != device) {
+					device.close();
+				}
+			}
+		};
+	}
+}
@@ -2,6 +2,7 @@ package com.gmail.brianbridge.camera2integration;
 
 import android.Manifest;
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.content.res.Configuration;
@@ -15,20 +16,17 @@ import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
-import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
-import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.CaptureResult;
-import android.hardware.camera2.TotalCaptureResult;
-import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
-import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.v4.app.Fragment;
@@ -45,34 +43,35 @@ import android.widget.ImageView;
 import android.widget.Toast;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 
-import static com.gmail.brianbridge.camera2integration.Camera2BaseFragment.CameraState.*;
+import static com.gmail.brianbridge.camera2integration.CaptureController.State.*;
 
 public class Camera2BaseFragment extends Fragment implements View.OnClickListener {
 	public static final String TAG = Camera2BaseFragment.class.getSimpleName();
 	public static final int REQUEST_CAMERA_PERMISSION = 100;
-
-	public enum CameraState {
-		STATE_PREVIEW,					// Showing camera preview
-		STATE_WAITING_LOCK,				// Waiting for the focus to be locked.
-		STATE_WAITING_PRECAPTURE,		// Waiting for the exposure to be precapture state.
-		STATE_WAITING_NON_PRECAPTURE,	// Waiting for the exposure state to be something other than precapture.
-		STATE_PICTURE_TAKEN				// Picture was taken.
+	public static final long CAPTURE_BUFFER_POOL_MAX_BYTES = 32 * 1024 * 1024;
+	public static final String CAMERA_INFO_CACHE_FILE = "camera_info.bin";
+	public static final int CAPTURE_MAX_IMAGES = 4; // Reader queue depth, lets burst frames be written while later ones arrive
+	public static final int ZSL_RING_SIZE = 3; // Full-resolution frames kept for zero-shutter-lag capture
+	public static final int ZSL_MAX_PENDING_SAVES = 1; // ZSL frames being written at once
+	public static final int ANALYSIS_MAX_IMAGES = 4; // Frame analyzed + frame waiting + acquireLatestImage()
+	public static final long PREVIEW_GOVERNOR_WINDOW_MS = 1000;
+
+	public enum SaveMode {
+		PASSTHROUGH,					// Write the JPEG from the HAL as is.
+		REENCODE						// Decode, rotate and re-encode as PNG (slow, high peak heap).
 	}
 
 	private final TextureView.SurfaceTextureListener mSurfaceTextureListener = new TextureView.SurfaceTextureListener() {
 		@Override
 		public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-			openCamera(width, height);
+			mStartup.complete(StartupSequence.Step.SURFACE);
 		}
 
 		@Override
@@ -86,484 +85,1156 @@ public class Camera2BaseFragment extends Fragment implements View.OnClickListene
 		}
 
 		@Override
-		public void onSurfaceTextureUpdated(SurfaceTexture surface) {}
+		public void onSurfaceTextureUpdated(SurfaceTexture surface) {
+			mPreviewTelemetry.onDisplayFrame(SystemClock.elapsedRealtimeNanos(),
+					mRealtimeTimestamps ? surface.getTimestamp() : PreviewTelemetry.NO_TIMESTAMP);
+			mStartup.complete(StartupSequence.Step.FIRST_FRAME);
+			mResumePolicy.onPreviewFrame();
+			mCameraSwitcher.onFirstFrame();
+		}
 	};
 
-	private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+	private final CameraBackend.Listener<Image> mBackendListener = new CameraBackend.Listener<Image>() {
 		@Override
-		public void onOpened(@NonNull CameraDevice cameraDevice) {
+		public void onOpened() {
 			// This method is called when the camera is opened.  We start camera preview here.
-			mCameraOpenCloseLock.release();
-			mCameraDevice = cameraDevice;
-			initCameraPreview();
+			mLifecycle.onOpened();
+			if (mLifecycle.getState() == CameraLifecycle.State.OPEN) {
+				// Otherwise closed right away, no longer wanted or not the wanted camera
+				mStartup.complete(StartupSequence.Step.OPEN_CAMERA);
+			}
 		}
 
 		@Override
-		public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-			mCameraOpenCloseLock.release();
-			cameraDevice.close();
-			mCameraDevice = null;
+		public void onDisconnected() {
+			onCameraLost();
 		}
 
 		@Override
-		public void onError(@NonNull CameraDevice cameraDevice, int error) {
-			mCameraOpenCloseLock.release();
-			cameraDevice.close();
-			mCameraDevice = null;
+		public void onError(int error) {
+			onCameraLost();
 			Activity activity = getActivity();
 			if (null != activity) {
 				activity.finish();
 			}
 		}
-	};
 
-	private final ImageReader.OnImageAvailableListener mOnCaptureAvailableListener = new ImageReader.OnImageAvailableListener() {
 		@Override
-		public void onImageAvailable(ImageReader reader) {
-			Image image = reader.acquireNextImage();
-			Image.Plane[] planes = image.getPlanes();
-			ByteBuffer buffer = planes[0].getBuffer();
-			buffer.rewind();
-			byte[] data = new byte[buffer.capacity()];
-			buffer.get(data);
-			Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
-			image.close();
-
-			Matrix matrix = new Matrix();
-			matrix.postRotate(90);
-			Bitmap rotatedBitmap = Bitmap.createBitmap(bitmap , 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
-			bitmap.recycle();
+		public void onSessionConfigured() {
+			// When the session is ready, we start displaying the preview.
+			mSessionTexture = mConfiguringTexture;
+			closeRetiredSnapImageReader();
+			if (!mResumePolicy.isActive()) {
+				// Stopped while the session was being configured
+				return;
+			}
+			if (mBackend.startPreview()) {
+				mStartup.complete(StartupSequence.Step.CONFIGURE_SESSION);
+			}
+		}
 
-			FileOutputStream stream = null;
-			try {
-				stream = new FileOutputStream(mFile);
-				rotatedBitmap.compress(Bitmap.CompressFormat.PNG, 100, stream); // bmp is your Bitmap instance
+		@Override
+		public void onSessionConfigureFailed() {
+			mStartup.cancel();
+		}
 
-				getActivity().runOnUiThread(new Runnable() {
-					@Override
-					public void run() {
-						mPreviewImageView.setImageURI(Uri.fromFile(mFile));
-						mPreviewImageView.setVisibility(View.VISIBLE);
-					}
-				});
-			} catch (FileNotFoundException e) {
-				e.printStackTrace();
-			} finally {
-				if (stream != null) {
-					try {
-						stream.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
-			}
+		@Override
+		public void onCaptureResult(Integer afState, Integer aeState, boolean partial) {
+			mCaptureController.onResult(CameraUtil.toFocusState(afState), CameraUtil.toExposureState(aeState), partial);
+		}
 
-//			mBackgroundHandler.post(new CameraUtil.ImageByteSaver(, mFile));
+		@Override
+		public void onPreviewFrameStarted(long sensorTimestampNs) {
+			mPreviewTelemetry.onSensorFrame(sensorTimestampNs);
 		}
-	};
 
-	private CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
-		private void process(CaptureResult result) {
-			switch (mState) {
-				case STATE_PREVIEW: {
-					// We have nothing to do when the camera preview is working normally.
-					break;
-				}
-				case STATE_WAITING_LOCK:
-					Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
-					if (afState == null) {
-						captureStillPicture();
-					} else if (CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED == afState ||
-							CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED == afState) {
-						// CONTROL_AE_STATE can be null on some devices
-						Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-						if (aeState == null ||
-								aeState == CaptureResult.CONTROL_AE_STATE_CONVERGED) {
-							mState = STATE_PICTURE_TAKEN;
-							captureStillPicture();
-						} else {
-							runPrecaptureSequence();
-						}
-					}
-					break;
-				case STATE_WAITING_PRECAPTURE: {
-					// CONTROL_AE_STATE can be null on some devices
-					Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-					if (aeState == null ||
-							aeState == CaptureResult.CONTROL_AE_STATE_PRECAPTURE ||
-							aeState == CaptureRequest.CONTROL_AE_STATE_FLASH_REQUIRED) {
-						mState = STATE_WAITING_NON_PRECAPTURE;
-					}
-					break;
-				}
-				case STATE_WAITING_NON_PRECAPTURE: {
-					// CONTROL_AE_STATE can be null on some devices
-					Integer aeState = result.get(CaptureResult.CONTROL_AE_STATE);
-					if (aeState == null || aeState != CaptureResult.CONTROL_AE_STATE_PRECAPTURE) {
-						mState = STATE_PICTURE_TAKEN;
-						captureStillPicture();
-					}
-					break;
+		@Override
+		public void onJpegAvailable(final Image image) {
+			mExecutors.runInline(CameraExecutors.Stage.CAPTURE, new Runnable() {
+				@Override
+				public void run() {
+					deliverCapture(image);
 				}
-			}
+			});
 		}
 
 		@Override
-		public void onCaptureProgressed(@NonNull CameraCaptureSession session,
-										@NonNull CaptureRequest request,
-										@NonNull CaptureResult partialResult) {
-			process(partialResult);
+		public void onStillStarted(long sensorTimestampNs) {
+			StillCapture<Image> stills = mStillCapture;
+			if (null != stills) {
+				stills.onStarted(sensorTimestampNs);
+			}
 		}
 
 		@Override
-		public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-									   @NonNull CaptureRequest request,
-									   @NonNull TotalCaptureResult result) {
-			process(result);
+		public void onStillCompleted() {
+			mCaptureController.onCaptureFinished();
 		}
 
+		@Override
+		public void onStillFailed(int reason, boolean imageCaptured) {
+			failStill(imageCaptured);
+			mCaptureController.onCaptureFinished();
+		}
 	};
 
-	// Views
-	private AutoFitTextureView mTextureView;
-	private Button mCaptureButton;
-	private ImageView mPreviewImageView;
-
-	// Camera & Preview Controls
-	private CameraCaptureSession mCaptureSession;
-	private CameraDevice mCameraDevice; // Current opened camera
-	private ImageReader mImageReader;
-	private ImageReader mSnapImageReader;
-	private CaptureRequest.Builder mPreviewRequestBuilder;
-	private CaptureRequest mPreviewRequest;
-	private HandlerThread mBackgroundThread;
-	private Handler mBackgroundHandler;
-	private HandlerThread mSnapThread;
-	private Handler mSnapHandler;
-	private HandlerThread mCaptureThread;
-	private Handler mCaptureHandler;
+	/**
+	 * Saves a still, or a burst frame, on the capture thread.
+	 */
+	private void deliverCapture(Image image) {
+		BurstCapture<CaptureRequest> burst = mBurst;
+		if (burst != null) {
+			saveBurstFrame(burst, image);
+			return;
+		}
+		StillCapture<Image> stills = mStillCapture;
+		if (null == stills) {
+			image.close();
+			return;
+		}
+		stills.deliver(image);
+	}
 
-	// Camera & Preview Data
-	private String mCameraId; // ID of the current CameraDevice
-	private CameraState mState = STATE_PREVIEW;
-	private int mCameraSensorOrientation;
-	private boolean mFlashSupported;
-	private Size mPreviewSize;
+	private final StillCapture.Images<Image> mStillImages = new StillCapture.Images<Image>() {
+		@Override
+		public ByteBuffer getJpeg(Image image) {
+			// Orientation is handled by JPEG_ORIENTATION, see captureStillPicture()
+			return image.getPlanes()[0].getBuffer();
+		}
 
-	// Others
-	private Semaphore mCameraOpenCloseLock = new Semaphore(1); // to prevent the app from exiting before closing the camera.
-	private File mFile; // output
-	private boolean capturing = false;
+		@Override
+		public long getTimestamp(Image image) {
+			return image.getTimestamp();
+		}
 
+		@Override
+		public void close(Image image) {
+			image.close();
+		}
+	};
 
-	// Config Params
-	private List<Integer> mDeniedLens;
-	private Size mAspectRatio;
+	private final StillCapture.Encoder<Image> mPngEncoder = new StillCapture.Encoder<Image>() {
+		@Override
+		public void encode(Image image, File file) throws IOException {
+			saveReencoded(image, file);
+		}
+	};
 
-	@Nullable
-	@Override
-	public View onCreateView(LayoutInflater inflater,
-							 @Nullable ViewGroup container,
-							 @Nullable Bundle savedInstanceState) {
-		return inflater.inflate(R.layout.fragment_camera, container, false);
-	}
+	private final StillCapture.Listener mStillListener = new StillCapture.Listener() {
+		@Override
+		public void onSaved(File file, long metricsShot) {
+			mTimeLapse.onCaptureFinished();
+			// Indexed here, the capture completed callback can come before the file is written
+			addToGallery(file, metricsShot);
+			showCapturedImage(file);
+		}
 
-	@Override
-	public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
-		mTextureView = (AutoFitTextureView) view.findViewById(R.id.textureView);
-		mCaptureButton = (Button) view.findViewById(R.id.btn_capture);
-		mPreviewImageView = (ImageView) view.findViewById(R.id.imageView_preview);
+		@Override
+		public void onFailed(Exception error) {
+			if (null != error) {
+				Log.e(TAG, error.toString());
+			}
+			// The time-lapse would otherwise skip every slot waiting for it
+			mTimeLapse.onCaptureFinished();
+		}
+	};
 
-		mCaptureButton.setOnClickListener(this);
-		mPreviewImageView.setOnClickListener(this);
+	/**
+	 * Gives up on the oldest still.
+	 *
+	 * @param imageMayCome Whether its JPEG can still come, to be dropped then
+	 */
+	private void failStill(boolean imageMayCome) {
+		StillCapture<Image> stills = mStillCapture;
+		if (null != stills) {
+			stills.fail(imageMayCome);
+		}
 	}
 
-	@Override
-	public void onActivityCreated(@Nullable Bundle savedInstanceState) {
-		super.onActivityCreated(savedInstanceState);
-		mFile = new File(getActivity().getExternalFilesDir(null), "pic.jpg");
+	/**
+	 * Gives up on the stills whose JPEG won't come, the camera is closed or lost.
+	 */
+	private void abortStillShots() {
+		StillCapture<Image> stills = mStillCapture;
+		if (null != stills) {
+			stills.failAll();
+		}
 	}
 
-	@Override
-	public void onStart() {
-		super.onStart();
-		startBackgroundThread();
-		if (mTextureView.isAvailable()) {
-			openCamera(mTextureView.getWidth(), mTextureView.getHeight());
-		} else {
-			mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+	/**
+	 * Queues {@code file} for the media scanner, timed as {@link CaptureMetrics.Stage#GALLERY}.
+	 */
+	private void addToGallery(File file, long metricsShot) {
+		mCaptureMetrics.stageStarted(metricsShot, CaptureMetrics.Stage.GALLERY);
+		if (!mGalleryIndexer.add(file.getPath())) {
+			Log.w(TAG, "Gallery queue full, not indexed: " + file);
 		}
+		mCaptureMetrics.stageFinished(metricsShot, CaptureMetrics.Stage.GALLERY);
 	}
 
-	@Override
-	public void onStop() {
-		closeCamera();
-		stopBackgroundThread();
-		super.onStop();
-	}
+	private final ImageReader.OnImageAvailableListener mOnZslFrameAvailableListener = new ImageReader.OnImageAvailableListener() {
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			// The ring holds at most maxImages - 1 frames, so there's always a slot to acquire
+			Image image = reader.acquireNextImage();
+			if (null == image) {
+				return;
+			}
+			ZslRingBuffer<Image> ring = mZslRing;
+			if (null == ring) {
+				image.close();
+				return;
+			}
+			ring.add(image.getTimestamp(), SystemClock.elapsedRealtimeNanos(), image);
+		}
+	};
 
-	private void requestCameraPermission() {
-		if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)) {
-			Toast.makeText(getContext(),
-					"Need camera permission, please grant it in app setting.",
-					Toast.LENGTH_SHORT)
-					.show();
-		} else {
-			requestPermissions(new String[]{Manifest.permission.CAMERA}, REQUEST_CAMERA_PERMISSION);
+	private final ImageReader.OnImageAvailableListener mOnAnalysisFrameAvailableListener = new ImageReader.OnImageAvailableListener() {
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			// Frames that arrived since the last call are stale already
+			Image image = reader.acquireLatestImage();
+			if (null != image) {
+				mFrameDispatcher.offer(image, image.getTimestamp());
+			}
 		}
-	}
+	};
 
-	@Override
-	public void onRequestPermissionsResult(int requestCode,
-										   @NonNull String[] permissions,
-										   @NonNull int[] grantResults) {
-		if (requestCode == REQUEST_CAMERA_PERMISSION) {
-			super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+	private final CaptureController mCaptureController = new CaptureController(new CaptureController.Camera() {
+		@Override
+		public void lockFocus() {
+			Camera2BaseFragment.this.lockFocus();
 		}
-	}
 
-	private void startBackgroundThread() {
-		mBackgroundThread = new HandlerThread("CameraBackground");
-		mBackgroundThread.start();
-		mBackgroundHandler = new Handler(mBackgroundThread.getLooper());
+		@Override
+		public void runPrecaptureSequence() {
+			Camera2BaseFragment.this.runPrecaptureSequence();
+		}
 
-		mSnapThread = new HandlerThread("SnapBackground");
-		mSnapThread.start();
-		mSnapHandler = new Handler(mSnapThread.getLooper());
+		@Override
+		public void captureStillPicture() {
+			Camera2BaseFragment.this.captureStillPicture();
+		}
 
-		mCaptureThread = new HandlerThread("CaptureBackground");
-		mCaptureThread.start();
-		mCaptureHandler = new Handler(mCaptureThread.getLooper());
-	}
+		@Override
+		public void unlockFocus() {
+			Camera2BaseFragment.this.unlockFocus();
+		}
 
-	private void stopBackgroundThread() {
-		mBackgroundThread.quitSafely();
-		mSnapThread.quitSafely();
-		mCaptureThread.quitSafely();
-		try {
-			mBackgroundThread.join(); // join to main thread, wait for background thread die
-			mBackgroundThread = null;
-			mBackgroundHandler = null;
-
-			mSnapThread.join(); // join to main thread, wait for background thread die
-			mSnapThread = null;
-			mSnapHandler = null;
-
-			mCaptureThread.join(); // join to main thread, wait for background thread die
-			mCaptureThread = null;
-			mCaptureHandler = null;
-		} catch (InterruptedException e) {
-			Log.e(TAG, e.toString());
+		@Override
+		public void scheduleTimeout(long delayNanos) {
+			Handler handler = mBackgroundHandler;
+			if (null != handler) {
+				handler.removeCallbacks(mCaptureTimeout);
+				// Rounded up, an early check only reschedules
+				handler.postDelayed(mCaptureTimeout, TimeUnit.NANOSECONDS.toMillis(delayNanos + 999999));
+			}
 		}
-	}
+	}, new CaptureController.Listener() {
+		@Override
+		public void onStateChanged(CaptureController.State previous, CaptureController.State state, long nanosInPrevious, boolean timedOut) {
+			if (timedOut) {
+				Log.w(TAG, previous + " timed out after " + nanosInPrevious / 1000000 + "ms");
+				if (state == STATE_PREVIEW) {
+					// The still was given up on, its JPEG may come late
+					failStill(true);
+				}
+			}
+			setState(state);
+		}
+	}, Clock.SYSTEM);
 
-	private void openCamera(int width, int height) {
-		if (ContextCompat.checkSelfPermission(getActivity(),
-				Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
-			requestCameraPermission();
-			return;
+	private final Runnable mCaptureTimeout = new Runnable() {
+		@Override
+		public void run() {
+			mCaptureController.onTimeout();
 		}
-		initCamera(width, height);
-		configureTransform(width, height);
-		Activity activity = getActivity();
-		CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-		try {
-			if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-				throw new RuntimeException("Time out waiting to lock camera opening.");
+	};
+
+	private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+	private final WarmResumePolicy mResumePolicy = new WarmResumePolicy(new WarmResumePolicy.Backend() {
+		@Override
+		public void open() {
+			synchronized (mExecutorsLock) {
+				mStopExecutorsWhenClosed = false;
+				if (!mExecutors.isRunning()) {
+					startBackgroundThread();
+				}
 			}
-			manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
-		} catch (CameraAccessException e) {
-			e.printStackTrace();
-		} catch (InterruptedException e) {
-			throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
+			mStartup.start();
 		}
-	}
 
-	private void closeCamera() {
-		try {
-			mCameraOpenCloseLock.acquire();
-			if (null != mCaptureSession) {
-				mCaptureSession.close();
-				mCaptureSession = null;
+		@Override
+		public boolean resumePreview() {
+			// The session outputs to the texture it was created with
+			if (!mBackend.hasSession() || mTextureView.getSurfaceTexture() != mSessionTexture) {
+				return false;
 			}
-			if (null != mCameraDevice) {
-				mCameraDevice.close();
-				mCameraDevice = null;
+			return mBackend.startPreview();
+		}
+
+		@Override
+		public void pausePreview() {
+			mCaptureController.reset();
+			mBackend.stopPreview();
+			mPreviewTelemetry.onPreviewStopped();
+			// Stale by the time the preview is back
+			if (null != mZslRing) {
+				mZslRing.clear();
 			}
-		} catch (InterruptedException e) {
-			throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-		} finally {
-			mCameraOpenCloseLock.release();
+			mFrameDispatcher.clear();
 		}
-	}
 
-	private void initCamera(int width, int height) {
-		Activity activity = getActivity();
-		CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
-		try {
-			for (String cameraId: manager.getCameraIdList()) {
-				CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-
-				if (mDeniedLens != null) {
-					// Filter the denied camera
-					Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-					if (facing != null && mDeniedLens.contains(facing)) {
-						continue;
-					}
-				}
+		@Override
+		public void release() {
+			mStartup.cancel();
+			synchronized (mExecutorsLock) {
+				mStopExecutorsWhenClosed = true;
+			}
+			// The threads are stopped once the camera is closed, on the camera thread
+			mLifecycle.requestClose();
+			stopExecutorsIfIdle();
+			mBufferPool.clear();
+		}
 
-				StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-				if (map == null) {
-					continue;
-				}
+		@Override
+		public void scheduleRelease(long delayNanos) {
+			mMainHandler.removeCallbacks(mReleaseTimeout);
+			mMainHandler.postDelayed(mReleaseTimeout, TimeUnit.NANOSECONDS.toMillis(delayNanos + 999999));
+		}
 
-				// Get display ratio
-				float displayRatio;
-				Point displaySize = new Point();
-				activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
-				if (mAspectRatio == null) {
-					displayRatio=(float) displaySize.x / displaySize.y;
-				} else {
-					displayRatio = (float) mAspectRatio.getWidth() / mAspectRatio.getHeight();
-				}
+		@Override
+		public void cancelRelease() {
+			mMainHandler.removeCallbacks(mReleaseTimeout);
+		}
+	}, Clock.SYSTEM);
 
-				// Get the largest output resolution of camera
-				List<Size> outputSizes = Arrays.asList(map.getOutputSizes(ImageFormat.JPEG));
-				Size largest = null;
-				for (Size size: outputSizes) {
-					Log.d(TAG, size.toString());
-					if ((float) size.getWidth() / size.getHeight() == (float) 4 / 3) {
-						if (size.getWidth() * size.getHeight() < 1000000) {
-							break;
-						}
-						largest = size;
-					}
-				}
-				if (largest == null) {
-					largest = Collections.max(
-							Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-							new CameraUtil.CompareSizesByArea());
-				}
+	private final Runnable mReleaseTimeout = new Runnable() {
+		@Override
+		public void run() {
+			mResumePolicy.onReleaseTimeout();
+		}
+	};
 
-				mImageReader = ImageReader.newInstance(
-						largest.getWidth(),
-						largest.getHeight(),
-						ImageFormat.JPEG,
-						/*maxImages*/1);
-				mImageReader.setOnImageAvailableListener(mOnCaptureAvailableListener, mCaptureHandler);
+	private volatile GalleryScanner mGalleryScanner; // Set once the activity is created
+	private final GalleryIndexer mGalleryIndexer = new GalleryIndexer(new GalleryIndexer.Scanner() {
+		@Override
+		public boolean scan(String[] paths) {
+			GalleryScanner scanner = mGalleryScanner;
+			if (null == scanner) {
+				Log.w(TAG, "No scanner for " + paths.length + " files");
+				return false;
+			}
+			scanner.scan(paths);
+			return true;
+		}
 
+		@Override
+		public void scheduleFlush(long delayNanos) {
+			mMainHandler.removeCallbacks(mGalleryFlush);
+			mMainHandler.postDelayed(mGalleryFlush, TimeUnit.NANOSECONDS.toMillis(delayNanos + 999999));
+		}
 
-				mCameraSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+		@Override
+		public void cancelFlush() {
+			mMainHandler.removeCallbacks(mGalleryFlush);
+		}
+	}, Clock.SYSTEM);
 
-				int rotatedPreviewWidth = width;
-				int rotatedPreviewHeight = height;
-				int maxPreviewWidth = displaySize.x;
-				int maxPreviewHeight = displaySize.y;
+	private String mTimeLapseFilePrefix;
+	private final TimeLapseScheduler mTimeLapse = new TimeLapseScheduler(new TimeLapseScheduler.Camera() {
+		@Override
+		public boolean capture(int index) {
+			return takePicture(mTimeLapseFilePrefix);
+		}
 
-				if (CameraUtil.isScreenNeedRotateForCamera(activity, mCameraSensorOrientation)) {
-					rotatedPreviewWidth = height;
-					rotatedPreviewHeight = width;
-					maxPreviewWidth = displaySize.y;
-					maxPreviewHeight = displaySize.x;
-				}
+		@Override
+		public void scheduleTimer(long delayNanos) {
+			mMainHandler.removeCallbacks(mTimeLapseTimer);
+			// Rounded up, an early timer only reschedules
+			mMainHandler.postDelayed(mTimeLapseTimer, TimeUnit.NANOSECONDS.toMillis(delayNanos + 999999));
+		}
 
-				if (maxPreviewWidth > CameraUtil.API2_MAX_PREVIEW_WIDTH) {
-					maxPreviewWidth = CameraUtil.API2_MAX_PREVIEW_WIDTH;
-				}
+		@Override
+		public void cancelTimer() {
+			mMainHandler.removeCallbacks(mTimeLapseTimer);
+		}
+	}, Clock.SYSTEM);
 
-				if (maxPreviewHeight > CameraUtil.API2_MAX_PREVIEW_HEIGHT) {
-					maxPreviewHeight = CameraUtil.API2_MAX_PREVIEW_HEIGHT;
-				}
+	private final Runnable mTimeLapseTimer = new Runnable() {
+		@Override
+		public void run() {
+			mTimeLapse.onTimer();
+		}
+	};
 
-				mPreviewSize = CameraUtil.chooseOptimalSize(
-						map.getOutputSizes(SurfaceTexture.class),
-						rotatedPreviewWidth,
-						rotatedPreviewHeight,
-						maxPreviewWidth,
-						maxPreviewHeight,
-						largest);
-				Log.d(TAG, "largest Size " + largest.toString());
-				Log.d(TAG, "Preview Size " + mPreviewSize.toString());
-
-//				// We fit the aspect ratio of TextureView to the size of preview we picked.
-//				int orientation = getResources().getConfiguration().orientation;
-//				if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-//					mTextureView.setAspectRatio(mPreviewSize.getWidth(), mPreviewSize.getHeight());
-//				} else {
-//					mTextureView.setAspectRatio(mPreviewSize.getHeight(), mPreviewSize.getWidth());
-//				}
-				// We fit the aspect ratio of TextureView to the size of preview we picked.
-				int orientation = getResources().getConfiguration().orientation;
-				if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-					mTextureView.setAspectRatio(
-							mPreviewSize.getWidth(), mPreviewSize.getHeight(), mTextureView.getWidth(), mTextureView.getHeight(), largest);
-				} else {
-					mTextureView.setAspectRatio(
-							mPreviewSize.getHeight(), mPreviewSize.getWidth(), mTextureView.getWidth(), mTextureView.getHeight(), largest);
-				}
+	private final PreviewGovernor mPreviewGovernor = new PreviewGovernor(new PreviewGovernor.Preview() {
+		@Override
+		public boolean resize(long previewSize) {
+			return resizePreview(previewSize);
+		}
+	});
 
-				Boolean available = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
-				mFlashSupported = available == null ? false : available;
+	private final Runnable mPreviewGovernorWindow = new Runnable() {
+		@Override
+		public void run() {
+			if (mResumePolicy.isActive() && mBackend.hasSession() && mState == STATE_PREVIEW) {
+				long dropped = mFrameDispatcher.getDroppedCount();
+				mPreviewGovernor.onWindow(mPreviewTelemetry.getSensorFrames(), mPreviewTelemetry.getDisplayFrames(),
+						mFrameDispatcher.getAnalyzedCount() + dropped, dropped);
+			} else {
+				// Stopped for a still or a pause, the frame counts don't tell about the load
+				mPreviewGovernor.restartWindow();
+			}
+			mMainHandler.postDelayed(this, PREVIEW_GOVERNOR_WINDOW_MS);
+		}
+	};
 
-				mCameraId = cameraId;
-				return;
+	private final CameraRegistry mCameraRegistry = new CameraRegistry(new CameraRegistry.Source() {
+		@Override
+		public List<CameraInfo> queryCameras() {
+			Activity activity = getActivity();
+			if (null == activity) {
+				return null;
+			}
+			try {
+				return loadCameraInfo(activity);
+			} catch (CameraAccessException e) {
+				Log.e(TAG, e.toString());
+				return null;
 			}
-		} catch (CameraAccessException | NullPointerException e) {
-			Log.e(TAG, e.toString());
 		}
-	}
+	}, 4, 3, ResolutionPlanner.DEFAULT_MIN_CAPTURE_AREA);
 
-	private void initCameraPreview() {
-		try {
-			SurfaceTexture texture = mTextureView.getSurfaceTexture();
-			assert texture != null;
+	private final CameraSwitcher mCameraSwitcher = new CameraSwitcher(mCameraRegistry, new CameraSwitcher.Backend() {
+		@Override
+		public void closeCamera() {
+			mStartup.cancel();
+			// Takes the readers of the current camera, closed on the camera thread
+			mLifecycle.requestClose();
+		}
 
-			// We configure the size of default buffer to be the size of camera preview we want.
-			texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+		@Override
+		public boolean prepare(CameraRegistry.Entry camera) {
+			mPreparedBySwitch = setUpCamera(camera);
+			return mPreparedBySwitch;
+		}
 
-			// This is the output Surface we need to start preview.
-			Surface surface = new Surface(texture);
+		@Override
+		public void openCamera(CameraRegistry.Entry camera) {
+			// Opens once the previous device is closed, the surface is already there
+			mStartup.start();
+		}
+	}, Clock.SYSTEM);
 
-			// We set up a CaptureRequest.Builder with the output Surface.
-			mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
-			mPreviewRequestBuilder.addTarget(surface);
+	private final Runnable mGalleryFlush = new Runnable() {
+		@Override
+		public void run() {
+			mGalleryIndexer.onFlushTimeout();
+		}
+	};
 
-			// Here, we create a CameraCaptureSession for camera preview.
-			mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
-					new CameraCaptureSession.StateCallback() {
+	private final StartupSequence mStartup = new StartupSequence(new StartupSequence.Backend() {
+		@Override
+		public void startStep(StartupSequence.Step step) {
+			switch (step) {
+				case CHOOSE_CAMERA:
+					if (mPreparedBySwitch || mCameraRegistry.isLoaded()
+							|| !mExecutors.post(CameraExecutors.Stage.SAVE, mLoadCameras)) {
+						mChooseCamera.run();
+					}
+					// Otherwise chosen once the cameras are loaded off the UI thread
+					break;
+				case OPEN_CAMERA:
+					// Completed by onOpened(), while the view is still being laid out
+					openCamera();
+					break;
+				case SURFACE:
+					if (mTextureView.isAvailable()) {
+						mStartup.complete(step);
+					}
+					// Otherwise completed by onSurfaceTextureAvailable()
+					break;
+				case CONFIGURE_SESSION:
+					// Sizes the views, which has to be done on the UI thread
+					if (Looper.myLooper() == Looper.getMainLooper()) {
+						mConfigureSession.run();
+					} else {
+						mMainHandler.post(mConfigureSession);
+					}
+					break;
+				case FIRST_FRAME:
+					// Completed by onSurfaceTextureUpdated()
+					break;
+			}
+		}
+	}, Clock.SYSTEM);
+
+	private final StartupSequence.Listener mStartupListener = new StartupSequence.Listener() {
+		@Override
+		public void onStartupFinished(long[] startNanos, long[] endNanos) {
+			Log.d(TAG, "Startup: opened " + endNanos[StartupSequence.Step.OPEN_CAMERA.ordinal()] / 1000000
+					+ "ms, surface " + endNanos[StartupSequence.Step.SURFACE.ordinal()] / 1000000
+					+ "ms, configured " + endNanos[StartupSequence.Step.CONFIGURE_SESSION.ordinal()] / 1000000
+					+ "ms, first frame " + endNanos[StartupSequence.Step.FIRST_FRAME.ordinal()] / 1000000 + "ms");
+			onStartupTraced(startNanos, endNanos);
+		}
+	};
 
+	private final Runnable mLoadCameras = new Runnable() {
+		@Override
+		public void run() {
+			// The cache file or the camera service, the result is kept by the registry
+			mCameraRegistry.load();
+			mMainHandler.post(mChooseCamera);
+		}
+	};
+
+	private final Runnable mChooseCamera = new Runnable() {
+		@Override
+		public void run() {
+			if (!mStartup.isPending(StartupSequence.Step.CHOOSE_CAMERA)) {
+				return;
+			}
+			if (chooseCamera()) {
+				mStartup.complete(StartupSequence.Step.CHOOSE_CAMERA);
+			} else {
+				mStartup.cancel();
+			}
+		}
+	};
+
+	private final Runnable mConfigureSession = new Runnable() {
+		@Override
+		public void run() {
+			if (!mStartup.isPending(StartupSequence.Step.CONFIGURE_SESSION)) {
+				return;
+			}
+			configurePreview(mTextureView.getWidth(), mTextureView.getHeight());
+			configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+			initCameraPreview();
+		}
+	};
+
+	private final CameraLifecycle mLifecycle = new CameraLifecycle(new CameraLifecycle.Device() {
+		@Override
+		public void open() {
+			mOpenedCameraId = mCameraId;
+			if (null == mCameraId || !mBackend.open(mCameraId)) {
+				mLifecycle.onError();
+			}
+		}
+
+		@Override
+		public void close() {
+			mCaptureController.reset();
+			final Runnable closeDevice = mBackend.close();
+			mPreviewTelemetry.onPreviewStopped();
+			abortStillShots();
+			String cameraId = mCameraId;
+			if (null != cameraId && !cameraId.equals(mOpenedCameraId)) {
+				// Switched while it was opening, the readers are already those of the next camera
+				Runnable closing = new Runnable() {
+					@Override
+					public void run() {
+						closeDevice.run();
+						mLifecycle.onClosed();
+					}
+				};
+				if (!mExecutors.post(CameraExecutors.Stage.CAMERA, closing)) {
+					closing.run();
+				}
+				return;
+			}
+			// Taken now so that a new start can set up its own, closed on the camera thread
+			final ZslRingBuffer<Image> zslRing = mZslRing;
+			final ImageReader zslImageReader = mZslImageReader;
+			final ImageReader snapImageReader = mSnapImageReader;
+			final ImageReader imageReader = mImageReader;
+			mZslRing = null;
+			mZslImageReader = null;
+			mSnapImageReader = null;
+			mImageReader = null;
+			mSessionTexture = null;
+			mConfiguringTexture = null;
+			Runnable closing = new Runnable() {
+				@Override
+				public void run() {
+					closeDevice.run();
+					if (null != zslRing) {
+						// A frame taken for a still may still be written on the save stage
+						zslRing.close(new Runnable() {
+							@Override
+							public void run() {
+								zslImageReader.close();
+							}
+						});
+					}
+					if (null != snapImageReader) {
+						snapImageReader.setOnImageAvailableListener(null, null);
+					}
+					closeRetiredSnapImageReader();
+					// Closed once none of its frames is still being analyzed
+					mFrameDispatcher.clear(new Runnable() {
 						@Override
-						public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-							// The camera is already closed
-							if (null == mCameraDevice) {
-								return;
+						public void run() {
+							if (null != snapImageReader) {
+								snapImageReader.close();
 							}
-
-							// When the session is ready, we start displaying the preview.
-							mCaptureSession = cameraCaptureSession;
-							try {
-								// Auto focus should be continuous for camera preview.
-								mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-								// Flash is automatically enabled when necessary.
-//								setAutoFlash(mPreviewRequestBuilder);
-
-								// Finally, we start displaying the camera preview.
-								mPreviewRequest = mPreviewRequestBuilder.build();
-								mCaptureSession.setRepeatingRequest(mPreviewRequest, null, mBackgroundHandler);
-							} catch (CameraAccessException e) {
-								e.printStackTrace();
+						}
+					});
+					if (null != imageReader) {
+						// After the stills already delivered, which are written on the capture stage
+						imageReader.setOnImageAvailableListener(null, null);
+						Runnable closeStillReader = new Runnable() {
+							@Override
+							public void run() {
+								imageReader.close();
 							}
+						};
+						if (!mExecutors.post(CameraExecutors.Stage.CAPTURE, closeStillReader)) {
+							closeStillReader.run();
 						}
+					}
+					mLifecycle.onClosed();
+				}
+			};
+			if (!mExecutors.post(CameraExecutors.Stage.CAMERA, closing)) {
+				closing.run();
+			}
+		}
+	});
 
-						@Override
-						public void onConfigureFailed(@NonNull CameraCaptureSession cameraCaptureSession) {
-							Log.e(TAG, "onConfigureFailed");
-						}
-					}, null
-			);
-		} catch (CameraAccessException e) {
+	private final Object mExecutorsLock = new Object();
+	private boolean mStopExecutorsWhenClosed; // Guarded by mExecutorsLock
+
+	private final ComponentCallbacks2 mMemoryCallbacks = new ComponentCallbacks2() {
+		@Override
+		public void onTrimMemory(int level) {
+			mResumePolicy.onTrimMemory(level);
+		}
+
+		@Override
+		public void onConfigurationChanged(Configuration newConfig) {}
+
+		@Override
+		public void onLowMemory() {
+			mResumePolicy.onLowMemory();
+		}
+	};
+
+	// Views
+	private AutoFitTextureView mTextureView;
+	private Button mCaptureButton;
+	private ImageView mPreviewImageView;
+
+	// Camera & Preview Controls
+	private Camera2Backend mBackend; // Set once the activity is created
+	private ImageReader mImageReader;
+	private ImageReader mSnapImageReader; // YUV preview frames for the analyzers, null if there's none
+	private volatile ImageReader mRetiredSnapImageReader; // Of the session replaced by resizePreview()
+	private ImageReader mZslImageReader; // Fed by the repeating request in ZSL mode, null otherwise
+	private volatile SurfaceTexture mConfiguringTexture; // Texture of the session being configured
+	private volatile SurfaceTexture mSessionTexture; // Texture the preview of the session is drawn to
+	private CameraExecutors mExecutors = HandlerCameraExecutors.dedicatedThreads(
+			Process.THREAD_PRIORITY_DEFAULT, Process.THREAD_PRIORITY_DEFAULT, Process.THREAD_PRIORITY_DEFAULT);
+	private volatile Handler mBackgroundHandler; // Handler of CameraExecutors.Stage.CAMERA
+	private volatile Handler mCaptureHandler; // Handler of CameraExecutors.Stage.CAPTURE
+
+	// Camera & Preview Data
+	private String mCameraId; // ID of the current CameraDevice
+	private volatile String mOpenedCameraId; // Passed to the last open, differs from mCameraId after a switch
+	private CameraRegistry.Entry mCamera; // Info and sizes of the current CameraDevice
+	private int mPreferredLensFacing = CameraInfo.LENS_FACING_UNKNOWN; // Set by switchCamera()
+	private boolean mPreparedBySwitch; // The next chooseCamera() keeps the camera set up by a switch
+	private long mCaptureSize; // Packed by ResolutionPlanner
+	private Size mThumbnailSize; // EXIF thumbnail of the stills, null if the camera has none
+	private volatile CaptureController.State mState = STATE_PREVIEW;
+	private int mCameraSensorOrientation;
+	private boolean mFlashSupported;
+	private volatile boolean mRealtimeTimestamps; // Preview timestamps comparable to elapsedRealtimeNanos()
+	private Size mPreviewSize;
+
+	// Others
+	private CaptureStorage mStorage; // Null without external storage
+	private boolean mStorageCleaned; // Temporary files of an earlier process deleted
+	private StillCapture<Image> mStillCapture; // Null without external storage
+	private boolean capturing = false;
+	private SaveMode mSaveMode = SaveMode.PASSTHROUGH;
+	private volatile int mReviewGeneration; // Bumped on the UI thread by every capture
+	private final BufferPool mBufferPool = new BufferPool(CAPTURE_BUFFER_POOL_MAX_BYTES);
+	private volatile BurstCapture<CaptureRequest> mBurst; // Burst in progress, null if none
+	private String mBurstFilePrefix;
+	private final CaptureMetrics mCaptureMetrics = new CaptureMetrics(Clock.SYSTEM);
+	private volatile long mStillMetricsShot = CaptureMetrics.NO_SHOT; // Of the still being taken
+	private final PreviewTelemetry mPreviewTelemetry = new PreviewTelemetry();
+	private boolean mZslEnabled;
+	private volatile ZslRingBuffer<Image> mZslRing;
+	private final FrameDispatcher<Image> mFrameDispatcher = new FrameDispatcher<>(new Executor() {
+		@Override
+		public void execute(@NonNull Runnable command) {
+			mExecutors.getExecutor(CameraExecutors.Stage.ANALYSIS).execute(command);
+		}
+	}, new FrameDispatcher.Recycler<Image>() {
+		@Override
+		public void recycle(Image frame) {
+			frame.close();
+		}
+	}, Clock.SYSTEM);
+
+
+	// Config Params
+	private List<Integer> mDeniedLens;
+	private Size mAspectRatio;
+
+	@Nullable
+	@Override
+	public View onCreateView(LayoutInflater inflater,
+							 @Nullable ViewGroup container,
+							 @Nullable Bundle savedInstanceState) {
+		return inflater.inflate(R.layout.fragment_camera, container, false);
+	}
+
+	@Override
+	public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+		mTextureView = (AutoFitTextureView) view.findViewById(R.id.textureView);
+		mCaptureButton = (Button) view.findViewById(R.id.btn_capture);
+		mPreviewImageView = (ImageView) view.findViewById(R.id.imageView_preview);
+
+		mCaptureButton.setOnClickListener(this);
+		mPreviewImageView.setOnClickListener(this);
+		mTextureView.setSurfaceTextureListener(mSurfaceTextureListener);
+	}
+
+	@Override
+	public void onActivityCreated(@Nullable Bundle savedInstanceState) {
+		super.onActivityCreated(savedInstanceState);
+		File directory = getActivity().getExternalFilesDir(null);
+		if (null != directory) {
+			mStorage = createCaptureStorage(directory);
+			mStillCapture = new StillCapture<>(mStorage, mCaptureMetrics, mStillImages, mStillListener);
+		}
+		mFrameDispatcher.setFailureListener(new FrameDispatcher.FailureListener() {
+			@Override
+			public void onAnalyzerFailed(String name, RuntimeException error) {
+				Log.w(TAG, "Analyzer " + name + " failed, its next failures are only counted: " + error);
+			}
+		});
+		mBackend = new Camera2Backend((CameraManager) getActivity().getSystemService(Context.CAMERA_SERVICE));
+		mBackend.setListener(mBackendListener);
+		mBackend.setHandler(mBackgroundHandler);
+		getActivity().getApplicationContext().registerComponentCallbacks(mMemoryCallbacks);
+		mGalleryScanner = new GalleryScanner(getActivity(), new GalleryScanner.Listener() {
+			@Override
+			public void onScanned(String path) {
+				mGalleryIndexer.onScanned(path);
+			}
+		});
+		mStartup.setListener(mStartupListener);
+		mTimeLapse.setListener(new TimeLapseScheduler.Listener() {
+			@Override
+			public void onTimeLapseFinished(int shotCount, long skippedCount) {
+				Log.d(TAG, "Time-lapse of " + shotCount + " shots, " + skippedCount + " slots skipped");
+				Camera2BaseFragment.this.onTimeLapseFinished(shotCount, skippedCount);
+			}
+		});
+		mLifecycle.setListener(new CameraLifecycle.Listener() {
+			@Override
+			public void onStateChanged(CameraLifecycle.State state) {
+				if (state == CameraLifecycle.State.CLOSED) {
+					stopExecutorsIfIdle();
+				}
+			}
+		});
+	}
+
+	@Override
+	public void onStart() {
+		super.onStart();
+		mResumePolicy.onStart();
+		mPreviewGovernor.restartWindow();
+		mMainHandler.postDelayed(mPreviewGovernorWindow, PREVIEW_GOVERNOR_WINDOW_MS);
+	}
+
+	@Override
+	public void onPause() {
+		mGalleryIndexer.flush();
+		final CaptureStorage storage = mStorage;
+		if (null != storage && storage.getSyncPolicy() == CaptureStorage.SyncPolicy.BATCHED) {
+			// The app may not come back, force the last batch
+			Runnable sync = new Runnable() {
+				@Override
+				public void run() {
+					storage.sync();
+				}
+			};
+			if (!mExecutors.post(CameraExecutors.Stage.SAVE, sync)) {
+				sync.run();
+			}
+		}
+		super.onPause();
+	}
+
+	@Override
+	public void onStop() {
+		mTimeLapse.stop();
+		mMainHandler.removeCallbacks(mPreviewGovernorWindow);
+		mResumePolicy.onStop();
+		super.onStop();
+	}
+
+	@Override
+	public void onDestroy() {
+		mResumePolicy.release();
+		mGalleryIndexer.flush();
+		GalleryScanner scanner = mGalleryScanner;
+		if (null != scanner) {
+			scanner.close();
+		}
+		Activity activity = getActivity();
+		if (null != activity) {
+			activity.getApplicationContext().unregisterComponentCallbacks(mMemoryCallbacks);
+		}
+		super.onDestroy();
+	}
+
+	/**
+	 * Closes the analysis reader replaced by {@link #resizePreview(long)}, once none of its frames
+	 * is still being analyzed.
+	 */
+	private void closeRetiredSnapImageReader() {
+		final ImageReader retired = mRetiredSnapImageReader;
+		if (null != retired) {
+			mRetiredSnapImageReader = null;
+			retired.setOnImageAvailableListener(null, null);
+			mFrameDispatcher.clear(new Runnable() {
+				@Override
+				public void run() {
+					retired.close();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Called on the camera thread when the device is disconnected or fails.
+	 */
+	private void onCameraLost() {
+		mStartup.cancel();
+		abortStillShots();
+		mPreviewTelemetry.onPreviewStopped();
+		mCameraSwitcher.onSwitchFailed();
+		mLifecycle.onError();
+		mMainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				mResumePolicy.onCameraLost();
+			}
+		});
+	}
+
+	private void requestCameraPermission() {
+		if (shouldShowRequestPermissionRationale(Manifest.permission.CAMERA)) {
+			Toast.makeText(getContext(),
+					"Need camera permission, please grant it in app setting.",
+					Toast.LENGTH_SHORT)
+					.show();
+		} else {
+			requestPermissions(new String[]{Manifest.permission.CAMERA}, REQUEST_CAMERA_PERMISSION);
+		}
+	}
+
+	@Override
+	public void onRequestPermissionsResult(int requestCode,
+										   @NonNull String[] permissions,
+										   @NonNull int[] grantResults) {
+		if (requestCode == REQUEST_CAMERA_PERMISSION) {
+			super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+		}
+	}
+
+	private void startBackgroundThread() {
+		mExecutors.start();
+		mBackgroundHandler = mExecutors.getHandler(CameraExecutors.Stage.CAMERA);
+		mCaptureHandler = mExecutors.getHandler(CameraExecutors.Stage.CAPTURE);
+		if (null != mBackend) {
+			mBackend.setHandler(mBackgroundHandler);
+		}
+		final CaptureStorage storage = mStorage;
+		if (null != storage && !mStorageCleaned) {
+			mStorageCleaned = true;
+			mExecutors.post(CameraExecutors.Stage.SAVE, new Runnable() {
+				@Override
+				public void run() {
+					int deleted = storage.deleteTempFiles();
+					if (deleted > 0) {
+						Log.w(TAG, "Deleted " + deleted + " captures left half written");
+					}
+					// So that reserving a shot on the UI thread doesn't touch the storage
+					storage.scan();
+				}
+			});
+		}
+	}
+
+	private void stopBackgroundThread() {
+		mExecutors.shutdown();
+		mBackgroundHandler = null;
+		mCaptureHandler = null;
+	}
+
+	/**
+	 * Stops the threads once the camera is closed, if it was released meanwhile. Called on the main
+	 * thread, or on the camera thread where the close ends.
+	 */
+	private void stopExecutorsIfIdle() {
+		synchronized (mExecutorsLock) {
+			if (mStopExecutorsWhenClosed && mExecutors.isRunning()
+					&& mLifecycle.getState() == CameraLifecycle.State.CLOSED && !mLifecycle.isOpenWanted()) {
+				stopBackgroundThread();
+			}
+		}
+	}
+
+	private void openCamera() {
+		String opened = mOpenedCameraId;
+		if (null != opened && !opened.equals(mCameraId)) {
+			// Switched, a device of the previous camera still opening mustn't be kept
+			mLifecycle.requestReopen();
+		} else {
+			mLifecycle.requestOpen();
+		}
+		if (mLifecycle.getState() == CameraLifecycle.State.OPEN && mBackend.isOpen()) {
+			// Kept open by a close and open coalesced while opening
+			mStartup.complete(StartupSequence.Step.OPEN_CAMERA);
+		}
+	}
+
+	/**
+	 * Returns the info of every camera, from {@link CameraInfoCache} if this build already queried
+	 * it, otherwise from the camera service. Called on the save stage by the startup, a fresh query
+	 * is written back there.
+	 */
+	private List<CameraInfo> loadCameraInfo(Activity activity) throws CameraAccessException {
+		final CameraInfoCache cache = new CameraInfoCache(
+				new File(activity.getFilesDir(), CAMERA_INFO_CACHE_FILE), Build.FINGERPRINT);
+		List<CameraInfo> cameras = cache.load();
+		if (cameras != null) {
+			return cameras;
+		}
+		CameraManager manager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
+		final List<CameraInfo> queried = CameraUtil.queryCameraInfo(manager);
+		mExecutors.post(CameraExecutors.Stage.SAVE, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					cache.store(queried);
+				} catch (IOException e) {
+					Log.e(TAG, e.toString());
+				}
+			}
+		});
+		return queried;
+	}
+
+	/**
+	 * Picks the camera and sets up the readers of its capture size, all that opening it needs.
+	 *
+	 * @return false if there's no permission or no usable camera
+	 */
+	private boolean chooseCamera() {
+		Activity activity = getActivity();
+		if (ContextCompat.checkSelfPermission(activity,
+				Manifest.permission.CAMERA) != PackageManager.PERMISSION_GRANTED) {
+			requestCameraPermission();
+			return false;
+		}
+		if (mPreparedBySwitch) {
+			// Set up by switchCamera() while the previous camera was closing
+			mPreparedBySwitch = false;
+			return true;
+		}
+		if (!mCameraRegistry.load()) {
+			return false;
+		}
+		CameraRegistry.Entry chosen = null;
+		if (mPreferredLensFacing != CameraInfo.LENS_FACING_UNKNOWN) {
+			chosen = mCameraRegistry.find(mPreferredLensFacing);
+		}
+		if (null == chosen) {
+			for (CameraRegistry.Entry camera : mCameraRegistry.getCameras()) {
+				int facing = camera.info.lensFacing;
+				// Filter the denied camera
+				if (mDeniedLens == null || facing == CameraInfo.LENS_FACING_UNKNOWN || !mDeniedLens.contains(facing)) {
+					chosen = camera;
+					break;
+				}
+			}
+		}
+		if (null == chosen || !setUpCamera(chosen)) {
+			return false;
+		}
+		mCameraSwitcher.setCurrent(chosen);
+		return true;
+	}
+
+	/**
+	 * Sets up the readers of the capture size of {@code camera}, from its registry entry.
+	 */
+	private boolean setUpCamera(CameraRegistry.Entry camera) {
+		Size largest = new Size(ResolutionPlanner.width(camera.captureSize), ResolutionPlanner.height(camera.captureSize));
+		try {
+			if (null != mImageReader) {
+				// Left by a start whose close was coalesced away, not bound to a session yet
+				mImageReader.close();
+			}
+			if (null != mZslImageReader) {
+				mZslRing.clear();
+				mZslImageReader.close();
+				mZslRing = null;
+				mZslImageReader = null;
+			}
+			mImageReader = ImageReader.newInstance(
+					largest.getWidth(),
+					largest.getHeight(),
+					ImageFormat.JPEG,
+					CAPTURE_MAX_IMAGES);
+			mBackend.setStillOutput(mImageReader, mCaptureHandler);
+			if (mZslEnabled) {
+				initZsl(largest, camera.info.realtimeTimestamps);
+			}
+		} catch (IllegalArgumentException e) {
 			Log.e(TAG, e.toString());
+			return false;
 		}
+		Log.d(TAG, "largest Size " + largest.toString());
+
+		mCamera = camera;
+		mCameraSensorOrientation = camera.info.sensorOrientation;
+		mFlashSupported = camera.info.flashSupported;
+		mRealtimeTimestamps = camera.info.realtimeTimestamps;
+		mCaptureSize = camera.captureSize;
+		mThumbnailSize = camera.thumbnailSize == ResolutionPlanner.NO_SIZE ? null
+				: new Size(ResolutionPlanner.width(camera.thumbnailSize), ResolutionPlanner.height(camera.thumbnailSize));
+		mBackend.setThumbnailSize(mThumbnailSize);
+		mCameraId = camera.info.cameraId;
+		return true;
+	}
+
+	/**
+	 * Picks the preview size of the chosen camera for a view of {@code width} x {@code height}, and
+	 * fits the view to it.
+	 */
+	private void configurePreview(int width, int height) {
+		Activity activity = getActivity();
+		ResolutionPlanner planner = mCamera.planner;
+		Size largest = new Size(ResolutionPlanner.width(mCaptureSize), ResolutionPlanner.height(mCaptureSize));
+		Point displaySize = new Point();
+		activity.getWindowManager().getDefaultDisplay().getSize(displaySize);
+		int displayRotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+		long previewSize = planner.choosePreviewSize(
+				width,
+				height,
+				displaySize.x,
+				displaySize.y,
+				displayRotation,
+				mCaptureSize);
+		// Starts at the size the governor stepped down to, if it did
+		previewSize = mPreviewGovernor.setSizes(planner.previewSizesUpTo(previewSize));
+		mPreviewSize = new Size(ResolutionPlanner.width(previewSize), ResolutionPlanner.height(previewSize));
+		if (mFrameDispatcher.hasAnalyzers()) {
+			mSnapImageReader = newAnalysisReader(mPreviewSize);
+		}
+		Log.d(TAG, "Preview Size " + mPreviewSize.toString());
+
+		// We fit the aspect ratio of TextureView to the size of preview we picked.
+		int orientation = getResources().getConfiguration().orientation;
+		if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+			mTextureView.setAspectRatio(
+					mPreviewSize.getWidth(), mPreviewSize.getHeight(), mTextureView.getWidth(), mTextureView.getHeight(), largest);
+		} else {
+			mTextureView.setAspectRatio(
+					mPreviewSize.getHeight(), mPreviewSize.getWidth(), mTextureView.getWidth(), mTextureView.getHeight(), largest);
+		}
+	}
+
+	private ImageReader newAnalysisReader(Size size) {
+		// Analysis runs on SnapBackground, frames are only handed over on the camera thread
+		ImageReader reader = ImageReader.newInstance(
+				size.getWidth(),
+				size.getHeight(),
+				ImageFormat.YUV_420_888,
+				ANALYSIS_MAX_IMAGES);
+		reader.setOnImageAvailableListener(mOnAnalysisFrameAvailableListener, mBackgroundHandler);
+		return reader;
+	}
+
+	/**
+	 * Recreates the session of the running preview at {@code previewSize}, of the same aspect ratio,
+	 * for {@link PreviewGovernor}.
+	 *
+	 * @return false if the preview is not running, busy with a capture or with the previous resize
+	 */
+	private boolean resizePreview(long previewSize) {
+		if (!mResumePolicy.isActive() || !mBackend.hasSession() || mState != STATE_PREVIEW || null != mBurst
+				|| mTextureView.getSurfaceTexture() != mSessionTexture || null != mRetiredSnapImageReader) {
+			return false;
+		}
+		mPreviewSize = new Size(ResolutionPlanner.width(previewSize), ResolutionPlanner.height(previewSize));
+		Log.d(TAG, "Preview resized to " + mPreviewSize.toString());
+		mBackend.stopPreview();
+		mPreviewTelemetry.onPreviewStopped();
+		mFrameDispatcher.clear();
+		if (null != mSnapImageReader) {
+			// Still an output of the current session, closed once the new one replaces it
+			mRetiredSnapImageReader = mSnapImageReader;
+			mSnapImageReader = newAnalysisReader(mPreviewSize);
+		}
+		configureTransform(mTextureView.getWidth(), mTextureView.getHeight());
+		initCameraPreview();
+		return true;
+	}
+
+	/**
+	 * Sets up the full-resolution reader that the repeating request keeps filling, and the ring its
+	 * frames go to. Frames are JPEG so that a picked frame is written as is, at the cost of a lower
+	 * preview frame rate on devices with a JPEG stall.
+	 */
+	private void initZsl(Size size, boolean realtimeTimestamps) {
+		// Press times are elapsedRealtimeNanos(), the time base of REALTIME timestamps
+		mZslRing = new ZslRingBuffer<>(ZSL_RING_SIZE, ZSL_MAX_PENDING_SAVES, realtimeTimestamps, new ZslRingBuffer.Recycler<Image>() {
+			@Override
+			public void recycle(Image frame) {
+				frame.close();
+			}
+		});
+		mZslImageReader = ImageReader.newInstance(
+				size.getWidth(),
+				size.getHeight(),
+				ImageFormat.JPEG,
+				mZslRing.getMaxImages());
+		mZslImageReader.setOnImageAvailableListener(mOnZslFrameAvailableListener, mBackgroundHandler);
+	}
+
+	private void initCameraPreview() {
+		SurfaceTexture texture = mTextureView.getSurfaceTexture();
+		assert texture != null;
+
+		// We configure the size of default buffer to be the size of camera preview we want.
+		texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+
+		// This is the output Surface we need to start preview.
+		Surface surface = new Surface(texture);
+		int rotation = getActivity().getWindowManager().getDefaultDisplay().getRotation();
+		mBackend.setSessionOutputs(surface,
+				null != mZslImageReader ? mZslImageReader.getSurface() : null,
+				null != mSnapImageReader ? mSnapImageReader.getSurface() : null,
+				CameraUtil.getOrientation(rotation, mCameraSensorOrientation));
+		mConfiguringTexture = texture;
+
+		// Here, we create a CameraCaptureSession for camera preview.
+		mBackend.createSession();
 	}
 
 	private void configureTransform(int viewWidth, int viewHeight) {
@@ -591,90 +1262,373 @@ public class Camera2BaseFragment extends Fragment implements View.OnClickListene
 		mTextureView.setTransform(matrix);
 	}
 
-	private void takePicture() {
-		lockFocus();
+	/**
+	 * Writes the JPEG of {@code image} rotated as a PNG to {@code file}, and closes {@code image}.
+	 *
+	 * @throws IOException If it couldn't be decoded, encoded or written completely
+	 */
+	private void saveReencoded(Image image, File file) throws IOException {
+		Bitmap bitmap;
+		try {
+			Image.Plane[] planes = image.getPlanes();
+			ByteBuffer buffer = planes[0].getBuffer();
+			buffer.rewind();
+			int length = buffer.remaining();
+			byte[] data = mBufferPool.acquire(length);
+			try {
+				buffer.get(data, 0, length);
+				bitmap = BitmapFactory.decodeByteArray(data, 0, length);
+			} finally {
+				mBufferPool.release(data);
+			}
+		} finally {
+			image.close();
+		}
+		if (null == bitmap) {
+			throw new IOException("Cannot decode the JPEG of " + file);
+		}
+
+		Matrix matrix = new Matrix();
+		matrix.postRotate(90);
+		Bitmap rotatedBitmap;
+		try {
+			rotatedBitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+		} finally {
+			bitmap.recycle();
+		}
+
+		try {
+			FileOutputStream stream = new FileOutputStream(file);
+			try {
+				if (!rotatedBitmap.compress(Bitmap.CompressFormat.PNG, 100, stream)) {
+					throw new IOException("Cannot encode " + file);
+				}
+			} finally {
+				// Also throws if the last bytes couldn't be written
+				stream.close();
+			}
+		} finally {
+			rotatedBitmap.recycle();
+		}
+	}
+
+	private void setState(CaptureController.State state) {
+		mState = state;
+		mCaptureMetrics.onStateChanged(state);
+	}
+
+	/**
+	 * @return false if the camera is busy with another shot or a burst
+	 */
+	private boolean takePicture(String prefix) {
+		if (null != mBurst || null == mStorage) {
+			// Frames of the running burst are still arriving on the same reader
+			return false;
+		}
+		long pressNs = SystemClock.elapsedRealtimeNanos();
+		if (takeZslPicture(pressNs, prefix)) {
+			return true;
+		}
+		if (mCaptureController.getState() != STATE_PREVIEW) {
+			return false;
+		}
+		CaptureStorage.Shot shot = reserveShot(prefix, mSaveMode == SaveMode.REENCODE ? "png" : "jpg");
+		if (null == shot) {
+			return false;
+		}
+		mStillCapture.add(shot, mSaveMode == SaveMode.REENCODE ? mPngEncoder : null);
+		if (!mCaptureController.trigger()) {
+			mStillCapture.cancel(shot);
+			return false;
+		}
+		mStillMetricsShot = mStillCapture.onTriggered(shot);
+		return true;
+	}
+
+	/**
+	 * @return null if there's no room for the capture
+	 */
+	private CaptureStorage.Shot reserveShot(String prefix, String extension) {
+		long pixels = (long) ResolutionPlanner.width(mCaptureSize) * ResolutionPlanner.height(mCaptureSize);
+		// Generous for a JPEG, and about an uncompressed frame for a PNG
+		CaptureStorage.Shot shot = mStorage.reserve(prefix, extension, "png".equals(extension) ? pixels * 3 : pixels / 2);
+		if (null == shot) {
+			Log.w(TAG, "Not enough free space for a capture: " + mStorage.snapshot());
+		}
+		return shot;
+	}
+
+	/**
+	 * Saves the ZSL frame exposed closest to {@code pressNs}, without running the focus lock and
+	 * precapture sequence.
+	 *
+	 * @return false if there's no frame to use, the regular capture should be used instead
+	 */
+	private boolean takeZslPicture(long pressNs, String prefix) {
+		final ZslRingBuffer<Image> ring = mZslRing;
+		if (null == ring || mState != STATE_PREVIEW) {
+			return false;
+		}
+		final Image image = ring.take(pressNs);
+		if (null == image) {
+			return false;
+		}
+		final CaptureStorage.Shot shot = reserveShot(prefix, "jpg");
+		if (null == shot) {
+			ring.recycle(image);
+			return false;
+		}
+		final long metricsShot = mCaptureMetrics.startShot();
+		boolean posted = mExecutors.post(CameraExecutors.Stage.SAVE, new Runnable() {
+			@Override
+			public void run() {
+				mCaptureMetrics.stageStarted(metricsShot, CaptureMetrics.Stage.SAVE);
+				File file;
+				try {
+					file = mStorage.commit(shot, image.getPlanes()[0].getBuffer());
+				} catch (IOException e) {
+					Log.e(TAG, e.toString());
+					mCaptureMetrics.abortShot(metricsShot);
+					return;
+				} finally {
+					ring.recycle(image);
+					mTimeLapse.onCaptureFinished();
+				}
+				mCaptureMetrics.stageFinished(metricsShot, CaptureMetrics.Stage.SAVE);
+
+				addToGallery(file, metricsShot);
+				showCapturedImage(file);
+			}
+		});
+		if (!posted) {
+			ring.recycle(image);
+			mStorage.abort(shot);
+			mCaptureMetrics.abortShot(metricsShot);
+		}
+		return posted;
+	}
+
+	/**
+	 * Shows the review image of {@code file}, decoded on the save stage so the UI thread only
+	 * sets a ready bitmap: the embedded thumbnail first, then a subsampled decode if it's too small.
+	 */
+	private void showCapturedImage(final File file) {
+		final Activity activity = getActivity();
+		if (null == activity) {
+			return;
+		}
+		final int generation = mReviewGeneration;
+		// Sized on the preview, the review view covers the same area
+		final int width = mTextureView.getWidth();
+		final int height = mTextureView.getHeight();
+		mExecutors.post(CameraExecutors.Stage.SAVE, new Runnable() {
+			@Override
+			public void run() {
+				ReviewThumbnail.load(file, width, height, mBufferPool, new ReviewThumbnail.Callback() {
+					@Override
+					public void onThumbnail(final Bitmap bitmap, boolean isFinal) {
+						activity.runOnUiThread(new Runnable() {
+							@Override
+							public void run() {
+								if (generation != mReviewGeneration) {
+									// Another capture was started meanwhile
+									return;
+								}
+								mPreviewImageView.setImageBitmap(bitmap);
+								mPreviewImageView.setVisibility(View.VISIBLE);
+							}
+						});
+					}
+				});
+			}
+		});
 	}
 
 	/**
 	 * Lock the focus as the first step for a still image capture.
 	 */
 	private void lockFocus() {
-		try {
-			// This is how to tell the camera to lock focus.
-			mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
-			// Tell #mCaptureCallback to wait for the lock.
-			mState = STATE_WAITING_LOCK;
-			mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mBackgroundHandler);
-		} catch (CameraAccessException e) {
-			e.printStackTrace();
-		}
+		mBackend.lockFocus();
 	}
 
 	private void unlockFocus() {
-		try {
-			// Reset the auto-focus trigger
-			mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_CANCEL);
-//			setAutoFlash(mPreviewRequestBuilder);
-			mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback, mBackgroundHandler);
-			// After this, the camera will go back to the normal state of preview.
-			mState = STATE_PREVIEW;
-			mCaptureSession.setRepeatingRequest(mPreviewRequest, mCaptureCallback, mBackgroundHandler);
-		} catch (CameraAccessException e) {
-			e.printStackTrace();
-		}
+		mBackend.unlockFocus();
 	}
 
 	private void runPrecaptureSequence() {
+		mBackend.runPrecaptureSequence();
+	}
+
+	private void captureStillPicture() {
+		final Activity activity = getActivity();
+		if (null == activity || !mBackend.isOpen()) {
+			return;
+		}
+		// Orientation
+		int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+		mCaptureMetrics.stageStarted(mStillMetricsShot, CaptureMetrics.Stage.CAPTURE);
+		// The preview stops until unlockFocus(), that's no jank
+		mPreviewTelemetry.onPreviewStopped();
+		// The thumbnail is embedded for the review image, see showCapturedImage(File)
+		mBackend.captureStill(CameraUtil.getOrientation(rotation, mCameraSensorOrientation));
+	}
+
+	/**
+	 * Captures {@code frameCount} frames back to back with {@link CameraCaptureSession#captureBurst},
+	 * skipping the focus lock and precapture sequence. Each frame is written to its own file as soon
+	 * as it arrives, and {@link #onBurstCaptured(BurstCapture.Result)} is called once all the frames
+	 * are saved or dropped.
+	 *
+	 * @return false if the camera is not ready or another capture is in progress
+	 */
+	public boolean captureBurst(int frameCount) {
+		final Activity activity = getActivity();
+		if (null == activity || !mBackend.hasSession() || null != mBurst || mState != STATE_PREVIEW) {
+			return false;
+		}
+		int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
+		final int jpegOrientation = CameraUtil.getOrientation(rotation, mCameraSensorOrientation);
+
+		final BurstCapture<CaptureRequest> burst = new BurstCapture<>(frameCount, new BurstCapture.Callback() {
+			@Override
+			public void onBurstFinished(BurstCapture.Result result) {
+				mBurst = null;
+				Log.d(TAG, result.toString());
+				onBurstCaptured(result);
+			}
+		});
+		mBurstFilePrefix = "BURST_" + System.currentTimeMillis();
+		mBurst = burst;
 		try {
-			// This is how to tell the camera to trigger.
-			mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER,
-					CaptureRequest.CONTROL_AE_PRECAPTURE_TRIGGER_START);
-			// Tell #mCaptureCallback to wait for the precapture sequence to be set.
-			mState = STATE_WAITING_PRECAPTURE;
-			mCaptureSession.capture(mPreviewRequestBuilder.build(), mCaptureCallback,
-					mBackgroundHandler);
-		} catch (CameraAccessException e) {
-			e.printStackTrace();
+			burst.start(new BurstCapture.RequestFactory<CaptureRequest>() {
+				@Override
+				public CaptureRequest createRequest(int index) throws CameraAccessException {
+					return mBackend.createBurstRequest(jpegOrientation);
+				}
+			}, new BurstCapture.Session<CaptureRequest>() {
+				@Override
+				public void captureBurst(List<CaptureRequest> requests) throws CameraAccessException {
+					mBackend.captureBurst(requests, new CameraCaptureSession.CaptureCallback() {
+						@Override
+						public void onCaptureFailed(@NonNull CameraCaptureSession session,
+													@NonNull CaptureRequest request,
+													@NonNull CaptureFailure failure) {
+							burst.onFrameDropped();
+						}
+
+						@Override
+						public void onCaptureBufferLost(@NonNull CameraCaptureSession session,
+														@NonNull CaptureRequest request,
+														@NonNull Surface target,
+														long frameNumber) {
+							burst.onFrameDropped();
+						}
+					});
+				}
+			});
+		} catch (Exception e) {
+			// The burst already reported all of its frames as dropped
+			Log.e(TAG, e.toString());
+			return false;
 		}
+		return true;
 	}
 
-	private void captureStillPicture() {
+	private void saveBurstFrame(BurstCapture<CaptureRequest> burst, Image image) {
+		int index = burst.nextFrameIndex();
+		long timestamp = image.getTimestamp();
+		File file;
 		try {
-			final Activity activity = getActivity();
-			if (null == activity || null == mCameraDevice) {
+			if (index < 0) {
 				return;
 			}
-			// This is the CaptureRequest.Builder that we use to take a picture.
-			final CaptureRequest.Builder captureBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
-			captureBuilder.set(CaptureRequest.JPEG_QUALITY, (byte) 80);
-			captureBuilder.addTarget(mImageReader.getSurface());
-
-			// Use the same AE and AF modes as the preview.
-			captureBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-//			setAutoFlash(captureBuilder);
+			CaptureStorage.Shot shot = reserveShot(mBurstFilePrefix, "jpg");
+			if (null == shot) {
+				burst.onFrameDropped();
+				return;
+			}
+			file = mStorage.commit(shot, image.getPlanes()[0].getBuffer());
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+			burst.onFrameDropped();
+			return;
+		} finally {
+			image.close();
+		}
 
-			// Orientation
-			int rotation = activity.getWindowManager().getDefaultDisplay().getRotation();
-			captureBuilder.set(CaptureRequest.JPEG_ORIENTATION, CameraUtil.getOrientation(rotation, mCameraSensorOrientation));
+		if (!mGalleryIndexer.add(file.getPath())) {
+			Log.w(TAG, "Gallery queue full, not indexed: " + file);
+		}
+		burst.onFrameSaved(timestamp);
+	}
 
-			CameraCaptureSession.CaptureCallback CaptureCallback = new CameraCaptureSession.CaptureCallback() {
+	/**
+	 * Called on a background thread when a burst started by {@link #captureBurst(int)} is over.
+	 */
+	protected void onBurstCaptured(BurstCapture.Result result) {}
 
-				@Override
-				public void onCaptureCompleted(@NonNull CameraCaptureSession session,
-											   @NonNull CaptureRequest request,
-											   @NonNull TotalCaptureResult result) {
-//					showToast("Saved: " + mFile);
-					CameraUtil.addImageToGallery(getContext(), mFile);
-					Log.d(TAG, mFile.toString());
-					unlockFocus();
-				}
-			};
+	/**
+	 * Switches to the first camera facing {@code lensFacing}, one of the
+	 * {@code CameraCharacteristics.LENS_FACING_*}. The current camera is closed while the next one
+	 * is set up from the {@link CameraRegistry}, and opened as soon as the close is done. Later
+	 * starts keep that lens. Call on the UI thread.
+	 *
+	 * @return false if the camera is not started, busy with a burst, the cameras aren't loaded yet
+	 * or there's no such camera
+	 */
+	public boolean switchCamera(int lensFacing) {
+		if (!mResumePolicy.isActive() || null != mBurst) {
+			return false;
+		}
+		if (!mCameraSwitcher.switchTo(lensFacing)) {
+			if (!mLifecycle.isOpenWanted()) {
+				// Closed but the next camera couldn't be set up, back to the previous one
+				mStartup.start();
+			}
+			return false;
+		}
+		mPreferredLensFacing = lensFacing;
+		return true;
+	}
 
-			mCaptureSession.stopRepeating();
-			mCaptureSession.capture(captureBuilder.build(), CaptureCallback, null);
-		} catch (CameraAccessException e) {
-			e.printStackTrace();
+	/**
+	 * Starts taking a picture every {@code intervalNanos}, each to its own file, on a schedule
+	 * that doesn't drift: a slot that comes while the previous shot is in flight is skipped. Ends
+	 * after {@code maxShots} shots, on {@link #stopTimeLapse()} or when the fragment is stopped.
+	 *
+	 * @param maxShots 0 to run until stopped
+	 * @return false if the camera is not started
+	 */
+	public boolean startTimeLapse(long intervalNanos, int maxShots) {
+		if (null == mStorage || !mResumePolicy.isActive()) {
+			return false;
 		}
+		mTimeLapseFilePrefix = "TIMELAPSE";
+		mTimeLapse.start(intervalNanos, maxShots);
+		return true;
+	}
+
+	public void stopTimeLapse() {
+		mTimeLapse.stop();
+	}
+
+	/**
+	 * Called when a time-lapse started by {@link #startTimeLapse(long, int)} ends.
+	 */
+	protected void onTimeLapseFinished(int shotCount, long skippedCount) {}
+
+	/**
+	 * Called when a cold start shows its first frame, with the time from the start to the start
+	 * and end of each {@link StartupSequence.Step}. The arrays are reused, copy them to keep them.
+	 */
+	protected void onStartupTraced(long[] startNanos, long[] endNanos) {}
+
+	/**
+	 * Creates the storage the captures are saved to, override to pick another sync policy or free
+	 * space to leave.
+	 */
+	protected CaptureStorage createCaptureStorage(File directory) {
+		return new CaptureStorage(directory, CaptureStorage.SyncPolicy.BATCHED);
 	}
 
 	@Override
@@ -682,9 +1636,10 @@ public class Camera2BaseFragment extends Fragment implements View.OnClickListene
 		switch (v.getId()) {
 			case R.id.btn_capture:
 				Log.d(TAG, "Texture " + mTextureView.getWidth() + "x" + mTextureView.getHeight());
+				mReviewGeneration++;
 				mPreviewImageView.setImageDrawable(null);
 				mPreviewImageView.setVisibility(View.GONE);
-				takePicture();
+				takePicture("IMG");
 				break;
 			case R.id.imageView_preview:
 				mPreviewImageView.setVisibility(View.GONE);
@@ -710,5 +1665,137 @@ public class Camera2BaseFragment extends Fragment implements View.OnClickListene
 //		mAspectRatio = aspectRatio;
 //	}
 
+	/**
+	 * Latency histograms of the capture states and stages, see {@link CaptureMetrics#setListener}
+	 * to export every shot.
+	 */
+	public CaptureMetrics getCaptureMetrics() {
+		return mCaptureMetrics;
+	}
+
+	/**
+	 * Where the captures are saved, with their throughput and backlog in
+	 * {@link CaptureStorage#snapshot()}. Null without external storage.
+	 */
+	public CaptureStorage getCaptureStorage() {
+		return mStorage;
+	}
+
+	/**
+	 * Steps the preview size down while the device doesn't keep up with it, see
+	 * {@link PreviewGovernor#getStepsDown()}.
+	 */
+	public PreviewGovernor getPreviewGovernor() {
+		return mPreviewGovernor;
+	}
+
+	/**
+	 * Delivered frame rate and jank of the preview, cheap enough to poll with
+	 * {@link PreviewTelemetry#snapshot()} in production.
+	 */
+	public PreviewTelemetry getPreviewTelemetry() {
+		return mPreviewTelemetry;
+	}
+
+	/**
+	 * The focus lock / precapture sequence of still captures, see
+	 * {@link CaptureController#setTimeout} to tune the worst-case shutter latency.
+	 */
+	public CaptureController getCaptureController() {
+		return mCaptureController;
+	}
+
+	/**
+	 * How long the camera is kept open after {@link #onStop()}, so that coming back within it only
+	 * restarts the preview. 0 closes the camera on every stop.
+	 */
+	public void setWarmResumeGracePeriod(long gracePeriodNanos) {
+		mResumePolicy.setGracePeriod(gracePeriodNanos);
+	}
+
+	/**
+	 * Warm and cold start-to-first-frame latencies.
+	 */
+	public WarmResumePolicy getResumePolicy() {
+		return mResumePolicy;
+	}
+
+	/**
+	 * Latency of the camera switches.
+	 */
+	public CameraSwitcher getCameraSwitcher() {
+		return mCameraSwitcher;
+	}
+
+	/**
+	 * Skipped slots and timing of the time-lapse.
+	 */
+	public TimeLapseScheduler getTimeLapseScheduler() {
+		return mTimeLapse;
+	}
+
+	/**
+	 * Files waiting for the media scanner, and how long they wait.
+	 */
+	public GalleryIndexer getGalleryIndexer() {
+		return mGalleryIndexer;
+	}
+
+	/**
+	 * Cold start latency of each step, the steps run concurrently where they can.
+	 */
+	public StartupSequence getStartupSequence() {
+		return mStartup;
+	}
+
+	/**
+	 * Picks the threading model, see {@link HandlerCameraExecutors} for the stock ones. Only while
+	 * the camera is released, the default is a dedicated thread per stage.
+	 */
+	public void setCameraExecutors(CameraExecutors executors) {
+		if (mExecutors.isRunning()) {
+			throw new IllegalStateException("The camera executors are running.");
+		}
+		mExecutors = executors;
+	}
+
+	/**
+	 * Queue depth, wait and run times of each stage.
+	 */
+	public CameraExecutors getCameraExecutors() {
+		return mExecutors;
+	}
+
+	public void setSaveMode(SaveMode saveMode) {
+		mSaveMode = saveMode;
+	}
+
+	/**
+	 * Adds a preview frame analyzer, run on a background thread on the latest frame only. Analysis
+	 * starts from the next camera open if there was no analyzer before.
+	 */
+	public void addFrameAnalyzer(String name, FrameAnalyzer<Image> analyzer) {
+		mFrameDispatcher.addAnalyzer(name, analyzer);
+	}
+
+	public void removeFrameAnalyzer(String name) {
+		mFrameDispatcher.removeAnalyzer(name);
+	}
+
+	/**
+	 * Analyzed and dropped frame counts, and the time spent in each analyzer.
+	 */
+	public FrameDispatcher<Image> getFrameDispatcher() {
+		return mFrameDispatcher;
+	}
+
+	/**
+	 * Zero-shutter-lag mode: the preview keeps the last {@link #ZSL_RING_SIZE} full-resolution
+	 * frames, and a press saves the one exposed closest to it. Applies from the next camera open.
+	 */
+	public void setZslEnabled(boolean zslEnabled) {
+		mZslEnabled = zslEnabled;
+	}
+
 
 }
@@ -0,0 +1,122 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * The camera device and session calls of the capture pipeline: open, preview, the focus lock /
+ * precapture / still sequence driven by {@link CaptureController}, and close. {@link Camera2Backend}
+ * runs them on a device, a simulated backend can run them on a plain JVM to load-test the
+ * pipeline.
+ *
+ * Calls return right away, their outcome is reported to the {@link Listener} on the camera
+ * thread of the backend.
+ *
+ * @param <F> The frame type of the stills, {@code Image} in JPEG on a device
+ */
+public interface CameraBackend<F> {
+
+	interface Listener<F> {
+		void onOpened();
+
+		void onDisconnected();
+
+		/**
+		 * The device failed, or failed to open, it's closed already.
+		 *
+		 * @param error One of the {@code CameraDevice.StateCallback.ERROR_*}
+		 */
+		void onError(int error);
+
+		void onSessionConfigured();
+
+		void onSessionConfigureFailed();
+
+		/**
+		 * The {@code CaptureResult} AF and AE states of a result of the focus lock or precapture
+		 * requests, or of the preview once restarted by {@link #unlockFocus()}, see
+		 * {@link CameraUtil#toFocusState(Integer)}.
+		 */
+		void onCaptureResult(Integer afState, Integer aeState, boolean partial);
+
+		/**
+		 * The sensor started exposing a frame of the preview, or of the focus lock or precapture
+		 * requests, once the preview is started.
+		 *
+		 * @param sensorTimestampNs The timestamp the frame will have in its result and its image
+		 */
+		void onPreviewFrameStarted(long sensorTimestampNs);
+
+		/**
+		 * A JPEG from the still output, of a still or of a burst frame. Closing it is up to the
+		 * listener.
+		 */
+		void onJpegAvailable(F image);
+
+		/**
+		 * The sensor started exposing the still of the last {@link #captureStill}.
+		 *
+		 * @param sensorTimestampNs The timestamp its JPEG will have
+		 */
+		void onStillStarted(long sensorTimestampNs);
+
+		void onStillCompleted();
+
+		/**
+		 * @param imageCaptured Whether its JPEG may still come, see
+		 *                      {@code CaptureFailure#wasImageCaptured()}
+		 */
+		void onStillFailed(int reason, boolean imageCaptured);
+	}
+
+	void setListener(Listener<F> listener);
+
+	/**
+	 * Starts opening {@code cameraId}, reported with {@link Listener#onOpened()} or
+	 * {@link Listener#onError(int)}.
+	 *
+	 * @return false if it couldn't be started, nothing is reported then
+	 */
+	boolean open(String cameraId);
+
+	boolean isOpen();
+
+	/**
+	 * Starts configuring the session of the open device, reported with
+	 * {@link Listener#onSessionConfigured()} or {@link Listener#onSessionConfigureFailed()}.
+	 */
+	void createSession();
+
+	boolean hasSession();
+
+	/**
+	 * Starts the repeating preview request, without results, only
+	 * {@link Listener#onPreviewFrameStarted(long)}.
+	 *
+	 * @return false if there's no session or it failed
+	 */
+	boolean startPreview();
+
+	void stopPreview();
+
+	/**
+	 * Triggers the focus lock, the results of the preview are reported from then on.
+	 */
+	void lockFocus();
+
+	void runPrecaptureSequence();
+
+	/**
+	 * Stops the preview and captures a still to the still output.
+	 */
+	void captureStill(int jpegOrientation);
+
+	/**
+	 * Cancels the focus lock and restarts the preview, with results.
+	 */
+	void unlockFocus();
+
+	/**
+	 * Stops using the device and its session at once, nothing is reported for them afterwards.
+	 *
+	 * @return What releases them, which may block, to run off the UI thread
+	 */
+	Runnable close();
+}
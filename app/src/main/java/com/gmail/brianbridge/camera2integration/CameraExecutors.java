@@ -0,0 +1,180 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.os.Handler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The threads the camera work runs on, one {@link Stage} at a time, so that the threading model
+ * can be picked per deployment without touching the code that posts the work.
+ *
+ * Every task goes through {@link #getExecutor(Stage)}, which records the queue depth, and how long
+ * tasks wait and run, per stage. Camera2 delivers its callbacks to a {@link Handler}, the
+ * {@link #getHandler(Stage)} of the stages that take them; such callbacks can be counted with
+ * {@link #runInline(Stage, Runnable)}.
+ */
+public abstract class CameraExecutors {
+
+	public enum Stage {
+		CAMERA,			// Camera device and session callbacks, frame hand-off
+		ANALYSIS,		// Preview frame analyzers
+		CAPTURE,		// Still image delivery
+		SAVE			// Writing images and caches
+	}
+
+	/**
+	 * Queue and latency stats of a stage.
+	 */
+	public static class StageStats {
+		private final AtomicInteger mQueueDepth = new AtomicInteger();
+		private final AtomicInteger mMaxQueueDepth = new AtomicInteger();
+		private final AtomicLong mRejected = new AtomicLong();
+		private final LatencyHistogram mWait = new LatencyHistogram();
+		private final LatencyHistogram mRun = new LatencyHistogram();
+
+		private void enqueued() {
+			int depth = mQueueDepth.incrementAndGet();
+			int max = mMaxQueueDepth.get();
+			while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+				max = mMaxQueueDepth.get();
+			}
+		}
+
+		/**
+		 * Tasks posted and not started yet.
+		 */
+		public int getQueueDepth() {
+			return mQueueDepth.get();
+		}
+
+		public int getMaxQueueDepth() {
+			return mMaxQueueDepth.get();
+		}
+
+		public long getRejectedCount() {
+			return mRejected.get();
+		}
+
+		/**
+		 * From the post to the start of each task.
+		 */
+		public LatencyHistogram getWaitHistogram() {
+			return mWait;
+		}
+
+		public LatencyHistogram getRunHistogram() {
+			return mRun;
+		}
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+
+	private final Clock mClock;
+	private final StageStats[] mStats = new StageStats[STAGES.length];
+	private final Executor[] mExecutors = new Executor[STAGES.length];
+
+	protected CameraExecutors(Clock clock) {
+		mClock = clock;
+		for (final Stage stage : STAGES) {
+			final StageStats stats = new StageStats();
+			mStats[stage.ordinal()] = stats;
+			mExecutors[stage.ordinal()] = new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					post(stage, stats, command);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Starts the threads, called before the camera is opened.
+	 */
+	public abstract void start();
+
+	/**
+	 * Stops the threads once they've run the tasks already posted, without waiting for them.
+	 * Later tasks are rejected.
+	 */
+	public abstract void shutdown();
+
+	public abstract boolean isRunning();
+
+	/**
+	 * A handler on the thread of {@code stage}, for the camera APIs that deliver to one, or null
+	 * if not running. {@link Stage#CAMERA} and {@link Stage#CAPTURE} always have one.
+	 */
+	public abstract Handler getHandler(Stage stage);
+
+	/**
+	 * Hands a task over to the threads of {@code stage}.
+	 *
+	 * @throws RejectedExecutionException if not running
+	 */
+	protected abstract void dispatch(Stage stage, Runnable task);
+
+	/**
+	 * An executor of {@code stage}, throwing {@link RejectedExecutionException} when not running.
+	 */
+	public Executor getExecutor(Stage stage) {
+		return mExecutors[stage.ordinal()];
+	}
+
+	/**
+	 * Posts to {@code stage}, returning false instead of throwing when not running.
+	 */
+	public boolean post(Stage stage, Runnable command) {
+		try {
+			getExecutor(stage).execute(command);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Runs a callback delivered to the handler of {@code stage} on the calling thread, counted as
+	 * a task that didn't wait.
+	 */
+	public void runInline(Stage stage, Runnable command) {
+		StageStats stats = mStats[stage.ordinal()];
+		stats.mWait.record(0);
+		long start = mClock.nanoTime();
+		try {
+			command.run();
+		} finally {
+			stats.mRun.record(mClock.nanoTime() - start);
+		}
+	}
+
+	public StageStats getStats(Stage stage) {
+		return mStats[stage.ordinal()];
+	}
+
+	private void post(Stage stage, final StageStats stats, final Runnable command) {
+		final long postedAt = mClock.nanoTime();
+		stats.enqueued();
+		try {
+			dispatch(stage, new Runnable() {
+				@Override
+				public void run() {
+					stats.mQueueDepth.decrementAndGet();
+					long start = mClock.nanoTime();
+					stats.mWait.record(start - postedAt);
+					try {
+						command.run();
+					} finally {
+						stats.mRun.record(mClock.nanoTime() - start);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			stats.mQueueDepth.decrementAndGet();
+			stats.mRejected.incrementAndGet();
+			throw e;
+		}
+	}
+}
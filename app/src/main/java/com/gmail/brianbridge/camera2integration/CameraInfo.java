@@ -0,0 +1,88 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.Arrays;
+
+/**
+ * The subset of {@code CameraCharacteristics} needed to pick a camera and its output sizes,
+ * in a form that can be cached without talking to the camera service.
+ *
+ * Sizes are packed as {@code [width0, height0, width1, height1, ...]} in the order reported by
+ * {@code StreamConfigurationMap}.
+ */
+public class CameraInfo {
+	public static final int LENS_FACING_UNKNOWN = -1;
+
+	public final String cameraId;
+	public final int lensFacing;
+	public final int sensorOrientation;
+	public final boolean flashSupported;
+	public final int[] jpegSizes;
+	public final int[] previewSizes;
+	public final int[] thumbnailSizes; // JPEG thumbnail sizes, (0, 0) stands for no thumbnail
+	public final boolean realtimeTimestamps; // Sensor timestamps in SystemClock.elapsedRealtimeNanos()
+
+	public CameraInfo(String cameraId, int lensFacing, int sensorOrientation, boolean flashSupported,
+					  int[] jpegSizes, int[] previewSizes) {
+		this(cameraId, lensFacing, sensorOrientation, flashSupported, jpegSizes, previewSizes, new int[0]);
+	}
+
+	public CameraInfo(String cameraId, int lensFacing, int sensorOrientation, boolean flashSupported,
+					  int[] jpegSizes, int[] previewSizes, int[] thumbnailSizes) {
+		this(cameraId, lensFacing, sensorOrientation, flashSupported, jpegSizes, previewSizes, thumbnailSizes, false);
+	}
+
+	public CameraInfo(String cameraId, int lensFacing, int sensorOrientation, boolean flashSupported,
+					  int[] jpegSizes, int[] previewSizes, int[] thumbnailSizes, boolean realtimeTimestamps) {
+		if (jpegSizes.length % 2 != 0 || previewSizes.length % 2 != 0 || thumbnailSizes.length % 2 != 0) {
+			throw new IllegalArgumentException("Sizes must be packed as width, height pairs.");
+		}
+		this.cameraId = cameraId;
+		this.lensFacing = lensFacing;
+		this.sensorOrientation = sensorOrientation;
+		this.flashSupported = flashSupported;
+		this.jpegSizes = jpegSizes;
+		this.previewSizes = previewSizes;
+		this.thumbnailSizes = thumbnailSizes;
+		this.realtimeTimestamps = realtimeTimestamps;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) {
+			return true;
+		}
+		if (!(o instanceof CameraInfo)) {
+			return false;
+		}
+		CameraInfo other = (CameraInfo) o;
+		return cameraId.equals(other.cameraId)
+				&& lensFacing == other.lensFacing
+				&& sensorOrientation == other.sensorOrientation
+				&& flashSupported == other.flashSupported
+				&& Arrays.equals(jpegSizes, other.jpegSizes)
+				&& Arrays.equals(previewSizes, other.previewSizes)
+				&& Arrays.equals(thumbnailSizes, other.thumbnailSizes)
+				&& realtimeTimestamps == other.realtimeTimestamps;
+	}
+
+	@Override
+	public int hashCode() {
+		int result = cameraId.hashCode();
+		result = 31 * result + lensFacing;
+		result = 31 * result + sensorOrientation;
+		result = 31 * result + (flashSupported ? 1 : 0);
+		result = 31 * result + Arrays.hashCode(jpegSizes);
+		result = 31 * result + Arrays.hashCode(previewSizes);
+		result = 31 * result + Arrays.hashCode(thumbnailSizes);
+		result = 31 * result + (realtimeTimestamps ? 1 : 0);
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return "CameraInfo{id=" + cameraId + ", facing=" + lensFacing
+				+ ", orientation=" + sensorOrientation + ", flash=" + flashSupported
+				+ ", jpegSizes=" + jpegSizes.length / 2 + ", previewSizes=" + previewSizes.length / 2
+				+ ", thumbnailSizes=" + thumbnailSizes.length / 2 + ", realtime=" + realtimeTimestamps + "}";
+	}
+}
@@ -0,0 +1,162 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Keeps the {@link CameraInfo} of every camera in memory and in a small binary file, keyed by the
+ * device build fingerprint, so later launches can pick the camera and its sizes without calling
+ * {@code CameraManager}. A new fingerprint (e.g. after an OTA) invalidates the cache.
+ */
+public class CameraInfoCache {
+	private static final int MAGIC = 0x43414d49; // "CAMI"
+	private static final int VERSION = 3;
+
+	// Shared across instances for the lifetime of the process
+	private static final Object sLock = new Object();
+	private static String sFingerprint;
+	private static List<CameraInfo> sCameras;
+
+	private final File mFile;
+	private final String mFingerprint;
+
+	public CameraInfoCache(File file, String fingerprint) {
+		mFile = file;
+		mFingerprint = fingerprint;
+	}
+
+	/**
+	 * @return The cached cameras, or null if nothing was cached for this fingerprint
+	 */
+	public List<CameraInfo> load() {
+		synchronized (sLock) {
+			if (mFingerprint.equals(sFingerprint)) {
+				return sCameras;
+			}
+		}
+		List<CameraInfo> cameras;
+		try {
+			cameras = read(mFile, mFingerprint);
+		} catch (IOException e) {
+			// Missing or corrupt, the caller queries the camera service again
+			return null;
+		}
+		if (cameras != null) {
+			putInMemory(cameras);
+		}
+		return cameras;
+	}
+
+	/**
+	 * Caches {@code cameras} in memory, then writes them to the file.
+	 */
+	public void store(List<CameraInfo> cameras) throws IOException {
+		putInMemory(cameras);
+		write(mFile, mFingerprint, cameras);
+	}
+
+	private void putInMemory(List<CameraInfo> cameras) {
+		synchronized (sLock) {
+			sFingerprint = mFingerprint;
+			sCameras = Collections.unmodifiableList(new ArrayList<>(cameras));
+		}
+	}
+
+	static void clearMemory() {
+		synchronized (sLock) {
+			sFingerprint = null;
+			sCameras = null;
+		}
+	}
+
+	/**
+	 * Writes through a temporary file and a rename, so a reader never sees a partial file.
+	 */
+	static void write(File file, String fingerprint, List<CameraInfo> cameras) throws IOException {
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+		try {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			output.writeUTF(fingerprint);
+			output.writeInt(cameras.size());
+			for (CameraInfo camera : cameras) {
+				output.writeUTF(camera.cameraId);
+				output.writeInt(camera.lensFacing);
+				output.writeInt(camera.sensorOrientation);
+				output.writeBoolean(camera.flashSupported);
+				writeSizes(output, camera.jpegSizes);
+				writeSizes(output, camera.previewSizes);
+				writeSizes(output, camera.thumbnailSizes);
+				output.writeBoolean(camera.realtimeTimestamps);
+			}
+		} finally {
+			output.close();
+		}
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Cannot rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * @return The cameras in {@code file}, or null if it was written for another fingerprint
+	 * @throws IOException If the file is missing, truncated or of an unknown format
+	 */
+	static List<CameraInfo> read(File file, String fingerprint) throws IOException {
+		DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+				throw new IOException("Unknown camera info format");
+			}
+			if (!fingerprint.equals(input.readUTF())) {
+				return null;
+			}
+			int count = input.readInt();
+			if (count < 0) {
+				throw new IOException("Corrupt camera count " + count);
+			}
+			List<CameraInfo> cameras = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				String cameraId = input.readUTF();
+				int lensFacing = input.readInt();
+				int sensorOrientation = input.readInt();
+				boolean flashSupported = input.readBoolean();
+				int[] jpegSizes = readSizes(input);
+				int[] previewSizes = readSizes(input);
+				int[] thumbnailSizes = readSizes(input);
+				boolean realtimeTimestamps = input.readBoolean();
+				cameras.add(new CameraInfo(cameraId, lensFacing, sensorOrientation, flashSupported,
+						jpegSizes, previewSizes, thumbnailSizes, realtimeTimestamps));
+			}
+			return cameras;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static void writeSizes(DataOutputStream output, int[] sizes) throws IOException {
+		output.writeShort(sizes.length / 2);
+		for (int value : sizes) {
+			output.writeShort(value);
+		}
+	}
+
+	private static int[] readSizes(DataInputStream input) throws IOException {
+		int count = input.readUnsignedShort();
+		int[] sizes = new int[count * 2];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = input.readUnsignedShort();
+		}
+		return sizes;
+	}
+}
@@ -0,0 +1,246 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Open and close intents of the camera, turned into at most one open or close in flight at a time,
+ * without any thread waiting for the camera.
+ *
+ * An intent only records what is wanted. The device is opened or closed by the thread whose intent
+ * or callback makes the state stable and different from what is wanted, so intents made while an
+ * open or a close is in flight are coalesced: open, close, open while {@link State#OPENING} ends
+ * up with a single open. State and intent are updated together with a compare-and-set, intents and
+ * callbacks can come from any thread.
+ *
+ * When another device is wanted, e.g. after a camera switch, {@link #requestReopen()} keeps the
+ * open or the device in flight from being reused: it's closed once open, then the wanted one is
+ * opened.
+ */
+public class CameraLifecycle {
+
+	public enum State {
+		CLOSED,
+		OPENING,		// Device.open() called, waiting for onOpened() or onError()
+		OPEN,
+		CLOSING			// Device.close() called, waiting for onClosed()
+	}
+
+	/**
+	 * Called without any lock held, the result is reported back with the callbacks.
+	 */
+	public interface Device {
+		/**
+		 * Starts opening, reported with {@link #onOpened()} or {@link #onError()}.
+		 */
+		void open();
+
+		/**
+		 * Starts closing, reported with {@link #onClosed()}. Also called after an error, to free
+		 * what the open allocated.
+		 */
+		void close();
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the thread that made the transition, transitions made on different threads
+		 * can be reported out of order.
+		 */
+		void onStateChanged(State state);
+	}
+
+	private static final State[] STATES = State.values();
+	private static final int STATE_MASK = 3;
+	private static final int WANT_OPEN = 4;
+	private static final int STALE = 8; // The device being opened isn't the wanted one
+
+	private final Device mDevice;
+	private volatile Listener mListener;
+	private final AtomicInteger mValue = new AtomicInteger(State.CLOSED.ordinal());
+
+	// Stats
+	private final AtomicLong mOpenCount = new AtomicLong();
+	private final AtomicLong mCloseCount = new AtomicLong();
+	private final AtomicLong mRedundantCount = new AtomicLong();
+	private final AtomicLong mErrorCount = new AtomicLong();
+
+	public CameraLifecycle(Device device) {
+		mDevice = device;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	public State getState() {
+		return STATES[mValue.get() & STATE_MASK];
+	}
+
+	public boolean isOpenWanted() {
+		return (mValue.get() & WANT_OPEN) != 0;
+	}
+
+	public void requestOpen() {
+		setIntent(true);
+	}
+
+	public void requestClose() {
+		setIntent(false);
+	}
+
+	/**
+	 * Wants a device other than the one being opened or open: the device in flight is closed
+	 * first, then {@link Device#open()} is called again.
+	 */
+	public void requestReopen() {
+		for (;;) {
+			int value = mValue.get();
+			State state = state(value);
+			int next = value | WANT_OPEN;
+			if (state == State.CLOSED) {
+				next = with(next, State.OPENING);
+			} else if (state == State.OPEN) {
+				next = with(next, State.CLOSING);
+			} else if (state == State.OPENING) {
+				// Closed by onOpened(), reopened by onClosed()
+				next |= STALE;
+			}
+			if (mValue.compareAndSet(value, next)) {
+				if (state(next) != state) {
+					transitioned(next);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The device is open.
+	 */
+	public void onOpened() {
+		for (;;) {
+			int value = mValue.get();
+			if (state(value) != State.OPENING) {
+				return;
+			}
+			boolean keep = wantsOpen(value) && (value & STALE) == 0;
+			int next = with(value & ~STALE, keep ? State.OPEN : State.CLOSING);
+			if (mValue.compareAndSet(value, next)) {
+				transitioned(next);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The device is closed.
+	 */
+	public void onClosed() {
+		for (;;) {
+			int value = mValue.get();
+			if (state(value) != State.CLOSING) {
+				return;
+			}
+			int next = with(value, wantsOpen(value) ? State.OPENING : State.CLOSED);
+			if (mValue.compareAndSet(value, next)) {
+				transitioned(next);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * The device failed to open, was disconnected or failed while open. It's closed, and not
+	 * opened again until the next {@link #requestOpen()}, unless it was a device no longer wanted
+	 * after a {@link #requestReopen()}.
+	 */
+	public void onError() {
+		for (;;) {
+			int value = mValue.get();
+			State state = state(value);
+			if (state != State.OPENING && state != State.OPEN) {
+				return;
+			}
+			int next = State.CLOSING.ordinal();
+			if (state == State.OPENING && (value & STALE) != 0) {
+				next |= value & WANT_OPEN;
+			}
+			if (mValue.compareAndSet(value, next)) {
+				mErrorCount.incrementAndGet();
+				transitioned(next);
+				return;
+			}
+		}
+	}
+
+	private void setIntent(boolean open) {
+		for (;;) {
+			int value = mValue.get();
+			if (wantsOpen(value) == open) {
+				mRedundantCount.incrementAndGet();
+				return;
+			}
+			int next = open ? value | WANT_OPEN : value & ~WANT_OPEN;
+			// Acts right away only from a stable state, otherwise the callback will
+			State state = state(value);
+			if (open && state == State.CLOSED) {
+				next = with(next, State.OPENING);
+			} else if (!open && state == State.OPEN) {
+				next = with(next, State.CLOSING);
+			}
+			if (mValue.compareAndSet(value, next)) {
+				if (state(next) != state) {
+					transitioned(next);
+				}
+				return;
+			}
+		}
+	}
+
+	private void transitioned(int value) {
+		State state = state(value);
+		Listener listener = mListener;
+		if (listener != null) {
+			listener.onStateChanged(state);
+		}
+		if (state == State.OPENING) {
+			mOpenCount.incrementAndGet();
+			mDevice.open();
+		} else if (state == State.CLOSING) {
+			mCloseCount.incrementAndGet();
+			mDevice.close();
+		}
+	}
+
+	private static State state(int value) {
+		return STATES[value & STATE_MASK];
+	}
+
+	private static boolean wantsOpen(int value) {
+		return (value & WANT_OPEN) != 0;
+	}
+
+	private static int with(int value, State state) {
+		return (value & ~STATE_MASK) | state.ordinal();
+	}
+
+	public long getOpenCount() {
+		return mOpenCount.get();
+	}
+
+	public long getCloseCount() {
+		return mCloseCount.get();
+	}
+
+	/**
+	 * Intents that asked for what was already wanted.
+	 */
+	public long getRedundantCount() {
+		return mRedundantCount.get();
+	}
+
+	public long getErrorCount() {
+		return mErrorCount.get();
+	}
+}
@@ -0,0 +1,139 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Every usable camera, indexed once: its {@link CameraInfo}, its {@link ResolutionPlanner}, and the
+ * capture and thumbnail sizes picked for it. Choosing a camera, e.g. to switch lens, is then a
+ * lookup instead of characteristics queries and size selection.
+ *
+ * Cameras without JPEG or preview sizes are not indexed.
+ */
+public class CameraRegistry {
+
+	/**
+	 * Where the cameras come from, the camera service or its cache.
+	 */
+	public interface Source {
+		/**
+		 * @return Every camera, or null if they can't be queried now
+		 */
+		List<CameraInfo> queryCameras();
+	}
+
+	public static class Entry {
+		public final CameraInfo info;
+		public final ResolutionPlanner planner;
+		public final long captureSize; // Packed by ResolutionPlanner
+		public final long thumbnailSize; // ResolutionPlanner.NO_SIZE if the camera has none
+
+		Entry(CameraInfo info, ResolutionPlanner planner, long captureSize, long thumbnailSize) {
+			this.info = info;
+			this.planner = planner;
+			this.captureSize = captureSize;
+			this.thumbnailSize = thumbnailSize;
+		}
+
+		@Override
+		public String toString() {
+			return "Entry{id=" + info.cameraId + ", facing=" + info.lensFacing + ", capture="
+					+ ResolutionPlanner.width(captureSize) + "x" + ResolutionPlanner.height(captureSize) + "}";
+		}
+	}
+
+	private final Source mSource;
+	private final int mRatioWidth;
+	private final int mRatioHeight;
+	private final long mMinCaptureArea;
+
+	private List<Entry> mEntries; // Null until loaded
+	private long mQueryCount;
+
+	/**
+	 * @param ratioWidth     Aspect ratio of the capture size, see
+	 *                       {@link ResolutionPlanner#chooseCaptureSize(int, int, long)}
+	 * @param minCaptureArea Smallest capture area to pick in that ratio
+	 */
+	public CameraRegistry(Source source, int ratioWidth, int ratioHeight, long minCaptureArea) {
+		mSource = source;
+		mRatioWidth = ratioWidth;
+		mRatioHeight = ratioHeight;
+		mMinCaptureArea = minCaptureArea;
+	}
+
+	/**
+	 * Indexes the cameras if not done yet.
+	 *
+	 * @return false if the source couldn't be queried, try again later
+	 */
+	public synchronized boolean load() {
+		if (mEntries != null) {
+			return true;
+		}
+		mQueryCount++;
+		List<CameraInfo> cameras = mSource.queryCameras();
+		if (cameras == null) {
+			return false;
+		}
+		List<Entry> entries = new ArrayList<>(cameras.size());
+		for (CameraInfo camera : cameras) {
+			if (camera.jpegSizes.length == 0 || camera.previewSizes.length == 0) {
+				continue;
+			}
+			ResolutionPlanner planner = ResolutionPlanner.of(camera);
+			long captureSize = planner.chooseCaptureSize(mRatioWidth, mRatioHeight, mMinCaptureArea);
+			long thumbnailSize = ResolutionPlanner.chooseThumbnailSize(camera.thumbnailSizes, captureSize);
+			entries.add(new Entry(camera, planner, captureSize, thumbnailSize));
+		}
+		mEntries = Collections.unmodifiableList(entries);
+		return true;
+	}
+
+	public synchronized boolean isLoaded() {
+		return mEntries != null;
+	}
+
+	/**
+	 * Drops the index, the next {@link #load()} queries the source again.
+	 */
+	public synchronized void invalidate() {
+		mEntries = null;
+	}
+
+	/**
+	 * The indexed cameras in the order of the source, empty if not loaded.
+	 */
+	public synchronized List<Entry> getCameras() {
+		return mEntries == null ? Collections.<Entry>emptyList() : mEntries;
+	}
+
+	/**
+	 * The first camera facing {@code lensFacing}, or null.
+	 */
+	public synchronized Entry find(int lensFacing) {
+		for (Entry entry : getCameras()) {
+			if (entry.info.lensFacing == lensFacing) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	public synchronized Entry get(String cameraId) {
+		for (Entry entry : getCameras()) {
+			if (entry.info.cameraId.equals(cameraId)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * How many times the source was queried.
+	 */
+	public synchronized long getQueryCount() {
+		return mQueryCount;
+	}
+}
@@ -0,0 +1,157 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * Switches to the camera of another lens facing, overlapping the close of the current device with
+ * the setup of the next one: the close is only requested, the next camera is prepared from its
+ * {@link CameraRegistry.Entry} while the device closes, and its open is queued behind the close.
+ *
+ * The latency of a switch is measured from the request to the first frame of the new camera.
+ */
+public class CameraSwitcher {
+
+	/**
+	 * The camera operations, called with the switcher locked.
+	 */
+	public interface Backend {
+		/**
+		 * Starts closing the current camera, without waiting for it.
+		 */
+		void closeCamera();
+
+		/**
+		 * Sets up what opening {@code camera} needs, while the previous one is closing.
+		 *
+		 * @return false if it can't be set up, the switch then fails
+		 */
+		boolean prepare(CameraRegistry.Entry camera);
+
+		/**
+		 * Opens the prepared {@code camera} once the previous one is closed.
+		 */
+		void openCamera(CameraRegistry.Entry camera);
+	}
+
+	private final CameraRegistry mRegistry;
+	private final Backend mBackend;
+	private final Clock mClock;
+	private final LatencyHistogram mSwitchLatency = new LatencyHistogram();
+	private final LatencyHistogram mPrepareLatency = new LatencyHistogram();
+
+	private CameraRegistry.Entry mCurrent;
+	private boolean mSwitching;
+	private long mSwitchStartedAt;
+
+	// Stats
+	private long mSwitchCount;
+	private long mSupersededCount;
+	private long mFailedCount;
+
+	public CameraSwitcher(CameraRegistry registry, Backend backend, Clock clock) {
+		mRegistry = registry;
+		mBackend = backend;
+		mClock = clock;
+	}
+
+	/**
+	 * The camera in use, when it was chosen other than by a switch.
+	 */
+	public synchronized void setCurrent(CameraRegistry.Entry camera) {
+		mCurrent = camera;
+	}
+
+	public synchronized CameraRegistry.Entry getCurrent() {
+		return mCurrent;
+	}
+
+	public synchronized boolean isSwitching() {
+		return mSwitching;
+	}
+
+	/**
+	 * Switches to the first camera facing {@code lensFacing}.
+	 *
+	 * @return false if the registry isn't loaded yet, there's no such camera or it can't be set up,
+	 * true if the switch started or the camera is already in use
+	 */
+	public synchronized boolean switchTo(int lensFacing) {
+		// Loading queries the camera service, not on the UI thread: the startup loads it
+		if (!mRegistry.isLoaded()) {
+			return false;
+		}
+		CameraRegistry.Entry target = mRegistry.find(lensFacing);
+		if (target == null) {
+			return false;
+		}
+		if (target == mCurrent) {
+			return true;
+		}
+		long start = mClock.nanoTime();
+		if (mSwitching) {
+			mSupersededCount++;
+		}
+		mBackend.closeCamera();
+		mCurrent = null;
+		if (!mBackend.prepare(target)) {
+			mSwitching = false;
+			mFailedCount++;
+			return false;
+		}
+		mPrepareLatency.record(mClock.nanoTime() - start);
+		mCurrent = target;
+		mSwitching = true;
+		mSwitchStartedAt = start;
+		mBackend.openCamera(target);
+		return true;
+	}
+
+	/**
+	 * Called on every preview frame, the first one after a switch ends it.
+	 */
+	public synchronized void onFirstFrame() {
+		if (!mSwitching) {
+			return;
+		}
+		mSwitching = false;
+		mSwitchCount++;
+		mSwitchLatency.record(mClock.nanoTime() - mSwitchStartedAt);
+	}
+
+	/**
+	 * The new camera failed to open or was lost before its first frame.
+	 */
+	public synchronized void onSwitchFailed() {
+		if (mSwitching) {
+			mSwitching = false;
+			mFailedCount++;
+		}
+	}
+
+	/**
+	 * From the switch request to the first frame of the new camera.
+	 */
+	public LatencyHistogram getSwitchHistogram() {
+		return mSwitchLatency;
+	}
+
+	/**
+	 * Of the setup overlapped with the close of the previous camera.
+	 */
+	public LatencyHistogram getPrepareHistogram() {
+		return mPrepareLatency;
+	}
+
+	public synchronized long getSwitchCount() {
+		return mSwitchCount;
+	}
+
+	/**
+	 * Switches replaced by another one before their first frame.
+	 */
+	public synchronized long getSupersededCount() {
+		return mSupersededCount;
+	}
+
+	public synchronized long getFailedCount() {
+		return mFailedCount;
+	}
+}
@@ -3,11 +3,18 @@ package com.gmail.brianbridge.camera2integration;
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.net.Uri;
 import android.util.Log;
 import android.util.Size;
-import android.util.SparseIntArray;
 import android.view.Surface;
 
 import java.io.File;
@@ -24,12 +31,13 @@ public class CameraUtil {
 	public static final int API2_MAX_PREVIEW_WIDTH = 1920;
 	public static final int API2_MAX_PREVIEW_HEIGHT = 1080;
 
-	private static final SparseIntArray ORIENTATIONS = new SparseIntArray();
+	// Indexed by Surface.ROTATION_*, which are 0 to 3
+	private static final int[] ORIENTATIONS = new int[4];
 	static {
-		ORIENTATIONS.append(Surface.ROTATION_0, 90);
-		ORIENTATIONS.append(Surface.ROTATION_90, 0);
-		ORIENTATIONS.append(Surface.ROTATION_180, 270);
-		ORIENTATIONS.append(Surface.ROTATION_270, 180);
+		ORIENTATIONS[Surface.ROTATION_0] = 90;
+		ORIENTATIONS[Surface.ROTATION_90] = 0;
+		ORIENTATIONS[Surface.ROTATION_180] = 270;
+		ORIENTATIONS[Surface.ROTATION_270] = 180;
 	}
 
 
@@ -128,7 +136,44 @@ public class CameraUtil {
 		// We have to take that into account and rotate JPEG properly.
 		// For devices with orientation of 90, we simply return our mapping from ORIENTATIONS.
 		// For devices with orientation of 270, we need to rotate the JPEG 180 degrees.
-		return (ORIENTATIONS.get(rotation) + cameraSensorOrientation + 270) % 360;
+		// An invalid rotation maps to 0, as it did with the SparseIntArray this table replaced
+		int orientation = rotation >= 0 && rotation < ORIENTATIONS.length ? ORIENTATIONS[rotation] : 0;
+		return (orientation + cameraSensorOrientation + 270) % 360;
+	}
+
+	/**
+	 * Maps a {@code CaptureResult.CONTROL_AF_STATE} to the {@code AF_*} of {@link CaptureController}.
+	 */
+	public static Integer toFocusState(Integer afState) {
+		if (null == afState) {
+			return null;
+		}
+		switch (afState) {
+			case CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED:
+			case CaptureResult.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED:
+				return CaptureController.AF_LOCKED;
+			default:
+				return CaptureController.AF_SCANNING;
+		}
+	}
+
+	/**
+	 * Maps a {@code CaptureResult.CONTROL_AE_STATE} to the {@code AE_*} of {@link CaptureController}.
+	 */
+	public static Integer toExposureState(Integer aeState) {
+		if (null == aeState) {
+			return null;
+		}
+		switch (aeState) {
+			case CaptureResult.CONTROL_AE_STATE_CONVERGED:
+				return CaptureController.AE_CONVERGED;
+			case CaptureResult.CONTROL_AE_STATE_PRECAPTURE:
+				return CaptureController.AE_PRECAPTURE;
+			case CaptureResult.CONTROL_AE_STATE_FLASH_REQUIRED:
+				return CaptureController.AE_FLASH_REQUIRED;
+			default:
+				return CaptureController.AE_SEARCHING;
+		}
 	}
 
 	public static class ImageSaver implements Runnable {
@@ -140,32 +185,47 @@ public class CameraUtil {
 		 * The file we save the image into.
 		 */
 		private final File mFile;
+		/**
+		 * Pool for the intermediate buffer, may be null.
+		 */
+		private final BufferPool mBufferPool;
+		/**
+		 * Writes the plane without copying it, null to copy it through {@link JpegWriter}.
+		 */
+		private final ChannelJpegWriter mChannelWriter;
 
 		public ImageSaver(Image image, File file) {
+			this(image, file, (BufferPool) null);
+		}
+
+		public ImageSaver(Image image, File file, BufferPool bufferPool) {
 			mImage = image;
 			mFile = file;
+			mBufferPool = bufferPool;
+			mChannelWriter = null;
+		}
+
+		public ImageSaver(Image image, File file, ChannelJpegWriter channelWriter) {
+			mImage = image;
+			mFile = file;
+			mBufferPool = null;
+			mChannelWriter = channelWriter;
 		}
 
 		@Override
 		public void run() {
-			ByteBuffer buffer = mImage.getPlanes()[0].getBuffer();
-			byte[] bytes = new byte[buffer.remaining()];
-			buffer.get(bytes);
-			FileOutputStream output = null;
 			try {
-				output = new FileOutputStream(mFile);
-				output.write(bytes);
+				// The JPEG plane is already encoded and oriented by the HAL, write it as is.
+				ByteBuffer plane = mImage.getPlanes()[0].getBuffer();
+				if (null != mChannelWriter) {
+					mChannelWriter.write(plane, mFile);
+				} else {
+					JpegWriter.write(plane, mFile, mBufferPool);
+				}
 			} catch (IOException e) {
 				e.printStackTrace();
 			} finally {
 				mImage.close();
-				if (null != output) {
-					try {
-						output.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-				}
 			}
 		}
 	}
@@ -205,6 +265,68 @@ public class CameraUtil {
 		}
 	}
 
+	/**
+	 * Queries the characteristics of every camera with an output stream configuration. These
+	 * are binder calls to the camera service, prefer {@link CameraInfoCache} when possible.
+	 */
+	public static List<CameraInfo> queryCameraInfo(CameraManager manager) throws CameraAccessException {
+		List<CameraInfo> cameras = new ArrayList<>();
+		for (String cameraId: manager.getCameraIdList()) {
+			CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
+			StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+			if (map == null) {
+				continue;
+			}
+			Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
+			Integer sensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+			Boolean flashAvailable = characteristics.get(CameraCharacteristics.FLASH_INFO_AVAILABLE);
+			Size[] thumbnailSizes = characteristics.get(CameraCharacteristics.JPEG_AVAILABLE_THUMBNAIL_SIZES);
+			Integer timestampSource = characteristics.get(CameraCharacteristics.SENSOR_INFO_TIMESTAMP_SOURCE);
+			cameras.add(new CameraInfo(
+					cameraId,
+					facing == null ? CameraInfo.LENS_FACING_UNKNOWN : facing,
+					sensorOrientation == null ? 0 : sensorOrientation,
+					flashAvailable == null ? false : flashAvailable,
+					packSizes(map.getOutputSizes(ImageFormat.JPEG)),
+					packSizes(map.getOutputSizes(SurfaceTexture.class)),
+					packSizes(thumbnailSizes),
+					null != timestampSource
+							&& timestampSource == CameraMetadata.SENSOR_INFO_TIMESTAMP_SOURCE_REALTIME));
+		}
+		return cameras;
+	}
+
+	public static int[] packSizes(Size[] sizes) {
+		if (sizes == null) {
+			return new int[0];
+		}
+		int[] packed = new int[sizes.length * 2];
+		for (int i = 0; i < sizes.length; i++) {
+			packed[i * 2] = sizes[i].getWidth();
+			packed[i * 2 + 1] = sizes[i].getHeight();
+		}
+		return packed;
+	}
+
+	public static Size[] unpackSizes(int[] packed) {
+		Size[] sizes = new Size[packed.length / 2];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = new Size(packed[i * 2], packed[i * 2 + 1]);
+		}
+		return sizes;
+	}
+
+	/**
+	 * Points {@code planes} at the planes of a YUV_420_888 image, for {@link YuvConverter}.
+	 */
+	public static YuvPlanes getYuvPlanes(Image image, YuvPlanes planes) {
+		Image.Plane[] imagePlanes = image.getPlanes();
+		return planes.set(image.getWidth(), image.getHeight(),
+				imagePlanes[0].getBuffer(), imagePlanes[0].getRowStride(), imagePlanes[0].getPixelStride(),
+				imagePlanes[1].getBuffer(), imagePlanes[1].getRowStride(), imagePlanes[1].getPixelStride(),
+				imagePlanes[2].getBuffer(), imagePlanes[2].getRowStride(), imagePlanes[2].getPixelStride());
+	}
+
 	public static void addImageToGallery(Context context, File image) {
 		Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
 		File f = new File(image.getAbsolutePath());
@@ -0,0 +1,255 @@
+package com.gmail.brianbridge.camera2integration;
+
+import static com.gmail.brianbridge.camera2integration.CaptureController.State.*;
+
+/**
+ * The focus lock / precapture / still capture sequence of a shot, driven by the AF and AE states
+ * of capture results.
+ *
+ * Every waiting state has a deadline, after which the still is captured anyway, so a HAL that
+ * never converges only costs latency instead of hanging the camera. A still that never completes
+ * is abandoned after {@link State#STATE_PICTURE_TAKEN}'s deadline. Exactly one still is
+ * captured per {@link #trigger()}, however many results arrive.
+ *
+ * The AF and AE states are this class's own {@code AF_*} and {@code AE_*}, the caller maps those of
+ * {@code CaptureResult} to them, so that it runs on a plain JVM.
+ */
+public class CaptureController {
+	public static final long DEFAULT_LOCK_TIMEOUT_NS = 1500000000L;
+	public static final long DEFAULT_PRECAPTURE_TIMEOUT_NS = 1000000000L;
+	public static final long DEFAULT_NON_PRECAPTURE_TIMEOUT_NS = 1500000000L;
+	public static final long DEFAULT_PICTURE_TIMEOUT_NS = 3000000000L;
+
+	// AF states of the results
+	public static final int AF_SCANNING = 0;		// Any state but a lock
+	public static final int AF_LOCKED = 1;			// Focused or not
+	// AE states of the results
+	public static final int AE_SEARCHING = 0;		// Any state but those below
+	public static final int AE_CONVERGED = 1;
+	public static final int AE_PRECAPTURE = 2;
+	public static final int AE_FLASH_REQUIRED = 3;
+
+	public enum State {
+		STATE_PREVIEW,					// Showing camera preview
+		STATE_WAITING_LOCK,				// Waiting for the focus to be locked.
+		STATE_WAITING_PRECAPTURE,		// Waiting for the exposure to be precapture state.
+		STATE_WAITING_NON_PRECAPTURE,	// Waiting for the exposure state to be something other than precapture.
+		STATE_PICTURE_TAKEN				// Picture was taken.
+	}
+
+	/**
+	 * The camera requests of each step, called with the controller locked.
+	 */
+	public interface Camera {
+		void lockFocus();
+
+		void runPrecaptureSequence();
+
+		void captureStillPicture();
+
+		/**
+		 * Cancels the focus lock and restarts the preview, once the still is done or abandoned.
+		 */
+		void unlockFocus();
+
+		/**
+		 * Asks for {@link #onTimeout()} to be called in {@code delayNanos}, replacing the previous
+		 * request.
+		 */
+		void scheduleTimeout(long delayNanos);
+	}
+
+	public interface Listener {
+		/**
+		 * @param nanosInPrevious Time spent in {@code previous}
+		 * @param timedOut        Whether {@code previous} was left on its deadline
+		 */
+		void onStateChanged(State previous, State state, long nanosInPrevious, boolean timedOut);
+	}
+
+	private static final State[] STATES = State.values();
+
+	private final Camera mCamera;
+	private final Listener mListener;
+	private final Clock mClock;
+	private final long[] mTimeouts = new long[STATES.length];
+
+	private State mState = STATE_PREVIEW;
+	private long mStateSince;
+	private long mDeadline;
+
+	// Stats
+	private final long[] mTimeoutCounts = new long[STATES.length];
+	private long mTriggerCount;
+	private long mCaptureCount;
+
+	public CaptureController(Camera camera, Listener listener, Clock clock) {
+		mCamera = camera;
+		mListener = listener;
+		mClock = clock;
+		mTimeouts[STATE_WAITING_LOCK.ordinal()] = DEFAULT_LOCK_TIMEOUT_NS;
+		mTimeouts[STATE_WAITING_PRECAPTURE.ordinal()] = DEFAULT_PRECAPTURE_TIMEOUT_NS;
+		mTimeouts[STATE_WAITING_NON_PRECAPTURE.ordinal()] = DEFAULT_NON_PRECAPTURE_TIMEOUT_NS;
+		mTimeouts[STATE_PICTURE_TAKEN.ordinal()] = DEFAULT_PICTURE_TIMEOUT_NS;
+		mStateSince = clock.nanoTime();
+	}
+
+	/**
+	 * @param timeoutNanos How long {@code state} may last, {@link State#STATE_PREVIEW} has
+	 *                     no deadline
+	 */
+	public synchronized void setTimeout(State state, long timeoutNanos) {
+		if (state == STATE_PREVIEW) {
+			throw new IllegalArgumentException("The preview has no deadline.");
+		}
+		mTimeouts[state.ordinal()] = timeoutNanos;
+	}
+
+	public synchronized State getState() {
+		return mState;
+	}
+
+	/**
+	 * Starts a shot.
+	 *
+	 * @return false if a shot is already in progress
+	 */
+	public synchronized boolean trigger() {
+		if (mState != STATE_PREVIEW) {
+			return false;
+		}
+		mTriggerCount++;
+		moveTo(STATE_WAITING_LOCK, false);
+		mCamera.lockFocus();
+		return true;
+	}
+
+	/**
+	 * Feeds the AF and AE states of a capture result.
+	 *
+	 * @param afState One of the {@code AF_*}, null if there's no auto focus
+	 * @param aeState One of the {@code AE_*}, null if not supported
+	 * @param partial Whether it's a partial result, in which a missing state means it isn't known
+	 *                yet rather than not supported
+	 */
+	public synchronized void onResult(Integer afState, Integer aeState, boolean partial) {
+		switch (mState) {
+			case STATE_WAITING_LOCK:
+				if (afState == null) {
+					if (!partial) {
+						// No auto focus
+						capture(false);
+					}
+				} else if (afState == AF_LOCKED) {
+					if (aeState == null && partial) {
+						return;
+					}
+					// CONTROL_AE_STATE can be null on some devices
+					if (aeState == null || aeState == AE_CONVERGED) {
+						capture(false);
+					} else {
+						moveTo(STATE_WAITING_PRECAPTURE, false);
+						mCamera.runPrecaptureSequence();
+					}
+				}
+				break;
+			case STATE_WAITING_PRECAPTURE:
+				if (aeState == null && partial) {
+					return;
+				}
+				if (aeState == null
+						|| aeState == AE_PRECAPTURE
+						|| aeState == AE_FLASH_REQUIRED) {
+					moveTo(STATE_WAITING_NON_PRECAPTURE, false);
+				}
+				break;
+			case STATE_WAITING_NON_PRECAPTURE:
+				if (aeState == null && partial) {
+					return;
+				}
+				if (aeState == null || aeState != AE_PRECAPTURE) {
+					capture(false);
+				}
+				break;
+			default:
+				// Nothing to wait for, results of the preview or of the still itself
+				break;
+		}
+	}
+
+	/**
+	 * Called when the still is completed or failed, to go back to the preview.
+	 */
+	public synchronized void onCaptureFinished() {
+		if (mState == STATE_PICTURE_TAKEN) {
+			finish(false);
+		}
+	}
+
+	/**
+	 * Drops the shot in progress without any camera request, when the camera is closed.
+	 */
+	public synchronized void reset() {
+		if (mState != STATE_PREVIEW) {
+			moveTo(STATE_PREVIEW, false);
+		}
+	}
+
+	/**
+	 * Checks the deadline of the current state, see {@link Camera#scheduleTimeout(long)}.
+	 */
+	public synchronized void onTimeout() {
+		if (mState == STATE_PREVIEW) {
+			return;
+		}
+		long remaining = mDeadline - mClock.nanoTime();
+		if (remaining > 0) {
+			// A stale request from an earlier state
+			mCamera.scheduleTimeout(remaining);
+			return;
+		}
+		mTimeoutCounts[mState.ordinal()]++;
+		if (mState == STATE_PICTURE_TAKEN) {
+			finish(true);
+		} else {
+			capture(true);
+		}
+	}
+
+	private void capture(boolean timedOut) {
+		mCaptureCount++;
+		moveTo(STATE_PICTURE_TAKEN, timedOut);
+		mCamera.captureStillPicture();
+	}
+
+	private void finish(boolean timedOut) {
+		moveTo(STATE_PREVIEW, timedOut);
+		mCamera.unlockFocus();
+	}
+
+	private void moveTo(State state, boolean timedOut) {
+		long now = mClock.nanoTime();
+		State previous = mState;
+		long nanosInPrevious = now - mStateSince;
+		mState = state;
+		mStateSince = now;
+		if (state != STATE_PREVIEW) {
+			long timeout = mTimeouts[state.ordinal()];
+			mDeadline = now + timeout;
+			mCamera.scheduleTimeout(timeout);
+		}
+		mListener.onStateChanged(previous, state, nanosInPrevious, timedOut);
+	}
+
+	public synchronized long getTimeoutCount(State state) {
+		return mTimeoutCounts[state.ordinal()];
+	}
+
+	public synchronized long getTriggerCount() {
+		return mTriggerCount;
+	}
+
+	public synchronized long getCaptureCount() {
+		return mCaptureCount;
+	}
+}
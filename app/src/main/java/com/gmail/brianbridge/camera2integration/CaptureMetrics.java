@@ -0,0 +1,256 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.CaptureController.State;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Shutter-to-disk latency of still captures.
+ *
+ * For every shot, it timestamps each {@link State} transition and the start and end of each
+ * {@link Stage}, and records the durations into per-state and per-stage {@link LatencyHistogram}s.
+ * A shot is complete once both {@link Stage#SAVE} and {@link Stage#GALLERY} are finished and the
+ * state is back to {@link State#STATE_PREVIEW}, then the {@link Listener} gets the durations
+ * of that shot. The file is usually written before the state machine leaves
+ * {@link State#STATE_PICTURE_TAKEN}, waiting for both gets that state its time.
+ *
+ * Recording doesn't allocate and can be called from the camera, capture and UI threads. Only one
+ * shot is tracked at a time: a shot started while another is still saving, a ZSL shot during a
+ * still or the other way round, isn't tracked but counted in {@link #getDroppedShotCount()}. The
+ * stages are recorded for the shot returned by {@link #startShot()}, those of other shots are
+ * ignored. The states go to a shot started in the middle of the still, once it's triggered.
+ */
+public class CaptureMetrics {
+	public static final long NOT_RECORDED = -1;
+	public static final long NO_SHOT = 0;
+	private static final long NO_START = Long.MIN_VALUE;
+
+	public enum Stage {
+		CAPTURE,			// captureStillPicture() until the JPEG is available
+		SAVE,				// Writing the JPEG
+		GALLERY,			// Queuing the file for the gallery indexer
+		SHUTTER_TO_DISK		// takePicture() until SAVE and GALLERY are finished
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the thread that completed the shot. The arrays are reused, copy them to keep
+		 * them after the call.
+		 *
+		 * @param stageNanos Duration of each stage, indexed by {@link Stage#ordinal()}, or
+		 *                   {@link #NOT_RECORDED}
+		 * @param stateNanos Time spent in each state, indexed by {@link State#ordinal()},
+		 *                   or {@link #NOT_RECORDED}
+		 */
+		void onShotCompleted(long[] stageNanos, long[] stateNanos);
+	}
+
+	private static final Stage[] STAGES = Stage.values();
+	private static final State[] STATES = State.values();
+
+	private final Clock mClock;
+	private final LatencyHistogram[] mStageHistograms = new LatencyHistogram[STAGES.length];
+	private final LatencyHistogram[] mStateHistograms = new LatencyHistogram[STATES.length];
+
+	// Current shot
+	private final AtomicLong mShot = new AtomicLong(NO_SHOT);
+	private final AtomicLong mLastShot = new AtomicLong(NO_SHOT);
+	private volatile boolean mOwnsStates; // Started in the middle of a still
+	private final AtomicLongArray mStageStarts = new AtomicLongArray(STAGES.length);
+	private final AtomicLongArray mStageNanos = new AtomicLongArray(STAGES.length);
+	private final AtomicLongArray mStateNanos = new AtomicLongArray(STATES.length);
+	private volatile State mState;
+	private volatile long mStateSince;
+	private final AtomicBoolean mShotPending = new AtomicBoolean(); // Started, the listener not called yet
+	private final AtomicLong mDroppedShots = new AtomicLong();
+
+	// Handed to the listener
+	private final long[] mStageNanosOut = new long[STAGES.length];
+	private final long[] mStateNanosOut = new long[STATES.length];
+	private volatile Listener mListener;
+
+	public CaptureMetrics(Clock clock) {
+		mClock = clock;
+		for (int i = 0; i < mStageHistograms.length; i++) {
+			mStageHistograms[i] = new LatencyHistogram();
+		}
+		for (int i = 0; i < mStateHistograms.length; i++) {
+			mStateHistograms[i] = new LatencyHistogram();
+		}
+		clearShot();
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Starts tracking a new shot, once it's sure to be taken: after the still is triggered.
+	 *
+	 * @return The shot to record the stages of, {@link #NO_SHOT} if another one is tracked
+	 */
+	public long startShot() {
+		long shot = mLastShot.incrementAndGet();
+		if (!mShot.compareAndSet(NO_SHOT, shot)) {
+			mDroppedShots.incrementAndGet();
+			return NO_SHOT;
+		}
+		State state = mState;
+		mOwnsStates = state != null && state != State.STATE_PREVIEW;
+		mShotPending.set(true);
+		stageStarted(shot, Stage.SHUTTER_TO_DISK);
+		return shot;
+	}
+
+	/**
+	 * Stops tracking {@code shot} without recording it, e.g. it failed or was given up on.
+	 */
+	public void abortShot(long shot) {
+		if (isTracked(shot) && mShotPending.compareAndSet(true, false)) {
+			clearShot();
+		}
+	}
+
+	/**
+	 * The shots not tracked as another one was, since the last {@link #reset()}.
+	 */
+	public long getDroppedShotCount() {
+		return mDroppedShots.get();
+	}
+
+	public void stageStarted(long shot, Stage stage) {
+		if (isTracked(shot)) {
+			mStageStarts.set(stage.ordinal(), mClock.nanoTime());
+		}
+	}
+
+	public void stageFinished(long shot, Stage stage) {
+		if (isTracked(shot)) {
+			stageFinished(stage);
+		}
+	}
+
+	private boolean isTracked(long shot) {
+		return shot != NO_SHOT && shot == mShot.get();
+	}
+
+	private void stageFinished(Stage stage) {
+		int i = stage.ordinal();
+		long start = mStageStarts.getAndSet(i, NO_START);
+		if (start == NO_START) {
+			return;
+		}
+		long duration = mClock.nanoTime() - start;
+		mStageNanos.set(i, duration);
+		mStageHistograms[i].record(duration);
+
+		if ((stage == Stage.SAVE || stage == Stage.GALLERY)
+				&& mStageNanos.get(Stage.SAVE.ordinal()) != NOT_RECORDED
+				&& mStageNanos.get(Stage.GALLERY.ordinal()) != NOT_RECORDED) {
+			stageFinished(Stage.SHUTTER_TO_DISK);
+			if (!mOwnsStates || mState == State.STATE_PREVIEW) {
+				// A ZSL shot never leaves the preview
+				completeShot();
+			}
+		}
+	}
+
+	/**
+	 * Records the time spent in the previous state, and enters {@code state}.
+	 */
+	public void onStateChanged(State state) {
+		long now = mClock.nanoTime();
+		State previous = mState;
+		// Idle preview time between shots is not capture latency
+		if (previous != null && previous != state && previous != State.STATE_PREVIEW) {
+			long duration = now - mStateSince;
+			int i = previous.ordinal();
+			if (mOwnsStates) {
+				mStateNanos.set(i, mStateNanos.get(i) == NOT_RECORDED ? duration : mStateNanos.get(i) + duration);
+			}
+			mStateHistograms[i].record(duration);
+		}
+		if (previous != state) {
+			mState = state;
+			mStateSince = now;
+		}
+		if (state == State.STATE_PREVIEW && mStageNanos.get(Stage.SHUTTER_TO_DISK.ordinal()) != NOT_RECORDED) {
+			// The file was written before the state machine was done
+			completeShot();
+		}
+	}
+
+	private void completeShot() {
+		// The capture and camera threads can both get here
+		if (!mShotPending.compareAndSet(true, false)) {
+			return;
+		}
+		Listener listener = mListener;
+		if (listener != null) {
+			synchronized (mStageNanosOut) {
+				for (int i = 0; i < mStageNanosOut.length; i++) {
+					mStageNanosOut[i] = mStageNanos.get(i);
+				}
+				for (int i = 0; i < mStateNanosOut.length; i++) {
+					mStateNanosOut[i] = mStateNanos.get(i);
+				}
+				listener.onShotCompleted(mStageNanosOut, mStateNanosOut);
+			}
+		}
+		clearShot();
+	}
+
+	private void clearShot() {
+		mShotPending.set(false);
+		for (int i = 0; i < STAGES.length; i++) {
+			mStageStarts.set(i, NO_START);
+			mStageNanos.set(i, NOT_RECORDED);
+		}
+		for (int i = 0; i < STATES.length; i++) {
+			mStateNanos.set(i, NOT_RECORDED);
+		}
+		mOwnsStates = false;
+		mShot.set(NO_SHOT);
+	}
+
+	public LatencyHistogram getHistogram(Stage stage) {
+		return mStageHistograms[stage.ordinal()];
+	}
+
+	public LatencyHistogram getHistogram(State state) {
+		return mStateHistograms[state.ordinal()];
+	}
+
+	public LatencyHistogram.Snapshot snapshot(Stage stage) {
+		return getHistogram(stage).snapshot();
+	}
+
+	public LatencyHistogram.Snapshot snapshot(State state) {
+		return getHistogram(state).snapshot();
+	}
+
+	public void reset() {
+		for (LatencyHistogram histogram : mStageHistograms) {
+			histogram.reset();
+		}
+		for (LatencyHistogram histogram : mStateHistograms) {
+			histogram.reset();
+		}
+		mDroppedShots.set(0);
+		clearShot();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("CaptureMetrics{");
+		for (Stage stage : STAGES) {
+			builder.append('\n').append(stage).append(": ").append(snapshot(stage));
+		}
+		for (State state : STATES) {
+			builder.append('\n').append(state).append(": ").append(snapshot(state));
+		}
+		return builder.append('}').toString();
+	}
+}
@@ -0,0 +1,421 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Where the captures go: every shot gets its own file, named after the time it was taken, and
+ * only shows up under that name once it's completely written.
+ *
+ * A shot is {@link #reserve reserved} when it's accepted, which allocates its name and checks
+ * there's room for it, then {@link #commit committed}: written to a hidden temporary file in the
+ * same directory and renamed to its final name. A process killed mid-write leaves a temporary
+ * file, never a truncated capture, and {@link #deleteTempFiles()} cleans them up on the next run.
+ * A power loss is another matter, see {@link SyncPolicy}: only {@link SyncPolicy#PER_FILE} forces
+ * the bytes before the rename, with the others a file can be left empty or truncated under its
+ * final name.
+ *
+ * Reserving doesn't touch the storage once {@link #scan()} read the free space and the names
+ * already taken, so it can be done on the UI thread.
+ *
+ * Names are {@code <prefix>_yyyyMMdd_HHmmss_SSS.<extension>}, unique and in the order the shots
+ * were reserved: a millisecond already taken, by this process or an earlier one, moves to the
+ * next one.
+ *
+ * Reserving, committing and the stats can be called from any thread, files are written outside
+ * the lock so shots can be saved in parallel.
+ */
+public class CaptureStorage {
+	public static final String TEMP_SUFFIX = ".tmp";
+	public static final long DEFAULT_MIN_FREE_BYTES = 64L * 1024 * 1024; // Left for the rest of the device
+	public static final int DEFAULT_SYNC_BATCH = 8;
+	private static final long UNKNOWN = -1;
+
+	public enum SyncPolicy {
+		PER_FILE,	// Forced to the storage before the rename: survives a power loss, the slowest
+		BATCHED,	// Forced every sync batch and on sync(), after the rename: a power loss may leave
+					// the files of the last batch empty or truncated under their final name
+		NONE		// Left to the kernel: survives the app being killed, a power loss may leave
+					// recent files empty or truncated
+	}
+
+	/**
+	 * A reserved shot, committed or aborted once.
+	 */
+	public static final class Shot {
+		public final File file;
+		final File temp;
+		final long expectedBytes;
+		boolean ended; // Being committed, committed or aborted, guarded by the storage
+
+		Shot(File file, File temp, long expectedBytes) {
+			this.file = file;
+			this.temp = temp;
+			this.expectedBytes = expectedBytes;
+		}
+
+		/**
+		 * Where to write the capture before {@link #commit(Shot)}, when it isn't a buffer.
+		 */
+		public File getTempFile() {
+			return temp;
+		}
+
+		@Override
+		public String toString() {
+			return file.getName();
+		}
+	}
+
+	public static class Snapshot {
+		public final long filesWritten;
+		public final long bytesWritten;
+		public final long failed;
+		public final long rejected; // Not reserved for lack of space
+		public final int backlog; // Reserved, not committed nor aborted yet
+		public final long backlogBytes; // Expected size of the backlog
+		public final double bytesPerSecond; // While writing
+		public final LatencyHistogram.Snapshot write;
+		public final LatencyHistogram.Snapshot sync;
+
+		Snapshot(CaptureStorage storage) {
+			filesWritten = storage.mFilesWritten;
+			bytesWritten = storage.mBytesWritten;
+			failed = storage.mFailed;
+			rejected = storage.mRejected;
+			backlog = storage.mBacklog;
+			backlogBytes = storage.mBacklogBytes;
+			bytesPerSecond = storage.mWriteNanos == 0 ? 0 : storage.mBytesWritten * 1e9 / storage.mWriteNanos;
+			write = storage.mWriteHistogram.snapshot();
+			sync = storage.mSyncHistogram.snapshot();
+		}
+
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "%d files, %d bytes at %.1fMB/s, %d failed, %d rejected,"
+							+ " backlog %d (%d bytes), write %s, sync %s",
+					filesWritten, bytesWritten, bytesPerSecond / (1024 * 1024), failed, rejected,
+					backlog, backlogBytes, write, sync);
+		}
+	}
+
+	private final File mDirectory;
+	private final SyncPolicy mSyncPolicy;
+	private final int mSyncBatch;
+	private final long mMinFreeBytes;
+	private final Clock mClock;
+	private final ChannelJpegWriter mWriter;
+	private final SimpleDateFormat mNameFormat = new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US);
+	private final LatencyHistogram mWriteHistogram = new LatencyHistogram();
+	private final LatencyHistogram mSyncHistogram = new LatencyHistogram();
+
+	// Guarded by this
+	private long mLastStamp;
+	private int mBacklog;
+	private long mBacklogBytes;
+	private long mFilesWritten;
+	private long mBytesWritten;
+	private long mWriteNanos;
+	private long mFailed;
+	private long mRejected;
+	private List<File> mUnsynced = new ArrayList<>();
+	private long mUsableSpace = UNKNOWN; // Since the last scan or commit
+	private Set<String> mTakenNames; // Files in the directory when scanned, null before
+
+	public CaptureStorage(File directory, SyncPolicy syncPolicy) {
+		this(directory, syncPolicy, DEFAULT_SYNC_BATCH, DEFAULT_MIN_FREE_BYTES, Clock.SYSTEM);
+	}
+
+	/**
+	 * @param syncBatch    Files forced together with {@link SyncPolicy#BATCHED}
+	 * @param minFreeBytes Space to leave free, shots that would eat into it are rejected
+	 */
+	public CaptureStorage(File directory, SyncPolicy syncPolicy, int syncBatch, long minFreeBytes, Clock clock) {
+		if (syncBatch < 1) {
+			throw new IllegalArgumentException("Sync batch must be positive: " + syncBatch);
+		}
+		mDirectory = directory;
+		mSyncPolicy = syncPolicy;
+		mSyncBatch = syncBatch;
+		mMinFreeBytes = minFreeBytes;
+		mClock = clock;
+		mWriter = new ChannelJpegWriter(true, syncPolicy == SyncPolicy.PER_FILE
+				? ChannelJpegWriter.ForcePolicy.DATA : ChannelJpegWriter.ForcePolicy.NONE);
+	}
+
+	/**
+	 * Accepts a shot if there's room for it next to the shots already reserved.
+	 *
+	 * @param prefix        Start of the file name, e.g. {@code IMG}
+	 * @param extension     Without the dot
+	 * @param expectedBytes A generous estimate of its size
+	 * @return null if there isn't enough free space
+	 */
+	public synchronized Shot reserve(String prefix, String extension, long expectedBytes) {
+		long usable = mUsableSpace == UNKNOWN ? getUsableSpace() : mUsableSpace;
+		if (usable - mBacklogBytes - expectedBytes < mMinFreeBytes) {
+			mRejected++;
+			return null;
+		}
+		long stamp = Math.max(currentTimeMillis(), mLastStamp + 1);
+		File file;
+		File temp;
+		for (;;) {
+			String name = prefix + "_" + mNameFormat.format(new Date(stamp)) + "." + extension;
+			file = new File(mDirectory, name);
+			temp = new File(mDirectory, "." + name + TEMP_SUFFIX);
+			if (!isTaken(file) && !isTaken(temp)) {
+				break;
+			}
+			stamp++;
+		}
+		mLastStamp = stamp;
+		mBacklog++;
+		mBacklogBytes += expectedBytes;
+		return new Shot(file, temp, expectedBytes);
+	}
+
+	/**
+	 * Called with the storage locked.
+	 */
+	private boolean isTaken(File file) {
+		return null == mTakenNames ? file.exists() : mTakenNames.contains(file.getName());
+	}
+
+	/**
+	 * Reads the free space and the names of the files in the directory, which {@link #reserve}
+	 * then uses instead of the storage. Call off the UI thread, before reserving: until then
+	 * reserving checks the storage itself. The free space is kept up to date by the commits.
+	 */
+	public void scan() {
+		long usable = getUsableSpace();
+		Set<String> taken = new HashSet<>();
+		String[] names = mDirectory.list();
+		if (null != names) {
+			Collections.addAll(taken, names);
+		}
+		synchronized (this) {
+			mUsableSpace = usable;
+			// Names reserved meanwhile are past mLastStamp already
+			mTakenNames = taken;
+		}
+	}
+
+	/**
+	 * Writes the remaining bytes of {@code buffer} as {@code shot}, leaving its position untouched.
+	 *
+	 * @return The file of the shot
+	 * @throws IOException If it couldn't be written, nothing is left of it then
+	 */
+	public File commit(Shot shot, ByteBuffer buffer) throws IOException {
+		start(shot);
+		long startNanos = mClock.nanoTime();
+		int length;
+		try {
+			length = mWriter.write(buffer, shot.temp);
+		} catch (IOException e) {
+			fail(shot);
+			throw e;
+		}
+		return publish(shot, length, startNanos);
+	}
+
+	/**
+	 * Publishes {@code shot} once the caller wrote it to {@link Shot#getTempFile()}.
+	 *
+	 * @return The file of the shot
+	 * @throws IOException If it couldn't be synced or renamed, nothing is left of it then
+	 */
+	public File commit(Shot shot) throws IOException {
+		start(shot);
+		long startNanos = mClock.nanoTime();
+		if (mSyncPolicy == SyncPolicy.PER_FILE) {
+			try {
+				force(shot.temp);
+			} catch (IOException e) {
+				fail(shot);
+				throw e;
+			}
+		}
+		return publish(shot, shot.temp.length(), startNanos);
+	}
+
+	/**
+	 * Gives up on {@code shot}, deleting what was written of it.
+	 */
+	public void abort(Shot shot) {
+		synchronized (this) {
+			if (shot.ended) {
+				return;
+			}
+			shot.ended = true;
+			end(shot);
+		}
+		shot.temp.delete();
+	}
+
+	private synchronized void start(Shot shot) {
+		if (shot.ended) {
+			throw new IllegalStateException("Shot already ended: " + shot);
+		}
+		shot.ended = true;
+	}
+
+	private File publish(Shot shot, long length, long startNanos) throws IOException {
+		if (!shot.temp.renameTo(shot.file)) {
+			fail(shot);
+			throw new IOException("Cannot rename " + shot.temp + " to " + shot.file);
+		}
+		long nanos = mClock.nanoTime() - startNanos;
+		mWriteHistogram.record(nanos);
+		// Measured with the file written, before it leaves the backlog
+		long usable = getUsableSpace();
+		List<File> batch = null;
+		synchronized (this) {
+			mUsableSpace = usable;
+			end(shot);
+			mFilesWritten++;
+			mBytesWritten += length;
+			mWriteNanos += nanos;
+			if (mSyncPolicy == SyncPolicy.BATCHED) {
+				mUnsynced.add(shot.file);
+				if (mUnsynced.size() >= mSyncBatch) {
+					batch = takeUnsynced();
+				}
+			}
+		}
+		if (null != batch) {
+			forceAll(batch);
+		}
+		return shot.file;
+	}
+
+	private void fail(Shot shot) {
+		synchronized (this) {
+			end(shot);
+			mFailed++;
+		}
+		shot.temp.delete();
+	}
+
+	/**
+	 * Takes {@code shot} off the backlog, called with the storage locked.
+	 */
+	private void end(Shot shot) {
+		mBacklog--;
+		mBacklogBytes -= shot.expectedBytes;
+	}
+
+	private List<File> takeUnsynced() {
+		List<File> batch = mUnsynced;
+		mUnsynced = new ArrayList<>();
+		return batch;
+	}
+
+	/**
+	 * Forces the files committed since the last batch, e.g. when the app goes to the background.
+	 * Nothing to do unless the policy is {@link SyncPolicy#BATCHED}.
+	 */
+	public void sync() {
+		List<File> batch;
+		synchronized (this) {
+			if (mUnsynced.isEmpty()) {
+				return;
+			}
+			batch = takeUnsynced();
+		}
+		forceAll(batch);
+	}
+
+	private void forceAll(List<File> files) {
+		long startNanos = mClock.nanoTime();
+		for (File file : files) {
+			try {
+				force(file);
+			} catch (IOException e) {
+				// Deleted meanwhile, or the storage is gone: nothing more to do for it
+			}
+		}
+		mSyncHistogram.record(mClock.nanoTime() - startNanos);
+	}
+
+	private static void force(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			input.getChannel().force(false);
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Deletes the temporary files of shots that were never committed, left by a process that was
+	 * killed. Call before reserving, off the UI thread: it lists the directory.
+	 *
+	 * @return How many were deleted
+	 */
+	public int deleteTempFiles() {
+		File[] temps = mDirectory.listFiles(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(".") && name.endsWith(TEMP_SUFFIX);
+			}
+		});
+		int deleted = 0;
+		if (null != temps) {
+			for (File temp : temps) {
+				if (temp.delete()) {
+					deleted++;
+				}
+			}
+		}
+		return deleted;
+	}
+
+	public synchronized int getBacklog() {
+		return mBacklog;
+	}
+
+	/**
+	 * Committed files not forced yet with {@link SyncPolicy#BATCHED}.
+	 */
+	public synchronized int getUnsyncedCount() {
+		return mUnsynced.size();
+	}
+
+	public synchronized Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	public File getDirectory() {
+		return mDirectory;
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return mSyncPolicy;
+	}
+
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	protected long getUsableSpace() {
+		return mDirectory.getUsableSpace();
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
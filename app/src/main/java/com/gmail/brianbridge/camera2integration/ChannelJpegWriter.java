@@ -0,0 +1,101 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes JPEG bytes to disk through a {@link FileChannel}. A direct buffer, such as the plane of
+ * an {@code Image}, goes to the kernel as it is instead of being copied into a heap array first
+ * like {@link JpegWriter} does.
+ *
+ * Immutable, one instance can be shared by every saving thread.
+ */
+public final class ChannelJpegWriter {
+
+	public enum ForcePolicy {
+		NONE,			// Left to the kernel, the file may not survive a power loss
+		DATA,			// FileChannel.force(false), the bytes are on the storage
+		DATA_AND_METADATA	// FileChannel.force(true), the size and times as well
+	}
+
+	/**
+	 * Consecutive writes that may make no progress before giving up.
+	 */
+	static final int MAX_STALLED_WRITES = 16;
+
+	private final boolean mPreallocate;
+	private final ForcePolicy mForcePolicy;
+
+	/**
+	 * @param preallocate Sets the file length before writing, so the file system can lay out the
+	 *                    file in one go instead of growing it write by write
+	 * @param forcePolicy Whether to wait for the bytes to reach the storage
+	 */
+	public ChannelJpegWriter(boolean preallocate, ForcePolicy forcePolicy) {
+		mPreallocate = preallocate;
+		mForcePolicy = forcePolicy;
+	}
+
+	/**
+	 * Replaces {@code file} with the remaining bytes of {@code buffer}. The position of
+	 * {@code buffer} is left untouched. The write is complete when this returns, the buffer
+	 * can be released (e.g. its {@code Image} closed) right after.
+	 *
+	 * @return The number of bytes written
+	 */
+	public int write(ByteBuffer buffer, File file) throws IOException {
+		ByteBuffer source = buffer.duplicate();
+		int length = source.remaining();
+		RandomAccessFile output = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = output.getChannel();
+			// "rw" keeps what the file had, cut it to what is written now
+			output.setLength(mPreallocate ? length : 0);
+			writeFully(channel, source);
+			if (channel.position() != channel.size()) {
+				channel.truncate(channel.position());
+			}
+			switch (mForcePolicy) {
+				case DATA:
+					channel.force(false);
+					break;
+				case DATA_AND_METADATA:
+					channel.force(true);
+					break;
+				default:
+					break;
+			}
+		} finally {
+			output.close();
+		}
+		return length;
+	}
+
+	/**
+	 * Writes the remaining bytes of {@code source}, a channel may take only part of them per call.
+	 *
+	 * @throws IOException If the channel stops taking bytes
+	 */
+	static void writeFully(WritableByteChannel channel, ByteBuffer source) throws IOException {
+		int stalled = 0;
+		while (source.hasRemaining()) {
+			if (channel.write(source) > 0) {
+				stalled = 0;
+			} else if (++stalled >= MAX_STALLED_WRITES) {
+				throw new IOException("Channel stalled with " + source.remaining() + " bytes left");
+			}
+		}
+	}
+
+	public boolean isPreallocating() {
+		return mPreallocate;
+	}
+
+	public ForcePolicy getForcePolicy() {
+		return mForcePolicy;
+	}
+}
@@ -0,0 +1,15 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * A monotonic time source, so that timing logic can be driven by a fake clock in tests.
+ */
+public interface Clock {
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+	};
+
+	long nanoTime();
+}
@@ -0,0 +1,225 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * Finds the thumbnail the camera embeds in the EXIF block of a JPEG (see
+ * {@code CaptureRequest.JPEG_THUMBNAIL_SIZE}), and the EXIF orientation, by walking the APP1
+ * segment in place. Nothing is copied or decoded: the thumbnail is returned as a range of the
+ * given bytes, so only the head of the file has to be read.
+ *
+ * Malformed or truncated input is not an error, it's reported as no EXIF or no thumbnail.
+ */
+public final class ExifThumbnail {
+	/**
+	 * The EXIF block lives in an APP1 segment, so never ends after this many bytes of the file.
+	 */
+	public static final int MAX_HEADER_LENGTH = 2 + 4 + 0xffff;
+
+	public static final int ORIENTATION_NORMAL = 1;
+
+	private static final int MARKER_SOI = 0xd8;
+	private static final int MARKER_APP1 = 0xe1;
+	private static final int MARKER_SOS = 0xda;
+	private static final int MARKER_EOI = 0xd9;
+
+	private static final int TAG_ORIENTATION = 0x0112;
+	private static final int TAG_THUMBNAIL_OFFSET = 0x0201;
+	private static final int TAG_THUMBNAIL_LENGTH = 0x0202;
+	private static final int MAX_IFD_ENTRIES = 512;
+
+	/**
+	 * Offset of the thumbnail in the parsed bytes, or -1 if there is none.
+	 */
+	public final int thumbnailOffset;
+	public final int thumbnailLength;
+	/**
+	 * The EXIF orientation tag, {@link #ORIENTATION_NORMAL} if missing.
+	 */
+	public final int orientation;
+
+	private ExifThumbnail(int thumbnailOffset, int thumbnailLength, int orientation) {
+		this.thumbnailOffset = thumbnailOffset;
+		this.thumbnailLength = thumbnailLength;
+		this.orientation = orientation;
+	}
+
+	public boolean hasThumbnail() {
+		return thumbnailOffset >= 0;
+	}
+
+	/**
+	 * The clockwise rotation that displays the image upright, mirrored orientations are treated
+	 * as their unmirrored ones.
+	 */
+	public int getRotationDegrees() {
+		switch (orientation) {
+			case 3:
+			case 4:
+				return 180;
+			case 5:
+			case 6:
+				return 90;
+			case 7:
+			case 8:
+				return 270;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * @param data   The head of a JPEG file
+	 * @param length The number of valid bytes in {@code data}
+	 * @return The EXIF thumbnail and orientation, or null if {@code data} is not a JPEG with an
+	 * EXIF block
+	 */
+	public static ExifThumbnail parse(byte[] data, int length) {
+		length = Math.min(length, data.length);
+		if (length < 4 || u8(data, 0) != 0xff || u8(data, 1) != MARKER_SOI) {
+			return null;
+		}
+		int position = 2;
+		while (position + 4 <= length) {
+			if (u8(data, position) != 0xff) {
+				return null;
+			}
+			int marker = u8(data, position + 1);
+			if (marker == 0xff) {
+				// Fill byte
+				position++;
+				continue;
+			}
+			if (marker == MARKER_SOS || marker == MARKER_EOI) {
+				return null;
+			}
+			int segmentLength = u16(data, position + 2, false);
+			if (segmentLength < 2) {
+				return null;
+			}
+			int start = position + 4;
+			int end = Math.min(position + 2 + segmentLength, length);
+			if (marker == MARKER_APP1 && isExif(data, start, end)) {
+				return parseTiff(data, start + 6, end);
+			}
+			position += 2 + segmentLength;
+		}
+		return null;
+	}
+
+	private static boolean isExif(byte[] data, int start, int end) {
+		return end - start >= 6
+				&& data[start] == 'E' && data[start + 1] == 'x' && data[start + 2] == 'i' && data[start + 3] == 'f'
+				&& data[start + 4] == 0 && data[start + 5] == 0;
+	}
+
+	/**
+	 * @param tiff Start of the TIFF header, the base of every EXIF offset
+	 * @param end  End of the APP1 segment
+	 */
+	private static ExifThumbnail parseTiff(byte[] data, int tiff, int end) {
+		if (end - tiff < 8) {
+			return null;
+		}
+		boolean littleEndian;
+		if (data[tiff] == 'I' && data[tiff + 1] == 'I') {
+			littleEndian = true;
+		} else if (data[tiff] == 'M' && data[tiff + 1] == 'M') {
+			littleEndian = false;
+		} else {
+			return null;
+		}
+		if (u16(data, tiff + 2, littleEndian) != 42) {
+			return null;
+		}
+		int orientation = ORIENTATION_NORMAL;
+		int thumbnailOffset = -1;
+		int thumbnailLength = 0;
+
+		// IFD0 holds the orientation, IFD1 the thumbnail
+		int ifd0 = ifdStart(data, tiff, end, u32(data, tiff + 4, littleEndian), littleEndian);
+		if (ifd0 < 0) {
+			return new ExifThumbnail(-1, 0, orientation);
+		}
+		int count0 = u16(data, ifd0, littleEndian);
+		for (int i = 0; i < count0; i++) {
+			int entry = ifd0 + 2 + i * 12;
+			if (u16(data, entry, littleEndian) == TAG_ORIENTATION) {
+				int value = u16(data, entry + 8, littleEndian);
+				if (value >= 1 && value <= 8) {
+					orientation = value;
+				}
+			}
+		}
+		int ifd1 = ifdStart(data, tiff, end, u32(data, ifd0 + 2 + count0 * 12, littleEndian), littleEndian);
+		if (ifd1 < 0 || ifd1 == ifd0) {
+			return new ExifThumbnail(-1, 0, orientation);
+		}
+		int count1 = u16(data, ifd1, littleEndian);
+		long offset = -1;
+		long size = 0;
+		for (int i = 0; i < count1; i++) {
+			int entry = ifd1 + 2 + i * 12;
+			int tag = u16(data, entry, littleEndian);
+			if (tag == TAG_THUMBNAIL_OFFSET) {
+				offset = value(data, entry, littleEndian);
+			} else if (tag == TAG_THUMBNAIL_LENGTH) {
+				size = value(data, entry, littleEndian);
+			}
+		}
+		if (offset >= 0 && size > 0 && offset + size <= end - tiff) {
+			int start = tiff + (int) offset;
+			// A JPEG thumbnail, not an uncompressed one
+			if (size >= 2 && u8(data, start) == 0xff && u8(data, start + 1) == MARKER_SOI) {
+				thumbnailOffset = start;
+				thumbnailLength = (int) size;
+			}
+		}
+		return new ExifThumbnail(thumbnailOffset, thumbnailLength, orientation);
+	}
+
+	/**
+	 * @return The position of the IFD at {@code offset} from the TIFF header, or -1 if it doesn't
+	 * fit in the segment
+	 */
+	private static int ifdStart(byte[] data, int tiff, int end, long offset, boolean littleEndian) {
+		if (offset < 8 || offset > end - tiff - 2) {
+			return -1;
+		}
+		int ifd = tiff + (int) offset;
+		int entries = u16(data, ifd, littleEndian);
+		if (entries > MAX_IFD_ENTRIES || ifd + 2 + entries * 12 + 4 > end) {
+			return -1;
+		}
+		return ifd;
+	}
+
+	/**
+	 * The value of a SHORT or LONG entry.
+	 */
+	private static long value(byte[] data, int entry, boolean littleEndian) {
+		int type = u16(data, entry + 2, littleEndian);
+		if (type == 3) {
+			return u16(data, entry + 8, littleEndian);
+		} else if (type == 4) {
+			return u32(data, entry + 8, littleEndian);
+		}
+		return -1;
+	}
+
+	private static int u8(byte[] data, int position) {
+		return data[position] & 0xff;
+	}
+
+	private static int u16(byte[] data, int position, boolean littleEndian) {
+		int a = data[position] & 0xff;
+		int b = data[position + 1] & 0xff;
+		return littleEndian ? b << 8 | a : a << 8 | b;
+	}
+
+	private static long u32(byte[] data, int position, boolean littleEndian) {
+		long a = data[position] & 0xff;
+		long b = data[position + 1] & 0xff;
+		long c = data[position + 2] & 0xff;
+		long d = data[position + 3] & 0xff;
+		return littleEndian ? d << 24 | c << 16 | b << 8 | a : a << 24 | b << 16 | c << 8 | d;
+	}
+}
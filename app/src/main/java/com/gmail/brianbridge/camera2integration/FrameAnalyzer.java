@@ -0,0 +1,16 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * Analyzes preview frames handed out by a {@link FrameDispatcher}.
+ *
+ * @param <T> The frame type, {@code Image} in YUV_420_888 on a device
+ */
+public interface FrameAnalyzer<T> {
+	/**
+	 * Called on the analysis thread. The frame is closed once every analyzer is done with it, so
+	 * it must not be kept after the call.
+	 *
+	 * @param timestampNs The sensor timestamp of the frame
+	 */
+	void analyze(T frame, long timestampNs);
+}
@@ -0,0 +1,262 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands preview frames to {@link FrameAnalyzer}s on an executor, keeping only the latest frame.
+ *
+ * At most one frame is being analyzed and one is waiting. A frame offered while another one is
+ * waiting replaces it, and the stale one is closed right away, so slow analyzers never hold more
+ * than two reader slots and can't back up the camera. {@link #clear(Runnable)} tells when the frame
+ * being analyzed is closed too, so that its reader can be closed after it.
+ *
+ * @param <T> The frame type, {@code Image} on a device
+ */
+public class FrameDispatcher<T> {
+
+	public interface Recycler<T> {
+		void recycle(T frame);
+	}
+
+	public interface FailureListener {
+		/**
+		 * Called on the executor the first time the analyzer named {@code name} throws, its next
+		 * failures are only counted.
+		 */
+		void onAnalyzerFailed(String name, RuntimeException error);
+	}
+
+	private static class Entry<T> {
+		final String name;
+		final FrameAnalyzer<T> analyzer;
+		final LatencyHistogram histogram = new LatencyHistogram();
+		boolean failed; // Only touched by the drain, one at a time
+
+		Entry(String name, FrameAnalyzer<T> analyzer) {
+			this.name = name;
+			this.analyzer = analyzer;
+		}
+	}
+
+	private final Executor mExecutor;
+	private final Recycler<T> mRecycler;
+	private final Clock mClock;
+	private final CopyOnWriteArrayList<Entry<T>> mAnalyzers = new CopyOnWriteArrayList<>();
+	private volatile FailureListener mFailureListener;
+
+	// Guarded by this
+	private T mPending;
+	private long mPendingTimestampNs;
+	private boolean mRunning;
+	private boolean mAnalyzing;
+	private final List<Runnable> mOnAnalyzed = new ArrayList<>(); // Run once the frame being analyzed is closed
+
+	// Stats
+	private final AtomicLong mAnalyzed = new AtomicLong();
+	private final AtomicLong mDropped = new AtomicLong();
+	private final AtomicLong mFailures = new AtomicLong();
+
+	private final Runnable mDrain = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	public FrameDispatcher(Executor executor, Recycler<T> recycler, Clock clock) {
+		mExecutor = executor;
+		mRecycler = recycler;
+		mClock = clock;
+	}
+
+	public void setFailureListener(FailureListener listener) {
+		mFailureListener = listener;
+	}
+
+	/**
+	 * Adds an analyzer, replacing the one with the same name if any.
+	 */
+	public void addAnalyzer(String name, FrameAnalyzer<T> analyzer) {
+		removeAnalyzer(name);
+		mAnalyzers.add(new Entry<>(name, analyzer));
+	}
+
+	public void removeAnalyzer(String name) {
+		for (Entry<T> entry : mAnalyzers) {
+			if (entry.name.equals(name)) {
+				mAnalyzers.remove(entry);
+			}
+		}
+	}
+
+	public boolean hasAnalyzers() {
+		return !mAnalyzers.isEmpty();
+	}
+
+	/**
+	 * Queues a frame for analysis, closing the frame that was still waiting if any. The frame is
+	 * owned by the dispatcher from now on.
+	 */
+	public void offer(T frame, long timestampNs) {
+		if (mAnalyzers.isEmpty()) {
+			mRecycler.recycle(frame);
+			return;
+		}
+		T stale;
+		boolean schedule;
+		synchronized (this) {
+			stale = mPending;
+			mPending = frame;
+			mPendingTimestampNs = timestampNs;
+			schedule = !mRunning;
+			mRunning = true;
+		}
+		if (stale != null) {
+			mDropped.incrementAndGet();
+			mRecycler.recycle(stale);
+		}
+		if (schedule) {
+			try {
+				mExecutor.execute(mDrain);
+			} catch (RejectedExecutionException e) {
+				// The analysis thread is gone
+				T rejected;
+				synchronized (this) {
+					rejected = mPending;
+					mPending = null;
+					mRunning = false;
+				}
+				if (rejected != null) {
+					mDropped.incrementAndGet();
+					mRecycler.recycle(rejected);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the waiting frame, if any. The frame being analyzed is closed when its analysis is over.
+	 */
+	public void clear() {
+		clear(null);
+	}
+
+	/**
+	 * Closes the waiting frame, if any, then runs {@code onCleared} once the frame being analyzed is
+	 * closed too: right away if there's none, otherwise on the executor when its analysis is over.
+	 * Frames offered meanwhile don't delay it.
+	 */
+	public void clear(Runnable onCleared) {
+		T stale;
+		boolean cleared;
+		synchronized (this) {
+			stale = mPending;
+			mPending = null;
+			cleared = !mAnalyzing;
+			if (!cleared && onCleared != null) {
+				mOnAnalyzed.add(onCleared);
+			}
+		}
+		if (stale != null) {
+			mDropped.incrementAndGet();
+			mRecycler.recycle(stale);
+		}
+		if (cleared && onCleared != null) {
+			onCleared.run();
+		}
+	}
+
+	private void drain() {
+		for (;;) {
+			T frame;
+			long timestampNs;
+			synchronized (this) {
+				frame = mPending;
+				if (frame == null) {
+					mRunning = false;
+					return;
+				}
+				timestampNs = mPendingTimestampNs;
+				mPending = null;
+				mAnalyzing = true;
+			}
+			try {
+				for (Entry<T> entry : mAnalyzers) {
+					long start = mClock.nanoTime();
+					try {
+						entry.analyzer.analyze(frame, timestampNs);
+					} catch (RuntimeException e) {
+						// One broken analyzer doesn't starve the others, nor floods the log on every frame
+						mFailures.incrementAndGet();
+						FailureListener listener = mFailureListener;
+						if (!entry.failed && listener != null) {
+							listener.onAnalyzerFailed(entry.name, e);
+						}
+						entry.failed = true;
+					} finally {
+						entry.histogram.record(mClock.nanoTime() - start);
+					}
+				}
+			} finally {
+				mRecycler.recycle(frame);
+				runOnAnalyzed();
+			}
+			mAnalyzed.incrementAndGet();
+		}
+	}
+
+	private void runOnAnalyzed() {
+		Runnable[] callbacks;
+		synchronized (this) {
+			mAnalyzing = false;
+			if (mOnAnalyzed.isEmpty()) {
+				return;
+			}
+			callbacks = mOnAnalyzed.toArray(new Runnable[mOnAnalyzed.size()]);
+			mOnAnalyzed.clear();
+		}
+		for (Runnable callback : callbacks) {
+			callback.run();
+		}
+	}
+
+	/**
+	 * @return Time spent in the analyzer named {@code name}, or null if there's none
+	 */
+	public LatencyHistogram getHistogram(String name) {
+		for (Entry<T> entry : mAnalyzers) {
+			if (entry.name.equals(name)) {
+				return entry.histogram;
+			}
+		}
+		return null;
+	}
+
+	public long getAnalyzedCount() {
+		return mAnalyzed.get();
+	}
+
+	public long getDroppedCount() {
+		return mDropped.get();
+	}
+
+	public long getFailureCount() {
+		return mFailures.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder("FrameDispatcher{analyzed=").append(mAnalyzed.get())
+				.append(" dropped=").append(mDropped.get())
+				.append(" failures=").append(mFailures.get());
+		for (Entry<T> entry : mAnalyzers) {
+			builder.append('\n').append(entry.name).append(": ").append(entry.histogram.snapshot());
+		}
+		return builder.append('}').toString();
+	}
+}
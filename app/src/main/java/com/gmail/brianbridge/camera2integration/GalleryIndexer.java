@@ -0,0 +1,248 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the files written by the captures and has them indexed by the media scanner in
+ * batches, instead of one scan request per file.
+ *
+ * A batch is sent when {@code batchSize} files are queued, or {@code windowNanos} after the first
+ * file of the batch was queued, whichever comes first; {@link #flush()} sends what is queued right
+ * away, e.g. on pause. A file queued again before its batch is sent is only scanned once. Files
+ * queued or being scanned are bounded, new files are dropped beyond {@code maxPending}. A scan
+ * that isn't reported within {@code scanTimeoutNanos}, e.g. because the scanner service died,
+ * expires and stops counting as pending.
+ */
+public class GalleryIndexer {
+	public static final int DEFAULT_BATCH_SIZE = 8;
+	public static final long DEFAULT_WINDOW_NS = 500000000L;
+	public static final int DEFAULT_MAX_PENDING = 256;
+	public static final long DEFAULT_SCAN_TIMEOUT_NS = 30000000000L;
+
+	/**
+	 * The media scanner and a timer, called with the indexer locked.
+	 */
+	public interface Scanner {
+		/**
+		 * Starts scanning {@code paths}, each reported with {@link #onScanned(String)}.
+		 *
+		 * @return false if there's no scanner to take them, they are dropped then
+		 */
+		boolean scan(String[] paths);
+
+		/**
+		 * Asks for {@link #onFlushTimeout()} to be called in {@code delayNanos}, replacing the
+		 * previous request.
+		 */
+		void scheduleFlush(long delayNanos);
+
+		void cancelFlush();
+	}
+
+	private final Scanner mScanner;
+	private final Clock mClock;
+	private final int mBatchSize;
+	private final long mWindowNanos;
+	private final int mMaxPending;
+	private final long mScanTimeoutNanos;
+	private final LatencyHistogram mScanLatency = new LatencyHistogram();
+
+	// Path to the time it was queued, in queuing order
+	private final LinkedHashMap<String, Long> mQueued = new LinkedHashMap<>();
+	// In the order they were sent, a file can be scanned twice at once
+	private final ArrayDeque<Scan> mScanning = new ArrayDeque<>();
+	private long mFlushAt;
+
+	// Stats
+	private int mMaxPendingCount;
+	private long mBatchCount;
+	private long mScannedCount;
+	private long mCoalescedCount;
+	private long mDroppedCount;
+	private long mExpiredCount;
+
+	private static final class Scan {
+		final String path;
+		final long queuedAt;
+		final long sentAt;
+
+		Scan(String path, long queuedAt, long sentAt) {
+			this.path = path;
+			this.queuedAt = queuedAt;
+			this.sentAt = sentAt;
+		}
+	}
+
+	public GalleryIndexer(Scanner scanner, Clock clock) {
+		this(scanner, clock, DEFAULT_BATCH_SIZE, DEFAULT_WINDOW_NS, DEFAULT_MAX_PENDING, DEFAULT_SCAN_TIMEOUT_NS);
+	}
+
+	public GalleryIndexer(Scanner scanner, Clock clock, int batchSize, long windowNanos, int maxPending) {
+		this(scanner, clock, batchSize, windowNanos, maxPending, DEFAULT_SCAN_TIMEOUT_NS);
+	}
+
+	public GalleryIndexer(Scanner scanner, Clock clock, int batchSize, long windowNanos, int maxPending,
+						  long scanTimeoutNanos) {
+		if (batchSize < 1 || windowNanos < 0 || maxPending < batchSize || scanTimeoutNanos <= 0) {
+			throw new IllegalArgumentException("Invalid batching: " + batchSize + " files, "
+					+ windowNanos + " ns, " + maxPending + " pending, " + scanTimeoutNanos + " ns timeout");
+		}
+		mScanner = scanner;
+		mClock = clock;
+		mBatchSize = batchSize;
+		mWindowNanos = windowNanos;
+		mMaxPending = maxPending;
+		mScanTimeoutNanos = scanTimeoutNanos;
+	}
+
+	/**
+	 * Queues a newly written file.
+	 *
+	 * @return false if it was dropped, too many files are pending
+	 */
+	public synchronized boolean add(String path) {
+		if (mQueued.containsKey(path)) {
+			mCoalescedCount++;
+			return true;
+		}
+		long now = mClock.nanoTime();
+		expireScans(now);
+		if (getPendingCount() >= mMaxPending) {
+			mDroppedCount++;
+			return false;
+		}
+		mQueued.put(path, now);
+		mMaxPendingCount = Math.max(mMaxPendingCount, getPendingCount());
+		if (mQueued.size() >= mBatchSize) {
+			sendBatch();
+		} else if (mQueued.size() == 1) {
+			mFlushAt = now + mWindowNanos;
+			mScanner.scheduleFlush(mWindowNanos);
+		}
+		return true;
+	}
+
+	/**
+	 * Sends what is queued without waiting for the batch to fill.
+	 */
+	public synchronized void flush() {
+		if (!mQueued.isEmpty()) {
+			sendBatch();
+		}
+	}
+
+	/**
+	 * Checks the window of the queued batch, see {@link Scanner#scheduleFlush(long)}.
+	 */
+	public synchronized void onFlushTimeout() {
+		if (mQueued.isEmpty()) {
+			return;
+		}
+		long remaining = mFlushAt - mClock.nanoTime();
+		if (remaining > 0) {
+			// A stale request from an earlier batch
+			mScanner.scheduleFlush(remaining);
+			return;
+		}
+		sendBatch();
+	}
+
+	/**
+	 * A file was indexed, from any thread.
+	 */
+	public synchronized void onScanned(String path) {
+		for (Iterator<Scan> it = mScanning.iterator(); it.hasNext(); ) {
+			Scan scan = it.next();
+			if (scan.path.equals(path)) {
+				// The earliest one, scans of the same file complete in order
+				it.remove();
+				mScannedCount++;
+				mScanLatency.record(mClock.nanoTime() - scan.queuedAt);
+				return;
+			}
+		}
+		// Expired, or never sent
+	}
+
+	private void sendBatch() {
+		mScanner.cancelFlush();
+		long now = mClock.nanoTime();
+		String[] paths = new String[mQueued.size()];
+		int i = 0;
+		for (Map.Entry<String, Long> entry : mQueued.entrySet()) {
+			paths[i++] = entry.getKey();
+			mScanning.add(new Scan(entry.getKey(), entry.getValue(), now));
+		}
+		mQueued.clear();
+		mBatchCount++;
+		if (!mScanner.scan(paths)) {
+			// Nothing will report them
+			for (i = 0; i < paths.length; i++) {
+				mScanning.pollLast();
+			}
+			mDroppedCount += paths.length;
+		}
+	}
+
+	/**
+	 * Gives up on the scans sent more than the scan timeout ago.
+	 */
+	private void expireScans(long now) {
+		while (!mScanning.isEmpty() && now - mScanning.peekFirst().sentAt >= mScanTimeoutNanos) {
+			mScanning.pollFirst();
+			mExpiredCount++;
+		}
+	}
+
+	/**
+	 * Files queued or being scanned.
+	 */
+	public synchronized int getPendingCount() {
+		expireScans(mClock.nanoTime());
+		return mQueued.size() + mScanning.size();
+	}
+
+	public synchronized int getQueuedCount() {
+		return mQueued.size();
+	}
+
+	public synchronized int getMaxPendingCount() {
+		return mMaxPendingCount;
+	}
+
+	/**
+	 * From the queuing of a file to its indexing.
+	 */
+	public LatencyHistogram getScanLatencyHistogram() {
+		return mScanLatency;
+	}
+
+	public synchronized long getBatchCount() {
+		return mBatchCount;
+	}
+
+	public synchronized long getScannedCount() {
+		return mScannedCount;
+	}
+
+	/**
+	 * Files queued again before their batch was sent.
+	 */
+	public synchronized long getCoalescedCount() {
+		return mCoalescedCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * Scans given up on, never reported within the scan timeout.
+	 */
+	public synchronized long getExpiredCount() {
+		return mExpiredCount;
+	}
+}
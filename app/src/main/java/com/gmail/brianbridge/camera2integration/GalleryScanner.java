@@ -0,0 +1,83 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.net.Uri;
+
+import java.util.ArrayDeque;
+
+/**
+ * Scans files through one {@link MediaScannerConnection}, kept while there is something to scan,
+ * instead of a {@code ACTION_MEDIA_SCANNER_SCAN_FILE} broadcast per file.
+ */
+public class GalleryScanner implements MediaScannerConnection.MediaScannerConnectionClient {
+	public interface Listener {
+		/**
+		 * Called on a binder thread.
+		 */
+		void onScanned(String path);
+	}
+
+	private final MediaScannerConnection mConnection;
+	private final Listener mListener;
+	private final ArrayDeque<String> mWaiting = new ArrayDeque<>(); // Until connected
+	private int mScanning;
+	private boolean mConnecting;
+	private boolean mClosing;
+
+	public GalleryScanner(Context context, Listener listener) {
+		mConnection = new MediaScannerConnection(context.getApplicationContext(), this);
+		mListener = listener;
+	}
+
+	public synchronized void scan(String[] paths) {
+		mClosing = false;
+		for (String path : paths) {
+			mWaiting.add(path);
+		}
+		if (mConnection.isConnected()) {
+			drain();
+		} else if (!mConnecting) {
+			mConnecting = true;
+			mConnection.connect();
+		}
+	}
+
+	/**
+	 * Disconnects once the scans in progress are done.
+	 */
+	public synchronized void close() {
+		mClosing = true;
+		disconnectIfIdle();
+	}
+
+	@Override
+	public synchronized void onMediaScannerConnected() {
+		mConnecting = false;
+		drain();
+		disconnectIfIdle();
+	}
+
+	@Override
+	public void onScanCompleted(String path, Uri uri) {
+		synchronized (this) {
+			mScanning--;
+			disconnectIfIdle();
+		}
+		mListener.onScanned(path);
+	}
+
+	private void drain() {
+		while (!mWaiting.isEmpty()) {
+			// Inferred from the extension, the captures can be JPEG or PNG
+			mConnection.scanFile(mWaiting.poll(), null);
+			mScanning++;
+		}
+	}
+
+	private void disconnectIfIdle() {
+		if (mClosing && mScanning == 0 && mWaiting.isEmpty() && mConnection.isConnected()) {
+			mConnection.disconnect();
+		}
+	}
+}
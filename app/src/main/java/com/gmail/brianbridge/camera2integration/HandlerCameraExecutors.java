@@ -0,0 +1,164 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link CameraExecutors} on {@link HandlerThread}s, and optionally a thread pool for the stages
+ * that don't need a handler.
+ */
+public class HandlerCameraExecutors extends CameraExecutors {
+	private static final int POOL = -1;
+	private static final Stage[] STAGES = Stage.values();
+
+	private final String[] mThreadNames;
+	private final int[] mThreadPriorities;
+	private final int[] mStageThreads; // Index in mThreadNames of each stage, or POOL
+	private final int mPoolSize;
+	private final int mPoolPriority;
+
+	private HandlerThread[] mThreads;
+	private volatile Handler[] mHandlers;
+	private volatile ThreadPoolExecutor mPool;
+
+	/**
+	 * Every stage on one looper, the fewest threads.
+	 */
+	public static HandlerCameraExecutors sharedLooper(int priority) {
+		return new HandlerCameraExecutors(
+				new String[]{"CameraBackground"},
+				new int[]{priority},
+				new int[]{0, 0, 0, 0},
+				0, 0);
+	}
+
+	/**
+	 * A thread for the camera callbacks, one for the analyzers, and one for the still delivery and
+	 * saving.
+	 *
+	 * @param cameraPriority One of the {@code Process.THREAD_PRIORITY_*}, as the others
+	 */
+	public static HandlerCameraExecutors dedicatedThreads(int cameraPriority, int analysisPriority, int capturePriority) {
+		return new HandlerCameraExecutors(
+				new String[]{"CameraBackground", "SnapBackground", "CaptureBackground"},
+				new int[]{cameraPriority, analysisPriority, capturePriority},
+				new int[]{0, 1, 2, 2},
+				0, 0);
+	}
+
+	/**
+	 * Dedicated threads for the camera callbacks and the still delivery, the analyzers and saving
+	 * on a pool of {@code poolSize} background threads.
+	 */
+	public static HandlerCameraExecutors withPostProcessingPool(int poolSize) {
+		return new HandlerCameraExecutors(
+				new String[]{"CameraBackground", "CaptureBackground"},
+				new int[]{Process.THREAD_PRIORITY_DEFAULT, Process.THREAD_PRIORITY_DEFAULT},
+				new int[]{0, POOL, 1, POOL},
+				poolSize, Process.THREAD_PRIORITY_BACKGROUND);
+	}
+
+	private HandlerCameraExecutors(String[] threadNames, int[] threadPriorities, int[] stageThreads,
+								   int poolSize, int poolPriority) {
+		super(Clock.SYSTEM);
+		if (stageThreads[Stage.CAMERA.ordinal()] == POOL || stageThreads[Stage.CAPTURE.ordinal()] == POOL) {
+			throw new IllegalArgumentException("The camera and capture stages need a looper.");
+		}
+		mThreadNames = threadNames;
+		mThreadPriorities = threadPriorities;
+		mStageThreads = stageThreads;
+		mPoolSize = poolSize;
+		mPoolPriority = poolPriority;
+	}
+
+	@Override
+	public synchronized void start() {
+		if (null != mThreads) {
+			return;
+		}
+		HandlerThread[] threads = new HandlerThread[mThreadNames.length];
+		Handler[] handlers = new Handler[STAGES.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new HandlerThread(mThreadNames[i], mThreadPriorities[i]);
+			threads[i].start();
+		}
+		for (Stage stage : STAGES) {
+			int thread = mStageThreads[stage.ordinal()];
+			if (thread != POOL) {
+				handlers[stage.ordinal()] = new Handler(threads[thread].getLooper());
+			}
+		}
+		if (mPoolSize > 0) {
+			final AtomicInteger count = new AtomicInteger();
+			mPool = new ThreadPoolExecutor(mPoolSize, mPoolSize, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable runnable) {
+					return new Thread(new Runnable() {
+						@Override
+						public void run() {
+							Process.setThreadPriority(mPoolPriority);
+							runnable.run();
+						}
+					}, "PostProcessing-" + count.incrementAndGet());
+				}
+			});
+		}
+		mThreads = threads;
+		mHandlers = handlers;
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		if (null == mThreads) {
+			return;
+		}
+		HandlerThread[] threads = mThreads;
+		ThreadPoolExecutor pool = mPool;
+		mThreads = null;
+		mHandlers = null;
+		mPool = null;
+		// Not joined, the threads die once their queues are empty
+		for (HandlerThread thread : threads) {
+			thread.quitSafely();
+		}
+		if (null != pool) {
+			pool.shutdown();
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return null != mHandlers;
+	}
+
+	@Override
+	public Handler getHandler(Stage stage) {
+		Handler[] handlers = mHandlers;
+		return null == handlers ? null : handlers[stage.ordinal()];
+	}
+
+	@Override
+	protected void dispatch(Stage stage, Runnable task) {
+		if (mStageThreads[stage.ordinal()] == POOL) {
+			ThreadPoolExecutor pool = mPool;
+			if (null == pool) {
+				throw new RejectedExecutionException(stage + " is not running.");
+			}
+			pool.execute(task);
+			return;
+		}
+		Handler handler = getHandler(stage);
+		if (null == handler || !handler.post(task)) {
+			throw new RejectedExecutionException(stage + " is not running.");
+		}
+	}
+}
@@ -0,0 +1,52 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes sensor-encoded JPEG bytes to disk as they are, without decoding or re-encoding.
+ * Orientation is carried by {@code CaptureRequest.JPEG_ORIENTATION} / EXIF, so nothing
+ * has to touch the pixels.
+ */
+public final class JpegWriter {
+
+	private JpegWriter() {}
+
+	/**
+	 * Writes the remaining bytes of {@code buffer} into {@code file}. The position of
+	 * {@code buffer} is left untouched.
+	 *
+	 * @return The number of bytes written
+	 */
+	public static int write(ByteBuffer buffer, File file) throws IOException {
+		return write(buffer, file, null);
+	}
+
+	/**
+	 * Same as {@link #write(ByteBuffer, File)}, but borrows the intermediate array from
+	 * {@code pool} instead of allocating one per call.
+	 *
+	 * @param pool The pool to borrow from, or null to allocate
+	 */
+	public static int write(ByteBuffer buffer, File file, BufferPool pool) throws IOException {
+		ByteBuffer source = buffer.duplicate();
+		int length = source.remaining();
+		byte[] bytes = pool == null ? new byte[length] : pool.acquire(length);
+		try {
+			source.get(bytes, 0, length);
+			FileOutputStream output = new FileOutputStream(file);
+			try {
+				output.write(bytes, 0, length);
+			} finally {
+				output.close();
+			}
+		} finally {
+			if (pool != null) {
+				pool.release(bytes);
+			}
+		}
+		return length;
+	}
+}
@@ -0,0 +1,135 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-bucketed histogram of latencies in nanoseconds.
+ *
+ * Every power of two is split into {@link #SUB_BUCKETS} buckets, so a percentile is off by at most
+ * 1/{@link #SUB_BUCKETS} of its value. {@link #record(long)} is lock free and doesn't allocate,
+ * it can be called from any thread.
+ */
+public class LatencyHistogram {
+	public static final int SUB_BUCKETS = 4;
+	private static final int SUB_BUCKET_BITS = 2;
+	private static final int BUCKET_COUNT = 64 * SUB_BUCKETS;
+
+	public static class Snapshot {
+		public final long count;
+		public final long p50;
+		public final long p90;
+		public final long p99;
+		public final long max;
+		public final long mean;
+
+		Snapshot(long count, long p50, long p90, long p99, long max, long mean) {
+			this.count = count;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+			this.mean = mean;
+		}
+
+		@Override
+		public String toString() {
+			return "count=" + count + " p50=" + p50 / 1000 + "us p90=" + p90 / 1000 + "us p99="
+					+ p99 / 1000 + "us max=" + max / 1000 + "us";
+		}
+	}
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotal = new AtomicLong();
+	private final AtomicLong mMax = new AtomicLong();
+
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(0, value);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * @return The highest value that falls in bucket {@code index}
+	 */
+	static long bucketUpperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		int sub = index % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		long lower = (long) (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+		return lower + width - 1;
+	}
+
+	public void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		mCounts.incrementAndGet(bucketIndex(nanos));
+		mCount.incrementAndGet();
+		mTotal.addAndGet(nanos);
+		long max = mMax.get();
+		while (nanos > max && !mMax.compareAndSet(max, nanos)) {
+			max = mMax.get();
+		}
+	}
+
+	public long getCount() {
+		return mCount.get();
+	}
+
+	public long getMax() {
+		return mMax.get();
+	}
+
+	/**
+	 * @param percentile From 0 to 100
+	 * @return The upper bound of the bucket holding the percentile, never above the max
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			count += mCounts.get(i);
+		}
+		if (count == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += mCounts.get(i);
+			if (seen >= target) {
+				return Math.min(bucketUpperBound(i), mMax.get());
+			}
+		}
+		return mMax.get();
+	}
+
+	public Snapshot snapshot() {
+		long count = mCount.get();
+		return new Snapshot(count,
+				getValueAtPercentile(50),
+				getValueAtPercentile(90),
+				getValueAtPercentile(99),
+				mMax.get(),
+				count == 0 ? 0 : mTotal.get() / count);
+	}
+
+	/**
+	 * Not atomic with respect to concurrent {@link #record(long)} calls, which may be lost.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			mCounts.set(i, 0);
+		}
+		mCount.set(0);
+		mTotal.set(0);
+		mMax.set(0);
+	}
+}
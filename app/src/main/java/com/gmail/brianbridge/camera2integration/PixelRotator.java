@@ -0,0 +1,250 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Rotates pixel buffers clockwise by 0, 90, 180 or 270 degrees, optionally mirrored, into a
+ * destination supplied by the caller.
+ *
+ * Pixels are copied in {@link #TILE_SIZE} square tiles, so that both the rows read and the columns
+ * written stay in cache, and bands of tiles are run in parallel on a {@link ForkJoinPool} like
+ * {@link YuvConverter}. Nothing is allocated per call. A rotator runs one rotation at a time.
+ *
+ * Mirroring flips the rotated image horizontally, as a front camera preview shows it.
+ */
+public class PixelRotator {
+	public static final int TILE_SIZE = 32;
+	private static final int MIN_BAND_ROWS = 2 * TILE_SIZE;
+
+	private final RowBands mBands;
+
+	// Current rotation
+	private byte[] mSrcBytes;
+	private byte[] mDstBytes;
+	private int[] mSrcInts;
+	private int[] mDstInts;
+	private int mPixelBytes;
+	private int mSrcOffset;
+	private int mDstOffset;
+	private int mWidth;
+	private int mHeight;
+	// Destination pixel index of source pixel (x, y): mBase + x * mStepX + y * mStepY
+	private int mBase;
+	private int mStepX;
+	private int mStepY;
+
+	/**
+	 * Uses the pool shared with {@link YuvConverter}.
+	 */
+	public PixelRotator() {
+		this(RowBands.defaultPool());
+	}
+
+	/**
+	 * @param pool The pool the tiles are run on, or null to rotate on the calling thread only
+	 */
+	public PixelRotator(ForkJoinPool pool) {
+		mBands = new RowBands(pool) {
+			@Override
+			protected void processRows(int startRow, int endRow) {
+				rotateRows(startRow, endRow);
+			}
+		};
+	}
+
+	/**
+	 * The clockwise rotation that makes a frame upright, the same as the JPEG orientation.
+	 *
+	 * @param displayRotation One of the {@code Surface.ROTATION_*}
+	 */
+	public static int degreesFor(int displayRotation, int sensorOrientation) {
+		return CameraUtil.getOrientation(displayRotation, sensorOrientation);
+	}
+
+	public static int rotatedWidth(int width, int height, int degrees) {
+		return normalize(degrees) % 180 == 0 ? width : height;
+	}
+
+	public static int rotatedHeight(int width, int height, int degrees) {
+		return normalize(degrees) % 180 == 0 ? height : width;
+	}
+
+	private static int normalize(int degrees) {
+		if (degrees % 90 != 0) {
+			throw new IllegalArgumentException("Not a right angle: " + degrees);
+		}
+		return (degrees % 360 + 360) % 360;
+	}
+
+	/**
+	 * Rotates a plane of one byte per pixel, like luma.
+	 */
+	public synchronized void rotateLuma(byte[] src, int width, int height, int degrees, boolean mirror, byte[] dst) {
+		checkSize(src.length, dst.length, width * height);
+		rotateBytes(src, 0, width, height, 1, degrees, mirror, dst, 0);
+	}
+
+	/**
+	 * Rotates a plane of interleaved byte pairs, like the VU plane of NV21.
+	 *
+	 * @param width In pairs
+	 */
+	public synchronized void rotateInterleaved(byte[] src, int width, int height, int degrees, boolean mirror, byte[] dst) {
+		checkSize(src.length, dst.length, 2 * width * height);
+		rotateBytes(src, 0, width, height, 2, degrees, mirror, dst, 0);
+	}
+
+	/**
+	 * Rotates an NV21 frame laid out as {@link YuvConverter#toNv21} writes it.
+	 */
+	public synchronized void rotateNv21(byte[] src, int width, int height, int degrees, boolean mirror, byte[] dst) {
+		checkSize(src.length, dst.length, YuvConverter.nv21Size(width, height));
+		rotateBytes(src, 0, width, height, 1, degrees, mirror, dst, 0);
+		int chroma = width * height;
+		rotateBytes(src, chroma, (width + 1) / 2, (height + 1) / 2, 2, degrees, mirror, dst, chroma);
+	}
+
+	public synchronized void rotateArgb(int[] src, int width, int height, int degrees, boolean mirror, int[] dst) {
+		checkSize(src.length, dst.length, width * height);
+		if (!prepare(width, height, degrees, mirror)) {
+			System.arraycopy(src, 0, dst, 0, width * height);
+			return;
+		}
+		mSrcInts = src;
+		mDstInts = dst;
+		try {
+			mBands.run(height, MIN_BAND_ROWS, TILE_SIZE);
+		} finally {
+			mSrcInts = null;
+			mDstInts = null;
+		}
+	}
+
+	private static void checkSize(int srcLength, int dstLength, int required) {
+		if (srcLength < required || dstLength < required) {
+			throw new IllegalArgumentException("Buffers have " + srcLength + " and " + dstLength
+					+ " elements, " + required + " needed.");
+		}
+	}
+
+	private void rotateBytes(byte[] src, int srcOffset, int width, int height, int pixelBytes,
+							 int degrees, boolean mirror, byte[] dst, int dstOffset) {
+		if (!prepare(width, height, degrees, mirror)) {
+			System.arraycopy(src, srcOffset, dst, dstOffset, width * height * pixelBytes);
+			return;
+		}
+		mSrcBytes = src;
+		mDstBytes = dst;
+		mSrcOffset = srcOffset;
+		mDstOffset = dstOffset;
+		mPixelBytes = pixelBytes;
+		try {
+			mBands.run(height, MIN_BAND_ROWS, TILE_SIZE);
+		} finally {
+			mSrcBytes = null;
+			mDstBytes = null;
+		}
+	}
+
+	/**
+	 * Sets up the index mapping of a rotation.
+	 *
+	 * @return false if the pixels don't move
+	 */
+	private boolean prepare(int width, int height, int degrees, boolean mirror) {
+		degrees = normalize(degrees);
+		mWidth = width;
+		mHeight = height;
+		// Destination coordinates as dx = ax * x + bx * y + cx, dy = ay * x + by * y + cy
+		int ax, bx, cx, ay, by, cy;
+		switch (degrees) {
+			case 90:
+				ax = 0; bx = -1; cx = height - 1;
+				ay = 1; by = 0; cy = 0;
+				break;
+			case 180:
+				ax = -1; bx = 0; cx = width - 1;
+				ay = 0; by = -1; cy = height - 1;
+				break;
+			case 270:
+				ax = 0; bx = 1; cx = 0;
+				ay = -1; by = 0; cy = width - 1;
+				break;
+			default:
+				ax = 1; bx = 0; cx = 0;
+				ay = 0; by = 1; cy = 0;
+				break;
+		}
+		int dstWidth = rotatedWidth(width, height, degrees);
+		if (mirror) {
+			ax = -ax;
+			bx = -bx;
+			cx = dstWidth - 1 - cx;
+		}
+		mBase = cy * dstWidth + cx;
+		mStepX = ay * dstWidth + ax;
+		mStepY = by * dstWidth + bx;
+		return degrees != 0 || mirror;
+	}
+
+	private void rotateRows(int startRow, int endRow) {
+		int width = mWidth;
+		for (int tileY = startRow; tileY < endRow; tileY += TILE_SIZE) {
+			int tileEndY = Math.min(tileY + TILE_SIZE, endRow);
+			for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+				int tileEndX = Math.min(tileX + TILE_SIZE, width);
+				if (mSrcInts != null) {
+					rotateTile(mSrcInts, mDstInts, tileX, tileEndX, tileY, tileEndY);
+				} else if (mPixelBytes == 1) {
+					rotateTile(mSrcBytes, mDstBytes, tileX, tileEndX, tileY, tileEndY);
+				} else {
+					rotatePairTile(mSrcBytes, mDstBytes, tileX, tileEndX, tileY, tileEndY);
+				}
+			}
+		}
+	}
+
+	private void rotateTile(int[] src, int[] dst, int startX, int endX, int startY, int endY) {
+		int width = mWidth;
+		int stepX = mStepX;
+		for (int y = startY; y < endY; y++) {
+			int in = y * width + startX;
+			int out = mBase + startX * stepX + y * mStepY;
+			for (int x = startX; x < endX; x++) {
+				dst[out] = src[in++];
+				out += stepX;
+			}
+		}
+	}
+
+	private void rotateTile(byte[] src, byte[] dst, int startX, int endX, int startY, int endY) {
+		int width = mWidth;
+		int stepX = mStepX;
+		int srcOffset = mSrcOffset;
+		int dstOffset = mDstOffset;
+		for (int y = startY; y < endY; y++) {
+			int in = srcOffset + y * width + startX;
+			int out = dstOffset + mBase + startX * stepX + y * mStepY;
+			for (int x = startX; x < endX; x++) {
+				dst[out] = src[in++];
+				out += stepX;
+			}
+		}
+	}
+
+	private void rotatePairTile(byte[] src, byte[] dst, int startX, int endX, int startY, int endY) {
+		int width = mWidth;
+		int stepX = 2 * mStepX;
+		int srcOffset = mSrcOffset;
+		int dstOffset = mDstOffset;
+		for (int y = startY; y < endY; y++) {
+			int in = srcOffset + 2 * (y * width + startX);
+			int out = dstOffset + 2 * (mBase + startX * mStepX + y * mStepY);
+			for (int x = startX; x < endX; x++) {
+				dst[out] = src[in++];
+				dst[out + 1] = src[in++];
+				out += stepX;
+			}
+		}
+	}
+}
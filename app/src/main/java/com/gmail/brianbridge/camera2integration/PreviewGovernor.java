@@ -0,0 +1,205 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * Steps the preview size down when the device doesn't keep up with it, and back up once it does,
+ * through the sizes of {@link ResolutionPlanner#previewSizesUpTo(long)}.
+ *
+ * The load is judged once per window from the frame counters: the fraction of the sensor frames
+ * that were displayed, and the fraction of the analysis frames dropped for a backlog. Comparing
+ * with the sensor frames rather than a target frame rate keeps a preview slowed down by the auto
+ * exposure in low light from counting as load.
+ *
+ * Resizing restarts the session, so it's only done when it pays off: a step changes the area by
+ * at least {@link #MIN_AREA_STEP}, takes {@link #DOWN_WINDOWS} overloaded windows in a row down
+ * and more healthy ones up, and is followed by {@link #COOLDOWN_WINDOWS} windows without any.
+ * A step up that is undone within {@link #PROBE_WINDOWS} doubles the healthy windows the next one
+ * takes, so a throttled device doesn't keep trying the size it can't hold.
+ */
+public class PreviewGovernor {
+	public static final double DOWN_DELIVERED_RATIO = 0.85; // Overloaded below
+	public static final double UP_DELIVERED_RATIO = 0.97; // Healthy from
+	public static final double DOWN_DROPPED_RATIO = 0.1; // Overloaded above
+	public static final double UP_DROPPED_RATIO = 0.02; // Healthy up to
+	public static final double MIN_AREA_STEP = 1.2;
+	public static final int MIN_WINDOW_FRAMES = 10; // Fewer sensor frames don't tell anything
+	public static final int DOWN_WINDOWS = 2;
+	public static final int UP_WINDOWS = 10;
+	public static final int MAX_UP_WINDOWS = 160;
+	public static final int COOLDOWN_WINDOWS = 3;
+	public static final int PROBE_WINDOWS = 30;
+
+	public interface Preview {
+		/**
+		 * Reconfigures the preview to {@code previewSize}, called with the governor locked.
+		 *
+		 * @return false if it can't be done now, the step is retried at a later window
+		 */
+		boolean resize(long previewSize);
+	}
+
+	private final Preview mPreview;
+
+	private long[] mSizes = new long[0]; // Ascending area
+	private int mIndex; // Of the current size
+	private long mCapArea = Long.MAX_VALUE; // Kept across setSizes(), the load outlives a session
+
+	private boolean mHasBaseline;
+	private long mSensorFrames;
+	private long mDisplayedFrames;
+	private long mOfferedFrames;
+	private long mDroppedFrames;
+
+	private int mOverloadedWindows;
+	private int mHealthyWindows;
+	private int mCooldownWindows;
+	private int mUpWindows = UP_WINDOWS;
+	private int mWindowsSinceUp = -1; // -1 unless the last step was up
+	private long mStepsDown;
+	private long mStepsUp;
+
+	public PreviewGovernor(Preview preview) {
+		mPreview = preview;
+	}
+
+	/**
+	 * Sets the sizes of a new preview configuration and picks the one to start with: the largest
+	 * one the governor had stepped down to or below.
+	 *
+	 * @param sizes Packed, in ascending area, the last one the preferred size
+	 * @return The size to configure, {@link ResolutionPlanner#NO_SIZE} if {@code sizes} is empty
+	 */
+	public synchronized long setSizes(long[] sizes) {
+		mSizes = sizes;
+		mIndex = 0;
+		for (int i = sizes.length - 1; i > 0; i--) {
+			if (area(sizes[i]) <= mCapArea) {
+				mIndex = i;
+				break;
+			}
+		}
+		restartWindow();
+		mOverloadedWindows = 0;
+		mHealthyWindows = 0;
+		mCooldownWindows = 0;
+		return sizes.length == 0 ? ResolutionPlanner.NO_SIZE : sizes[mIndex];
+	}
+
+	/**
+	 * Ends a window, from the counters since the preview started.
+	 *
+	 * @param sensorFrames    Frames started by the sensor
+	 * @param displayedFrames Frames drawn on the screen
+	 * @param offeredFrames   Frames offered for analysis, 0 without analysis
+	 * @param droppedFrames   Analysis frames dropped because the previous one was still waiting
+	 */
+	public synchronized void onWindow(long sensorFrames, long displayedFrames, long offeredFrames,
+									  long droppedFrames) {
+		long sensor = sensorFrames - mSensorFrames;
+		long displayed = displayedFrames - mDisplayedFrames;
+		long offered = offeredFrames - mOfferedFrames;
+		long dropped = droppedFrames - mDroppedFrames;
+		boolean hadBaseline = mHasBaseline;
+		mSensorFrames = sensorFrames;
+		mDisplayedFrames = displayedFrames;
+		mOfferedFrames = offeredFrames;
+		mDroppedFrames = droppedFrames;
+		mHasBaseline = true;
+		if (!hadBaseline || sensor < MIN_WINDOW_FRAMES || mSizes.length < 2) {
+			return;
+		}
+		if (mWindowsSinceUp >= 0 && ++mWindowsSinceUp >= PROBE_WINDOWS) {
+			// The size stepped up to held
+			mWindowsSinceUp = -1;
+			mUpWindows = UP_WINDOWS;
+		}
+		if (mCooldownWindows > 0) {
+			mCooldownWindows--;
+			return;
+		}
+
+		double delivered = (double) displayed / sensor;
+		double droppedRatio = offered <= 0 ? 0 : (double) dropped / offered;
+		if (delivered < DOWN_DELIVERED_RATIO || droppedRatio > DOWN_DROPPED_RATIO) {
+			mHealthyWindows = 0;
+			if (++mOverloadedWindows >= DOWN_WINDOWS) {
+				stepDown();
+			}
+		} else if (delivered >= UP_DELIVERED_RATIO && droppedRatio <= UP_DROPPED_RATIO) {
+			mOverloadedWindows = 0;
+			if (++mHealthyWindows >= mUpWindows) {
+				stepUp();
+			}
+		} else {
+			// In between, holds
+			mOverloadedWindows = 0;
+			mHealthyWindows = 0;
+		}
+	}
+
+	/**
+	 * Starts the next window afresh, for when the preview was stopped and the counters of the
+	 * current one don't tell about the load.
+	 */
+	public synchronized void restartWindow() {
+		mHasBaseline = false;
+	}
+
+	private void stepDown() {
+		long current = area(mSizes[mIndex]);
+		for (int i = mIndex - 1; i >= 0; i--) {
+			if (area(mSizes[i]) * MIN_AREA_STEP <= current) {
+				if (resize(i)) {
+					mStepsDown++;
+					if (mWindowsSinceUp >= 0) {
+						// Couldn't hold the size stepped up to
+						mUpWindows = Math.min(mUpWindows * 2, MAX_UP_WINDOWS);
+					}
+					mWindowsSinceUp = -1;
+				}
+				return;
+			}
+		}
+	}
+
+	private void stepUp() {
+		long current = area(mSizes[mIndex]);
+		for (int i = mIndex + 1; i < mSizes.length; i++) {
+			if (area(mSizes[i]) >= current * MIN_AREA_STEP) {
+				if (resize(i)) {
+					mStepsUp++;
+					mWindowsSinceUp = 0;
+				}
+				return;
+			}
+		}
+	}
+
+	private boolean resize(int index) {
+		if (!mPreview.resize(mSizes[index])) {
+			return false;
+		}
+		mIndex = index;
+		mCapArea = index == mSizes.length - 1 ? Long.MAX_VALUE : area(mSizes[index]);
+		mOverloadedWindows = 0;
+		mHealthyWindows = 0;
+		mCooldownWindows = COOLDOWN_WINDOWS;
+		mHasBaseline = false;
+		return true;
+	}
+
+	private static long area(long size) {
+		return (long) ResolutionPlanner.width(size) * ResolutionPlanner.height(size);
+	}
+
+	public synchronized long getPreviewSize() {
+		return mSizes.length == 0 ? ResolutionPlanner.NO_SIZE : mSizes[mIndex];
+	}
+
+	public synchronized long getStepsDown() {
+		return mStepsDown;
+	}
+
+	public synchronized long getStepsUp() {
+		return mStepsUp;
+	}
+}
@@ -0,0 +1,190 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivered frame rate and jank of the preview, from the sensor timestamp of every frame the
+ * camera starts and the time every frame is displayed.
+ *
+ * A frame is long when its interval is over 1.5 times the typical one, a moving average of the
+ * intervals, so the preview slowing down in low light settles as the new typical interval instead
+ * of counting as jank. Intervals spanning a {@link #onPreviewStopped()} are not counted.
+ *
+ * Recording takes a few arithmetic operations, doesn't lock nor allocate, so it's meant to stay on
+ * in production: sensor frames are recorded on the camera thread, displayed frames on the UI
+ * thread. {@link #onPreviewStopped()} can be called from any thread.
+ */
+public class PreviewTelemetry {
+	public static final long NO_TIMESTAMP = -1;
+	private static final int AVERAGE_SHIFT = 3; // Each interval weighs 1/8 in the typical one
+
+	public static class Snapshot {
+		public final long sensorFrames;
+		public final double sensorFps; // Over the time the preview was running
+		public final long typicalSensorIntervalNanos;
+		public final long longSensorFrames;
+		public final long skippedSensorFrames; // Estimated from the long intervals
+		public final LatencyHistogram.Snapshot sensorIntervals;
+		public final long displayFrames;
+		public final double displayFps;
+		public final long longDisplayFrames;
+		public final LatencyHistogram.Snapshot displayIntervals;
+		public final LatencyHistogram.Snapshot sensorToDisplay; // Empty if the clocks differ
+
+		Snapshot(Stream sensor, Stream display, LatencyHistogram sensorToDisplay) {
+			sensorFrames = sensor.frames;
+			sensorFps = sensor.getFps();
+			typicalSensorIntervalNanos = sensor.typicalInterval;
+			longSensorFrames = sensor.longFrames;
+			skippedSensorFrames = sensor.skippedFrames;
+			sensorIntervals = sensor.intervals.snapshot();
+			displayFrames = display.frames;
+			displayFps = display.getFps();
+			longDisplayFrames = display.longFrames;
+			displayIntervals = display.intervals.snapshot();
+			this.sensorToDisplay = sensorToDisplay.snapshot();
+		}
+
+		@Override
+		public String toString() {
+			return String.format("sensor %.1ffps, %d frames, %d long, %d skipped, intervals %s;"
+							+ " display %.1ffps, %d frames, %d long, intervals %s; sensor to display %s",
+					sensorFps, sensorFrames, longSensorFrames, skippedSensorFrames, sensorIntervals,
+					displayFps, displayFrames, longDisplayFrames, displayIntervals, sensorToDisplay);
+		}
+	}
+
+	/**
+	 * The intervals of one stream of frames, written by a single thread. Other threads only bump
+	 * {@link #restarts}, which the writing thread applies on the next frame.
+	 */
+	static class Stream {
+		final LatencyHistogram intervals = new LatencyHistogram();
+		final AtomicInteger restarts = new AtomicInteger();
+		private int mAppliedRestarts; // Of the writing thread
+		volatile long frames;
+		volatile long lastTimestamp = NO_TIMESTAMP;
+		volatile long typicalInterval; // 0 until the first interval
+		volatile long runningNanos; // Sum of the intervals
+		volatile long longFrames;
+		volatile long skippedFrames;
+
+		void onFrame(long timestamp) {
+			long last = lastTimestamp;
+			int restartCount = restarts.get();
+			if (restartCount != mAppliedRestarts) {
+				mAppliedRestarts = restartCount;
+				last = NO_TIMESTAMP;
+			}
+			lastTimestamp = timestamp;
+			frames++;
+			if (last == NO_TIMESTAMP) {
+				return;
+			}
+			long interval = timestamp - last;
+			if (interval <= 0) {
+				// Out of order or repeated
+				return;
+			}
+			intervals.record(interval);
+			runningNanos += interval;
+			long typical = typicalInterval;
+			if (typical == 0) {
+				typicalInterval = interval;
+				return;
+			}
+			if (2 * interval > 3 * typical) {
+				longFrames++;
+				skippedFrames += (interval + typical / 2) / typical - 1;
+			}
+			typicalInterval = typical + ((interval - typical) >> AVERAGE_SHIFT);
+		}
+
+		/**
+		 * The next frame starts without an interval, from any thread.
+		 */
+		void restart() {
+			restarts.incrementAndGet();
+		}
+
+		double getFps() {
+			long running = runningNanos;
+			return running == 0 ? 0 : intervals.getCount() * 1e9 / running;
+		}
+
+		void reset() {
+			intervals.reset();
+			frames = 0;
+			lastTimestamp = NO_TIMESTAMP;
+			typicalInterval = 0;
+			runningNanos = 0;
+			longFrames = 0;
+			skippedFrames = 0;
+		}
+	}
+
+	private final Stream mSensor = new Stream();
+	private final Stream mDisplay = new Stream();
+	private final LatencyHistogram mSensorToDisplay = new LatencyHistogram();
+
+	/**
+	 * The camera started exposing a preview frame.
+	 *
+	 * @param sensorTimestampNs Its sensor timestamp
+	 */
+	public void onSensorFrame(long sensorTimestampNs) {
+		mSensor.onFrame(sensorTimestampNs);
+	}
+
+	/**
+	 * A preview frame was drawn.
+	 *
+	 * @param displayNanos      When, in the clock of the sensor timestamps if they're to be compared
+	 * @param sensorTimestampNs The sensor timestamp of the frame, or {@link #NO_TIMESTAMP} if
+	 *                          unknown or in another clock than {@code displayNanos}
+	 */
+	public void onDisplayFrame(long displayNanos, long sensorTimestampNs) {
+		mDisplay.onFrame(displayNanos);
+		if (sensorTimestampNs != NO_TIMESTAMP && displayNanos > sensorTimestampNs) {
+			mSensorToDisplay.record(displayNanos - sensorTimestampNs);
+		}
+	}
+
+	/**
+	 * The preview is stopped on purpose, for a still or a pause: the wait until the next frame is
+	 * not an interval.
+	 */
+	public void onPreviewStopped() {
+		mSensor.restart();
+		mDisplay.restart();
+	}
+
+	/**
+	 * Same as the count of {@link #snapshot()}, without the histograms.
+	 */
+	public long getSensorFrames() {
+		return mSensor.frames;
+	}
+
+	public long getDisplayFrames() {
+		return mDisplay.frames;
+	}
+
+	public Snapshot snapshot() {
+		return new Snapshot(mSensor, mDisplay, mSensorToDisplay);
+	}
+
+	/**
+	 * Starts over, between frames.
+	 */
+	public void reset() {
+		mSensor.reset();
+		mDisplay.reset();
+		mSensorToDisplay.reset();
+	}
+
+	@Override
+	public String toString() {
+		return snapshot().toString();
+	}
+}
@@ -0,0 +1,509 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Picks the capture and preview sizes of one camera.
+ *
+ * The supported sizes are indexed once: grouped into aspect-ratio buckets (ratios within
+ * {@link #RATIO_TOLERANCE} of each other share a bucket) and sorted by area inside each bucket.
+ * A query then is a bucket lookup plus binary searches, and its answer is memoized, so repeated
+ * queries (e.g. on every configuration change) neither search again nor allocate.
+ *
+ * Sizes are returned packed in a {@code long}, see {@link #width(long)} and {@link #height(long)}.
+ * {@link #NO_SIZE} is returned when the camera has no size at all.
+ *
+ * The preview query gives the same answer as {@link CameraUtil#chooseOptimalSize}, except that
+ * aspect ratios are compared with a tolerance instead of an integer truncation.
+ */
+public class ResolutionPlanner {
+	public static final long NO_SIZE = 0;
+	public static final double RATIO_TOLERANCE = 0.005;
+	public static final long DEFAULT_MIN_CAPTURE_AREA = 1000000;
+
+	private static final int MEMO_SLOTS = 16; // Must be a power of two
+	private static final int MEMO_KEY_LENGTH = 8;
+
+	private final int mSensorOrientation;
+	private final Index mCaptureIndex;
+	private final Index mPreviewIndex;
+
+	// Direct-mapped memo of the recent queries, each slot holds MEMO_KEY_LENGTH ints of key
+	private final int[] mMemoKeys = new int[MEMO_SLOTS * MEMO_KEY_LENGTH];
+	private final long[] mMemoValues = new long[MEMO_SLOTS];
+	private final boolean[] mMemoUsed = new boolean[MEMO_SLOTS];
+	private final int[] mKey = new int[MEMO_KEY_LENGTH];
+	private long mMemoHits;
+	private long mMemoMisses;
+
+	/**
+	 * @param captureSizes      Packed JPEG output sizes, in the order reported by the camera
+	 * @param previewSizes      Packed SurfaceTexture output sizes, in the order reported by the camera
+	 * @param sensorOrientation The sensor orientation of the camera
+	 */
+	public ResolutionPlanner(int[] captureSizes, int[] previewSizes, int sensorOrientation) {
+		mCaptureIndex = new Index(captureSizes);
+		mPreviewIndex = new Index(previewSizes);
+		mSensorOrientation = sensorOrientation;
+	}
+
+	public static ResolutionPlanner of(CameraInfo camera) {
+		return new ResolutionPlanner(camera.jpegSizes, camera.previewSizes, camera.sensorOrientation);
+	}
+
+	public static long pack(int width, int height) {
+		return ((long) width << 32) | (height & 0xffffffffL);
+	}
+
+	public static int width(long size) {
+		return (int) (size >>> 32);
+	}
+
+	public static int height(long size) {
+		return (int) size;
+	}
+
+	/**
+	 * Same as {@link CameraUtil#isScreenNeedRotateForCamera}, with the display rotation given as
+	 * one of the {@code Surface.ROTATION_*} values.
+	 */
+	public static boolean isDimensionSwapped(int displayRotation, int sensorOrientation) {
+		switch (displayRotation) {
+			case 0:
+			case 2:
+				return sensorOrientation == 90 || sensorOrientation == 270;
+			case 1:
+			case 3:
+				return sensorOrientation == 0 || sensorOrientation == 180;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Chooses the largest JPEG thumbnail size with the aspect ratio of {@code captureSize}, or
+	 * the largest of any ratio if none matches. {@link #NO_SIZE} if the camera has no thumbnail.
+	 *
+	 * @param thumbnailSizes Packed, as {@link CameraInfo#thumbnailSizes}
+	 */
+	public static long chooseThumbnailSize(int[] thumbnailSizes, long captureSize) {
+		double ratio = (double) width(captureSize) / height(captureSize);
+		long matching = NO_SIZE;
+		long largest = NO_SIZE;
+		long matchingArea = 0;
+		long largestArea = 0;
+		for (int i = 0; i < thumbnailSizes.length; i += 2) {
+			int w = thumbnailSizes[i];
+			int h = thumbnailSizes[i + 1];
+			long area = (long) w * h;
+			if (area == 0) {
+				continue;
+			}
+			if (area > largestArea) {
+				largestArea = area;
+				largest = pack(w, h);
+			}
+			if (area > matchingArea && Math.abs((double) w / h - ratio) <= ratio * RATIO_TOLERANCE) {
+				matchingArea = area;
+				matching = pack(w, h);
+			}
+		}
+		return matching != NO_SIZE ? matching : largest;
+	}
+
+	/**
+	 * Chooses the smallest capture size in the {@code ratioWidth:ratioHeight} bucket whose area is
+	 * at least {@code minArea}. If there is none, the largest capture size of any ratio is chosen.
+	 */
+	public synchronized long chooseCaptureSize(int ratioWidth, int ratioHeight, long minArea) {
+		int[] key = mKey;
+		key[0] = 1;
+		key[1] = ratioWidth;
+		key[2] = ratioHeight;
+		key[3] = (int) (minArea >>> 32);
+		key[4] = (int) minArea;
+		key[5] = 0;
+		key[6] = 0;
+		key[7] = 0;
+		int slot = memoSlot(key);
+		if (slot < 0) {
+			return mMemoValues[~slot];
+		}
+
+		Index index = mCaptureIndex;
+		long result = index.largest();
+		int bucket = index.findBucket((double) ratioWidth / ratioHeight);
+		if (bucket >= 0) {
+			int from = index.bucketStart[bucket];
+			int to = index.bucketStart[bucket + 1];
+			int i = index.firstAreaAtLeast(from, to, minArea);
+			if (i < to) {
+				result = pack(index.widths[i], index.heights[i]);
+			}
+		}
+		return memoize(slot, key, result);
+	}
+
+	/**
+	 * Chooses the preview size for a view of {@code viewWidth x viewHeight} on a display of
+	 * {@code displayWidth x displayHeight}, matching the aspect ratio of {@code aspectRatio}
+	 * (usually the capture size). Both sizes are given in display coordinates, and are swapped
+	 * to sensor coordinates according to {@code displayRotation} and the sensor orientation.
+	 * The preview is capped at {@link CameraUtil#API2_MAX_PREVIEW_WIDTH} x
+	 * {@link CameraUtil#API2_MAX_PREVIEW_HEIGHT}.
+	 */
+	public synchronized long choosePreviewSize(int viewWidth, int viewHeight,
+											   int displayWidth, int displayHeight,
+											   int displayRotation, long aspectRatio) {
+		int[] key = mKey;
+		key[0] = 2;
+		key[1] = viewWidth;
+		key[2] = viewHeight;
+		key[3] = displayWidth;
+		key[4] = displayHeight;
+		key[5] = displayRotation;
+		key[6] = width(aspectRatio);
+		key[7] = height(aspectRatio);
+		int slot = memoSlot(key);
+		if (slot < 0) {
+			return mMemoValues[~slot];
+		}
+
+		int rotatedViewWidth = viewWidth;
+		int rotatedViewHeight = viewHeight;
+		int maxWidth = displayWidth;
+		int maxHeight = displayHeight;
+		if (isDimensionSwapped(displayRotation, mSensorOrientation)) {
+			rotatedViewWidth = viewHeight;
+			rotatedViewHeight = viewWidth;
+			maxWidth = displayHeight;
+			maxHeight = displayWidth;
+		}
+		maxWidth = Math.min(maxWidth, CameraUtil.API2_MAX_PREVIEW_WIDTH);
+		maxHeight = Math.min(maxHeight, CameraUtil.API2_MAX_PREVIEW_HEIGHT);
+
+		long result = chooseOptimalSize(rotatedViewWidth, rotatedViewHeight, maxWidth, maxHeight,
+				width(aspectRatio), height(aspectRatio));
+		return memoize(slot, key, result);
+	}
+
+	/**
+	 * The planner version of {@link CameraUtil#chooseOptimalSize}, over the preview sizes. The
+	 * arguments are in sensor coordinates. Not memoized.
+	 */
+	public synchronized long chooseOptimalSize(int textureViewWidth, int textureViewHeight,
+											   int maxWidth, int maxHeight,
+											   int ratioWidth, int ratioHeight) {
+		Index index = mPreviewIndex;
+		if (index.size == 0) {
+			return NO_SIZE;
+		}
+		int bucket = index.findBucket((double) ratioWidth / ratioHeight);
+		if (bucket < 0) {
+			return index.first();
+		}
+		int from = index.bucketStart[bucket];
+		int to = index.bucketStart[bucket + 1];
+		int i;
+		if (index.bucketMonotonic[bucket]) {
+			// Widths and heights strictly grow with the area, so "fits in max" is a prefix and
+			// "big enough" is a suffix of the bucket
+			int fitEnd = index.fitEnd(from, to, maxWidth, maxHeight);
+			int bigStart = index.bigEnoughStart(from, to, textureViewWidth, textureViewHeight);
+			if (bigStart < fitEnd) {
+				i = bigStart;
+			} else if (fitEnd > from) {
+				i = fitEnd - 1;
+			} else {
+				i = -1;
+			}
+		} else {
+			i = index.scan(from, to, textureViewWidth, textureViewHeight, maxWidth, maxHeight);
+		}
+		return i < 0 ? index.first() : pack(index.widths[i], index.heights[i]);
+	}
+
+	/**
+	 * The preview sizes of the aspect ratio of {@code size} that are no wider and no taller than
+	 * it, in ascending area and without repeats: the sizes {@link PreviewGovernor} can step down
+	 * to from {@code size}. Not memoized.
+	 *
+	 * @return Just {@code size} if it's not a preview size of a ratio bucket
+	 */
+	public synchronized long[] previewSizesUpTo(long size) {
+		Index index = mPreviewIndex;
+		int bucket = size == NO_SIZE ? -1 : index.findBucket((double) width(size) / height(size));
+		if (bucket < 0) {
+			return size == NO_SIZE ? new long[0] : new long[]{size};
+		}
+		int from = index.bucketStart[bucket];
+		int to = index.bucketStart[bucket + 1];
+		long[] sizes = new long[to - from];
+		int count = 0;
+		boolean found = false;
+		for (int i = from; i < to; i++) {
+			if (index.widths[i] > width(size) || index.heights[i] > height(size)) {
+				continue;
+			}
+			long packed = pack(index.widths[i], index.heights[i]);
+			if (count > 0 && sizes[count - 1] == packed) {
+				continue;
+			}
+			sizes[count++] = packed;
+			found |= packed == size;
+		}
+		return found ? Arrays.copyOf(sizes, count) : new long[]{size};
+	}
+
+	/**
+	 * @return The slot to memoize the key into, or the bitwise complement of the slot holding
+	 * the memoized answer
+	 */
+	private int memoSlot(int[] key) {
+		int hash = Arrays.hashCode(key);
+		hash ^= hash >>> 16;
+		int slot = hash & (MEMO_SLOTS - 1);
+		if (mMemoUsed[slot]) {
+			int offset = slot * MEMO_KEY_LENGTH;
+			boolean same = true;
+			for (int k = 0; k < MEMO_KEY_LENGTH && same; k++) {
+				same = mMemoKeys[offset + k] == key[k];
+			}
+			if (same) {
+				mMemoHits++;
+				return ~slot;
+			}
+		}
+		mMemoMisses++;
+		return slot;
+	}
+
+	private long memoize(int slot, int[] key, long value) {
+		System.arraycopy(key, 0, mMemoKeys, slot * MEMO_KEY_LENGTH, MEMO_KEY_LENGTH);
+		mMemoValues[slot] = value;
+		mMemoUsed[slot] = true;
+		return value;
+	}
+
+	public synchronized long getMemoHits() {
+		return mMemoHits;
+	}
+
+	public synchronized long getMemoMisses() {
+		return mMemoMisses;
+	}
+
+	/**
+	 * Sizes grouped by aspect-ratio bucket, sorted by area within a bucket.
+	 */
+	static class Index {
+		final int size;
+		final int[] widths;
+		final int[] heights;
+		final long[] areas;
+		final int firstWidth;
+		final int firstHeight;
+		final int largestWidth;
+		final int largestHeight;
+
+		// Bucket b holds the entries [bucketStart[b], bucketStart[b + 1])
+		final int[] bucketStart;
+		final double[] bucketMinRatio;
+		final double[] bucketMaxRatio;
+		final boolean[] bucketMonotonic;
+
+		Index(int[] packed) {
+			size = packed.length / 2;
+			widths = new int[size];
+			heights = new int[size];
+			areas = new long[size];
+			if (size == 0) {
+				firstWidth = firstHeight = largestWidth = largestHeight = 0;
+				bucketStart = new int[]{0};
+				bucketMinRatio = bucketMaxRatio = new double[0];
+				bucketMonotonic = new boolean[0];
+				return;
+			}
+			firstWidth = packed[0];
+			firstHeight = packed[1];
+
+			// Same tie rule as Collections.max: the first of the largest areas wins
+			int largest = 0;
+			Integer[] order = new Integer[size];
+			for (int i = 0; i < size; i++) {
+				order[i] = i;
+				if (area(packed, i) > area(packed, largest)) {
+					largest = i;
+				}
+			}
+			largestWidth = packed[largest * 2];
+			largestHeight = packed[largest * 2 + 1];
+
+			final int[] source = packed;
+			// Stable sort by ratio, so the clusters are contiguous
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer lhs, Integer rhs) {
+					return Double.compare(ratio(source, lhs), ratio(source, rhs));
+				}
+			});
+
+			int[] starts = new int[size + 1];
+			int buckets = 0;
+			double anchor = Double.NaN;
+			for (int i = 0; i < size; i++) {
+				double ratio = ratio(packed, order[i]);
+				if (buckets == 0 || ratio > anchor * (1 + RATIO_TOLERANCE)) {
+					starts[buckets++] = i;
+					anchor = ratio;
+				}
+			}
+			starts[buckets] = size;
+			bucketStart = Arrays.copyOf(starts, buckets + 1);
+			bucketMinRatio = new double[buckets];
+			bucketMaxRatio = new double[buckets];
+			bucketMonotonic = new boolean[buckets];
+
+			for (int b = 0; b < buckets; b++) {
+				int from = bucketStart[b];
+				int to = bucketStart[b + 1];
+				bucketMinRatio[b] = ratio(packed, order[from]);
+				bucketMaxRatio[b] = ratio(packed, order[to - 1]);
+				// Stable sort by area inside the bucket, keeping the camera order for equal areas
+				Integer[] bucket = Arrays.copyOfRange(order, from, to);
+				Arrays.sort(bucket);
+				Arrays.sort(bucket, new Comparator<Integer>() {
+					@Override
+					public int compare(Integer lhs, Integer rhs) {
+						return Long.signum(area(source, lhs) - area(source, rhs));
+					}
+				});
+				boolean monotonic = true;
+				for (int i = from; i < to; i++) {
+					int original = bucket[i - from];
+					widths[i] = packed[original * 2];
+					heights[i] = packed[original * 2 + 1];
+					areas[i] = area(packed, original);
+					if (i > from && (widths[i] <= widths[i - 1] || heights[i] <= heights[i - 1])) {
+						monotonic = false;
+					}
+				}
+				bucketMonotonic[b] = monotonic;
+			}
+		}
+
+		private static long area(int[] packed, int i) {
+			return (long) packed[i * 2] * packed[i * 2 + 1];
+		}
+
+		private static double ratio(int[] packed, int i) {
+			return (double) packed[i * 2] / packed[i * 2 + 1];
+		}
+
+		long first() {
+			return pack(firstWidth, firstHeight);
+		}
+
+		long largest() {
+			return size == 0 ? NO_SIZE : pack(largestWidth, largestHeight);
+		}
+
+		/**
+		 * @return The bucket within tolerance of {@code ratio}, the closest one if two are, or -1
+		 */
+		int findBucket(double ratio) {
+			int low = 0;
+			int high = bucketMinRatio.length;
+			// First bucket whose min ratio is greater than ratio
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (bucketMinRatio[mid] > ratio) {
+					high = mid;
+				} else {
+					low = mid + 1;
+				}
+			}
+			int best = -1;
+			double bestDistance = Double.MAX_VALUE;
+			for (int b = Math.max(0, low - 1); b <= low && b < bucketMinRatio.length; b++) {
+				double distance;
+				if (ratio < bucketMinRatio[b]) {
+					distance = bucketMinRatio[b] / ratio - 1;
+				} else if (ratio > bucketMaxRatio[b]) {
+					distance = ratio / bucketMaxRatio[b] - 1;
+				} else {
+					distance = 0;
+				}
+				if (distance <= RATIO_TOLERANCE && distance < bestDistance) {
+					best = b;
+					bestDistance = distance;
+				}
+			}
+			return best;
+		}
+
+		int firstAreaAtLeast(int from, int to, long minArea) {
+			while (from < to) {
+				int mid = (from + to) >>> 1;
+				if (areas[mid] >= minArea) {
+					to = mid;
+				} else {
+					from = mid + 1;
+				}
+			}
+			return from;
+		}
+
+		/**
+		 * @return The end of the prefix of entries no larger than max
+		 */
+		int fitEnd(int from, int to, int maxWidth, int maxHeight) {
+			while (from < to) {
+				int mid = (from + to) >>> 1;
+				if (widths[mid] <= maxWidth && heights[mid] <= maxHeight) {
+					from = mid + 1;
+				} else {
+					to = mid;
+				}
+			}
+			return from;
+		}
+
+		/**
+		 * @return The start of the suffix of entries at least as large as the view
+		 */
+		int bigEnoughStart(int from, int to, int viewWidth, int viewHeight) {
+			while (from < to) {
+				int mid = (from + to) >>> 1;
+				if (widths[mid] >= viewWidth && heights[mid] >= viewHeight) {
+					to = mid;
+				} else {
+					from = mid + 1;
+				}
+			}
+			return from;
+		}
+
+		/**
+		 * Linear fallback for buckets where width and height don't both grow with the area.
+		 */
+		int scan(int from, int to, int viewWidth, int viewHeight, int maxWidth, int maxHeight) {
+			int smallestBigEnough = -1;
+			int largestNotBigEnough = -1;
+			for (int i = from; i < to; i++) {
+				if (widths[i] > maxWidth || heights[i] > maxHeight) {
+					continue;
+				}
+				if (widths[i] >= viewWidth && heights[i] >= viewHeight) {
+					if (smallestBigEnough < 0) {
+						smallestBigEnough = i;
+					}
+				} else if (largestNotBigEnough < 0 || areas[i] > areas[largestNotBigEnough]) {
+					largestNotBigEnough = i;
+				}
+			}
+			return smallestBigEnough >= 0 ? smallestBigEnough : largestNotBigEnough;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Decodes a display-sized review image of a saved JPEG, to be run off the UI thread.
+ *
+ * The thumbnail embedded in the EXIF block is tried first: only the head of the file is read, and
+ * decoding a few hundred pixels wide image is almost free. If it's too small for the view, or
+ * missing, the file is then decoded with the largest power of two subsampling that still covers
+ * the view. Both are upright and prepared to draw when handed over.
+ */
+public final class ReviewThumbnail {
+	private static final String TAG = ReviewThumbnail.class.getSimpleName();
+
+	/**
+	 * How much the embedded thumbnail may be scaled up before the file is decoded as well.
+	 */
+	public static final int MAX_UPSCALE = 2;
+
+	public interface Callback {
+		/**
+		 * Called on the loading thread, once or twice: with the embedded thumbnail, then with the
+		 * subsampled decode if the thumbnail wasn't {@code isFinal}.
+		 */
+		void onThumbnail(Bitmap bitmap, boolean isFinal);
+	}
+
+	private ReviewThumbnail() {}
+
+	/**
+	 * @param viewWidth  Width of the view the image is shown in, the decode covers it
+	 * @param viewHeight Height of that view
+	 * @param pool       The pool to borrow the header buffer from, or null to allocate
+	 */
+	public static void load(File file, int viewWidth, int viewHeight, BufferPool pool, Callback callback) {
+		int rotation = 0;
+		boolean done = false;
+		byte[] header = pool == null
+				? new byte[ExifThumbnail.MAX_HEADER_LENGTH] : pool.acquire(ExifThumbnail.MAX_HEADER_LENGTH);
+		try {
+			int length = readHead(file, header, ExifThumbnail.MAX_HEADER_LENGTH);
+			ExifThumbnail exif = ExifThumbnail.parse(header, length);
+			if (null != exif) {
+				rotation = exif.getRotationDegrees();
+			}
+			if (null != exif && exif.hasThumbnail()) {
+				Bitmap thumbnail = BitmapFactory.decodeByteArray(header, exif.thumbnailOffset, exif.thumbnailLength);
+				if (null != thumbnail) {
+					thumbnail = upright(thumbnail, rotation);
+					done = covers(thumbnail.getWidth() * MAX_UPSCALE, thumbnail.getHeight() * MAX_UPSCALE,
+							viewWidth, viewHeight);
+					thumbnail.prepareToDraw();
+					callback.onThumbnail(thumbnail, done);
+				}
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.toString());
+			return;
+		} finally {
+			if (pool != null) {
+				pool.release(header);
+			}
+		}
+		if (done) {
+			return;
+		}
+
+		BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inJustDecodeBounds = true;
+		BitmapFactory.decodeFile(file.getPath(), options);
+		if (options.outWidth <= 0 || options.outHeight <= 0) {
+			Log.e(TAG, "Cannot decode " + file);
+			return;
+		}
+		boolean swapped = rotation == 90 || rotation == 270;
+		options.inSampleSize = sampleSize(options.outWidth, options.outHeight,
+				swapped ? viewHeight : viewWidth, swapped ? viewWidth : viewHeight);
+		options.inJustDecodeBounds = false;
+		Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+		if (null == bitmap) {
+			Log.e(TAG, "Cannot decode " + file);
+			return;
+		}
+		bitmap = upright(bitmap, rotation);
+		bitmap.prepareToDraw();
+		callback.onThumbnail(bitmap, true);
+	}
+
+	/**
+	 * The largest power of two that keeps a {@code width x height} image at least
+	 * {@code targetWidth x targetHeight}.
+	 */
+	static int sampleSize(int width, int height, int targetWidth, int targetHeight) {
+		int sampleSize = 1;
+		if (targetWidth <= 0 || targetHeight <= 0) {
+			return sampleSize;
+		}
+		while (width / (sampleSize * 2) >= targetWidth && height / (sampleSize * 2) >= targetHeight) {
+			sampleSize *= 2;
+		}
+		return sampleSize;
+	}
+
+	private static boolean covers(int width, int height, int targetWidth, int targetHeight) {
+		return width >= targetWidth && height >= targetHeight;
+	}
+
+	private static Bitmap upright(Bitmap bitmap, int rotation) {
+		if (rotation == 0) {
+			return bitmap;
+		}
+		Matrix matrix = new Matrix();
+		matrix.postRotate(rotation);
+		Bitmap rotated = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
+		if (rotated != bitmap) {
+			bitmap.recycle();
+		}
+		return rotated;
+	}
+
+	private static int readHead(File file, byte[] buffer, int length) throws IOException {
+		FileInputStream input = new FileInputStream(file);
+		try {
+			int read = 0;
+			while (read < length) {
+				int count = input.read(buffer, read, length - read);
+				if (count < 0) {
+					break;
+				}
+				read += count;
+			}
+			return read;
+		} finally {
+			input.close();
+		}
+	}
+}
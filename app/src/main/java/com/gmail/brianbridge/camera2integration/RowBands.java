@@ -0,0 +1,97 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Splits a range of rows into bands processed in parallel on a {@link ForkJoinPool}.
+ *
+ * The tasks are created once and reused for every run, so a run doesn't allocate. Runs must not
+ * overlap, the owner is expected to serialize them.
+ */
+abstract class RowBands {
+	private final ForkJoinPool mPool;
+	private final Band[] mBands;
+	private final Root mRoot = new Root();
+	private int mBandCount;
+
+	private static ForkJoinPool sDefaultPool;
+
+	/**
+	 * @param pool The pool the bands are run on, or null to run on the calling thread only
+	 */
+	RowBands(ForkJoinPool pool) {
+		mPool = pool;
+		mBands = new Band[pool == null ? 1 : pool.getParallelism()];
+		for (int i = 0; i < mBands.length; i++) {
+			mBands[i] = new Band();
+		}
+	}
+
+	/**
+	 * @return A pool shared by the whole app, with a thread per core
+	 */
+	static synchronized ForkJoinPool defaultPool() {
+		if (sDefaultPool == null) {
+			sDefaultPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		return sDefaultPool;
+	}
+
+	/**
+	 * Calls {@link #processRows(int, int)} on bands covering rows 0 to {@code rows}.
+	 *
+	 * @param minBandRows Rows below which a band isn't worth a task
+	 * @param alignment   Every band but the last starts and ends on a multiple of it
+	 */
+	void run(int rows, int minBandRows, int alignment) {
+		int bandCount = Math.min(mBands.length, rows / Math.max(minBandRows, alignment));
+		if (mPool == null || bandCount < 2) {
+			processRows(0, rows);
+			return;
+		}
+		int bandRows = rows / bandCount / alignment * alignment;
+		for (int i = 0; i < bandCount; i++) {
+			Band band = mBands[i];
+			band.reinitialize();
+			band.startRow = i * bandRows;
+			band.endRow = i == bandCount - 1 ? rows : (i + 1) * bandRows;
+		}
+		mBandCount = bandCount;
+		mRoot.reinitialize();
+		mPool.invoke(mRoot);
+	}
+
+	/**
+	 * Processes rows {@code startRow} (inclusive) to {@code endRow} (exclusive). Called
+	 * concurrently for different bands.
+	 */
+	protected abstract void processRows(int startRow, int endRow);
+
+	private class Root extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected void compute() {
+			for (int i = 1; i < mBandCount; i++) {
+				mBands[i].fork();
+			}
+			processRows(mBands[0].startRow, mBands[0].endRow);
+			for (int i = mBandCount - 1; i > 0; i--) {
+				mBands[i].join();
+			}
+		}
+	}
+
+	private class Band extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		int startRow;
+		int endRow;
+
+		@Override
+		protected void compute() {
+			processRows(startRow, endRow);
+		}
+	}
+}
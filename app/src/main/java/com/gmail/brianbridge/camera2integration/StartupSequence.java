@@ -0,0 +1,164 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.util.Arrays;
+
+/**
+ * The steps of a cold start, each started as soon as the steps it depends on are done, so that
+ * opening the camera overlaps with waiting for the preview surface.
+ *
+ * Steps are asynchronous: {@link Backend#startStep(Step)} kicks one off, and {@link #complete(Step)}
+ * reports it done, from any thread. When every step is done, the time from {@link #start()} to the
+ * start and end of each step is recorded into per-step {@link LatencyHistogram}s and handed to the
+ * {@link Listener}.
+ */
+public class StartupSequence {
+	public static final long NOT_RECORDED = -1;
+
+	public enum Step {
+		CHOOSE_CAMERA,			// Camera characteristics, capture size and readers
+		OPEN_CAMERA,			// openCamera() until onOpened()
+		SURFACE,				// Waiting for the preview texture
+		CONFIGURE_SESSION,		// Preview size, then createCaptureSession() until onConfigured()
+		FIRST_FRAME				// Repeating request until the first preview frame
+	}
+
+	public interface Backend {
+		/**
+		 * Kicks off a step, called with the sequence locked. It may complete it right away.
+		 */
+		void startStep(Step step);
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the thread that completed the last step. The arrays are reused, copy them to
+		 * keep them after the call.
+		 *
+		 * @param startNanos Time from {@link #start()} to the start of each step, indexed by
+		 *                   {@link Step#ordinal()}
+		 * @param endNanos   Time from {@link #start()} to the end of each step
+		 */
+		void onStartupFinished(long[] startNanos, long[] endNanos);
+	}
+
+	private static final Step[] STEPS = Step.values();
+	// Bit mask of the steps each step waits for
+	private static final int[] REQUIRES = new int[STEPS.length];
+
+	static {
+		REQUIRES[Step.OPEN_CAMERA.ordinal()] = bit(Step.CHOOSE_CAMERA);
+		REQUIRES[Step.CONFIGURE_SESSION.ordinal()] = bit(Step.OPEN_CAMERA) | bit(Step.SURFACE);
+		REQUIRES[Step.FIRST_FRAME.ordinal()] = bit(Step.CONFIGURE_SESSION);
+	}
+
+	private static int bit(Step step) {
+		return 1 << step.ordinal();
+	}
+
+	private static final int ALL = (1 << STEPS.length) - 1;
+
+	private final Backend mBackend;
+	private final Clock mClock;
+	private final LatencyHistogram[] mHistograms = new LatencyHistogram[STEPS.length];
+	private volatile Listener mListener;
+
+	// Current startup
+	private boolean mRunning;
+	private long mStartedAt;
+	private int mStarted;
+	private int mDone;
+	private final long[] mStartNanos = new long[STEPS.length];
+	private final long[] mEndNanos = new long[STEPS.length];
+
+	public StartupSequence(Backend backend, Clock clock) {
+		mBackend = backend;
+		mClock = clock;
+		for (int i = 0; i < mHistograms.length; i++) {
+			mHistograms[i] = new LatencyHistogram();
+		}
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Starts a new startup, dropping whatever was left of the previous one.
+	 */
+	public synchronized void start() {
+		mRunning = true;
+		mStartedAt = mClock.nanoTime();
+		mStarted = 0;
+		mDone = 0;
+		Arrays.fill(mStartNanos, NOT_RECORDED);
+		Arrays.fill(mEndNanos, NOT_RECORDED);
+		startReadySteps();
+	}
+
+	/**
+	 * Drops the startup in progress, later completions are ignored.
+	 */
+	public synchronized void cancel() {
+		mRunning = false;
+	}
+
+	public synchronized boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * Whether {@code step} was started and isn't done yet.
+	 */
+	public synchronized boolean isPending(Step step) {
+		int bit = bit(step);
+		return mRunning && (mStarted & bit) != 0 && (mDone & bit) == 0;
+	}
+
+	/**
+	 * Reports a step done, starting the steps that were waiting for it. Ignored if the step isn't
+	 * pending.
+	 */
+	public synchronized void complete(Step step) {
+		if (!isPending(step)) {
+			return;
+		}
+		mDone |= bit(step);
+		mEndNanos[step.ordinal()] = mClock.nanoTime() - mStartedAt;
+		if (mDone != ALL) {
+			startReadySteps();
+			return;
+		}
+		mRunning = false;
+		for (int i = 0; i < STEPS.length; i++) {
+			mHistograms[i].record(mEndNanos[i]);
+		}
+		Listener listener = mListener;
+		if (listener != null) {
+			// Under the lock, so that a new startup doesn't change the arrays
+			listener.onStartupFinished(mStartNanos, mEndNanos);
+		}
+	}
+
+	private void startReadySteps() {
+		for (Step step : STEPS) {
+			int bit = bit(step);
+			if ((mStarted & bit) != 0 || (REQUIRES[step.ordinal()] & mDone) != REQUIRES[step.ordinal()]) {
+				continue;
+			}
+			mStarted |= bit;
+			mStartNanos[step.ordinal()] = mClock.nanoTime() - mStartedAt;
+			mBackend.startStep(step);
+			if (!mRunning) {
+				// Cancelled by the step
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Time from the start of a startup to the end of {@code step}.
+	 */
+	public LatencyHistogram getHistogram(Step step) {
+		return mHistograms[step.ordinal()];
+	}
+}
@@ -0,0 +1,316 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The stills triggered on the camera whose JPEG hasn't come yet, each with the
+ * {@link CaptureStorage} shot it's saved to. A JPEG is matched to its shot by the sensor timestamp
+ * of {@link #onStarted(long)}, or to the oldest shot not started yet if that's not in yet.
+ *
+ * A shot given up on while its JPEG may still come, on a timeout or a failure with the image
+ * captured, is kept until that JPEG comes and dropped then, so that it never lands in the file of
+ * the next shot. JPEGs come in capture order: the shots before a matched one won't get theirs.
+ *
+ * Tracks every shot in the {@link CaptureMetrics} once it's triggered, and records the end of its
+ * {@link CaptureMetrics.Stage#CAPTURE} and its {@link CaptureMetrics.Stage#SAVE} stage. The
+ * {@link Listener} records the stages after it.
+ *
+ * All methods are thread safe, {@link #deliver(Object)} is called on the capture thread.
+ *
+ * @param <I> The image type, {@code Image} on a device
+ */
+public class StillCapture<I> {
+	private static final long NOT_STARTED = Long.MIN_VALUE;
+
+	public interface Images<I> {
+		/**
+		 * The JPEG of {@code image}, valid until it's closed.
+		 */
+		ByteBuffer getJpeg(I image);
+
+		/**
+		 * The sensor timestamp of {@code image}, as given to {@link #onStarted(long)}.
+		 */
+		long getTimestamp(I image);
+
+		void close(I image);
+	}
+
+	/**
+	 * Saves images in another format than their JPEG, e.g. decoded, rotated and re-encoded.
+	 */
+	public interface Encoder<I> {
+		/**
+		 * Writes {@code image} to {@code file} and closes it.
+		 *
+		 * @throws IOException If it couldn't be written completely
+		 */
+		void encode(I image, File file) throws IOException;
+	}
+
+	public interface Listener {
+		/**
+		 * Called on the thread of {@link #deliver(Object)} once the shot is published.
+		 *
+		 * @param metricsShot The shot in the {@link CaptureMetrics}, to record the next stages of
+		 */
+		void onSaved(File file, long metricsShot);
+
+		/**
+		 * Called when a shot is given up on or couldn't be saved, nothing of it is published.
+		 *
+		 * @param error Why it couldn't be saved, null if it was given up on
+		 */
+		void onFailed(Exception error);
+	}
+
+	private static class Pending<I> {
+		final CaptureStorage.Shot shot;
+		final Encoder<I> encoder;
+		long timestampNs = NOT_STARTED;
+		long metricsShot = CaptureMetrics.NO_SHOT;
+		boolean failed; // Given up on, kept to drop its JPEG
+
+		Pending(CaptureStorage.Shot shot, Encoder<I> encoder) {
+			this.shot = shot;
+			this.encoder = encoder;
+		}
+	}
+
+	private final CaptureStorage mStorage;
+	private final CaptureMetrics mMetrics;
+	private final Images<I> mImages;
+	private final Listener mListener;
+	// In capture order, guarded by this
+	private final ArrayDeque<Pending<I>> mPending = new ArrayDeque<>();
+
+	public StillCapture(CaptureStorage storage, CaptureMetrics metrics, Images<I> images, Listener listener) {
+		mStorage = storage;
+		mMetrics = metrics;
+		mImages = images;
+		mListener = listener;
+	}
+
+	/**
+	 * Starts a shot, called before the still is triggered.
+	 *
+	 * @param encoder Null to write the JPEG as is
+	 */
+	public synchronized void add(CaptureStorage.Shot shot, Encoder<I> encoder) {
+		mPending.add(new Pending<>(shot, encoder));
+	}
+
+	/**
+	 * Starts tracking a shot in the {@link CaptureMetrics}, once its still is triggered.
+	 *
+	 * @return Its shot in the metrics, to record the stages before its JPEG, or
+	 * {@link CaptureMetrics#NO_SHOT} if it isn't tracked
+	 */
+	public long onTriggered(CaptureStorage.Shot shot) {
+		long metricsShot = mMetrics.startShot();
+		synchronized (this) {
+			for (Pending<I> pending : mPending) {
+				if (pending.shot == shot) {
+					pending.metricsShot = metricsShot;
+					return metricsShot;
+				}
+			}
+		}
+		// Given up on meanwhile
+		mMetrics.abortShot(metricsShot);
+		return CaptureMetrics.NO_SHOT;
+	}
+
+	/**
+	 * Takes back a shot whose still couldn't be triggered, and aborts it. The listener isn't told.
+	 */
+	public void cancel(CaptureStorage.Shot shot) {
+		synchronized (this) {
+			Iterator<Pending<I>> iterator = mPending.iterator();
+			while (iterator.hasNext()) {
+				if (iterator.next().shot == shot) {
+					iterator.remove();
+					break;
+				}
+			}
+		}
+		mStorage.abort(shot);
+	}
+
+	/**
+	 * The sensor started exposing the still of the oldest shot not started yet.
+	 *
+	 * @param sensorTimestampNs The timestamp its JPEG will have
+	 */
+	public synchronized void onStarted(long sensorTimestampNs) {
+		for (Pending<I> pending : mPending) {
+			if (pending.timestampNs == NOT_STARTED) {
+				pending.timestampNs = sensorTimestampNs;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Saves the JPEG of its shot, and closes {@code image}.
+	 */
+	public void deliver(I image) {
+		List<Pending<I>> skipped = new ArrayList<>();
+		Pending<I> pending = take(mImages.getTimestamp(image), skipped);
+		for (Pending<I> shot : skipped) {
+			giveUp(shot);
+		}
+		if (null == pending || pending.failed) {
+			// Its shot was given up on, e.g. it timed out or the camera was closed meanwhile
+			mImages.close(image);
+			return;
+		}
+		long metricsShot;
+		synchronized (this) {
+			metricsShot = pending.metricsShot;
+		}
+		mMetrics.stageFinished(metricsShot, CaptureMetrics.Stage.CAPTURE);
+		mMetrics.stageStarted(metricsShot, CaptureMetrics.Stage.SAVE);
+		File file = null;
+		Exception error = null;
+		try {
+			file = save(pending, image);
+		} catch (IOException | RuntimeException e) {
+			// Nothing of it is published, whatever failed
+			mStorage.abort(pending.shot);
+			error = e;
+		}
+		if (null == file) {
+			mMetrics.abortShot(metricsShot);
+			mListener.onFailed(error);
+		} else {
+			mMetrics.stageFinished(metricsShot, CaptureMetrics.Stage.SAVE);
+			mListener.onSaved(file, metricsShot);
+		}
+	}
+
+	/**
+	 * Gives up on the oldest shot, e.g. its still failed or timed out.
+	 *
+	 * @param imageMayCome Whether its JPEG can still come, e.g. on a timeout or when
+	 *                     {@code CaptureFailure#wasImageCaptured()}: it's dropped then
+	 * @return false if there was none
+	 */
+	public boolean fail(boolean imageMayCome) {
+		Pending<I> failed = null;
+		synchronized (this) {
+			Iterator<Pending<I>> iterator = mPending.iterator();
+			while (iterator.hasNext()) {
+				Pending<I> pending = iterator.next();
+				if (!pending.failed) {
+					failed = pending;
+					if (imageMayCome) {
+						pending.failed = true;
+					} else {
+						iterator.remove();
+					}
+					break;
+				}
+			}
+		}
+		if (null == failed) {
+			return false;
+		}
+		giveUp(failed);
+		return true;
+	}
+
+	/**
+	 * Gives up on every shot, their JPEG won't come: the camera is closed or lost.
+	 */
+	public void failAll() {
+		List<Pending<I>> failed = new ArrayList<>();
+		synchronized (this) {
+			for (Pending<I> pending : mPending) {
+				if (!pending.failed) {
+					failed.add(pending);
+				}
+			}
+			mPending.clear();
+		}
+		for (Pending<I> pending : failed) {
+			giveUp(pending);
+		}
+	}
+
+	/**
+	 * The shots waiting for their JPEG, not counting those given up on.
+	 */
+	public synchronized int getPendingCount() {
+		int count = 0;
+		for (Pending<I> pending : mPending) {
+			if (!pending.failed) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes the shot of the JPEG with {@code timestampNs}, and those before it into
+	 * {@code skipped} if they're not given up on yet.
+	 *
+	 * @return The shot, null if there's none
+	 */
+	private synchronized Pending<I> take(long timestampNs, List<Pending<I>> skipped) {
+		Pending<I> match = null;
+		for (Pending<I> pending : mPending) {
+			if (pending.timestampNs == timestampNs) {
+				match = pending;
+				break;
+			}
+		}
+		if (null != match) {
+			Pending<I> pending;
+			while ((pending = mPending.poll()) != match) {
+				if (!pending.failed) {
+					skipped.add(pending);
+				}
+			}
+			return match;
+		}
+		// Delivered before its start was reported
+		Iterator<Pending<I>> iterator = mPending.iterator();
+		while (iterator.hasNext()) {
+			Pending<I> pending = iterator.next();
+			if (pending.timestampNs == NOT_STARTED && !pending.failed) {
+				iterator.remove();
+				return pending;
+			}
+		}
+		return null;
+	}
+
+	private void giveUp(Pending<I> pending) {
+		long metricsShot;
+		synchronized (this) {
+			metricsShot = pending.metricsShot;
+		}
+		mMetrics.abortShot(metricsShot);
+		mStorage.abort(pending.shot);
+		mListener.onFailed(null);
+	}
+
+	private File save(Pending<I> pending, I image) throws IOException {
+		if (null == pending.encoder) {
+			try {
+				return mStorage.commit(pending.shot, mImages.getJpeg(image));
+			} finally {
+				mImages.close(image);
+			}
+		}
+		pending.encoder.encode(image, pending.shot.getTempFile());
+		return mStorage.commit(pending.shot);
+	}
+}
@@ -0,0 +1,201 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * Takes a shot every {@code interval}, on slots at absolute times from the start rather than a
+ * fixed delay after the previous shot, so a slow shot delays only itself and the schedule doesn't
+ * drift.
+ *
+ * A slot that comes while the previous shot is still in flight, or that the timer missed
+ * entirely, is skipped instead of queued: there is never more than one shot in flight, and shots
+ * never bunch up to catch up.
+ */
+public class TimeLapseScheduler {
+
+	/**
+	 * The shots and a timer, called with the scheduler locked.
+	 */
+	public interface Camera {
+		/**
+		 * Starts shot {@code index}, reported with {@link #onCaptureFinished()}.
+		 *
+		 * @return false if the camera can't take it now, the slot is then skipped
+		 */
+		boolean capture(int index);
+
+		/**
+		 * Asks for {@link #onTimer()} to be called in {@code delayNanos}, replacing the previous
+		 * request.
+		 */
+		void scheduleTimer(long delayNanos);
+
+		void cancelTimer();
+	}
+
+	public interface Listener {
+		/**
+		 * Called when the last shot was started, or on {@link #stop()}.
+		 */
+		void onTimeLapseFinished(int shotCount, long skippedCount);
+	}
+
+	private final Camera mCamera;
+	private final Clock mClock;
+	private volatile Listener mListener;
+	private final LatencyHistogram mLateness = new LatencyHistogram();
+	private final LatencyHistogram mIntervalError = new LatencyHistogram();
+
+	private boolean mRunning;
+	private boolean mInFlight;
+	private long mIntervalNanos;
+	private int mMaxShots; // 0 for no limit
+	private long mStartAt;
+	private long mNextSlot;
+	private long mLastShotSlot;
+	private long mLastShotAt;
+
+	// Stats, of the current or last time-lapse
+	private int mShotCount;
+	private long mSkippedCount;
+
+	public TimeLapseScheduler(Camera camera, Clock clock) {
+		mCamera = camera;
+		mClock = clock;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Takes the first shot now, and then one every {@code intervalNanos}.
+	 *
+	 * @param maxShots Shots to take before finishing, 0 to run until {@link #stop()}
+	 */
+	public synchronized void start(long intervalNanos, int maxShots) {
+		if (intervalNanos <= 0 || maxShots < 0) {
+			throw new IllegalArgumentException("Invalid time-lapse: " + intervalNanos + " ns, " + maxShots + " shots");
+		}
+		if (mRunning) {
+			mCamera.cancelTimer();
+		}
+		mRunning = true;
+		// A shot of an earlier time-lapse whose end never came, e.g. aborted with the camera
+		mInFlight = false;
+		mIntervalNanos = intervalNanos;
+		mMaxShots = maxShots;
+		mStartAt = mClock.nanoTime();
+		mNextSlot = 0;
+		mLastShotSlot = -1;
+		mShotCount = 0;
+		mSkippedCount = 0;
+		mLateness.reset();
+		mIntervalError.reset();
+		onTimer();
+	}
+
+	public void stop() {
+		synchronized (this) {
+			if (!mRunning) {
+				return;
+			}
+			mCamera.cancelTimer();
+			mRunning = false;
+		}
+		notifyFinished();
+	}
+
+	public synchronized boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * Takes the shot of the current slot, see {@link Camera#scheduleTimer(long)}.
+	 */
+	public void onTimer() {
+		synchronized (this) {
+			if (!mRunning) {
+				return;
+			}
+			long now = mClock.nanoTime();
+			long due = mStartAt + mNextSlot * mIntervalNanos;
+			if (now < due) {
+				// Early, or a stale request
+				mCamera.scheduleTimer(due - now);
+				return;
+			}
+			long slot = (now - mStartAt) / mIntervalNanos;
+			// Slots the timer didn't fire for at all
+			mSkippedCount += slot - mNextSlot;
+			mNextSlot = slot + 1;
+			if (mInFlight) {
+				mSkippedCount++;
+			} else {
+				shoot(slot, now);
+			}
+			if (mMaxShots == 0 || mShotCount < mMaxShots) {
+				mCamera.scheduleTimer(mStartAt + mNextSlot * mIntervalNanos - now);
+				return;
+			}
+			mRunning = false;
+		}
+		notifyFinished();
+	}
+
+	/**
+	 * The shot in flight is done, saved or failed.
+	 */
+	public synchronized void onCaptureFinished() {
+		mInFlight = false;
+	}
+
+	private void shoot(long slot, long now) {
+		// Set first, the shot may finish before capture() returns
+		mInFlight = true;
+		if (!mCamera.capture(mShotCount)) {
+			mInFlight = false;
+			mSkippedCount++;
+			return;
+		}
+		mShotCount++;
+		mLateness.record(now - (mStartAt + slot * mIntervalNanos));
+		if (mLastShotSlot >= 0) {
+			long expected = (slot - mLastShotSlot) * mIntervalNanos;
+			mIntervalError.record(Math.abs(now - mLastShotAt - expected));
+		}
+		mLastShotSlot = slot;
+		mLastShotAt = now;
+	}
+
+	private void notifyFinished() {
+		Listener listener = mListener;
+		if (listener != null) {
+			listener.onTimeLapseFinished(getShotCount(), getSkippedCount());
+		}
+	}
+
+	public synchronized int getShotCount() {
+		return mShotCount;
+	}
+
+	/**
+	 * Slots without a shot, because the previous one was in flight, the camera was busy or the
+	 * timer came too late.
+	 */
+	public synchronized long getSkippedCount() {
+		return mSkippedCount;
+	}
+
+	/**
+	 * From each slot to the start of its shot.
+	 */
+	public LatencyHistogram getLatenessHistogram() {
+		return mLateness;
+	}
+
+	/**
+	 * Difference between the achieved interval of consecutive shots and the scheduled one.
+	 */
+	public LatencyHistogram getIntervalErrorHistogram() {
+		return mIntervalError;
+	}
+}
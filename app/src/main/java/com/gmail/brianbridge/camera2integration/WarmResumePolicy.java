@@ -0,0 +1,240 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.content.ComponentCallbacks2;
+
+/**
+ * Decides whether a stop releases the camera, or parks it for a warm resume.
+ *
+ * On a stop, the camera, its session, readers and threads are kept with only the repeating request
+ * stopped, and are released after a grace period, on memory pressure or when the camera is taken
+ * by another app. A start within the grace period restarts the preview on the kept session instead
+ * of opening the camera again. A grace period of 0 releases on every stop.
+ *
+ * Start-to-first-frame latency is recorded separately for warm and cold resumes.
+ */
+public class WarmResumePolicy {
+	public static final long DEFAULT_GRACE_PERIOD_NS = 5000000000L;
+
+	/**
+	 * The camera operations, called with the policy locked.
+	 */
+	public interface Backend {
+		/**
+		 * Opens the camera and starts the preview from scratch.
+		 */
+		void open();
+
+		/**
+		 * Restarts the preview on the kept session.
+		 *
+		 * @return false if the session can't be reused, it's then released and opened again
+		 */
+		boolean resumePreview();
+
+		/**
+		 * Stops the preview, keeping everything needed to resume it.
+		 */
+		void pausePreview();
+
+		/**
+		 * Closes the camera and frees everything {@link #open()} set up.
+		 */
+		void release();
+
+		/**
+		 * Asks for {@link #onReleaseTimeout()} to be called in {@code delayNanos}, replacing the
+		 * previous request.
+		 */
+		void scheduleRelease(long delayNanos);
+
+		void cancelRelease();
+	}
+
+	private enum State {
+		CLOSED,			// Nothing held
+		ACTIVE,			// Started, the camera is open or being opened
+		PARKED			// Stopped, the camera is kept until the deadline
+	}
+
+	private final Backend mBackend;
+	private final Clock mClock;
+	private final LatencyHistogram mWarmResumes = new LatencyHistogram();
+	private final LatencyHistogram mColdResumes = new LatencyHistogram();
+
+	private long mGracePeriodNanos = DEFAULT_GRACE_PERIOD_NS;
+	private State mState = State.CLOSED;
+	private boolean mCameraLost;
+	private long mDeadline;
+	private long mStartedAt;
+	private boolean mWaitingFirstFrame;
+	private boolean mWarm;
+
+	// Stats
+	private long mExpiredCount;
+	private long mTrimmedCount;
+	private long mLostCount;
+
+	public WarmResumePolicy(Backend backend, Clock clock) {
+		mBackend = backend;
+		mClock = clock;
+	}
+
+	/**
+	 * @param gracePeriodNanos How long a stopped camera is kept, 0 to release it on stop. Applies
+	 *                         from the next stop.
+	 */
+	public synchronized void setGracePeriod(long gracePeriodNanos) {
+		if (gracePeriodNanos < 0) {
+			throw new IllegalArgumentException("Negative grace period: " + gracePeriodNanos);
+		}
+		mGracePeriodNanos = gracePeriodNanos;
+	}
+
+	public synchronized boolean isActive() {
+		return mState == State.ACTIVE;
+	}
+
+	public synchronized boolean isParked() {
+		return mState == State.PARKED;
+	}
+
+	public synchronized void onStart() {
+		if (mState == State.ACTIVE) {
+			return;
+		}
+		mStartedAt = mClock.nanoTime();
+		mWaitingFirstFrame = true;
+		mWarm = false;
+		if (mState == State.PARKED) {
+			mBackend.cancelRelease();
+			if (mBackend.resumePreview()) {
+				mWarm = true;
+			} else {
+				mBackend.release();
+			}
+		}
+		mState = State.ACTIVE;
+		if (!mWarm) {
+			mCameraLost = false;
+			mBackend.open();
+		}
+	}
+
+	public synchronized void onStop() {
+		if (mState != State.ACTIVE) {
+			return;
+		}
+		mWaitingFirstFrame = false;
+		if (mGracePeriodNanos == 0 || mCameraLost) {
+			releaseNow();
+			return;
+		}
+		mBackend.pausePreview();
+		mState = State.PARKED;
+		mDeadline = mClock.nanoTime() + mGracePeriodNanos;
+		mBackend.scheduleRelease(mGracePeriodNanos);
+	}
+
+	/**
+	 * Called on every preview frame, the first one after a start ends the resume.
+	 */
+	public synchronized void onPreviewFrame() {
+		if (mState != State.ACTIVE || !mWaitingFirstFrame) {
+			return;
+		}
+		mWaitingFirstFrame = false;
+		long nanos = mClock.nanoTime() - mStartedAt;
+		(mWarm ? mWarmResumes : mColdResumes).record(nanos);
+	}
+
+	/**
+	 * Checks the deadline of the parked camera, see {@link Backend#scheduleRelease(long)}.
+	 */
+	public synchronized void onReleaseTimeout() {
+		if (mState != State.PARKED) {
+			return;
+		}
+		long remaining = mDeadline - mClock.nanoTime();
+		if (remaining > 0) {
+			// A stale request from an earlier stop
+			mBackend.scheduleRelease(remaining);
+			return;
+		}
+		mExpiredCount++;
+		releaseNow();
+	}
+
+	/**
+	 * @param level One of the {@code ComponentCallbacks2.TRIM_MEMORY_*}
+	 */
+	public synchronized void onTrimMemory(int level) {
+		// UI_HIDDEN comes with every stop, it's not pressure
+		if (level == ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN
+				|| level < ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			return;
+		}
+		onLowMemory();
+	}
+
+	public synchronized void onLowMemory() {
+		if (mState == State.PARKED) {
+			mTrimmedCount++;
+			releaseNow();
+		}
+	}
+
+	/**
+	 * Called when the camera is disconnected or fails, it's released as soon as it's not shown.
+	 */
+	public synchronized void onCameraLost() {
+		mLostCount++;
+		mCameraLost = true;
+		if (mState == State.PARKED) {
+			releaseNow();
+		}
+	}
+
+	/**
+	 * Releases the camera whatever the state, when the owner is destroyed.
+	 */
+	public synchronized void release() {
+		if (mState != State.CLOSED) {
+			releaseNow();
+		}
+	}
+
+	private void releaseNow() {
+		if (mState == State.PARKED) {
+			mBackend.cancelRelease();
+		}
+		mState = State.CLOSED;
+		mWaitingFirstFrame = false;
+		mBackend.release();
+	}
+
+	/**
+	 * Start-to-first-frame latency of starts that reused a parked camera.
+	 */
+	public LatencyHistogram getWarmResumeHistogram() {
+		return mWarmResumes;
+	}
+
+	/**
+	 * Start-to-first-frame latency of starts that opened the camera.
+	 */
+	public LatencyHistogram getColdResumeHistogram() {
+		return mColdResumes;
+	}
+
+	public synchronized long getExpiredCount() {
+		return mExpiredCount;
+	}
+
+	public synchronized long getTrimmedCount() {
+		return mTrimmedCount;
+	}
+
+	public synchronized long getLostCount() {
+		return mLostCount;
+	}
+}
@@ -0,0 +1,226 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Converts YUV_420_888 frames to luma, NV21 or ARGB into buffers supplied by the caller.
+ *
+ * Frames of at least 2 * {@link #MIN_BAND_ROWS} rows are split into bands of rows converted in
+ * parallel on a {@link ForkJoinPool}. The band tasks are created once and reused, so a conversion
+ * only allocates a view of the Y plane per band. A converter runs one conversion at a time, use
+ * one per thread for more.
+ *
+ * ARGB uses the BT.601 video range matrix in 10-bit fixed point, like the framework's NV21
+ * decoders.
+ */
+public class YuvConverter {
+	public static final int MIN_BAND_ROWS = 64;
+
+	private enum Op {
+		LUMA,
+		NV21,
+		ARGB
+	}
+
+	private final RowBands mBands;
+
+	// Current conversion
+	private Op mOp;
+	private YuvPlanes mSrc;
+	private byte[] mBytes;
+	private int[] mInts;
+
+	/**
+	 * Uses a pool shared by every converter, with a thread per core.
+	 */
+	public YuvConverter() {
+		this(RowBands.defaultPool());
+	}
+
+	/**
+	 * @param pool The pool the bands are run on, or null to convert on the calling thread only
+	 */
+	public YuvConverter(ForkJoinPool pool) {
+		mBands = new RowBands(pool) {
+			@Override
+			protected void processRows(int startRow, int endRow) {
+				convertRows(startRow, endRow);
+			}
+		};
+	}
+
+	public static int lumaSize(int width, int height) {
+		return width * height;
+	}
+
+	/**
+	 * @return The size of an NV21 frame, whose VU rows are 2 * ceil(width / 2) bytes long
+	 */
+	public static int nv21Size(int width, int height) {
+		return width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2);
+	}
+
+	public static int argbSize(int width, int height) {
+		return width * height;
+	}
+
+	/**
+	 * Copies the Y plane to {@code dst}, without row padding.
+	 */
+	public synchronized void toLuma(YuvPlanes src, byte[] dst) {
+		checkSize(dst.length, lumaSize(src.width, src.height));
+		mBytes = dst;
+		convert(Op.LUMA, src);
+	}
+
+	/**
+	 * Writes the Y plane followed by the interleaved V and U samples to {@code dst}.
+	 */
+	public synchronized void toNv21(YuvPlanes src, byte[] dst) {
+		checkSize(dst.length, nv21Size(src.width, src.height));
+		mBytes = dst;
+		convert(Op.NV21, src);
+	}
+
+	/**
+	 * Writes opaque ARGB_8888 pixels to {@code dst}, row by row.
+	 */
+	public synchronized void toArgb(YuvPlanes src, int[] dst) {
+		checkSize(dst.length, argbSize(src.width, src.height));
+		mInts = dst;
+		convert(Op.ARGB, src);
+	}
+
+	private static void checkSize(int length, int required) {
+		if (length < required) {
+			throw new IllegalArgumentException("Destination has " + length + " elements, " + required + " needed.");
+		}
+	}
+
+	private void convert(Op op, YuvPlanes src) {
+		mOp = op;
+		mSrc = src;
+		try {
+			// Bands start on even rows, so that no chroma row is shared by two bands
+			mBands.run(src.height, MIN_BAND_ROWS, 2);
+		} finally {
+			// Don't keep the frame or the destination alive
+			mSrc = null;
+			mBytes = null;
+			mInts = null;
+		}
+	}
+
+	private void convertRows(int startRow, int endRow) {
+		switch (mOp) {
+			case LUMA:
+				copyLuma(mSrc, mBytes, startRow, endRow);
+				break;
+			case NV21:
+				copyLuma(mSrc, mBytes, startRow, endRow);
+				copyVu(mSrc, mBytes, startRow / 2, (endRow + 1) / 2);
+				break;
+			case ARGB:
+				convertArgb(mSrc, mInts, startRow, endRow);
+				break;
+		}
+	}
+
+	private static void copyLuma(YuvPlanes src, byte[] dst, int startRow, int endRow) {
+		int width = src.width;
+		ByteBuffer y = src.y;
+		int rowStride = src.yRowStride;
+		int pixelStride = src.yPixelStride;
+		if (pixelStride == 1) {
+			// Bulk copies, the planes of an Image are direct buffers without an array
+			ByteBuffer band = y.duplicate();
+			if (rowStride == width) {
+				band.position(startRow * rowStride);
+				band.get(dst, startRow * width, (endRow - startRow) * width);
+				return;
+			}
+			for (int row = startRow; row < endRow; row++) {
+				// Row by row, the last row may end at its last pixel rather than its stride
+				band.position(row * rowStride);
+				band.get(dst, row * width, width);
+			}
+			return;
+		}
+		for (int row = startRow; row < endRow; row++) {
+			int in = row * rowStride;
+			int out = row * width;
+			for (int x = 0; x < width; x++) {
+				dst[out + x] = y.get(in + x * pixelStride);
+			}
+		}
+	}
+
+	private static void copyVu(YuvPlanes src, byte[] dst, int startRow, int endRow) {
+		int chromaWidth = src.chromaWidth();
+		ByteBuffer u = src.u;
+		ByteBuffer v = src.v;
+		int uRowStride = src.uRowStride;
+		int uPixelStride = src.uPixelStride;
+		int vRowStride = src.vRowStride;
+		int vPixelStride = src.vPixelStride;
+		int base = src.width * src.height;
+		for (int row = startRow; row < endRow; row++) {
+			int uIn = row * uRowStride;
+			int vIn = row * vRowStride;
+			int out = base + row * 2 * chromaWidth;
+			for (int x = 0; x < chromaWidth; x++) {
+				dst[out++] = v.get(vIn + x * vPixelStride);
+				dst[out++] = u.get(uIn + x * uPixelStride);
+			}
+		}
+	}
+
+	private static void convertArgb(YuvPlanes src, int[] dst, int startRow, int endRow) {
+		int width = src.width;
+		ByteBuffer y = src.y;
+		ByteBuffer u = src.u;
+		ByteBuffer v = src.v;
+		int yRowStride = src.yRowStride;
+		int yPixelStride = src.yPixelStride;
+		int uRowStride = src.uRowStride;
+		int uPixelStride = src.uPixelStride;
+		int vRowStride = src.vRowStride;
+		int vPixelStride = src.vPixelStride;
+		for (int row = startRow; row < endRow; row++) {
+			int yIn = row * yRowStride;
+			int uIn = (row >> 1) * uRowStride;
+			int vIn = (row >> 1) * vRowStride;
+			int out = row * width;
+			int uv = 0;
+			int ruv = 0;
+			int guv = 0;
+			int buv = 0;
+			for (int x = 0; x < width; x++) {
+				if ((x & 1) == 0) {
+					int cu = (u.get(uIn + uv * uPixelStride) & 0xff) - 128;
+					int cv = (v.get(vIn + uv * vPixelStride) & 0xff) - 128;
+					ruv = 1634 * cv;
+					guv = -833 * cv - 400 * cu;
+					buv = 2066 * cu;
+					uv++;
+				}
+				int luma = (y.get(yIn + x * yPixelStride) & 0xff) - 16;
+				int yy = 1192 * Math.max(0, luma);
+				dst[out + x] = argb(yy + ruv, yy + guv, yy + buv);
+			}
+		}
+	}
+
+	/**
+	 * Packs an opaque pixel from components in 10-bit fixed point, 1024 times their 0..255 value.
+	 * Each is clamped to 0..262143, which is 0..255 once the fraction bits are dropped.
+	 */
+	static int argb(int r, int g, int b) {
+		// min/max rather than branches, they don't mispredict on noisy frames
+		r = Math.max(0, Math.min(262143, r));
+		g = Math.max(0, Math.min(262143, g));
+		b = Math.max(0, Math.min(262143, b));
+		return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+	}
+}
@@ -0,0 +1,53 @@
+package com.gmail.brianbridge.camera2integration;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The planes of a YUV_420_888 frame, with the row and pixel strides of {@code Image.Plane}.
+ *
+ * The U and V planes are subsampled by 2 in both directions, rounded up. Buffers are read with
+ * absolute gets only, so their positions don't matter and they can be shared between threads.
+ * Instances are mutable so that one can be reused for every frame.
+ */
+public class YuvPlanes {
+	public int width;
+	public int height;
+
+	public ByteBuffer y;
+	public int yRowStride;
+	public int yPixelStride;
+
+	public ByteBuffer u;
+	public int uRowStride;
+	public int uPixelStride;
+
+	public ByteBuffer v;
+	public int vRowStride;
+	public int vPixelStride;
+
+	public YuvPlanes set(int width, int height,
+						 ByteBuffer y, int yRowStride, int yPixelStride,
+						 ByteBuffer u, int uRowStride, int uPixelStride,
+						 ByteBuffer v, int vRowStride, int vPixelStride) {
+		this.width = width;
+		this.height = height;
+		this.y = y;
+		this.yRowStride = yRowStride;
+		this.yPixelStride = yPixelStride;
+		this.u = u;
+		this.uRowStride = uRowStride;
+		this.uPixelStride = uPixelStride;
+		this.v = v;
+		this.vRowStride = vRowStride;
+		this.vPixelStride = vPixelStride;
+		return this;
+	}
+
+	public int chromaWidth() {
+		return (width + 1) / 2;
+	}
+
+	public int chromaHeight() {
+		return (height + 1) / 2;
+	}
+}
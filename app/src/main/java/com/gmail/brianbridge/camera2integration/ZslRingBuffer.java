@@ -0,0 +1,238 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * A fixed-size ring of the most recent full-resolution frames for zero-shutter-lag capture,
+ * keyed by their sensor timestamp.
+ *
+ * Frames hold {@code ImageReader} slots, so the ring owns every frame it's given and closes it
+ * through the {@link Recycler} when evicted. A frame handed out by {@link #take(long)} has to be
+ * given back with {@link #recycle(Object)}. At most {@link #getMaxImages()} frames are held at any
+ * time, counting one being acquired, so the reader never runs out of slots. Once
+ * {@link #close(Runnable)}d, the reader is closed after the last frame out is given back.
+ *
+ * With a REALTIME timestamp source, sensor timestamps share the time base of the press time and
+ * are compared as is. Otherwise the offset between them is estimated as the smallest (arrival time
+ * - sensor timestamp) seen, i.e. the offset plus the shortest delivery latency.
+ *
+ * All methods are thread safe.
+ *
+ * @param <T> The frame type, {@code Image} on a device
+ */
+public class ZslRingBuffer<T> {
+
+	public interface Recycler<T> {
+		void recycle(T frame);
+	}
+
+	private final int mCapacity;
+	private final int mMaxTaken;
+	private final Recycler<T> mRecycler;
+
+	// Oldest frame at mHead, in arrival order
+	private final long[] mTimestamps;
+	private final Object[] mFrames;
+	private int mHead;
+	private int mSize;
+	private int mTaken;
+	private boolean mClosed;
+	private Runnable mOnDrained; // Set by close() while frames are out
+
+	private final boolean mSharedTimeBase;
+	private long mClockOffsetNs;
+
+	// Stats
+	private long mAdded;
+	private long mEvicted;
+	private long mTakenTotal;
+
+	/**
+	 * @param capacity The number of frames kept for selection
+	 * @param maxTaken The number of taken frames that can be out (e.g. being saved) at once
+	 */
+	public ZslRingBuffer(int capacity, int maxTaken, Recycler<T> recycler) {
+		this(capacity, maxTaken, false, recycler);
+	}
+
+	/**
+	 * @param capacity       The number of frames kept for selection
+	 * @param maxTaken       The number of taken frames that can be out (e.g. being saved) at once
+	 * @param sharedTimeBase Sensor timestamps are in the time base of the arrival and press times,
+	 *                       see {@link CameraInfo#realtimeTimestamps}
+	 */
+	public ZslRingBuffer(int capacity, int maxTaken, boolean sharedTimeBase, Recycler<T> recycler) {
+		if (capacity < 1 || maxTaken < 1) {
+			throw new IllegalArgumentException("capacity and maxTaken must be positive.");
+		}
+		mCapacity = capacity;
+		mMaxTaken = maxTaken;
+		mRecycler = recycler;
+		mSharedTimeBase = sharedTimeBase;
+		mClockOffsetNs = sharedTimeBase ? 0 : Long.MAX_VALUE;
+		mTimestamps = new long[capacity];
+		mFrames = new Object[capacity];
+	}
+
+	/**
+	 * @return The {@code maxImages} the reader feeding this ring needs
+	 */
+	public int getMaxImages() {
+		return mCapacity + mMaxTaken + 1;
+	}
+
+	/**
+	 * Adds a newly acquired frame, evicting the oldest one if the ring is full.
+	 *
+	 * @param sensorTimestampNs The sensor timestamp of the frame
+	 * @param arrivalNs         When the frame arrived, in the time base of the press time
+	 */
+	public void add(long sensorTimestampNs, long arrivalNs, T frame) {
+		T evicted = null;
+		synchronized (this) {
+			if (mClosed) {
+				// Delivered while the reader is waiting to be closed
+				evicted = frame;
+			} else {
+				if (!mSharedTimeBase) {
+					mClockOffsetNs = Math.min(mClockOffsetNs, arrivalNs - sensorTimestampNs);
+				}
+				if (mSize == mCapacity) {
+					evicted = removeAt(0);
+					mEvicted++;
+				}
+				int index = (mHead + mSize) % mCapacity;
+				mTimestamps[index] = sensorTimestampNs;
+				mFrames[index] = frame;
+				mSize++;
+				mAdded++;
+			}
+		}
+		if (evicted != null) {
+			mRecycler.recycle(evicted);
+		}
+	}
+
+	/**
+	 * Removes the frame whose sensor timestamp is the closest to {@code pressNs}, the older one on
+	 * a tie. The caller owns the frame until it's given back to {@link #recycle(Object)}.
+	 *
+	 * @param pressNs The press time, in the time base of the arrival times
+	 * @return The frame, or null if the ring is empty, closed or too many frames are already out
+	 */
+	public synchronized T take(long pressNs) {
+		if (mClosed || mSize == 0 || mTaken >= mMaxTaken) {
+			return null;
+		}
+		long target = pressNs - mClockOffsetNs;
+		int best = 0;
+		long bestDistance = Long.MAX_VALUE;
+		for (int i = 0; i < mSize; i++) {
+			long distance = Math.abs(mTimestamps[(mHead + i) % mCapacity] - target);
+			if (distance < bestDistance) {
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		T frame = removeAt(best);
+		mTaken++;
+		mTakenTotal++;
+		return frame;
+	}
+
+	/**
+	 * Closes a frame returned by {@link #take(long)}.
+	 */
+	public void recycle(T frame) {
+		Runnable onDrained = null;
+		synchronized (this) {
+			if (mTaken > 0) {
+				mTaken--;
+			}
+			if (mTaken == 0 && mOnDrained != null) {
+				onDrained = mOnDrained;
+				mOnDrained = null;
+			}
+		}
+		mRecycler.recycle(frame);
+		if (onDrained != null) {
+			onDrained.run();
+		}
+	}
+
+	/**
+	 * Closes every frame in the ring. Frames that are out are recycled by their owner.
+	 */
+	public void clear() {
+		Object[] frames;
+		int size;
+		synchronized (this) {
+			size = mSize;
+			frames = new Object[size];
+			for (int i = 0; i < size; i++) {
+				frames[i] = removeAt(0);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			@SuppressWarnings("unchecked")
+			T frame = (T) frames[i];
+			mRecycler.recycle(frame);
+		}
+	}
+
+	/**
+	 * Clears the ring for good, later frames are recycled as they're added. {@code onDrained} is
+	 * run once every frame out is given back, right away if there's none, otherwise on the thread
+	 * of the last {@link #recycle(Object)}: the reader can then be closed without pulling a frame
+	 * from under its owner.
+	 */
+	public void close(Runnable onDrained) {
+		boolean drained;
+		synchronized (this) {
+			mClosed = true;
+			drained = mTaken == 0;
+			if (!drained) {
+				mOnDrained = onDrained;
+			}
+		}
+		clear();
+		if (drained) {
+			onDrained.run();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private T removeAt(int offset) {
+		int index = (mHead + offset) % mCapacity;
+		T frame = (T) mFrames[index];
+		// Shift the older frames up by one, then drop the head
+		for (int i = offset; i > 0; i--) {
+			int to = (mHead + i) % mCapacity;
+			int from = (mHead + i - 1) % mCapacity;
+			mTimestamps[to] = mTimestamps[from];
+			mFrames[to] = mFrames[from];
+		}
+		mFrames[mHead] = null;
+		mHead = (mHead + 1) % mCapacity;
+		mSize--;
+		return frame;
+	}
+
+	public synchronized int size() {
+		return mSize;
+	}
+
+	public synchronized int getTakenCount() {
+		return mTaken;
+	}
+
+	public synchronized long getAddedCount() {
+		return mAdded;
+	}
+
+	public synchronized long getEvictedCount() {
+		return mEvicted;
+	}
+
+	public synchronized long getTakenTotal() {
+		return mTakenTotal;
+	}
+}
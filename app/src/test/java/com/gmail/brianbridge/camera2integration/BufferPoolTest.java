@@ -0,0 +1,169 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+	@Test
+	public void bucketSize_roundsToQuarterSteps() {
+		assertEquals(BufferPool.MIN_BUCKET_SIZE, BufferPool.bucketSize(0));
+		assertEquals(BufferPool.MIN_BUCKET_SIZE, BufferPool.bucketSize(4096));
+		assertEquals(5120, BufferPool.bucketSize(4097));
+		assertEquals(8192, BufferPool.bucketSize(8192));
+		assertEquals(10 * 1024 * 1024, BufferPool.bucketSize(9 * 1024 * 1024 + 1));
+		for (int length = 1; length < 1 << 24; length = length * 3 + 1) {
+			int size = BufferPool.bucketSize(length);
+			assertTrue(size >= length);
+			assertTrue(size <= Math.max(BufferPool.MIN_BUCKET_SIZE, length + length / 4 + 1));
+			assertEquals(size, BufferPool.bucketSize(size));
+		}
+	}
+
+	@Test
+	public void acquire_afterRelease_reusesBuffer() {
+		BufferPool pool = new BufferPool(16 * 1024 * 1024);
+		byte[] first = pool.acquire(5_000_000);
+		assertTrue(first.length >= 5_000_000);
+		pool.release(first);
+		assertEquals(first.length, pool.getPooledBytes());
+
+		// A slightly different JPEG size lands in the same bucket
+		byte[] second = pool.acquire(4_900_000);
+		assertSame(first, second);
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void release_foreignBuffer_ignored() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		pool.release(new byte[5000]);
+		// Even of a bucket size
+		pool.release(new byte[8192]);
+		pool.release(null);
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void release_twice_poolsOnce() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		byte[] buffer = pool.acquire(8192);
+		assertEquals(8192, pool.getBorrowedBytes());
+
+		pool.release(buffer);
+		pool.release(buffer);
+
+		assertEquals(8192, pool.getPooledBytes());
+		assertEquals(0, pool.getBorrowedBytes());
+		assertSame(buffer, pool.acquire(8192));
+		assertNotSame(buffer, pool.acquire(8192));
+	}
+
+	@Test
+	public void acquire_overCap_evictsLeastRecentlyUsedBucket() {
+		BufferPool pool = new BufferPool(10240 + 16384);
+		byte[] a = pool.acquire(8192);
+		byte[] b = pool.acquire(10240);
+		pool.release(a);
+		pool.release(b);
+		assertEquals(8192 + 10240, pool.getPooledBytes());
+
+		byte[] c = pool.acquire(16384);
+
+		assertEquals(1, pool.getEvictions());
+		assertEquals(10240 + 16384, pool.getPooledBytes() + pool.getBorrowedBytes());
+		assertSame(b, pool.acquire(10240));
+		pool.release(c);
+		assertSame(c, pool.acquire(16384));
+	}
+
+	@Test
+	public void acquire_beyondCap_overflows() {
+		BufferPool pool = new BufferPool(3 * 8192);
+		byte[] a = pool.acquire(16384);
+		byte[] b = pool.acquire(16384);
+		assertEquals(1, pool.getOverflows());
+		assertEquals(16384, pool.getBorrowedBytes());
+
+		// Not the pool's
+		pool.release(b);
+		assertEquals(0, pool.getPooledBytes());
+		pool.release(a);
+		assertEquals(16384, pool.getPooledBytes());
+	}
+
+	@Test
+	public void acquire_biggerThanCap_overflows() {
+		BufferPool pool = new BufferPool(8192);
+		pool.release(pool.acquire(16384));
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(1, pool.getOverflows());
+	}
+
+	@Test
+	public void clear_dropsIdleBuffers() {
+		BufferPool pool = new BufferPool(1024 * 1024);
+		pool.release(pool.acquire(8192));
+		pool.release(pool.acquire(20000));
+		pool.clear();
+		assertEquals(0, pool.getPooledBytes());
+		assertEquals(2, pool.getEvictions());
+	}
+
+	@Test
+	public void concurrentBorrowAndReturn_neverSharesBuffersAndStaysUnderCap() throws Exception {
+		final BufferPool pool = new BufferPool(4 * 1024 * 1024);
+		final Map<byte[], Boolean> inUse = Collections.synchronizedMap(new IdentityHashMap<byte[], Boolean>());
+		final int threads = 8;
+		final int iterations = 2000;
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> futures = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			final int seed = t;
+			futures.add(executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					start.await();
+					for (int i = 0; i < iterations; i++) {
+						int length = 100_000 + ((i * 7919 + seed * 104729) % 900_000);
+						byte[] buffer = pool.acquire(length);
+						assertTrue(buffer.length >= length);
+						assertNull("buffer handed out twice", inUse.put(buffer, Boolean.TRUE));
+						buffer[length - 1] = (byte) seed;
+						inUse.remove(buffer);
+						pool.release(buffer);
+						assertTrue(pool.getPooledBytes() <= pool.getMaxBytes());
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		for (Future<Void> future : futures) {
+			future.get();
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertEquals(threads * iterations, pool.getHits() + pool.getMisses());
+		assertTrue(pool.getHits() > 0);
+		assertEquals(0, pool.getBorrowedBytes());
+		assertTrue(pool.getPooledBytes() <= pool.getMaxBytes());
+	}
+}
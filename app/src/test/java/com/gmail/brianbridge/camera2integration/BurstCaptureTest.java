@@ -0,0 +1,136 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class BurstCaptureTest {
+
+	private static class FakeSession implements BurstCapture.Session<String> {
+		final List<List<String>> bursts = new ArrayList<>();
+		boolean fail;
+
+		@Override
+		public void captureBurst(List<String> requests) throws Exception {
+			if (fail) {
+				throw new IllegalStateException("session closed");
+			}
+			bursts.add(requests);
+		}
+	}
+
+	private static class RecordingCallback implements BurstCapture.Callback {
+		final List<BurstCapture.Result> results = new ArrayList<>();
+
+		@Override
+		public void onBurstFinished(BurstCapture.Result result) {
+			results.add(result);
+		}
+	}
+
+	private static final BurstCapture.RequestFactory<String> FACTORY = new BurstCapture.RequestFactory<String>() {
+		@Override
+		public String createRequest(int index) {
+			return "still-" + index;
+		}
+	};
+
+	@Test
+	public void start_submitsAllRequestsAsOneBurst() throws Exception {
+		FakeSession session = new FakeSession();
+		BurstCapture<String> burst = new BurstCapture<>(3, null);
+
+		List<String> requests = burst.start(FACTORY, session);
+
+		assertEquals(1, session.bursts.size());
+		assertEquals(requests, session.bursts.get(0));
+		assertEquals("still-0", requests.get(0));
+		assertEquals("still-2", requests.get(2));
+		assertFalse(burst.isFinished());
+	}
+
+	@Test
+	public void frameIndices_areHandedOutInOrderOnce() {
+		BurstCapture<String> burst = new BurstCapture<>(2, null);
+		assertEquals(0, burst.nextFrameIndex());
+		assertEquals(1, burst.nextFrameIndex());
+		assertEquals(-1, burst.nextFrameIndex());
+	}
+
+	@Test
+	public void allFramesSaved_reportsFramesPerSecond() throws Exception {
+		RecordingCallback callback = new RecordingCallback();
+		BurstCapture<String> burst = new BurstCapture<>(5, callback);
+		burst.start(FACTORY, new FakeSession());
+
+		// 5 frames, 100ms apart
+		for (int i = 0; i < 5; i++) {
+			assertTrue(callback.results.isEmpty());
+			burst.onFrameSaved(1_000_000_000L + i * 100_000_000L);
+		}
+
+		assertEquals(1, callback.results.size());
+		BurstCapture.Result result = callback.results.get(0);
+		assertEquals(5, result.saved);
+		assertEquals(0, result.dropped);
+		assertEquals(10.0, result.getFramesPerSecond(), 1e-9);
+		assertTrue(burst.isFinished());
+	}
+
+	@Test
+	public void droppedFrames_countedAndFinishOnce() throws Exception {
+		RecordingCallback callback = new RecordingCallback();
+		BurstCapture<String> burst = new BurstCapture<>(4, callback);
+		burst.start(FACTORY, new FakeSession());
+
+		burst.onFrameSaved(0L);
+		burst.onFrameDropped();
+		burst.onFrameSaved(50_000_000L);
+		burst.onFrameDropped();
+		// Late events after the burst finished are ignored
+		burst.onFrameSaved(100_000_000L);
+		burst.onFrameDropped();
+
+		assertEquals(1, callback.results.size());
+		BurstCapture.Result result = callback.results.get(0);
+		assertEquals(2, result.saved);
+		assertEquals(2, result.dropped);
+		assertEquals(20.0, result.getFramesPerSecond(), 1e-9);
+	}
+
+	@Test
+	public void sessionFailure_dropsWholeBurst() {
+		RecordingCallback callback = new RecordingCallback();
+		BurstCapture<String> burst = new BurstCapture<>(3, callback);
+		FakeSession session = new FakeSession();
+		session.fail = true;
+
+		try {
+			burst.start(FACTORY, session);
+			fail();
+		} catch (Exception expected) {
+			// expected
+		}
+
+		assertEquals(1, callback.results.size());
+		assertEquals(3, callback.results.get(0).dropped);
+		assertEquals(0, callback.results.get(0).getFramesPerSecond(), 0);
+	}
+
+	@Test
+	public void singleFrame_hasNoFramesPerSecond() throws Exception {
+		RecordingCallback callback = new RecordingCallback();
+		BurstCapture<String> burst = new BurstCapture<>(1, callback);
+		burst.start(FACTORY, new FakeSession());
+		burst.onFrameSaved(123L);
+		assertEquals(0, callback.results.get(0).getFramesPerSecond(), 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyBurst_rejected() {
+		new BurstCapture<String>(0, null);
+	}
+}
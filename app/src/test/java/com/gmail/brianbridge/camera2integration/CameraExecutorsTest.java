@@ -0,0 +1,149 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.CameraExecutors.Stage;
+import com.gmail.brianbridge.camera2integration.CameraExecutors.StageStats;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.*;
+
+public class CameraExecutorsTest {
+	private final FakeClock mClock = new FakeClock();
+	private final ManualCameraExecutors mExecutors = new ManualCameraExecutors(mClock);
+	private final List<String> mRan = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		mExecutors.start();
+	}
+
+	private Runnable task(final String name, final long runMillis) {
+		return new Runnable() {
+			@Override
+			public void run() {
+				mRan.add(name);
+				mClock.advanceMillis(runMillis);
+			}
+		};
+	}
+
+	@Test
+	public void tracksQueueDepth() {
+		mExecutors.getExecutor(Stage.SAVE).execute(task("a", 0));
+		mExecutors.getExecutor(Stage.SAVE).execute(task("b", 0));
+		mExecutors.getExecutor(Stage.SAVE).execute(task("c", 0));
+		StageStats stats = mExecutors.getStats(Stage.SAVE);
+		assertEquals(3, stats.getQueueDepth());
+
+		mExecutors.runNext(Stage.SAVE);
+		assertEquals(2, stats.getQueueDepth());
+		mExecutors.runAll();
+
+		assertEquals(0, stats.getQueueDepth());
+		assertEquals(3, stats.getMaxQueueDepth());
+		assertEquals(0, mExecutors.getStats(Stage.CAMERA).getMaxQueueDepth());
+	}
+
+	@Test
+	public void recordsWaitAndRunTimes() {
+		mExecutors.getExecutor(Stage.ANALYSIS).execute(task("first", 30));
+		mClock.advanceMillis(10);
+		mExecutors.getExecutor(Stage.ANALYSIS).execute(task("second", 5));
+		mClock.advanceMillis(20);
+		mExecutors.runAll();
+
+		StageStats stats = mExecutors.getStats(Stage.ANALYSIS);
+		assertEquals(2, stats.getWaitHistogram().getCount());
+		// The second waited 20ms, then 30ms behind the first
+		assertEquals(50000000L, stats.getWaitHistogram().getMax());
+		assertEquals(30000000L, stats.getRunHistogram().getMax());
+		assertEquals("first", mRan.get(0));
+	}
+
+	@Test
+	public void stagesAreIndependent() {
+		mExecutors.getExecutor(Stage.CAMERA).execute(task("camera", 0));
+		mExecutors.getExecutor(Stage.SAVE).execute(task("save", 0));
+
+		mExecutors.runNext(Stage.SAVE);
+
+		assertEquals(1, mRan.size());
+		assertEquals("save", mRan.get(0));
+		assertEquals(1, mExecutors.pending(Stage.CAMERA));
+	}
+
+	@Test
+	public void runInline_countsNoWait() {
+		mExecutors.runInline(Stage.CAPTURE, task("still", 12));
+
+		StageStats stats = mExecutors.getStats(Stage.CAPTURE);
+		assertEquals(1, stats.getRunHistogram().getCount());
+		assertEquals(12000000L, stats.getRunHistogram().getMax());
+		assertEquals(0, stats.getWaitHistogram().getMax());
+		assertEquals(0, stats.getMaxQueueDepth());
+	}
+
+	@Test
+	public void failingTask_isStillTimed() {
+		mExecutors.getExecutor(Stage.SAVE).execute(new Runnable() {
+			@Override
+			public void run() {
+				mClock.advanceMillis(7);
+				throw new IllegalStateException();
+			}
+		});
+		try {
+			mExecutors.runNext(Stage.SAVE);
+			fail();
+		} catch (IllegalStateException expected) {
+		}
+		assertEquals(7000000L, mExecutors.getStats(Stage.SAVE).getRunHistogram().getMax());
+		assertEquals(0, mExecutors.getStats(Stage.SAVE).getQueueDepth());
+	}
+
+	@Test
+	public void shutdown_runsQueuedThenRejects() {
+		mExecutors.getExecutor(Stage.SAVE).execute(task("queued", 0));
+		mExecutors.shutdown();
+		assertEquals(1, mRan.size());
+
+		try {
+			mExecutors.getExecutor(Stage.SAVE).execute(task("late", 0));
+			fail();
+		} catch (RejectedExecutionException expected) {
+		}
+		assertFalse(mExecutors.post(Stage.CAMERA, task("late", 0)));
+
+		assertEquals(1, mExecutors.getStats(Stage.SAVE).getRejectedCount());
+		assertEquals(1, mExecutors.getStats(Stage.CAMERA).getRejectedCount());
+		assertEquals(0, mExecutors.getStats(Stage.SAVE).getQueueDepth());
+	}
+
+	@Test
+	public void frameDispatcher_runsOnAnalysisStage() {
+		FrameDispatcher<String> dispatcher = new FrameDispatcher<>(mExecutors.getExecutor(Stage.ANALYSIS),
+				new FrameDispatcher.Recycler<String>() {
+					@Override
+					public void recycle(String frame) {}
+				}, mClock);
+		dispatcher.addAnalyzer("a", new FrameAnalyzer<String>() {
+			@Override
+			public void analyze(String frame, long timestampNs) {
+				mRan.add(frame);
+			}
+		});
+		dispatcher.offer("1", 1);
+		dispatcher.offer("2", 2);
+		assertEquals(1, mExecutors.pending(Stage.ANALYSIS));
+
+		mExecutors.runAll();
+
+		assertEquals(1, mRan.size());
+		assertEquals("2", mRan.get(0));
+	}
+}
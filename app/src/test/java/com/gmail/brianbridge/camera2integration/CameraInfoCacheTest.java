@@ -0,0 +1,122 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CameraInfoCacheTest {
+	private static final String FINGERPRINT = "google/sailfish/sailfish:7.1.2/NJH47F/4146041:user/release-keys";
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	@After
+	public void tearDown() {
+		CameraInfoCache.clearMemory();
+	}
+
+	private static List<CameraInfo> sampleCameras() {
+		return Arrays.asList(
+				new CameraInfo("0", 1, 90, true,
+						new int[]{4032, 3024, 4032, 2268, 3264, 2448, 1920, 1080, 640, 480},
+						new int[]{1920, 1080, 1440, 1080, 1280, 720, 640, 480, 320, 240},
+						new int[]{0, 0, 320, 240, 320, 180, 256, 144}, true),
+				new CameraInfo("1", 0, 270, false,
+						new int[]{3264, 2448, 2560, 1440},
+						new int[]{1920, 1080, 176, 144}),
+				new CameraInfo("2", CameraInfo.LENS_FACING_UNKNOWN, 0, false,
+						new int[0],
+						new int[0]));
+	}
+
+	@Test
+	public void writeThenRead_roundTrips() throws Exception {
+		File file = new File(mFolder.getRoot(), "camera_info.bin");
+		List<CameraInfo> cameras = sampleCameras();
+
+		CameraInfoCache.write(file, FINGERPRINT, cameras);
+
+		assertEquals(cameras, CameraInfoCache.read(file, FINGERPRINT));
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+	}
+
+	@Test
+	public void fileIsCompact() throws Exception {
+		File file = new File(mFolder.getRoot(), "camera_info.bin");
+		CameraInfoCache.write(file, FINGERPRINT, sampleCameras());
+		assertTrue(file.length() < 256);
+	}
+
+	@Test
+	public void read_otherFingerprint_returnsNull() throws Exception {
+		File file = new File(mFolder.getRoot(), "camera_info.bin");
+		CameraInfoCache.write(file, FINGERPRINT, sampleCameras());
+
+		assertNull(CameraInfoCache.read(file, FINGERPRINT + "-ota"));
+	}
+
+	@Test(expected = IOException.class)
+	public void read_truncatedFile_throws() throws Exception {
+		File file = new File(mFolder.getRoot(), "camera_info.bin");
+		CameraInfoCache.write(file, FINGERPRINT, sampleCameras());
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(raf.length() - 5);
+		raf.close();
+
+		CameraInfoCache.read(file, FINGERPRINT);
+	}
+
+	@Test(expected = IOException.class)
+	public void read_unknownFormat_throws() throws Exception {
+		File file = mFolder.newFile("camera_info.bin");
+		FileOutputStream output = new FileOutputStream(file);
+		output.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9});
+		output.close();
+
+		CameraInfoCache.read(file, FINGERPRINT);
+	}
+
+	@Test
+	public void load_missingFile_returnsNull() {
+		CameraInfoCache cache = new CameraInfoCache(new File(mFolder.getRoot(), "missing.bin"), FINGERPRINT);
+		assertNull(cache.load());
+	}
+
+	@Test
+	public void store_thenLoadFromAnotherProcess_readsFile() throws Exception {
+		File file = new File(mFolder.getRoot(), "camera_info.bin");
+		new CameraInfoCache(file, FINGERPRINT).store(sampleCameras());
+
+		// A new process starts with an empty memory cache
+		CameraInfoCache.clearMemory();
+		assertEquals(sampleCameras(), new CameraInfoCache(file, FINGERPRINT).load());
+	}
+
+	@Test
+	public void load_servesMemoryWithoutTouchingFile() throws Exception {
+		File file = new File(mFolder.getRoot(), "camera_info.bin");
+		new CameraInfoCache(file, FINGERPRINT).store(sampleCameras());
+		assertTrue(file.delete());
+
+		assertEquals(sampleCameras(), new CameraInfoCache(file, FINGERPRINT).load());
+		assertNull(new CameraInfoCache(file, "other").load());
+	}
+
+	@Test
+	public void emptyList_roundTrips() throws Exception {
+		File file = new File(mFolder.getRoot(), "camera_info.bin");
+		CameraInfoCache.write(file, FINGERPRINT, Collections.<CameraInfo>emptyList());
+		assertEquals(0, CameraInfoCache.read(file, FINGERPRINT).size());
+	}
+}
@@ -0,0 +1,285 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.CameraLifecycle.State;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.gmail.brianbridge.camera2integration.CameraLifecycle.State.*;
+import static org.junit.Assert.*;
+
+public class CameraLifecycleTest {
+
+	private static class FakeDevice implements CameraLifecycle.Device {
+		int opens;
+		int closes;
+
+		@Override
+		public void open() {
+			opens++;
+		}
+
+		@Override
+		public void close() {
+			closes++;
+		}
+	}
+
+	private final FakeDevice mDevice = new FakeDevice();
+	private final List<State> mStates = new ArrayList<>();
+	private CameraLifecycle mLifecycle;
+
+	@Before
+	public void setUp() {
+		mLifecycle = new CameraLifecycle(mDevice);
+		mLifecycle.setListener(new CameraLifecycle.Listener() {
+			@Override
+			public void onStateChanged(State state) {
+				mStates.add(state);
+			}
+		});
+	}
+
+	@Test
+	public void openThenClose() {
+		mLifecycle.requestOpen();
+		assertEquals(OPENING, mLifecycle.getState());
+		assertEquals(1, mDevice.opens);
+		mLifecycle.onOpened();
+		assertEquals(OPEN, mLifecycle.getState());
+
+		mLifecycle.requestClose();
+		assertEquals(CLOSING, mLifecycle.getState());
+		assertEquals(1, mDevice.closes);
+		mLifecycle.onClosed();
+
+		assertEquals(CLOSED, mLifecycle.getState());
+		assertEquals(4, mStates.size());
+		assertEquals(CLOSED, mStates.get(3));
+	}
+
+	@Test
+	public void closeAndReopenWhileOpening_areCoalesced() {
+		mLifecycle.requestOpen();
+		mLifecycle.requestClose();
+		mLifecycle.requestOpen();
+		mLifecycle.requestOpen();
+		mLifecycle.onOpened();
+
+		assertEquals(OPEN, mLifecycle.getState());
+		assertEquals(1, mDevice.opens);
+		assertEquals(0, mDevice.closes);
+		assertEquals(1, mLifecycle.getRedundantCount());
+	}
+
+	@Test
+	public void closeWhileOpening_closesOnceOpened() {
+		mLifecycle.requestOpen();
+		mLifecycle.requestClose();
+		assertEquals(OPENING, mLifecycle.getState());
+		assertEquals(0, mDevice.closes);
+
+		mLifecycle.onOpened();
+		assertEquals(CLOSING, mLifecycle.getState());
+		assertEquals(1, mDevice.closes);
+		mLifecycle.onClosed();
+		assertEquals(CLOSED, mLifecycle.getState());
+	}
+
+	@Test
+	public void openWhileClosing_reopensOnceClosed() {
+		mLifecycle.requestOpen();
+		mLifecycle.onOpened();
+		mLifecycle.requestClose();
+		mLifecycle.requestOpen();
+		assertEquals(1, mDevice.opens);
+
+		mLifecycle.onClosed();
+
+		assertEquals(OPENING, mLifecycle.getState());
+		assertEquals(2, mDevice.opens);
+		assertFalse(mStates.contains(CLOSED));
+	}
+
+	@Test
+	public void switchWhileOpening_closesOnceOpenedThenReopens() {
+		mLifecycle.requestOpen();
+		// The switch closes the camera being opened and asks for the next one
+		mLifecycle.requestClose();
+		mLifecycle.requestReopen();
+		assertEquals(OPENING, mLifecycle.getState());
+		assertEquals(1, mDevice.opens);
+
+		mLifecycle.onOpened();
+		assertEquals(CLOSING, mLifecycle.getState());
+		assertEquals(1, mDevice.closes);
+		mLifecycle.onClosed();
+		assertEquals(OPENING, mLifecycle.getState());
+		assertEquals(2, mDevice.opens);
+
+		// Not stale anymore
+		mLifecycle.onOpened();
+		assertEquals(OPEN, mLifecycle.getState());
+		assertEquals(1, mDevice.closes);
+	}
+
+	@Test
+	public void reopen_fromStableStates() {
+		mLifecycle.requestReopen();
+		assertEquals(OPENING, mLifecycle.getState());
+		mLifecycle.onOpened();
+
+		mLifecycle.requestReopen();
+		assertEquals(CLOSING, mLifecycle.getState());
+		mLifecycle.onClosed();
+
+		assertEquals(OPENING, mLifecycle.getState());
+		assertEquals(2, mDevice.opens);
+		assertEquals(1, mDevice.closes);
+	}
+
+	@Test
+	public void errorOfStaleOpen_stillOpensTheWantedDevice() {
+		mLifecycle.requestOpen();
+		mLifecycle.requestReopen();
+
+		mLifecycle.onError();
+		assertTrue(mLifecycle.isOpenWanted());
+		mLifecycle.onClosed();
+
+		assertEquals(OPENING, mLifecycle.getState());
+		assertEquals(2, mDevice.opens);
+	}
+
+	@Test
+	public void error_closesAndStaysClosed() {
+		mLifecycle.requestOpen();
+		mLifecycle.onError();
+		assertEquals(CLOSING, mLifecycle.getState());
+		assertEquals(1, mDevice.closes);
+		assertFalse(mLifecycle.isOpenWanted());
+
+		mLifecycle.onClosed();
+		assertEquals(CLOSED, mLifecycle.getState());
+		assertEquals(1, mDevice.opens);
+		assertEquals(1, mLifecycle.getErrorCount());
+
+		mLifecycle.requestOpen();
+		assertEquals(2, mDevice.opens);
+	}
+
+	@Test
+	public void staleCallbacks_areIgnored() {
+		mLifecycle.onOpened();
+		mLifecycle.onClosed();
+		mLifecycle.onError();
+		assertEquals(CLOSED, mLifecycle.getState());
+
+		mLifecycle.requestOpen();
+		mLifecycle.onClosed();
+		assertEquals(OPENING, mLifecycle.getState());
+		assertTrue(mStates.size() == 1);
+	}
+
+	/**
+	 * Intents from many threads, with the device completing on its own thread like the camera
+	 * thread: there's never more than one open or close in flight, and the last intent wins.
+	 */
+	@Test
+	public void concurrentIntents_keepOneOperationInFlight() throws Exception {
+		final ExecutorService cameraThread = Executors.newSingleThreadExecutor();
+		final AtomicInteger pending = new AtomicInteger();
+		final AtomicBoolean inFlight = new AtomicBoolean();
+		final AtomicInteger live = new AtomicInteger();
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		final CameraLifecycle[] lifecycle = new CameraLifecycle[1];
+		lifecycle[0] = new CameraLifecycle(new CameraLifecycle.Device() {
+			@Override
+			public void open() {
+				if (!inFlight.compareAndSet(false, true) || live.getAndIncrement() != 0) {
+					failures.add("open while busy");
+				}
+				complete(true);
+			}
+
+			@Override
+			public void close() {
+				if (!inFlight.compareAndSet(false, true) || live.decrementAndGet() != 0) {
+					failures.add("close while busy");
+				}
+				complete(false);
+			}
+
+			private void complete(final boolean opened) {
+				pending.incrementAndGet();
+				cameraThread.execute(new Runnable() {
+					@Override
+					public void run() {
+						inFlight.set(false);
+						if (opened) {
+							lifecycle[0].onOpened();
+						} else {
+							lifecycle[0].onClosed();
+						}
+						pending.decrementAndGet();
+					}
+				});
+			}
+		});
+
+		int threadCount = 8;
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < threadCount; t++) {
+			final Random random = new Random(t);
+			Thread thread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < 20000; i++) {
+						if (random.nextBoolean()) {
+							lifecycle[0].requestOpen();
+						} else {
+							lifecycle[0].requestClose();
+						}
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		lifecycle[0].requestClose();
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (pending.get() > 0 && System.nanoTime() < deadline) {
+			Thread.sleep(1);
+		}
+		cameraThread.shutdown();
+		assertTrue(cameraThread.awaitTermination(10, TimeUnit.SECONDS));
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(CLOSED, lifecycle[0].getState());
+		assertEquals(0, live.get());
+		assertEquals(lifecycle[0].getOpenCount(), lifecycle[0].getCloseCount());
+		assertTrue(lifecycle[0].getOpenCount() > 0);
+	}
+}
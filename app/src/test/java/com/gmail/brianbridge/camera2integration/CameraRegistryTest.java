@@ -0,0 +1,88 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CameraRegistryTest {
+	static final int FACING_FRONT = 0;
+	static final int FACING_BACK = 1;
+
+	/**
+	 * Stands in for the camera service, counting the queries.
+	 */
+	static class FakeCameraManager implements CameraRegistry.Source {
+		List<CameraInfo> cameras = Arrays.asList(
+				new CameraInfo("0", FACING_BACK, 90, true,
+						new int[]{4032, 3024, 3840, 2160, 1600, 1200, 640, 480},
+						new int[]{1920, 1080, 1440, 1080, 640, 480},
+						new int[]{0, 0, 320, 240, 512, 288}),
+				new CameraInfo("1", FACING_FRONT, 270, false,
+						new int[]{3264, 2448, 1280, 960},
+						new int[]{1280, 720, 960, 720}),
+				// A depth camera, without JPEG output
+				new CameraInfo("2", FACING_BACK, 90, false,
+						new int[0],
+						new int[]{640, 480}));
+		int queries;
+		boolean unavailable;
+
+		@Override
+		public List<CameraInfo> queryCameras() {
+			queries++;
+			return unavailable ? null : cameras;
+		}
+	}
+
+	private final FakeCameraManager mManager = new FakeCameraManager();
+	private final CameraRegistry mRegistry = new CameraRegistry(mManager, 4, 3, ResolutionPlanner.DEFAULT_MIN_CAPTURE_AREA);
+
+	@Test
+	public void load_indexesUsableCamerasOnce() {
+		assertTrue(mRegistry.load());
+		assertTrue(mRegistry.load());
+
+		assertEquals(1, mManager.queries);
+		assertEquals(2, mRegistry.getCameras().size());
+		assertNull(mRegistry.get("2"));
+	}
+
+	@Test
+	public void entries_havePrecomputedSizes() {
+		mRegistry.load();
+
+		CameraRegistry.Entry back = mRegistry.find(FACING_BACK);
+		assertEquals("0", back.info.cameraId);
+		assertEquals(ResolutionPlanner.pack(1600, 1200), back.captureSize);
+		assertEquals(ResolutionPlanner.pack(320, 240), back.thumbnailSize);
+		assertSame(back.planner, mRegistry.get("0").planner);
+
+		CameraRegistry.Entry front = mRegistry.find(FACING_FRONT);
+		assertEquals(ResolutionPlanner.pack(1280, 960), front.captureSize);
+		assertEquals(ResolutionPlanner.NO_SIZE, front.thumbnailSize);
+	}
+
+	@Test
+	public void unavailableSource_isQueriedAgain() {
+		mManager.unavailable = true;
+		assertFalse(mRegistry.load());
+		assertTrue(mRegistry.getCameras().isEmpty());
+		assertNull(mRegistry.find(FACING_BACK));
+
+		mManager.unavailable = false;
+		assertTrue(mRegistry.load());
+		assertEquals(2, mManager.queries);
+		assertEquals(2, mRegistry.getQueryCount());
+	}
+
+	@Test
+	public void invalidate_queriesAgain() {
+		mRegistry.load();
+		mRegistry.invalidate();
+		mRegistry.load();
+		assertEquals(2, mManager.queries);
+	}
+}
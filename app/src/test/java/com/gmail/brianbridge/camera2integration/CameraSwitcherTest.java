@@ -0,0 +1,139 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CameraSwitcherTest {
+	private static final int FACING_FRONT = CameraRegistryTest.FACING_FRONT;
+	private static final int FACING_BACK = CameraRegistryTest.FACING_BACK;
+	private static final int FACING_EXTERNAL = 2;
+
+	/**
+	 * Records the camera operations in order, each taking 5ms.
+	 */
+	private class FakeBackend implements CameraSwitcher.Backend {
+		final List<String> calls = new ArrayList<>();
+		boolean prepareFails;
+
+		@Override
+		public void closeCamera() {
+			calls.add("close");
+			mClock.advanceMillis(5);
+		}
+
+		@Override
+		public boolean prepare(CameraRegistry.Entry camera) {
+			calls.add("prepare " + camera.info.cameraId);
+			mClock.advanceMillis(5);
+			return !prepareFails;
+		}
+
+		@Override
+		public void openCamera(CameraRegistry.Entry camera) {
+			calls.add("open " + camera.info.cameraId);
+			mClock.advanceMillis(5);
+		}
+	}
+
+	private final FakeClock mClock = new FakeClock();
+	private final FakeBackend mBackend = new FakeBackend();
+	private final CameraRegistryTest.FakeCameraManager mManager = new CameraRegistryTest.FakeCameraManager();
+	private final CameraRegistry mRegistry = new CameraRegistry(mManager, 4, 3, ResolutionPlanner.DEFAULT_MIN_CAPTURE_AREA);
+	private final CameraSwitcher mSwitcher = new CameraSwitcher(mRegistry, mBackend, mClock);
+
+	@Before
+	public void setUp() {
+		mRegistry.load();
+		mSwitcher.setCurrent(mRegistry.find(FACING_BACK));
+	}
+
+	@Test
+	public void switch_preparesWhileClosing_thenOpens() {
+		assertTrue(mSwitcher.switchTo(FACING_FRONT));
+
+		assertEquals("[close, prepare 1, open 1]", mBackend.calls.toString());
+		assertSame(mRegistry.find(FACING_FRONT), mSwitcher.getCurrent());
+		assertTrue(mSwitcher.isSwitching());
+		assertEquals(1, mManager.queries);
+	}
+
+	@Test
+	public void firstFrame_endsTheSwitch() {
+		mSwitcher.switchTo(FACING_FRONT);
+		mClock.advanceMillis(100);
+		mSwitcher.onFirstFrame();
+		mSwitcher.onFirstFrame();
+
+		assertFalse(mSwitcher.isSwitching());
+		assertEquals(1, mSwitcher.getSwitchCount());
+		assertEquals(1, mSwitcher.getSwitchHistogram().getCount());
+		assertEquals(115000000L, mSwitcher.getSwitchHistogram().getMax(), 115000000L / 50);
+		assertEquals(10000000L, mSwitcher.getPrepareHistogram().getMax(), 10000000L / 50);
+	}
+
+	@Test
+	public void switchToCurrent_doesNothing() {
+		assertTrue(mSwitcher.switchTo(FACING_BACK));
+		assertTrue(mBackend.calls.isEmpty());
+		assertFalse(mSwitcher.isSwitching());
+	}
+
+	@Test
+	public void registryNotLoaded_failsWithoutQueryingIt() {
+		mRegistry.invalidate();
+		long queries = mRegistry.getQueryCount();
+
+		assertFalse(mSwitcher.switchTo(FACING_FRONT));
+		assertEquals(queries, mRegistry.getQueryCount());
+		assertTrue(mBackend.calls.isEmpty());
+		assertNotNull(mSwitcher.getCurrent());
+	}
+
+	@Test
+	public void missingCamera_keepsTheCurrentOne() {
+		assertFalse(mSwitcher.switchTo(FACING_EXTERNAL));
+		assertTrue(mBackend.calls.isEmpty());
+		assertNotNull(mSwitcher.getCurrent());
+	}
+
+	@Test
+	public void failedPrepare_isCounted() {
+		mBackend.prepareFails = true;
+		assertFalse(mSwitcher.switchTo(FACING_FRONT));
+
+		assertEquals("[close, prepare 1]", mBackend.calls.toString());
+		assertNull(mSwitcher.getCurrent());
+		assertFalse(mSwitcher.isSwitching());
+		assertEquals(1, mSwitcher.getFailedCount());
+	}
+
+	@Test
+	public void switchBeforeFirstFrame_supersedesIt() {
+		mSwitcher.switchTo(FACING_FRONT);
+		mSwitcher.switchTo(FACING_BACK);
+		mSwitcher.onFirstFrame();
+
+		assertEquals(1, mSwitcher.getSupersededCount());
+		assertEquals(1, mSwitcher.getSwitchCount());
+		assertSame(mRegistry.find(FACING_BACK), mSwitcher.getCurrent());
+	}
+
+	@Test
+	public void lostCamera_failsTheSwitch() {
+		mSwitcher.switchTo(FACING_FRONT);
+		mSwitcher.onSwitchFailed();
+		mSwitcher.onFirstFrame();
+
+		assertEquals(1, mSwitcher.getFailedCount());
+		assertEquals(0, mSwitcher.getSwitchCount());
+
+		// Only a switch in progress can fail
+		mSwitcher.onSwitchFailed();
+		assertEquals(1, mSwitcher.getFailedCount());
+	}
+}
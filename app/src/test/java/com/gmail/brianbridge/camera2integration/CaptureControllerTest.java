@@ -0,0 +1,289 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.CaptureController.State;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.gmail.brianbridge.camera2integration.CaptureController.*;
+import static com.gmail.brianbridge.camera2integration.CaptureController.State.*;
+import static org.junit.Assert.*;
+
+public class CaptureControllerTest {
+
+	private class FakeCamera implements CaptureController.Camera {
+		final List<String> calls = new ArrayList<>();
+		long timeoutDelay = -1;
+		long timeoutAt = -1;
+
+		@Override
+		public void lockFocus() {
+			calls.add("lockFocus");
+		}
+
+		@Override
+		public void runPrecaptureSequence() {
+			calls.add("precapture");
+		}
+
+		@Override
+		public void captureStillPicture() {
+			calls.add("capture");
+		}
+
+		@Override
+		public void unlockFocus() {
+			calls.add("unlockFocus");
+		}
+
+		@Override
+		public void scheduleTimeout(long delayNanos) {
+			timeoutDelay = delayNanos;
+			timeoutAt = mClock.nanoTime() + delayNanos;
+		}
+
+		int count(String call) {
+			int count = 0;
+			for (String c : calls) {
+				if (c.equals(call)) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	private static class Transition {
+		final State previous;
+		final State state;
+		final long nanos;
+		final boolean timedOut;
+
+		Transition(State previous, State state, long nanos, boolean timedOut) {
+			this.previous = previous;
+			this.state = state;
+			this.nanos = nanos;
+			this.timedOut = timedOut;
+		}
+	}
+
+	private final FakeClock mClock = new FakeClock();
+	private final FakeCamera mCamera = new FakeCamera();
+	private final List<Transition> mTransitions = new ArrayList<>();
+	private CaptureController mController;
+
+	@Before
+	public void setUp() {
+		mController = new CaptureController(mCamera, new CaptureController.Listener() {
+			@Override
+			public void onStateChanged(State previous, State state, long nanosInPrevious, boolean timedOut) {
+				mTransitions.add(new Transition(previous, state, nanosInPrevious, timedOut));
+			}
+		}, mClock);
+	}
+
+	private void result(Integer afState, Integer aeState) {
+		mClock.advanceMillis(33);
+		mController.onResult(afState, aeState, false);
+	}
+
+	private void partial(Integer afState, Integer aeState) {
+		mClock.advanceMillis(10);
+		mController.onResult(afState, aeState, true);
+	}
+
+	/**
+	 * Fires the scheduled timeout once the clock reaches it, like a delayed handler message.
+	 */
+	private void waitForTimeout() {
+		mClock.advanceNanos(mCamera.timeoutAt - mClock.nanoTime());
+		mController.onTimeout();
+	}
+
+	@Test
+	public void focusedAndConverged_capturesOnce() {
+		assertTrue(mController.trigger());
+		assertEquals(STATE_WAITING_LOCK, mController.getState());
+
+		result(AF_SCANNING, AE_CONVERGED);
+		result(AF_LOCKED, AE_CONVERGED);
+		result(AF_LOCKED, AE_CONVERGED);
+		partial(AF_LOCKED, AE_CONVERGED);
+
+		assertEquals(1, mCamera.count("capture"));
+		assertEquals(STATE_PICTURE_TAKEN, mController.getState());
+
+		mController.onCaptureFinished();
+		mController.onCaptureFinished();
+
+		assertEquals(STATE_PREVIEW, mController.getState());
+		assertEquals(1, mCamera.count("unlockFocus"));
+		assertEquals("lockFocus", mCamera.calls.get(0));
+	}
+
+	@Test
+	public void notConverged_runsPrecaptureSequence() {
+		mController.trigger();
+
+		result(AF_LOCKED, AE_SEARCHING);
+		assertEquals(STATE_WAITING_PRECAPTURE, mController.getState());
+		result(AF_LOCKED, AE_SEARCHING);
+		result(AF_LOCKED, AE_PRECAPTURE);
+		assertEquals(STATE_WAITING_NON_PRECAPTURE, mController.getState());
+		result(AF_LOCKED, AE_PRECAPTURE);
+		assertEquals(0, mCamera.count("capture"));
+		result(AF_LOCKED, AE_CONVERGED);
+
+		assertEquals(1, mCamera.count("precapture"));
+		assertEquals(1, mCamera.count("capture"));
+		assertEquals(STATE_PICTURE_TAKEN, mController.getState());
+	}
+
+	@Test
+	public void flashRequired_leavesPrecaptureWait() {
+		mController.trigger();
+		result(AF_LOCKED, AE_FLASH_REQUIRED);
+		result(AF_LOCKED, AE_FLASH_REQUIRED);
+		assertEquals(STATE_WAITING_NON_PRECAPTURE, mController.getState());
+	}
+
+	@Test
+	public void partialWithoutStates_isIgnored_butTotalWithoutAfCaptures() {
+		mController.trigger();
+
+		partial(null, null);
+		partial(AF_LOCKED, null);
+		assertEquals(STATE_WAITING_LOCK, mController.getState());
+		assertEquals(0, mCamera.count("capture"));
+
+		// A fixed-focus camera doesn't report AF at all
+		result(null, null);
+		assertEquals(1, mCamera.count("capture"));
+	}
+
+	@Test
+	public void focusNeverLocks_capturesOnDeadline() {
+		mController.trigger();
+		for (int i = 0; i < 10; i++) {
+			result(AF_SCANNING, AE_CONVERGED);
+		}
+		assertEquals(0, mCamera.count("capture"));
+
+		waitForTimeout();
+
+		assertEquals(1, mCamera.count("capture"));
+		assertEquals(1, mController.getTimeoutCount(STATE_WAITING_LOCK));
+		Transition transition = mTransitions.get(mTransitions.size() - 1);
+		assertEquals(STATE_WAITING_LOCK, transition.previous);
+		assertTrue(transition.timedOut);
+		assertEquals(CaptureController.DEFAULT_LOCK_TIMEOUT_NS, transition.nanos);
+
+		// A late lock changes nothing
+		result(AF_LOCKED, AE_CONVERGED);
+		assertEquals(1, mCamera.count("capture"));
+	}
+
+	@Test
+	public void precaptureNeverEnds_capturesOnDeadline() {
+		mController.setTimeout(STATE_WAITING_NON_PRECAPTURE, 200000000L);
+		mController.trigger();
+		result(AF_LOCKED, AE_SEARCHING);
+		result(AF_LOCKED, AE_PRECAPTURE);
+		for (int i = 0; i < 3; i++) {
+			result(AF_LOCKED, AE_PRECAPTURE);
+		}
+
+		assertEquals(200000000L, mCamera.timeoutDelay);
+		waitForTimeout();
+
+		assertEquals(1, mCamera.count("capture"));
+		assertEquals(1, mController.getTimeoutCount(STATE_WAITING_NON_PRECAPTURE));
+	}
+
+	@Test
+	public void staleTimeout_isRescheduled() {
+		mController.trigger();
+		mClock.advanceMillis(500);
+		result(AF_LOCKED, AE_SEARCHING);
+
+		// The lock timeout fires after the controller moved on
+		mClock.advanceMillis(100);
+		mController.onTimeout();
+
+		assertEquals(STATE_WAITING_PRECAPTURE, mController.getState());
+		assertEquals(0, mCamera.count("capture"));
+		assertEquals(CaptureController.DEFAULT_PRECAPTURE_TIMEOUT_NS - 100000000L, mCamera.timeoutDelay);
+	}
+
+	@Test
+	public void stillNeverCompletes_returnsToPreview() {
+		mController.trigger();
+		result(AF_LOCKED, AE_CONVERGED);
+
+		waitForTimeout();
+
+		assertEquals(STATE_PREVIEW, mController.getState());
+		assertEquals(1, mCamera.count("unlockFocus"));
+		assertEquals(1, mController.getTimeoutCount(STATE_PICTURE_TAKEN));
+
+		// The still shows up after all
+		mController.onCaptureFinished();
+		assertEquals(1, mCamera.count("unlockFocus"));
+		assertTrue(mController.trigger());
+	}
+
+	@Test
+	public void trigger_whileBusy_isRejected() {
+		assertTrue(mController.trigger());
+		assertFalse(mController.trigger());
+		assertEquals(1, mCamera.count("lockFocus"));
+		assertEquals(1, mController.getTriggerCount());
+	}
+
+	@Test
+	public void reset_dropsShotWithoutCameraCalls() {
+		mController.trigger();
+		result(AF_LOCKED, AE_SEARCHING);
+
+		mController.reset();
+		waitForTimeout();
+
+		assertEquals(STATE_PREVIEW, mController.getState());
+		assertEquals(2, mCamera.calls.size());
+		assertTrue(mController.trigger());
+	}
+
+	@Test
+	public void timeoutInPreview_isIgnored() {
+		mController.onTimeout();
+		assertTrue(mCamera.calls.isEmpty());
+	}
+
+	@Test
+	public void reportsTimeInEachState() {
+		mController.trigger();
+		mClock.advanceMillis(100);
+		result(AF_LOCKED, AE_SEARCHING);
+		mClock.advanceMillis(200);
+		result(AF_LOCKED, AE_PRECAPTURE);
+		mClock.advanceMillis(300);
+		result(AF_LOCKED, AE_CONVERGED);
+		mClock.advanceMillis(400);
+		mController.onCaptureFinished();
+
+		assertEquals(5, mTransitions.size());
+		assertEquals(STATE_WAITING_LOCK, mTransitions.get(1).previous);
+		assertEquals(133000000L, mTransitions.get(1).nanos);
+		assertEquals(233000000L, mTransitions.get(2).nanos);
+		assertEquals(333000000L, mTransitions.get(3).nanos);
+		assertEquals(STATE_PICTURE_TAKEN, mTransitions.get(4).previous);
+		assertEquals(400000000L, mTransitions.get(4).nanos);
+		for (Transition transition : mTransitions) {
+			assertFalse(transition.timedOut);
+		}
+		assertEquals(1, mController.getCaptureCount());
+	}
+}
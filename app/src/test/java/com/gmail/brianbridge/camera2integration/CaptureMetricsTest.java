@@ -0,0 +1,219 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.CaptureController.State;
+import com.gmail.brianbridge.camera2integration.CaptureMetrics.Stage;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CaptureMetricsTest {
+	private static final long MS = 1000000L;
+
+	private FakeClock mClock;
+	private CaptureMetrics mMetrics;
+	private long mShot;
+	private final List<long[]> mStages = new ArrayList<>();
+	private final List<long[]> mStates = new ArrayList<>();
+
+	@Before
+	public void setUp() {
+		mClock = new FakeClock();
+		mMetrics = new CaptureMetrics(mClock);
+		mMetrics.setListener(new CaptureMetrics.Listener() {
+			@Override
+			public void onShotCompleted(long[] stageNanos, long[] stateNanos) {
+				mStages.add(Arrays.copyOf(stageNanos, stageNanos.length));
+				mStates.add(Arrays.copyOf(stateNanos, stateNanos.length));
+			}
+		});
+	}
+
+	/**
+	 * The sequence of Camera2BaseFragment for a shot that needs a precapture.
+	 */
+	private void shootWithPrecapture() {
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		mClock.advanceMillis(500);
+		mMetrics.onStateChanged(State.STATE_WAITING_LOCK);
+		// Once the still is triggered
+		mShot = mMetrics.startShot();
+		mClock.advanceMillis(120);
+		mMetrics.onStateChanged(State.STATE_WAITING_PRECAPTURE);
+		mClock.advanceMillis(30);
+		mMetrics.onStateChanged(State.STATE_WAITING_NON_PRECAPTURE);
+		mClock.advanceMillis(200);
+		mMetrics.onStateChanged(State.STATE_PICTURE_TAKEN);
+		mMetrics.stageStarted(mShot, Stage.CAPTURE);
+		mClock.advanceMillis(80);
+		mMetrics.stageStarted(mShot, Stage.GALLERY);
+		mClock.advanceMillis(1);
+		mMetrics.stageFinished(mShot, Stage.GALLERY);
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		mClock.advanceMillis(300);
+		mMetrics.stageFinished(mShot, Stage.CAPTURE);
+		mMetrics.stageStarted(mShot, Stage.SAVE);
+		mClock.advanceMillis(40);
+		mMetrics.stageFinished(mShot, Stage.SAVE);
+	}
+
+	@Test
+	public void shot_recordsStagesAndStates() {
+		shootWithPrecapture();
+
+		assertEquals(1, mStages.size());
+		long[] stages = mStages.get(0);
+		assertEquals(381 * MS, stages[Stage.CAPTURE.ordinal()]);
+		assertEquals(40 * MS, stages[Stage.SAVE.ordinal()]);
+		assertEquals(1 * MS, stages[Stage.GALLERY.ordinal()]);
+		assertEquals(771 * MS, stages[Stage.SHUTTER_TO_DISK.ordinal()]);
+
+		long[] states = mStates.get(0);
+		assertEquals(120 * MS, states[State.STATE_WAITING_LOCK.ordinal()]);
+		assertEquals(30 * MS, states[State.STATE_WAITING_PRECAPTURE.ordinal()]);
+		assertEquals(200 * MS, states[State.STATE_WAITING_NON_PRECAPTURE.ordinal()]);
+		assertEquals(81 * MS, states[State.STATE_PICTURE_TAKEN.ordinal()]);
+		// Idle preview is not part of the shot
+		assertEquals(CaptureMetrics.NOT_RECORDED, states[State.STATE_PREVIEW.ordinal()]);
+	}
+
+	@Test
+	public void shots_accumulateIntoHistograms() {
+		for (int i = 0; i < 10; i++) {
+			shootWithPrecapture();
+		}
+		assertEquals(10, mStages.size());
+		LatencyHistogram.Snapshot save = mMetrics.snapshot(Stage.SAVE);
+		assertEquals(10, save.count);
+		assertEquals(40 * MS, save.max);
+		assertEquals(10, mMetrics.snapshot(State.STATE_WAITING_LOCK).count);
+		assertEquals(0, mMetrics.snapshot(State.STATE_PREVIEW).count);
+	}
+
+	@Test
+	public void shotWithoutPrecapture_leavesItUnrecorded() {
+		mMetrics.onStateChanged(State.STATE_WAITING_LOCK);
+		// Once the still is triggered
+		mShot = mMetrics.startShot();
+		mClock.advanceMillis(100);
+		mMetrics.onStateChanged(State.STATE_PICTURE_TAKEN);
+		mMetrics.stageStarted(mShot, Stage.SAVE);
+		mMetrics.stageFinished(mShot, Stage.SAVE);
+		assertTrue(mStages.isEmpty());
+		mMetrics.stageStarted(mShot, Stage.GALLERY);
+		mMetrics.stageFinished(mShot, Stage.GALLERY);
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+
+		assertEquals(1, mStates.size());
+		assertEquals(CaptureMetrics.NOT_RECORDED, mStates.get(0)[State.STATE_WAITING_PRECAPTURE.ordinal()]);
+		assertEquals(CaptureMetrics.NOT_RECORDED, mStages.get(0)[Stage.CAPTURE.ordinal()]);
+	}
+
+	@Test
+	public void fileWrittenBeforeTheStateMachineIsDone_waitsForThePreview() {
+		// The order of Camera2BaseFragment: the JPEG is saved before the capture completed callback
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		mMetrics.onStateChanged(State.STATE_WAITING_LOCK);
+		// Once the still is triggered
+		mShot = mMetrics.startShot();
+		mClock.advanceMillis(100);
+		mMetrics.onStateChanged(State.STATE_PICTURE_TAKEN);
+		mMetrics.stageStarted(mShot, Stage.CAPTURE);
+		mClock.advanceMillis(200);
+		mMetrics.stageFinished(mShot, Stage.CAPTURE);
+		mMetrics.stageStarted(mShot, Stage.SAVE);
+		mClock.advanceMillis(30);
+		mMetrics.stageFinished(mShot, Stage.SAVE);
+		mMetrics.stageStarted(mShot, Stage.GALLERY);
+		mMetrics.stageFinished(mShot, Stage.GALLERY);
+		assertTrue(mStages.isEmpty());
+
+		mClock.advanceMillis(20);
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+
+		assertEquals(1, mStages.size());
+		assertEquals(250 * MS, mStates.get(0)[State.STATE_PICTURE_TAKEN.ordinal()]);
+		// Up to the file, not the state machine
+		assertEquals(330 * MS, mStages.get(0)[Stage.SHUTTER_TO_DISK.ordinal()]);
+		// Once only
+		mMetrics.onStateChanged(State.STATE_WAITING_LOCK);
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		assertEquals(1, mStages.size());
+	}
+
+	@Test
+	public void zslShot_completesWithItsStages() {
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		mShot = mMetrics.startShot();
+		mMetrics.stageStarted(mShot, Stage.SAVE);
+		mClock.advanceMillis(30);
+		mMetrics.stageFinished(mShot, Stage.SAVE);
+		mMetrics.stageStarted(mShot, Stage.GALLERY);
+		mMetrics.stageFinished(mShot, Stage.GALLERY);
+
+		assertEquals(1, mStages.size());
+		assertEquals(30 * MS, mStages.get(0)[Stage.SHUTTER_TO_DISK.ordinal()]);
+	}
+
+	@Test
+	public void zslShotDuringAStill_isDroppedAndCounted() {
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		mMetrics.onStateChanged(State.STATE_WAITING_LOCK);
+		long still = mMetrics.startShot();
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+
+		long zsl = mMetrics.startShot();
+		mMetrics.stageStarted(zsl, Stage.SAVE);
+		mClock.advanceMillis(30);
+		mMetrics.stageFinished(zsl, Stage.SAVE);
+		mMetrics.stageStarted(still, Stage.SAVE);
+		mClock.advanceMillis(50);
+		mMetrics.stageFinished(still, Stage.SAVE);
+		mMetrics.stageStarted(still, Stage.GALLERY);
+		mMetrics.stageFinished(still, Stage.GALLERY);
+
+		assertEquals(CaptureMetrics.NO_SHOT, zsl);
+		assertEquals(1, mMetrics.getDroppedShotCount());
+		assertEquals(1, mStages.size());
+		assertEquals(50 * MS, mStages.get(0)[Stage.SAVE.ordinal()]);
+		assertEquals(1, mMetrics.snapshot(Stage.SAVE).count);
+	}
+
+	@Test
+	public void abortShot_letsTheNextOneBeTracked() {
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		mMetrics.onStateChanged(State.STATE_WAITING_LOCK);
+		long failed = mMetrics.startShot();
+		mMetrics.onStateChanged(State.STATE_PREVIEW);
+		mMetrics.abortShot(failed);
+
+		mShot = mMetrics.startShot();
+		// Late, of the shot given up on
+		mMetrics.stageStarted(failed, Stage.SAVE);
+		mMetrics.stageFinished(failed, Stage.SAVE);
+
+		assertNotEquals(CaptureMetrics.NO_SHOT, mShot);
+		assertEquals(0, mMetrics.getDroppedShotCount());
+		assertEquals(0, mMetrics.snapshot(Stage.SAVE).count);
+		assertTrue(mStages.isEmpty());
+	}
+
+	@Test
+	public void finishWithoutStart_isIgnored() {
+		mMetrics.stageFinished(mShot, Stage.CAPTURE);
+		assertEquals(0, mMetrics.snapshot(Stage.CAPTURE).count);
+	}
+
+	@Test
+	public void reset_clearsHistograms() {
+		shootWithPrecapture();
+		mMetrics.reset();
+		assertEquals(0, mMetrics.snapshot(Stage.SHUTTER_TO_DISK).count);
+		assertEquals(0, mMetrics.snapshot(State.STATE_WAITING_LOCK).count);
+	}
+}
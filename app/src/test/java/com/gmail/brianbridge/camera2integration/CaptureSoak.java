@@ -0,0 +1,500 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.CaptureController.State;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives shots back to back through the capture pipeline on a {@link SimulatedCameraBackend}: the
+ * {@link CameraLifecycle}, the {@link CaptureController} sequence, the {@link StillCapture} save to
+ * a {@link CaptureStorage} on the capture stage of {@link CameraExecutors}, and the
+ * {@link FrameDispatcher} analysis, wired like {@link Camera2BaseFragment} does, and reports the
+ * throughput, the latency percentiles and the peak heap. Saved shots are deleted right away, there's
+ * no gallery here.
+ *
+ * Run by {@link CaptureSoakTest}, which asserts on the {@link Report}, see {@link Config} for the
+ * settings.
+ */
+class CaptureSoak {
+	private static final long SHOT_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(10);
+	private static final long HEAP_SAMPLE_PERIOD_NS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	static class Config {
+		int shots = 1000;
+		int fps = 240;
+		int previewWidth = 1280;
+		int previewHeight = 720;
+		int stillWidth = 4032;
+		int stillHeight = 3024;
+		long openLatencyNanos;
+		long sessionLatencyNanos;
+		long stillLatencyNanos;
+		double stillFailureRate;
+		int disconnectEvery; // Shots between disconnects, 0 for none
+		boolean analysis = true; // Whether preview frames go through a FrameDispatcher
+		Integer[] focusScript; // Null for the simulator's default
+		File directory; // Null for a temporary one
+		CaptureStorage.SyncPolicy syncPolicy = CaptureStorage.SyncPolicy.BATCHED;
+	}
+
+	static class Report {
+		int shots;
+		long completed;
+		long failed;
+		boolean stalled; // A shot didn't end within SHOT_TIMEOUT_NS, the run was cut short
+		long elapsedNanos;
+		long reconnects;
+		long previewFrames;
+		long droppedPreviewFrames;
+		long analyzedFrames;
+		long peakHeapBytes;
+		long gcCount;
+		long gcMillis;
+		LatencyHistogram.Snapshot shutterToDisk;
+		LatencyHistogram.Snapshot waitingLock;
+		LatencyHistogram.Snapshot capture;
+		LatencyHistogram.Snapshot save;
+		PreviewTelemetry.Snapshot preview;
+		CaptureStorage.Snapshot storage;
+
+		double getShotsPerSecond() {
+			return elapsedNanos == 0 ? 0 : completed * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			return "Soak of " + shots + " shots in " + elapsedNanos / 1000000 + "ms" + (stalled ? ", STALLED" : "")
+					+ "\n  completed " + completed + ", failed " + failed + ", " + String.format("%.1f", getShotsPerSecond()) + " shots/s"
+					+ "\n  shutter to disk " + shutterToDisk
+					+ "\n  waiting lock " + waitingLock
+					+ "\n  capture " + capture
+					+ "\n  save " + save
+					+ "\n  preview frames " + previewFrames + ", dropped " + droppedPreviewFrames + ", analyzed " + analyzedFrames
+					+ "\n  preview " + preview
+					+ "\n  storage " + storage
+					+ "\n  reconnects " + reconnects
+					+ "\n  peak heap " + peakHeapBytes / (1024 * 1024) + "MB, " + gcCount + " GCs in " + gcMillis + "ms";
+		}
+	}
+
+	private final Config mConfig;
+	private final SimulatedCameraBackend mCamera = new SimulatedCameraBackend();
+	private final ThreadCameraExecutors mExecutors = new ThreadCameraExecutors(Clock.SYSTEM);
+	private final ScheduledExecutorService mTimerThread = Executors.newSingleThreadScheduledExecutor();
+	private final CaptureMetrics mMetrics = new CaptureMetrics(Clock.SYSTEM);
+	private volatile long mStillMetricsShot = CaptureMetrics.NO_SHOT; // Of the still being taken
+	private final PreviewTelemetry mPreviewTelemetry = new PreviewTelemetry();
+	private volatile StillCapture<SimulatedCameraBackend.Frame> mStillCapture; // Set by run()
+	private final Semaphore mShotEnded = new Semaphore(0);
+	private final AtomicBoolean mShotInFlight = new AtomicBoolean();
+	private final AtomicLong mCompleted = new AtomicLong();
+	private final AtomicLong mFailed = new AtomicLong();
+	private final AtomicLong mReconnects = new AtomicLong();
+	private final AtomicLong mPeakHeap = new AtomicLong();
+	private final Object mPreviewLock = new Object();
+	private boolean mPreviewing; // Guarded by mPreviewLock
+	private volatile ScheduledFuture<?> mTimeout;
+
+	private final CameraLifecycle mLifecycle = new CameraLifecycle(new CameraLifecycle.Device() {
+		@Override
+		public void open() {
+			if (!mCamera.open("0")) {
+				mLifecycle.onError();
+			}
+		}
+
+		@Override
+		public void close() {
+			mCaptureController.reset();
+			mCamera.close().run();
+			mStillCapture.failAll();
+			mDispatcher.clear();
+			mLifecycle.onClosed();
+		}
+	});
+
+	private final CaptureController mCaptureController = new CaptureController(new CaptureController.Camera() {
+		@Override
+		public void lockFocus() {
+			mCamera.lockFocus();
+		}
+
+		@Override
+		public void runPrecaptureSequence() {
+			mCamera.runPrecaptureSequence();
+		}
+
+		@Override
+		public void captureStillPicture() {
+			mMetrics.stageStarted(mStillMetricsShot, CaptureMetrics.Stage.CAPTURE);
+			mPreviewTelemetry.onPreviewStopped();
+			mCamera.captureStill(0);
+		}
+
+		@Override
+		public void unlockFocus() {
+			mCamera.unlockFocus();
+		}
+
+		@Override
+		public void scheduleTimeout(long delayNanos) {
+			ScheduledFuture<?> timeout = mTimeout;
+			if (null != timeout) {
+				timeout.cancel(false);
+			}
+			mTimeout = mTimerThread.schedule(new Runnable() {
+				@Override
+				public void run() {
+					mCaptureController.onTimeout();
+				}
+			}, delayNanos, TimeUnit.NANOSECONDS);
+		}
+	}, new CaptureController.Listener() {
+		@Override
+		public void onStateChanged(State previous, State state, long nanosInPrevious, boolean timedOut) {
+			mMetrics.onStateChanged(state);
+			if (timedOut && state == State.STATE_PREVIEW) {
+				// The still was given up on, its JPEG may come late
+				mStillCapture.fail(true);
+			}
+		}
+	}, Clock.SYSTEM);
+
+	private final FrameDispatcher<SimulatedCameraBackend.Frame> mDispatcher = new FrameDispatcher<>(
+			mExecutors.getExecutor(CameraExecutors.Stage.ANALYSIS),
+			new FrameDispatcher.Recycler<SimulatedCameraBackend.Frame>() {
+				@Override
+				public void recycle(SimulatedCameraBackend.Frame frame) {
+					frame.close();
+				}
+			}, Clock.SYSTEM);
+
+	private final CameraBackend.Listener<SimulatedCameraBackend.Frame> mCameraListener = new CameraBackend.Listener<SimulatedCameraBackend.Frame>() {
+		@Override
+		public void onOpened() {
+			mLifecycle.onOpened();
+			mCamera.createSession();
+		}
+
+		@Override
+		public void onDisconnected() {
+			onCameraLost();
+		}
+
+		@Override
+		public void onError(int error) {
+			onCameraLost();
+		}
+
+		@Override
+		public void onSessionConfigured() {
+			if (mCamera.startPreview()) {
+				setPreviewing(true);
+			}
+		}
+
+		@Override
+		public void onSessionConfigureFailed() {
+			onCameraLost();
+		}
+
+		@Override
+		public void onCaptureResult(Integer afState, Integer aeState, boolean partial) {
+			mCaptureController.onResult(CameraUtil.toFocusState(afState), CameraUtil.toExposureState(aeState), partial);
+		}
+
+		@Override
+		public void onPreviewFrameStarted(long sensorTimestampNs) {
+			mPreviewTelemetry.onSensorFrame(sensorTimestampNs);
+		}
+
+		@Override
+		public void onJpegAvailable(final SimulatedCameraBackend.Frame image) {
+			// Delivered to the capture handler on a device
+			boolean posted = mExecutors.post(CameraExecutors.Stage.CAPTURE, new Runnable() {
+				@Override
+				public void run() {
+					mStillCapture.deliver(image);
+				}
+			});
+			if (!posted) {
+				image.close();
+			}
+		}
+
+		@Override
+		public void onStillStarted(long sensorTimestampNs) {
+			mStillCapture.onStarted(sensorTimestampNs);
+		}
+
+		@Override
+		public void onStillCompleted() {
+			mCaptureController.onCaptureFinished();
+		}
+
+		@Override
+		public void onStillFailed(int reason, boolean imageCaptured) {
+			mStillCapture.fail(imageCaptured);
+			mCaptureController.onCaptureFinished();
+		}
+	};
+
+	private final StillCapture.Images<SimulatedCameraBackend.Frame> mStillImages = new StillCapture.Images<SimulatedCameraBackend.Frame>() {
+		@Override
+		public ByteBuffer getJpeg(SimulatedCameraBackend.Frame image) {
+			return image.getBuffer();
+		}
+
+		@Override
+		public long getTimestamp(SimulatedCameraBackend.Frame image) {
+			return image.timestamp;
+		}
+
+		@Override
+		public void close(SimulatedCameraBackend.Frame image) {
+			image.close();
+		}
+	};
+
+	private final StillCapture.Listener mStillListener = new StillCapture.Listener() {
+		@Override
+		public void onSaved(File file, long metricsShot) {
+			// No gallery here, the stage is recorded empty so that the shot completes
+			mMetrics.stageStarted(metricsShot, CaptureMetrics.Stage.GALLERY);
+			mMetrics.stageFinished(metricsShot, CaptureMetrics.Stage.GALLERY);
+			// Long soaks would fill the disk otherwise
+			file.delete();
+			endShot(true);
+		}
+
+		@Override
+		public void onFailed(Exception error) {
+			endShot(false);
+		}
+	};
+
+	CaptureSoak(Config config) {
+		mConfig = config;
+		mCamera.setFrameRate(config.fps);
+		mCamera.setPreviewSize(config.previewWidth, config.previewHeight);
+		mCamera.setStillSize(config.stillWidth, config.stillHeight);
+		mCamera.setOpenLatency(config.openLatencyNanos);
+		mCamera.setSessionLatency(config.sessionLatencyNanos);
+		mCamera.setStillLatency(config.stillLatencyNanos);
+		mCamera.setStillFailureRate(config.stillFailureRate);
+		if (null != config.focusScript) {
+			mCamera.setFocusScript(config.focusScript);
+		}
+		mCamera.setListener(mCameraListener);
+		if (config.analysis) {
+			mDispatcher.addAnalyzer("luma", new FrameAnalyzer<SimulatedCameraBackend.Frame>() {
+				@Override
+				public void analyze(SimulatedCameraBackend.Frame frame, long timestampNs) {
+					// Mean of a sparse sample of the Y plane
+					ByteBuffer buffer = frame.getBuffer();
+					int ySize = frame.width * frame.height;
+					long sum = 0;
+					for (int i = 0; i < ySize; i += 64) {
+						sum += buffer.get(i) & 0xFF;
+					}
+					if (sum < 0) {
+						throw new AssertionError();
+					}
+				}
+			});
+			mCamera.setPreviewSink(new SimulatedCameraBackend.PreviewSink() {
+				@Override
+				public void onPreviewFrame(SimulatedCameraBackend.Frame frame) {
+					mDispatcher.offer(frame, frame.timestamp);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Takes the shots one after the other, each as soon as the previous one is saved or failed.
+	 */
+	Report run() throws IOException, InterruptedException {
+		File directory = mConfig.directory;
+		boolean temporary = null == directory;
+		if (temporary) {
+			directory = File.createTempFile("soak", "");
+			if (!directory.delete() || !directory.mkdir()) {
+				throw new IOException("Can't create " + directory);
+			}
+		}
+		CaptureStorage storage = new CaptureStorage(directory, mConfig.syncPolicy);
+		storage.scan();
+		mStillCapture = new StillCapture<>(storage, mMetrics, mStillImages, mStillListener);
+		long expectedBytes = (long) mConfig.stillWidth * mConfig.stillHeight / 2;
+
+		Report report = new Report();
+		report.shots = mConfig.shots;
+		long gcCountBefore = getGcCount();
+		long gcMillisBefore = getGcMillis();
+		ScheduledFuture<?> heapSampler = mTimerThread.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				sampleHeap();
+			}
+		}, 0, HEAP_SAMPLE_PERIOD_NS, TimeUnit.NANOSECONDS);
+
+		long start = System.nanoTime();
+		try {
+			mExecutors.start();
+			mLifecycle.requestOpen();
+			for (int i = 0; i < mConfig.shots; i++) {
+				if (!awaitPreview(SHOT_TIMEOUT_NS)) {
+					report.stalled = true;
+					break;
+				}
+				CaptureStorage.Shot shot = storage.reserve("SOAK", "jpg", expectedBytes);
+				if (null == shot) {
+					throw new IOException("No room for shot " + i + ": " + storage.snapshot());
+				}
+				mShotInFlight.set(true);
+				if (mConfig.disconnectEvery > 0 && i % mConfig.disconnectEvery == mConfig.disconnectEvery - 1) {
+					// Lost in the middle of the shot
+					mCamera.disconnectAtNextLock();
+				}
+				mStillCapture.add(shot, null);
+				while (!mCaptureController.trigger()) {
+					// The still of the previous shot is saved, its result may still be on its way
+					LockSupport.parkNanos(100000);
+				}
+				mStillMetricsShot = mStillCapture.onTriggered(shot);
+				if (!mShotEnded.tryAcquire(SHOT_TIMEOUT_NS, TimeUnit.NANOSECONDS)) {
+					report.stalled = true;
+					break;
+				}
+			}
+			report.elapsedNanos = System.nanoTime() - start;
+		} finally {
+			heapSampler.cancel(false);
+			mLifecycle.requestClose();
+			mCamera.shutdown();
+			mExecutors.shutdown();
+			mExecutors.awaitTermination(SHOT_TIMEOUT_NS);
+			mTimerThread.shutdownNow();
+			if (temporary) {
+				File[] left = directory.listFiles();
+				if (null != left) {
+					for (File file : left) {
+						file.delete();
+					}
+				}
+				directory.delete();
+			}
+		}
+		sampleHeap();
+
+		report.completed = mCompleted.get();
+		report.failed = mFailed.get();
+		report.reconnects = mReconnects.get();
+		report.previewFrames = mCamera.getPreviewFrameCount();
+		report.droppedPreviewFrames = mCamera.getDroppedFrameCount();
+		report.analyzedFrames = mDispatcher.getAnalyzedCount();
+		report.peakHeapBytes = mPeakHeap.get();
+		report.gcCount = getGcCount() - gcCountBefore;
+		report.gcMillis = getGcMillis() - gcMillisBefore;
+		report.shutterToDisk = mMetrics.snapshot(CaptureMetrics.Stage.SHUTTER_TO_DISK);
+		report.waitingLock = mMetrics.snapshot(State.STATE_WAITING_LOCK);
+		report.capture = mMetrics.snapshot(CaptureMetrics.Stage.CAPTURE);
+		report.save = mMetrics.snapshot(CaptureMetrics.Stage.SAVE);
+		report.preview = mPreviewTelemetry.snapshot();
+		report.storage = storage.snapshot();
+		return report;
+	}
+
+	CaptureMetrics getCaptureMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Ends the shot in flight, if it's not over already.
+	 */
+	private void endShot(boolean saved) {
+		if (!mShotInFlight.compareAndSet(true, false)) {
+			return;
+		}
+		if (saved) {
+			mCompleted.incrementAndGet();
+		} else {
+			mFailed.incrementAndGet();
+		}
+		mShotEnded.release();
+	}
+
+	/**
+	 * Called on the camera thread, fails the shot in flight and reopens the camera.
+	 */
+	private void onCameraLost() {
+		// Counted before the shot ends, by the close or below: the run may be over right after
+		mReconnects.incrementAndGet();
+		setPreviewing(false);
+		mPreviewTelemetry.onPreviewStopped();
+		mLifecycle.onError();
+		mStillCapture.failAll();
+		mLifecycle.requestOpen();
+	}
+
+	private void setPreviewing(boolean previewing) {
+		synchronized (mPreviewLock) {
+			mPreviewing = previewing;
+			mPreviewLock.notifyAll();
+		}
+	}
+
+	private boolean awaitPreview(long timeoutNanos) throws InterruptedException {
+		long deadline = System.nanoTime() + timeoutNanos;
+		synchronized (mPreviewLock) {
+			while (!mPreviewing) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				TimeUnit.NANOSECONDS.timedWait(mPreviewLock, remaining);
+			}
+			return true;
+		}
+	}
+
+	private void sampleHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		long used = runtime.totalMemory() - runtime.freeMemory();
+		for (;;) {
+			long peak = mPeakHeap.get();
+			if (used <= peak || mPeakHeap.compareAndSet(peak, used)) {
+				return;
+			}
+		}
+	}
+
+	private static long getGcCount() {
+		long count = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			count += Math.max(0, gc.getCollectionCount());
+		}
+		return count;
+	}
+
+	private static long getGcMillis() {
+		long millis = 0;
+		for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+			millis += Math.max(0, gc.getCollectionTime());
+		}
+		return millis;
+	}
+}
@@ -0,0 +1,90 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.hardware.camera2.CaptureResult;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Short soaks of the capture pipeline on the simulated camera. Longer ones are run with
+ * {@code -Psoak.shots=5000}.
+ */
+public class CaptureSoakTest {
+	private static final int SHOTS = Integer.getInteger("soak.shots", 200);
+
+	private static CaptureSoak.Config fastConfig(int shots) {
+		CaptureSoak.Config config = new CaptureSoak.Config();
+		config.shots = shots;
+		config.fps = 1000;
+		config.previewWidth = 320;
+		config.previewHeight = 240;
+		config.stillWidth = 640;
+		config.stillHeight = 480;
+		return config;
+	}
+
+	@Test
+	public void everyShotIsSaved() throws Exception {
+		CaptureSoak soak = new CaptureSoak(fastConfig(SHOTS));
+		CaptureSoak.Report report = soak.run();
+
+		assertFalse(report.toString(), report.stalled);
+		assertEquals(SHOTS, report.completed);
+		assertEquals(0, report.failed);
+		assertEquals(SHOTS, report.shutterToDisk.count);
+		assertEquals(SHOTS, report.save.count);
+		assertTrue(report.getShotsPerSecond() > 0);
+		assertTrue(report.previewFrames > 0);
+		assertEquals(report.previewFrames, report.preview.sensorFrames);
+		assertTrue(report.analyzedFrames > 0);
+		assertTrue(report.analyzedFrames + report.droppedPreviewFrames <= report.previewFrames);
+		// The simulated sensor keeps its frame rate, however late its thread runs
+		assertEquals(report.preview.toString(), 1000, report.preview.sensorFps, 50);
+		assertTrue(report.peakHeapBytes > 0);
+	}
+
+	@Test
+	public void slowFocus_isTimedWhileWaitingForTheLock() throws Exception {
+		CaptureSoak.Config config = fastConfig(20);
+		config.fps = 200;
+		config.focusScript = new Integer[]{
+				CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN,
+				CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN,
+				CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN,
+				CaptureResult.CONTROL_AF_STATE_ACTIVE_SCAN,
+				CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED};
+		CaptureSoak.Report report = new CaptureSoak(config).run();
+
+		assertEquals(20, report.completed);
+		// The trigger result and the preview frames until the fifth result, 5ms apart
+		assertTrue(report.waitingLock.toString(), report.waitingLock.p50 >= 20000000L);
+		// Well under the lock timeout, the preview results are followed from the first shot
+		assertTrue(report.waitingLock.toString(), report.waitingLock.max < CaptureController.DEFAULT_LOCK_TIMEOUT_NS);
+	}
+
+	@Test
+	public void disconnects_failTheShotAndReopen() throws Exception {
+		CaptureSoak.Config config = fastConfig(50);
+		config.disconnectEvery = 10;
+		CaptureSoak.Report report = new CaptureSoak(config).run();
+
+		assertFalse(report.stalled);
+		assertEquals(5, report.reconnects);
+		assertEquals(5, report.failed);
+		assertEquals(45, report.completed);
+	}
+
+	@Test
+	public void stillFailures_areCounted() throws Exception {
+		CaptureSoak.Config config = fastConfig(100);
+		config.stillFailureRate = 0.2;
+		config.analysis = false;
+		CaptureSoak.Report report = new CaptureSoak(config).run();
+
+		assertFalse(report.stalled);
+		assertTrue(report.failed > 0);
+		assertEquals(100, report.completed + report.failed);
+		assertEquals(0, report.analyzedFrames);
+	}
+}
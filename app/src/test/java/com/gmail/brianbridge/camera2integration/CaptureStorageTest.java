@@ -0,0 +1,307 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class CaptureStorageTest {
+	private static final long NOW_MS = 1790000000000L;
+	private static final long EXPECTED_BYTES = 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private File mDirectory;
+	private long mNowMillis = NOW_MS;
+	private long mUsableSpace = Long.MAX_VALUE / 2;
+
+	/**
+	 * With the wall clock and the free space set by the test.
+	 */
+	private class TestStorage extends CaptureStorage {
+		TestStorage(SyncPolicy syncPolicy, int syncBatch) {
+			super(mDirectory, syncPolicy, syncBatch, DEFAULT_MIN_FREE_BYTES, Clock.SYSTEM);
+		}
+
+		@Override
+		protected long currentTimeMillis() {
+			return mNowMillis;
+		}
+
+		@Override
+		protected long getUsableSpace() {
+			return mUsableSpace;
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = mFolder.newFolder("captures");
+	}
+
+	private static ByteBuffer fakeJpeg(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+		buffer.put(bytes);
+		buffer.flip();
+		return buffer;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) input.length()];
+			input.readFully(bytes);
+			return bytes;
+		} finally {
+			input.close();
+		}
+	}
+
+	private static byte[] bytesOf(ByteBuffer buffer) {
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.duplicate().get(bytes);
+		return bytes;
+	}
+
+	@Test
+	public void commit_writesTheFileUnderItsNameOnly() throws Exception {
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		CaptureStorage.Shot shot = storage.reserve("IMG", "jpg", EXPECTED_BYTES);
+		assertTrue(shot.file.getName(), shot.file.getName().matches("IMG_\\d{8}_\\d{6}_\\d{3}\\.jpg"));
+		assertFalse(shot.file.exists());
+		assertEquals(1, storage.getBacklog());
+
+		ByteBuffer jpeg = fakeJpeg(300000);
+		File file = storage.commit(shot, jpeg);
+
+		assertEquals(shot.file, file);
+		assertArrayEquals(bytesOf(jpeg), readFile(file));
+		assertEquals(0, jpeg.position());
+		assertEquals(Collections.singletonList(file.getName()), Arrays.asList(mDirectory.list()));
+		CaptureStorage.Snapshot snapshot = storage.snapshot();
+		assertEquals(1, snapshot.filesWritten);
+		assertEquals(300000, snapshot.bytesWritten);
+		assertEquals(0, snapshot.backlog);
+		assertEquals(0, snapshot.backlogBytes);
+		assertEquals(1, snapshot.write.count);
+	}
+
+	@Test
+	public void names_areUniqueAndInReservationOrder() {
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		List<String> names = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			// A burst within one millisecond, then the clock going back
+			if (i == 40) {
+				mNowMillis -= 60000;
+			}
+			names.add(storage.reserve("IMG", "jpg", EXPECTED_BYTES).file.getName());
+		}
+
+		List<String> sorted = new ArrayList<>(names);
+		Collections.sort(sorted);
+		assertEquals(names, sorted);
+		assertEquals(names.size(), new HashSet<>(names).size());
+		assertEquals(50, storage.getBacklog());
+	}
+
+	@Test
+	public void names_skipFilesOfAnEarlierRun() throws Exception {
+		CaptureStorage earlier = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		File taken = earlier.commit(earlier.reserve("IMG", "jpg", EXPECTED_BYTES), fakeJpeg(100));
+
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		CaptureStorage.Shot shot = storage.reserve("IMG", "jpg", EXPECTED_BYTES);
+
+		assertNotEquals(taken, shot.file);
+		assertTrue(shot.file.getName().compareTo(taken.getName()) > 0);
+	}
+
+	@Test
+	public void killedMidWrite_leavesOnlyATempFile() throws Exception {
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		CaptureStorage.Shot shot = storage.reserve("IMG", "jpg", EXPECTED_BYTES);
+		// Half written when the process dies
+		FileOutputStream output = new FileOutputStream(shot.getTempFile());
+		output.write(new byte[1000]);
+		output.close();
+
+		assertFalse(shot.file.exists());
+		CaptureStorage restarted = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		assertEquals(1, restarted.deleteTempFiles());
+		assertEquals(0, mDirectory.list().length);
+	}
+
+	@Test
+	public void failedWrite_leavesNothing() throws Exception {
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		CaptureStorage.Shot shot = storage.reserve("IMG", "jpg", EXPECTED_BYTES);
+		// The temp file can't be opened for writing
+		assertTrue(shot.getTempFile().mkdir());
+
+		try {
+			storage.commit(shot, fakeJpeg(1000));
+			fail();
+		} catch (IOException e) {
+			// Expected
+		}
+
+		assertFalse(shot.file.exists());
+		CaptureStorage.Snapshot snapshot = storage.snapshot();
+		assertEquals(1, snapshot.failed);
+		assertEquals(0, snapshot.backlog);
+		assertEquals(0, snapshot.filesWritten);
+	}
+
+	@Test
+	public void commitOfAFileWrittenByTheCaller() throws Exception {
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.PER_FILE, 1);
+		CaptureStorage.Shot shot = storage.reserve("IMG", "png", EXPECTED_BYTES);
+		FileOutputStream output = new FileOutputStream(shot.getTempFile());
+		output.write(new byte[]{1, 2, 3});
+		output.close();
+
+		File file = storage.commit(shot);
+
+		assertTrue(file.getName().endsWith(".png"));
+		assertArrayEquals(new byte[]{1, 2, 3}, readFile(file));
+		assertFalse(shot.getTempFile().exists());
+		assertEquals(3, storage.snapshot().bytesWritten);
+	}
+
+	@Test
+	public void abort_deletesWhatWasWritten() throws Exception {
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		CaptureStorage.Shot shot = storage.reserve("IMG", "jpg", EXPECTED_BYTES);
+		assertTrue(shot.getTempFile().createNewFile());
+
+		storage.abort(shot);
+		storage.abort(shot);
+
+		assertEquals(0, storage.getBacklog());
+		assertEquals(0, mDirectory.list().length);
+		try {
+			storage.commit(shot, fakeJpeg(10));
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void reserve_keepsTheMinimumFreeSpace() {
+		mUsableSpace = CaptureStorage.DEFAULT_MIN_FREE_BYTES + 2 * EXPECTED_BYTES;
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+
+		CaptureStorage.Shot first = storage.reserve("IMG", "jpg", EXPECTED_BYTES);
+		assertNotNull(first);
+		assertNotNull(storage.reserve("IMG", "jpg", EXPECTED_BYTES));
+		// The reserved shots aren't on the disk yet, but will be
+		assertNull(storage.reserve("IMG", "jpg", EXPECTED_BYTES));
+		assertEquals(1, storage.snapshot().rejected);
+		assertEquals(2 * EXPECTED_BYTES, storage.snapshot().backlogBytes);
+
+		storage.abort(first);
+		assertNotNull(storage.reserve("IMG", "jpg", EXPECTED_BYTES));
+	}
+
+	@Test
+	public void reserve_afterScan_usesWhatWasScanned() throws Exception {
+		CaptureStorage earlier = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		File taken = earlier.commit(earlier.reserve("IMG", "jpg", EXPECTED_BYTES), fakeJpeg(100));
+		mUsableSpace = CaptureStorage.DEFAULT_MIN_FREE_BYTES + 2 * EXPECTED_BYTES;
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.NONE, 1);
+		storage.scan();
+
+		// Not queried again when reserving
+		mUsableSpace = 0;
+		CaptureStorage.Shot shot = storage.reserve("IMG", "jpg", EXPECTED_BYTES);
+
+		assertNotNull(shot);
+		assertTrue(shot.file.getName().compareTo(taken.getName()) > 0);
+		// Measured again by the commit
+		mUsableSpace = CaptureStorage.DEFAULT_MIN_FREE_BYTES;
+		storage.commit(shot, fakeJpeg(100));
+		assertNull(storage.reserve("IMG", "jpg", EXPECTED_BYTES));
+	}
+
+	@Test
+	public void batchedSync_forcesEveryBatch() throws Exception {
+		CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.BATCHED, 3);
+		for (int i = 0; i < 4; i++) {
+			storage.commit(storage.reserve("IMG", "jpg", EXPECTED_BYTES), fakeJpeg(1000));
+		}
+		assertEquals(1, storage.getUnsyncedCount());
+		assertEquals(1, storage.snapshot().sync.count);
+
+		storage.sync();
+		assertEquals(0, storage.getUnsyncedCount());
+		assertEquals(2, storage.snapshot().sync.count);
+		// Nothing left to force
+		storage.sync();
+		assertEquals(2, storage.snapshot().sync.count);
+	}
+
+	@Test
+	public void otherPolicies_haveNoBatch() throws Exception {
+		for (CaptureStorage.SyncPolicy policy : new CaptureStorage.SyncPolicy[]{
+				CaptureStorage.SyncPolicy.PER_FILE, CaptureStorage.SyncPolicy.NONE}) {
+			CaptureStorage storage = new TestStorage(policy, 1);
+			storage.commit(storage.reserve("IMG", "jpg", EXPECTED_BYTES), fakeJpeg(1000));
+			storage.sync();
+			assertEquals(0, storage.getUnsyncedCount());
+			assertEquals(0, storage.snapshot().sync.count);
+		}
+	}
+
+	@Test
+	public void parallelSaves_areAllWritten() throws Exception {
+		final CaptureStorage storage = new TestStorage(CaptureStorage.SyncPolicy.BATCHED, 4);
+		ExecutorService savers = Executors.newFixedThreadPool(4);
+		List<Future<File>> files = new ArrayList<>();
+		try {
+			for (int i = 0; i < 40; i++) {
+				final CaptureStorage.Shot shot = storage.reserve("BURST", "jpg", EXPECTED_BYTES);
+				final ByteBuffer jpeg = fakeJpeg(20000 + i);
+				files.add(savers.submit(new Callable<File>() {
+					@Override
+					public File call() throws Exception {
+						return storage.commit(shot, jpeg);
+					}
+				}));
+			}
+			for (int i = 0; i < files.size(); i++) {
+				assertEquals(20000 + i, files.get(i).get().length());
+			}
+		} finally {
+			savers.shutdown();
+		}
+
+		CaptureStorage.Snapshot snapshot = storage.snapshot();
+		assertEquals(40, snapshot.filesWritten);
+		assertEquals(0, snapshot.backlog);
+		assertTrue(snapshot.toString(), snapshot.bytesPerSecond > 0);
+		assertEquals(40, mDirectory.list().length);
+	}
+}
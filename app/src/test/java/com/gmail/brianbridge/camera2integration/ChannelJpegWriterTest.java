@@ -0,0 +1,154 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.ChannelJpegWriter.ForcePolicy;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ChannelJpegWriterTest {
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private static byte[] fakeJpeg(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		bytes[0] = (byte) 0xFF;
+		bytes[1] = (byte) 0xD8;
+		bytes[length - 2] = (byte) 0xFF;
+		bytes[length - 1] = (byte) 0xD9;
+		return bytes;
+	}
+
+	private static ByteBuffer direct(byte[] bytes) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) input.length()];
+			input.readFully(bytes);
+			return bytes;
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Takes at most {@code maxPerWrite} bytes per call, and nothing every third call.
+	 */
+	private static class TricklingChannel implements WritableByteChannel {
+		final ByteArrayOutputStream written = new ByteArrayOutputStream();
+		private final int mMaxPerWrite;
+		private int mCalls;
+
+		TricklingChannel(int maxPerWrite) {
+			mMaxPerWrite = maxPerWrite;
+		}
+
+		@Override
+		public int write(ByteBuffer source) {
+			if (++mCalls % 3 == 0) {
+				return 0;
+			}
+			int count = Math.min(mMaxPerWrite, source.remaining());
+			for (int i = 0; i < count; i++) {
+				written.write(source.get());
+			}
+			return count;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {}
+	}
+
+	@Test
+	public void write_heapBuffer_bytesUnchanged() throws Exception {
+		byte[] jpeg = fakeJpeg(64 * 1024);
+		File file = mFolder.newFile("pic.jpg");
+
+		assertEquals(jpeg.length, new ChannelJpegWriter(false, ForcePolicy.NONE).write(ByteBuffer.wrap(jpeg), file));
+		assertArrayEquals(jpeg, readFile(file));
+	}
+
+	@Test
+	public void write_directBuffer_bytesUnchanged() throws Exception {
+		byte[] jpeg = fakeJpeg(3 * 1024 * 1024 + 7);
+		File file = mFolder.newFile("pic.jpg");
+
+		new ChannelJpegWriter(true, ForcePolicy.DATA).write(direct(jpeg), file);
+		assertArrayEquals(jpeg, readFile(file));
+	}
+
+	@Test
+	public void write_everyPolicy_bytesUnchanged() throws Exception {
+		byte[] jpeg = fakeJpeg(100 * 1024 + 3);
+		for (ForcePolicy policy : ForcePolicy.values()) {
+			for (boolean preallocate : new boolean[]{false, true}) {
+				File file = new File(mFolder.getRoot(), policy + "_" + preallocate + ".jpg");
+				new ChannelJpegWriter(preallocate, policy).write(direct(jpeg), file);
+				assertArrayEquals(policy + " " + preallocate, jpeg, readFile(file));
+			}
+		}
+	}
+
+	@Test
+	public void write_onlyRemainingBytes_positionUntouched() throws Exception {
+		byte[] jpeg = fakeJpeg(4096);
+		ByteBuffer buffer = direct(jpeg);
+		buffer.position(100).limit(1000);
+		File file = mFolder.newFile("pic.jpg");
+
+		assertEquals(900, new ChannelJpegWriter(true, ForcePolicy.NONE).write(buffer, file));
+		assertArrayEquals(Arrays.copyOfRange(jpeg, 100, 1000), readFile(file));
+		assertEquals(100, buffer.position());
+		assertEquals(1000, buffer.limit());
+	}
+
+	@Test
+	public void write_overLongerFile_truncates() throws Exception {
+		File file = mFolder.newFile("pic.jpg");
+		for (boolean preallocate : new boolean[]{false, true}) {
+			ChannelJpegWriter writer = new ChannelJpegWriter(preallocate, ForcePolicy.NONE);
+			writer.write(direct(fakeJpeg(8192)), file);
+
+			byte[] jpeg = fakeJpeg(1024);
+			writer.write(ByteBuffer.wrap(jpeg), file);
+			assertArrayEquals(jpeg, readFile(file));
+		}
+	}
+
+	@Test
+	public void writeFully_partialWrites_allBytesInOrder() throws Exception {
+		byte[] jpeg = fakeJpeg(10000);
+		TricklingChannel channel = new TricklingChannel(777);
+
+		ChannelJpegWriter.writeFully(channel, direct(jpeg));
+
+		assertArrayEquals(jpeg, channel.written.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void writeFully_stalledChannel_throws() throws Exception {
+		ChannelJpegWriter.writeFully(new TricklingChannel(0), ByteBuffer.wrap(fakeJpeg(16)));
+	}
+}
@@ -0,0 +1,166 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import static org.junit.Assert.*;
+
+public class ExifThumbnailTest {
+
+	private static byte[] encodeJpeg(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				image.setRGB(x, y, (x * 255 / width) << 16 | (y * 255 / height) << 8 | 0x40);
+			}
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		assertTrue(ImageIO.write(image, "jpg", output));
+		return output.toByteArray();
+	}
+
+	/**
+	 * An EXIF APP1 segment as a camera writes it: the orientation in IFD0, and if {@code thumbnail}
+	 * isn't null, IFD1 pointing at it right after the IFDs.
+	 */
+	private static byte[] exifSegment(ByteOrder order, int orientation, byte[] thumbnail) {
+		int tiffLength = thumbnail == null ? 26 : 56 + thumbnail.length;
+		ByteBuffer tiff = ByteBuffer.allocate(tiffLength).order(order);
+		tiff.put(order == ByteOrder.LITTLE_ENDIAN ? new byte[]{'I', 'I'} : new byte[]{'M', 'M'});
+		tiff.putShort((short) 42);
+		tiff.putInt(8);
+		// IFD0
+		tiff.putShort((short) 1);
+		tiff.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+		tiff.putInt(thumbnail == null ? 0 : 26);
+		if (thumbnail != null) {
+			// IFD1
+			tiff.putShort((short) 2);
+			tiff.putShort((short) 0x0201).putShort((short) 4).putInt(1).putInt(56);
+			tiff.putShort((short) 0x0202).putShort((short) 4).putInt(1).putInt(thumbnail.length);
+			tiff.putInt(0);
+			tiff.put(thumbnail);
+		}
+
+		ByteBuffer segment = ByteBuffer.allocate(4 + 6 + tiffLength);
+		segment.put((byte) 0xff).put((byte) 0xe1).putShort((short) (2 + 6 + tiffLength));
+		segment.put(new byte[]{'E', 'x', 'i', 'f', 0, 0});
+		segment.put(tiff.array());
+		return segment.array();
+	}
+
+	/**
+	 * Inserts {@code segment} after the JFIF APP0 segment of {@code jpeg}.
+	 */
+	private static byte[] insertSegment(byte[] jpeg, byte[] segment) {
+		assertEquals(0xe0, jpeg[3] & 0xff);
+		int app0End = 4 + ((jpeg[4] & 0xff) << 8 | (jpeg[5] & 0xff));
+		byte[] result = new byte[jpeg.length + segment.length];
+		System.arraycopy(jpeg, 0, result, 0, app0End);
+		System.arraycopy(segment, 0, result, app0End, segment.length);
+		System.arraycopy(jpeg, app0End, result, app0End + segment.length, jpeg.length - app0End);
+		return result;
+	}
+
+	private static void assertFindsThumbnail(ByteOrder order) throws IOException {
+		byte[] thumbnail = encodeJpeg(32, 24);
+		byte[] jpeg = insertSegment(encodeJpeg(640, 480), exifSegment(order, 6, thumbnail));
+
+		ExifThumbnail exif = ExifThumbnail.parse(jpeg, jpeg.length);
+
+		assertNotNull(exif);
+		assertTrue(exif.hasThumbnail());
+		assertEquals(6, exif.orientation);
+		assertEquals(90, exif.getRotationDegrees());
+		byte[] found = Arrays.copyOfRange(jpeg, exif.thumbnailOffset, exif.thumbnailOffset + exif.thumbnailLength);
+		assertArrayEquals(thumbnail, found);
+		BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(found));
+		assertEquals(32, decoded.getWidth());
+		assertEquals(24, decoded.getHeight());
+	}
+
+	@Test
+	public void littleEndian_findsThumbnailAndOrientation() throws IOException {
+		assertFindsThumbnail(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Test
+	public void bigEndian_findsThumbnailAndOrientation() throws IOException {
+		assertFindsThumbnail(ByteOrder.BIG_ENDIAN);
+	}
+
+	@Test
+	public void headOfFile_isEnough() throws IOException {
+		byte[] jpeg = insertSegment(encodeJpeg(1024, 768), exifSegment(ByteOrder.LITTLE_ENDIAN, 1, encodeJpeg(64, 48)));
+		assertTrue(jpeg.length > 4096);
+		int head = Math.min(jpeg.length, ExifThumbnail.MAX_HEADER_LENGTH);
+
+		ExifThumbnail exif = ExifThumbnail.parse(Arrays.copyOf(jpeg, head), head);
+
+		assertNotNull(exif);
+		assertTrue(exif.hasThumbnail());
+		assertEquals(0, exif.getRotationDegrees());
+	}
+
+	@Test
+	public void exifWithoutThumbnail_keepsOrientation() throws IOException {
+		byte[] jpeg = insertSegment(encodeJpeg(64, 48), exifSegment(ByteOrder.BIG_ENDIAN, 8, null));
+
+		ExifThumbnail exif = ExifThumbnail.parse(jpeg, jpeg.length);
+
+		assertNotNull(exif);
+		assertFalse(exif.hasThumbnail());
+		assertEquals(270, exif.getRotationDegrees());
+	}
+
+	@Test
+	public void withoutExif_returnsNull() throws IOException {
+		byte[] jpeg = encodeJpeg(64, 48);
+		assertNull(ExifThumbnail.parse(jpeg, jpeg.length));
+		assertNull(ExifThumbnail.parse(new byte[]{'G', 'I', 'F', '8', '9', 'a'}, 6));
+		assertNull(ExifThumbnail.parse(new byte[0], 0));
+	}
+
+	@Test
+	public void truncatedThumbnail_isNotReported() throws IOException {
+		byte[] thumbnail = encodeJpeg(32, 24);
+		byte[] jpeg = insertSegment(encodeJpeg(64, 48), exifSegment(ByteOrder.LITTLE_ENDIAN, 3, thumbnail));
+		ExifThumbnail full = ExifThumbnail.parse(jpeg, jpeg.length);
+		int thumbnailEnd = full.thumbnailOffset + full.thumbnailLength;
+
+		ExifThumbnail exif = ExifThumbnail.parse(jpeg, thumbnailEnd - 1);
+
+		assertNotNull(exif);
+		assertFalse(exif.hasThumbnail());
+		assertEquals(180, exif.getRotationDegrees());
+	}
+
+	@Test
+	public void anyPrefixOrCorruption_neverThrows() throws IOException {
+		byte[] jpeg = insertSegment(encodeJpeg(64, 48), exifSegment(ByteOrder.LITTLE_ENDIAN, 6, encodeJpeg(16, 12)));
+		for (int length = 0; length <= 1024; length++) {
+			ExifThumbnail.parse(jpeg, length);
+		}
+		Random random = new Random(3);
+		for (int i = 0; i < 2000; i++) {
+			byte[] corrupt = jpeg.clone();
+			for (int j = 0; j < 4; j++) {
+				corrupt[2 + random.nextInt(200)] = (byte) random.nextInt();
+			}
+			ExifThumbnail exif = ExifThumbnail.parse(corrupt, corrupt.length);
+			if (exif != null && exif.hasThumbnail()) {
+				assertTrue(exif.thumbnailOffset + exif.thumbnailLength <= corrupt.length);
+			}
+		}
+	}
+}
@@ -0,0 +1,29 @@
+package com.gmail.brianbridge.camera2integration;
+
+/**
+ * A {@link Clock} that only moves when told to.
+ */
+class FakeClock implements Clock {
+	private long mNanos;
+
+	FakeClock() {
+		this(1000000000L);
+	}
+
+	FakeClock(long startNanos) {
+		mNanos = startNanos;
+	}
+
+	@Override
+	public synchronized long nanoTime() {
+		return mNanos;
+	}
+
+	synchronized void advanceNanos(long nanos) {
+		mNanos += nanos;
+	}
+
+	void advanceMillis(long millis) {
+		advanceNanos(millis * 1000000L);
+	}
+}
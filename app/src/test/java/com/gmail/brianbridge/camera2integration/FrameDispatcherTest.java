@@ -0,0 +1,348 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FrameDispatcherTest {
+
+	private static class Frame {
+		final int id;
+		final AtomicInteger closeCount = new AtomicInteger();
+
+		Frame(int id) {
+			this.id = id;
+		}
+	}
+
+	// Runs tasks only when told to, like a busy analysis thread
+	private static class ManualExecutor implements Executor {
+		final Queue<Runnable> tasks = new ArrayDeque<>();
+
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+
+		void runAll() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+	}
+
+	private static class RecordingAnalyzer implements FrameAnalyzer<Frame> {
+		final List<Integer> analyzed = new ArrayList<>();
+		final FakeClock clock;
+		final long costNanos;
+
+		RecordingAnalyzer(FakeClock clock, long costNanos) {
+			this.clock = clock;
+			this.costNanos = costNanos;
+		}
+
+		@Override
+		public void analyze(Frame frame, long timestampNs) {
+			assertEquals("Analyzing a closed frame", 0, frame.closeCount.get());
+			assertEquals(frame.id * 1000L, timestampNs);
+			analyzed.add(frame.id);
+			clock.advanceNanos(costNanos);
+		}
+	}
+
+	private final FakeClock mClock = new FakeClock();
+	private final ManualExecutor mExecutor = new ManualExecutor();
+	private final FrameDispatcher.Recycler<Frame> mRecycler = new FrameDispatcher.Recycler<Frame>() {
+		@Override
+		public void recycle(Frame frame) {
+			frame.closeCount.incrementAndGet();
+		}
+	};
+	private FrameDispatcher<Frame> mDispatcher;
+
+	@Before
+	public void setUp() {
+		mDispatcher = new FrameDispatcher<>(mExecutor, mRecycler, mClock);
+	}
+
+	private Frame offer(int id) {
+		Frame frame = new Frame(id);
+		mDispatcher.offer(frame, id * 1000L);
+		return frame;
+	}
+
+	@Test
+	public void offer_noAnalyzers_closesRightAway() {
+		Frame frame = offer(1);
+
+		assertEquals(1, frame.closeCount.get());
+		assertTrue(mExecutor.tasks.isEmpty());
+		assertEquals(0, mDispatcher.getAnalyzedCount());
+	}
+
+	@Test
+	public void offer_whileBusy_keepsOnlyLatest() {
+		RecordingAnalyzer analyzer = new RecordingAnalyzer(mClock, 0);
+		mDispatcher.addAnalyzer("a", analyzer);
+
+		Frame first = offer(1);
+		Frame second = offer(2);
+		Frame third = offer(3);
+
+		assertEquals(1, mExecutor.tasks.size());
+		assertEquals(1, first.closeCount.get());
+		assertEquals(1, second.closeCount.get());
+		assertEquals(0, third.closeCount.get());
+
+		mExecutor.runAll();
+
+		assertEquals(Integer.valueOf(3), analyzer.analyzed.get(0));
+		assertEquals(1, analyzer.analyzed.size());
+		assertEquals(1, third.closeCount.get());
+		assertEquals(1, mDispatcher.getAnalyzedCount());
+		assertEquals(2, mDispatcher.getDroppedCount());
+	}
+
+	@Test
+	public void offer_duringAnalysis_isPickedUpBySameTask() {
+		final List<Integer> analyzed = new ArrayList<>();
+		mDispatcher.addAnalyzer("a", new FrameAnalyzer<Frame>() {
+			@Override
+			public void analyze(Frame frame, long timestampNs) {
+				analyzed.add(frame.id);
+				if (frame.id == 1) {
+					// The camera delivers while the first frame is analyzed
+					offer(2);
+					offer(3);
+				}
+			}
+		});
+
+		offer(1);
+		mExecutor.runAll();
+
+		assertEquals(2, analyzed.size());
+		assertEquals(Integer.valueOf(3), analyzed.get(1));
+		assertEquals(2, mDispatcher.getAnalyzedCount());
+		assertEquals(1, mDispatcher.getDroppedCount());
+		assertTrue(mExecutor.tasks.isEmpty());
+	}
+
+	@Test
+	public void analyzers_runInOrder_andAreTimedSeparately() {
+		RecordingAnalyzer fast = new RecordingAnalyzer(mClock, 1000000L);
+		RecordingAnalyzer slow = new RecordingAnalyzer(mClock, 8000000L);
+		mDispatcher.addAnalyzer("fast", fast);
+		mDispatcher.addAnalyzer("slow", slow);
+
+		for (int i = 1; i <= 5; i++) {
+			offer(i);
+			mExecutor.runAll();
+		}
+
+		assertEquals(5, fast.analyzed.size());
+		assertEquals(5, slow.analyzed.size());
+		LatencyHistogram.Snapshot fastSnapshot = mDispatcher.getHistogram("fast").snapshot();
+		LatencyHistogram.Snapshot slowSnapshot = mDispatcher.getHistogram("slow").snapshot();
+		assertEquals(5, fastSnapshot.count);
+		assertEquals(1000000L, fastSnapshot.mean);
+		assertEquals(8000000L, slowSnapshot.mean);
+		assertNull(mDispatcher.getHistogram("missing"));
+	}
+
+	@Test
+	public void addAnalyzer_sameName_replaces() {
+		RecordingAnalyzer first = new RecordingAnalyzer(mClock, 0);
+		RecordingAnalyzer second = new RecordingAnalyzer(mClock, 0);
+		mDispatcher.addAnalyzer("a", first);
+		mDispatcher.addAnalyzer("a", second);
+
+		offer(1);
+		mExecutor.runAll();
+
+		assertTrue(first.analyzed.isEmpty());
+		assertEquals(1, second.analyzed.size());
+
+		mDispatcher.removeAnalyzer("a");
+		assertFalse(mDispatcher.hasAnalyzers());
+	}
+
+	@Test
+	public void failingAnalyzer_doesNotStopOthers_andFrameIsClosed() {
+		RecordingAnalyzer analyzer = new RecordingAnalyzer(mClock, 0);
+		mDispatcher.addAnalyzer("broken", new FrameAnalyzer<Frame>() {
+			@Override
+			public void analyze(Frame frame, long timestampNs) {
+				throw new IllegalStateException("broken");
+			}
+		});
+		mDispatcher.addAnalyzer("ok", analyzer);
+
+		Frame frame = offer(1);
+		mExecutor.runAll();
+
+		assertEquals(1, analyzer.analyzed.size());
+		assertEquals(1, frame.closeCount.get());
+		assertEquals(1, mDispatcher.getFailureCount());
+
+		// The dispatcher is still usable
+		offer(2);
+		mExecutor.runAll();
+		assertEquals(2, analyzer.analyzed.size());
+	}
+
+	@Test
+	public void failingAnalyzer_isReportedOnce() {
+		final List<String> reported = new ArrayList<>();
+		mDispatcher.setFailureListener(new FrameDispatcher.FailureListener() {
+			@Override
+			public void onAnalyzerFailed(String name, RuntimeException error) {
+				reported.add(name + ": " + error.getMessage());
+			}
+		});
+		mDispatcher.addAnalyzer("broken", new FrameAnalyzer<Frame>() {
+			@Override
+			public void analyze(Frame frame, long timestampNs) {
+				throw new IllegalStateException("broken");
+			}
+		});
+
+		for (int i = 0; i < 3; i++) {
+			offer(i);
+			mExecutor.runAll();
+		}
+
+		assertEquals(Arrays.asList("broken: broken"), reported);
+		assertEquals(3, mDispatcher.getFailureCount());
+	}
+
+	@Test
+	public void rejectedExecution_closesFrame_andRecovers() {
+		final boolean[] reject = {true};
+		mDispatcher = new FrameDispatcher<>(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				if (reject[0]) {
+					throw new RejectedExecutionException();
+				}
+				mExecutor.execute(command);
+			}
+		}, mRecycler, mClock);
+		RecordingAnalyzer analyzer = new RecordingAnalyzer(mClock, 0);
+		mDispatcher.addAnalyzer("a", analyzer);
+
+		Frame frame = offer(1);
+		assertEquals(1, frame.closeCount.get());
+		assertEquals(1, mDispatcher.getDroppedCount());
+
+		reject[0] = false;
+		offer(2);
+		mExecutor.runAll();
+		assertEquals(1, analyzer.analyzed.size());
+	}
+
+	@Test
+	public void clear_closesWaitingFrame() {
+		mDispatcher.addAnalyzer("a", new RecordingAnalyzer(mClock, 0));
+		Frame frame = offer(1);
+
+		mDispatcher.clear();
+		mExecutor.runAll();
+
+		assertEquals(1, frame.closeCount.get());
+		assertEquals(0, mDispatcher.getAnalyzedCount());
+	}
+
+	@Test
+	public void clear_whileAnalyzing_runsOnceTheFrameIsClosed() {
+		final Frame[] analyzing = new Frame[1];
+		final List<Integer> cleared = new ArrayList<>();
+		final Runnable onCleared = new Runnable() {
+			@Override
+			public void run() {
+				// Closed by then, the reader can go
+				cleared.add(analyzing[0].closeCount.get());
+			}
+		};
+		mDispatcher.addAnalyzer("a", new FrameAnalyzer<Frame>() {
+			@Override
+			public void analyze(Frame frame, long timestampNs) {
+				if (analyzing[0] == null) {
+					analyzing[0] = frame;
+					// Cleared from another thread in the middle of the analysis
+					offer(2);
+					mDispatcher.clear(onCleared);
+					assertTrue(cleared.isEmpty());
+				}
+			}
+		});
+		offer(1);
+
+		mExecutor.runAll();
+
+		assertEquals(Arrays.asList(1), cleared);
+		assertEquals(1, mDispatcher.getAnalyzedCount());
+		assertEquals(1, mDispatcher.getDroppedCount());
+	}
+
+	@Test
+	public void clear_idle_runsRightAway() {
+		mDispatcher.addAnalyzer("a", new RecordingAnalyzer(mClock, 0));
+		offer(1);
+		mExecutor.runAll();
+		final int[] cleared = new int[1];
+
+		mDispatcher.clear(new Runnable() {
+			@Override
+			public void run() {
+				cleared[0]++;
+			}
+		});
+
+		assertEquals(1, cleared[0]);
+	}
+
+	@Test
+	public void concurrentOffers_closeEveryFrameOnce() throws Exception {
+		ExecutorService analysisThread = Executors.newSingleThreadExecutor();
+		mDispatcher = new FrameDispatcher<>(analysisThread, mRecycler, Clock.SYSTEM);
+		final AtomicInteger inFlight = new AtomicInteger();
+		final AtomicInteger maxInFlight = new AtomicInteger();
+		mDispatcher.addAnalyzer("a", new FrameAnalyzer<Frame>() {
+			@Override
+			public void analyze(Frame frame, long timestampNs) {
+				int current = inFlight.incrementAndGet();
+				maxInFlight.set(Math.max(maxInFlight.get(), current));
+				Thread.yield();
+				inFlight.decrementAndGet();
+			}
+		});
+
+		List<Frame> frames = new ArrayList<>();
+		for (int i = 0; i < 5000; i++) {
+			frames.add(offer(i));
+		}
+		analysisThread.shutdown();
+		assertTrue(analysisThread.awaitTermination(10, TimeUnit.SECONDS));
+
+		for (Frame frame : frames) {
+			assertEquals(1, frame.closeCount.get());
+		}
+		assertEquals(1, maxInFlight.get());
+		assertEquals(5000, mDispatcher.getAnalyzedCount() + mDispatcher.getDroppedCount());
+	}
+}
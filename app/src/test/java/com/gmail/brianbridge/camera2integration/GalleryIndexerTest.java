@@ -0,0 +1,222 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class GalleryIndexerTest {
+	private static final long WINDOW_NS = 500000000L;
+	private static final long SCAN_TIMEOUT_NS = 10000000000L;
+
+	private static class FakeScanner implements GalleryIndexer.Scanner {
+		final List<List<String>> batches = new ArrayList<>();
+		long scheduledDelay = -1; // -1 when not scheduled
+		boolean connected = true;
+
+		@Override
+		public boolean scan(String[] paths) {
+			if (!connected) {
+				return false;
+			}
+			batches.add(Arrays.asList(paths));
+			return true;
+		}
+
+		@Override
+		public void scheduleFlush(long delayNanos) {
+			scheduledDelay = delayNanos;
+		}
+
+		@Override
+		public void cancelFlush() {
+			scheduledDelay = -1;
+		}
+	}
+
+	private final FakeClock mClock = new FakeClock();
+	private final FakeScanner mScanner = new FakeScanner();
+	private GalleryIndexer mIndexer;
+
+	@Before
+	public void setUp() {
+		mIndexer = new GalleryIndexer(mScanner, mClock, 3, WINDOW_NS, 5, SCAN_TIMEOUT_NS);
+	}
+
+	@Test
+	public void fullBatch_isSentAtOnce() {
+		mIndexer.add("a");
+		mIndexer.add("b");
+		assertTrue(mScanner.batches.isEmpty());
+		assertEquals(WINDOW_NS, mScanner.scheduledDelay);
+
+		mIndexer.add("c");
+
+		assertEquals(Arrays.asList(Arrays.asList("a", "b", "c")), mScanner.batches);
+		assertEquals(-1, mScanner.scheduledDelay);
+		assertEquals(0, mIndexer.getQueuedCount());
+		assertEquals(3, mIndexer.getPendingCount());
+	}
+
+	@Test
+	public void partialBatch_isSentWhenTheWindowEnds() {
+		mIndexer.add("a");
+		mClock.advanceMillis(300);
+		mIndexer.add("b");
+		assertEquals(WINDOW_NS, mScanner.scheduledDelay);
+
+		mClock.advanceMillis(200);
+		mIndexer.onFlushTimeout();
+
+		assertEquals(Arrays.asList(Arrays.asList("a", "b")), mScanner.batches);
+	}
+
+	@Test
+	public void staleTimeout_reschedulesTheRest() {
+		mIndexer.add("a");
+		mIndexer.flush();
+		mClock.advanceMillis(400);
+		mIndexer.add("b");
+
+		// The timer of the first batch fires late
+		mClock.advanceMillis(100);
+		mIndexer.onFlushTimeout();
+
+		assertEquals(1, mScanner.batches.size());
+		assertEquals(WINDOW_NS - 100000000L, mScanner.scheduledDelay);
+	}
+
+	@Test
+	public void flush_sendsWhatIsQueued() {
+		mIndexer.flush();
+		assertTrue(mScanner.batches.isEmpty());
+
+		mIndexer.add("a");
+		mIndexer.flush();
+
+		assertEquals(Arrays.asList(Arrays.asList("a")), mScanner.batches);
+		assertEquals(-1, mScanner.scheduledDelay);
+		assertEquals(1, mIndexer.getBatchCount());
+	}
+
+	@Test
+	public void sameFileQueuedTwice_isScannedOnce() {
+		mIndexer.add("pic.jpg");
+		mIndexer.add("pic.jpg");
+		mIndexer.flush();
+
+		assertEquals(Arrays.asList(Arrays.asList("pic.jpg")), mScanner.batches);
+		assertEquals(1, mIndexer.getCoalescedCount());
+	}
+
+	@Test
+	public void sameFileWhileScanning_isScannedAgain() {
+		mIndexer.add("pic.jpg");
+		mIndexer.flush();
+		mIndexer.add("pic.jpg");
+		mIndexer.flush();
+
+		assertEquals(2, mScanner.batches.size());
+		assertEquals(2, mIndexer.getPendingCount());
+		mIndexer.onScanned("pic.jpg");
+		mIndexer.onScanned("pic.jpg");
+		assertEquals(0, mIndexer.getPendingCount());
+		assertEquals(2, mIndexer.getScannedCount());
+	}
+
+	@Test
+	public void pendingFiles_areBounded() {
+		for (int i = 0; i < 5; i++) {
+			assertTrue(mIndexer.add("pic" + i));
+		}
+		assertFalse(mIndexer.add("pic5"));
+		assertEquals(1, mIndexer.getDroppedCount());
+		assertEquals(5, mIndexer.getMaxPendingCount());
+
+		// Scanned files make room
+		mIndexer.onScanned("pic0");
+		assertTrue(mIndexer.add("pic5"));
+	}
+
+	@Test
+	public void scanLatency_isFromQueuingToIndexing() {
+		mIndexer.add("a");
+		mClock.advanceMillis(500);
+		mIndexer.onFlushTimeout();
+		mClock.advanceMillis(20);
+		mIndexer.onScanned("a");
+
+		LatencyHistogram latency = mIndexer.getScanLatencyHistogram();
+		assertEquals(1, latency.getCount());
+		assertEquals(520000000L, latency.getMax(), 520000000L / 50);
+		assertEquals(0, mIndexer.getPendingCount());
+	}
+
+	@Test
+	public void unknownScanResult_isIgnored() {
+		mIndexer.onScanned("a");
+		assertEquals(0, mIndexer.getScannedCount());
+		assertEquals(0, mIndexer.getPendingCount());
+	}
+
+	@Test
+	public void lostScans_expire() {
+		// The scanner service died, nothing is ever reported
+		for (int i = 0; i < 5; i++) {
+			assertTrue(mIndexer.add("pic" + i));
+		}
+		mIndexer.flush();
+		assertFalse(mIndexer.add("pic5"));
+
+		mClock.advanceNanos(SCAN_TIMEOUT_NS);
+
+		assertEquals(0, mIndexer.getPendingCount());
+		assertEquals(5, mIndexer.getExpiredCount());
+		assertTrue(mIndexer.add("pic5"));
+		// Reported too late, not counted
+		mIndexer.onScanned("pic0");
+		assertEquals(0, mIndexer.getScannedCount());
+		assertEquals(1, mIndexer.getPendingCount());
+	}
+
+	@Test
+	public void onlyTheOldestScans_expire() {
+		mIndexer.add("a");
+		mIndexer.flush();
+		mClock.advanceNanos(SCAN_TIMEOUT_NS / 2);
+		mIndexer.add("b");
+		mIndexer.flush();
+
+		mClock.advanceNanos(SCAN_TIMEOUT_NS / 2);
+
+		assertEquals(1, mIndexer.getPendingCount());
+		mIndexer.onScanned("b");
+		assertEquals(0, mIndexer.getPendingCount());
+		assertEquals(1, mIndexer.getScannedCount());
+	}
+
+	@Test
+	public void scanWithoutScanner_isNotPending() {
+		mScanner.connected = false;
+		mIndexer.add("a");
+		mIndexer.add("b");
+		mIndexer.flush();
+
+		assertEquals(0, mIndexer.getPendingCount());
+		assertEquals(2, mIndexer.getDroppedCount());
+
+		mScanner.connected = true;
+		for (int i = 0; i < 5; i++) {
+			assertTrue(mIndexer.add("pic" + i));
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void boundBelowBatchSize_isRejected() {
+		new GalleryIndexer(mScanner, mClock, 8, WINDOW_NS, 4);
+	}
+}
@@ -0,0 +1,83 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JpegWriterTest {
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private static byte[] fakeJpeg(int length) {
+		byte[] bytes = new byte[length];
+		new Random(length).nextBytes(bytes);
+		bytes[0] = (byte) 0xFF;
+		bytes[1] = (byte) 0xD8;
+		bytes[length - 2] = (byte) 0xFF;
+		bytes[length - 1] = (byte) 0xD9;
+		return bytes;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) input.length()];
+			input.readFully(bytes);
+			return bytes;
+		} finally {
+			input.close();
+		}
+	}
+
+	@Test
+	public void write_heapBuffer_bytesUnchanged() throws Exception {
+		byte[] jpeg = fakeJpeg(64 * 1024);
+		File file = mFolder.newFile("pic.jpg");
+
+		assertEquals(jpeg.length, JpegWriter.write(ByteBuffer.wrap(jpeg), file));
+		assertArrayEquals(jpeg, readFile(file));
+	}
+
+	@Test
+	public void write_directBuffer_bytesUnchanged() throws Exception {
+		byte[] jpeg = fakeJpeg(3 * 1024 * 1024 + 7);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(jpeg.length);
+		buffer.put(jpeg).flip();
+		File file = mFolder.newFile("pic.jpg");
+
+		JpegWriter.write(buffer, file);
+		assertArrayEquals(jpeg, readFile(file));
+	}
+
+	@Test
+	public void write_onlyRemainingBytes_positionUntouched() throws Exception {
+		byte[] jpeg = fakeJpeg(4096);
+		ByteBuffer buffer = ByteBuffer.wrap(jpeg);
+		buffer.position(100).limit(1000);
+		File file = mFolder.newFile("pic.jpg");
+
+		assertEquals(900, JpegWriter.write(buffer, file));
+		assertArrayEquals(Arrays.copyOfRange(jpeg, 100, 1000), readFile(file));
+		assertEquals(100, buffer.position());
+		assertEquals(1000, buffer.limit());
+	}
+
+	@Test
+	public void write_existingFile_overwritten() throws Exception {
+		File file = mFolder.newFile("pic.jpg");
+		JpegWriter.write(ByteBuffer.wrap(fakeJpeg(8192)), file);
+
+		byte[] jpeg = fakeJpeg(1024);
+		JpegWriter.write(ByteBuffer.wrap(jpeg), file);
+		assertArrayEquals(jpeg, readFile(file));
+	}
+}
@@ -0,0 +1,97 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void buckets_coverEveryValueWithBoundedError() {
+		for (long value = 0; value < 1L << 40; value = value * 5 / 4 + 1) {
+			int index = LatencyHistogram.bucketIndex(value);
+			long upper = LatencyHistogram.bucketUpperBound(index);
+			assertTrue(value <= upper);
+			assertTrue(index == 0 || LatencyHistogram.bucketUpperBound(index - 1) < value);
+			assertTrue(upper - value <= value / LatencyHistogram.SUB_BUCKETS);
+		}
+	}
+
+	@Test
+	public void buckets_areContiguous() {
+		for (int index = 1; index < 200; index++) {
+			assertEquals(index, LatencyHistogram.bucketIndex(LatencyHistogram.bucketUpperBound(index - 1) + 1));
+		}
+	}
+
+	@Test
+	public void percentiles_withinBucketError() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		// 1ms to 100ms
+		for (int i = 1; i <= 100; i++) {
+			histogram.record(i * 1000000L);
+		}
+		LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(100, snapshot.count);
+		assertEquals(100000000L, snapshot.max);
+		assertEquals(50500000L, snapshot.mean);
+		assertWithin(50000000L, snapshot.p50);
+		assertWithin(90000000L, snapshot.p90);
+		assertWithin(99000000L, snapshot.p99);
+	}
+
+	private static void assertWithin(long expected, long actual) {
+		assertTrue(expected + " vs " + actual, actual >= expected);
+		assertTrue(expected + " vs " + actual, actual <= expected + expected / LatencyHistogram.SUB_BUCKETS);
+	}
+
+	@Test
+	public void percentile_neverAboveMax() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(1000001);
+		assertEquals(1000001, histogram.getValueAtPercentile(99));
+	}
+
+	@Test
+	public void empty_isAllZero() {
+		LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+		assertEquals(0, snapshot.count);
+		assertEquals(0, snapshot.p99);
+		assertEquals(0, snapshot.mean);
+	}
+
+	@Test
+	public void reset_clearsEverything() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(5000);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void concurrentRecords_areAllCounted() throws Exception {
+		final LatencyHistogram histogram = new LatencyHistogram();
+		final int threads = 4;
+		final int records = 50000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			final int offset = t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < records; i++) {
+						histogram.record(i + offset);
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		assertEquals(threads * records, histogram.getCount());
+		assertEquals(records - 1 + threads - 1, histogram.getMax());
+	}
+}
@@ -0,0 +1,94 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.os.Handler;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * {@link CameraExecutors} that only run tasks when told to, on the calling thread, in the order
+ * they were posted to each stage.
+ *
+ * Unlike the contract of {@link CameraExecutors#getHandler(Stage)}, no stage has a handler: there
+ * is no looper on the JVM. Code delivering camera callbacks to a handler can't be run on these,
+ * it gets an {@link UnsupportedOperationException}; post to the stage executors instead.
+ */
+class ManualCameraExecutors extends CameraExecutors {
+	private final ArrayDeque<?>[] mQueues = new ArrayDeque<?>[Stage.values().length];
+	private boolean mRunning;
+
+	ManualCameraExecutors(Clock clock) {
+		super(clock);
+		for (int i = 0; i < mQueues.length; i++) {
+			mQueues[i] = new ArrayDeque<Runnable>();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private ArrayDeque<Runnable> queue(Stage stage) {
+		return (ArrayDeque<Runnable>) mQueues[stage.ordinal()];
+	}
+
+	@Override
+	public void start() {
+		mRunning = true;
+	}
+
+	@Override
+	public void shutdown() {
+		runAll();
+		mRunning = false;
+	}
+
+	@Override
+	public boolean isRunning() {
+		return mRunning;
+	}
+
+	/**
+	 * @throws UnsupportedOperationException always, see the class doc
+	 */
+	@Override
+	public Handler getHandler(Stage stage) {
+		throw new UnsupportedOperationException("No handler for " + stage + " on the JVM.");
+	}
+
+	@Override
+	protected void dispatch(Stage stage, Runnable task) {
+		if (!mRunning) {
+			throw new RejectedExecutionException(stage + " is not running.");
+		}
+		queue(stage).add(task);
+	}
+
+	int pending(Stage stage) {
+		return queue(stage).size();
+	}
+
+	/**
+	 * @return false if there was nothing to run
+	 */
+	boolean runNext(Stage stage) {
+		Runnable task = queue(stage).poll();
+		if (task == null) {
+			return false;
+		}
+		task.run();
+		return true;
+	}
+
+	/**
+	 * Runs every stage until all the queues are empty, including the tasks posted meanwhile.
+	 */
+	void runAll() {
+		boolean ran;
+		do {
+			ran = false;
+			for (Stage stage : Stage.values()) {
+				while (runNext(stage)) {
+					ran = true;
+				}
+			}
+		} while (ran);
+	}
+}
@@ -0,0 +1,170 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class PixelRotatorTest {
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+	private static final int[] DEGREES = {0, 90, 180, 270};
+
+	@AfterClass
+	public static void tearDownClass() {
+		POOL.shutdown();
+	}
+
+	// Reference: quarter turns one at a time, then a horizontal flip
+
+	private static int[] naiveRotate(int[] src, int width, int height, int degrees, boolean mirror) {
+		int[] pixels = src.clone();
+		int w = width;
+		int h = height;
+		for (int turn = 0; turn < degrees / 90; turn++) {
+			int[] turned = new int[pixels.length];
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					// Clockwise: the left column becomes the top row
+					turned[x * h + (h - 1 - y)] = pixels[y * w + x];
+				}
+			}
+			pixels = turned;
+			int swap = w;
+			w = h;
+			h = swap;
+		}
+		if (mirror) {
+			int[] flipped = new int[pixels.length];
+			for (int y = 0; y < h; y++) {
+				for (int x = 0; x < w; x++) {
+					flipped[y * w + (w - 1 - x)] = pixels[y * w + x];
+				}
+			}
+			pixels = flipped;
+		}
+		return pixels;
+	}
+
+	private static int[] randomInts(int length, long seed) {
+		int[] values = new int[length];
+		Random random = new Random(seed);
+		for (int i = 0; i < length; i++) {
+			values[i] = random.nextInt();
+		}
+		return values;
+	}
+
+	private static byte[] toBytes(int[] values, int pixelBytes) {
+		byte[] bytes = new byte[values.length * pixelBytes];
+		for (int i = 0; i < values.length; i++) {
+			for (int b = 0; b < pixelBytes; b++) {
+				bytes[i * pixelBytes + b] = (byte) (values[i] >> (8 * b));
+			}
+		}
+		return bytes;
+	}
+
+	private static void assertRotatesLikeReference(PixelRotator rotator, int width, int height) {
+		int[] src = randomInts(width * height, width * 31 + height);
+		for (int degrees : DEGREES) {
+			for (boolean mirror : new boolean[]{false, true}) {
+				String name = width + "x" + height + " " + degrees + (mirror ? " mirrored" : "");
+				int[] expected = naiveRotate(src, width, height, degrees, mirror);
+
+				int[] argb = new int[src.length];
+				rotator.rotateArgb(src, width, height, degrees, mirror, argb);
+				assertArrayEquals(name, expected, argb);
+
+				byte[] luma = new byte[src.length];
+				rotator.rotateLuma(toBytes(src, 1), width, height, degrees, mirror, luma);
+				assertArrayEquals(name, toBytes(expected, 1), luma);
+
+				byte[] pairs = new byte[2 * src.length];
+				rotator.rotateInterleaved(toBytes(src, 2), width, height, degrees, mirror, pairs);
+				assertArrayEquals(name, toBytes(expected, 2), pairs);
+			}
+		}
+	}
+
+	@Test
+	public void allRotations_matchReference() {
+		PixelRotator rotator = new PixelRotator(null);
+		assertRotatesLikeReference(rotator, 1, 1);
+		assertRotatesLikeReference(rotator, 7, 3);
+		assertRotatesLikeReference(rotator, PixelRotator.TILE_SIZE, PixelRotator.TILE_SIZE);
+		assertRotatesLikeReference(rotator, 100, 41);
+	}
+
+	@Test
+	public void parallelTiles_matchReference() {
+		// Bands of tiles, with partial tiles on both edges
+		assertRotatesLikeReference(new PixelRotator(POOL), 203, 8 * PixelRotator.TILE_SIZE + 5);
+	}
+
+	@Test
+	public void rotateNv21_rotatesBothPlanes() {
+		int width = 64;
+		int height = 36;
+		int chromaWidth = width / 2;
+		int chromaHeight = height / 2;
+		int[] luma = randomInts(width * height, 1);
+		int[] chroma = randomInts(chromaWidth * chromaHeight, 2);
+		byte[] src = new byte[YuvConverter.nv21Size(width, height)];
+		System.arraycopy(toBytes(luma, 1), 0, src, 0, luma.length);
+		System.arraycopy(toBytes(chroma, 2), 0, src, luma.length, 2 * chroma.length);
+
+		byte[] dst = new byte[src.length];
+		new PixelRotator(POOL).rotateNv21(src, width, height, 270, true, dst);
+
+		byte[] expected = new byte[src.length];
+		System.arraycopy(toBytes(naiveRotate(luma, width, height, 270, true), 1), 0, expected, 0, luma.length);
+		System.arraycopy(toBytes(naiveRotate(chroma, chromaWidth, chromaHeight, 270, true), 2), 0,
+				expected, luma.length, 2 * chroma.length);
+		assertArrayEquals(expected, dst);
+	}
+
+	@Test
+	public void degreesFor_followsJpegOrientation() {
+		// Portrait on a sensor mounted at 90 degrees, the usual case for back cameras
+		int degrees = PixelRotator.degreesFor(0, 90);
+		assertEquals(CameraUtil.getOrientation(0, 90), degrees);
+		assertEquals(90, degrees);
+		assertEquals(480, PixelRotator.rotatedWidth(640, 480, degrees));
+		assertEquals(640, PixelRotator.rotatedHeight(640, 480, degrees));
+
+		// Undoing the rotation gives the frame back
+		int[] src = randomInts(640 * 480, 3);
+		int[] rotated = new int[src.length];
+		int[] back = new int[src.length];
+		PixelRotator rotator = new PixelRotator(POOL);
+		rotator.rotateArgb(src, 640, 480, degrees, false, rotated);
+		rotator.rotateArgb(rotated, 480, 640, 360 - degrees, false, back);
+		assertArrayEquals(src, back);
+	}
+
+	@Test
+	public void negativeAndFullTurns_areNormalized() {
+		int[] src = randomInts(12, 4);
+		int[] expected = new int[12];
+		int[] actual = new int[12];
+		PixelRotator rotator = new PixelRotator(null);
+		rotator.rotateArgb(src, 4, 3, 270, false, expected);
+		rotator.rotateArgb(src, 4, 3, -90, false, actual);
+		assertArrayEquals(expected, actual);
+		rotator.rotateArgb(src, 4, 3, 360, false, actual);
+		assertArrayEquals(src, actual);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notRightAngle_throws() {
+		new PixelRotator(null).rotateArgb(new int[4], 2, 2, 45, false, new int[4]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void destinationTooSmall_throws() {
+		new PixelRotator(null).rotateLuma(new byte[16], 4, 4, 90, false, new byte[15]);
+	}
+}
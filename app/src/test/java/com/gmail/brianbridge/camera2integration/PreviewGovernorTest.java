@@ -0,0 +1,240 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PreviewGovernorTest {
+	private static final long VGA = ResolutionPlanner.pack(640, 480);
+	private static final long SVGA = ResolutionPlanner.pack(800, 600);
+	private static final long XGA = ResolutionPlanner.pack(1024, 768);
+	private static final long SXGA = ResolutionPlanner.pack(1280, 960);
+	private static final long TOP = ResolutionPlanner.pack(1440, 1080);
+	private static final long[] SIZES = {VGA, SVGA, XGA, SXGA, TOP};
+	// The first window after a step only sets the baseline, then come the cooldown windows
+	private static final int AFTER_STEP = 1 + PreviewGovernor.COOLDOWN_WINDOWS;
+
+	private final List<Long> mResizes = new ArrayList<>();
+	private boolean mRefuse;
+	private final PreviewGovernor mGovernor = new PreviewGovernor(new PreviewGovernor.Preview() {
+		@Override
+		public boolean resize(long previewSize) {
+			if (mRefuse) {
+				return false;
+			}
+			mResizes.add(previewSize);
+			return true;
+		}
+	});
+
+	// Counters since the preview started
+	private long mSensor;
+	private long mDisplayed;
+	private long mOffered;
+	private long mDropped;
+
+	@Before
+	public void setUp() {
+		assertEquals(TOP, mGovernor.setSizes(SIZES));
+		// Baseline
+		window(0, 0, 0, 0);
+	}
+
+	private void window(int sensor, int displayed, int offered, int dropped) {
+		mSensor += sensor;
+		mDisplayed += displayed;
+		mOffered += offered;
+		mDropped += dropped;
+		mGovernor.onWindow(mSensor, mDisplayed, mOffered, mDropped);
+	}
+
+	private void healthy(int windows) {
+		for (int i = 0; i < windows; i++) {
+			window(30, 30, 30, 0);
+		}
+	}
+
+	/**
+	 * A third of the frames not displayed.
+	 */
+	private void janky(int windows) {
+		for (int i = 0; i < windows; i++) {
+			window(30, 20, 30, 0);
+		}
+	}
+
+	@Test
+	public void healthyTrace_staysAtTheTop() {
+		healthy(100);
+
+		assertTrue(mResizes.isEmpty());
+		assertEquals(TOP, mGovernor.getPreviewSize());
+	}
+
+	@Test
+	public void jankyTrace_stepsDownAfterTwoWindows() {
+		janky(1);
+		assertTrue(mResizes.isEmpty());
+
+		janky(1);
+		assertEquals(1, mResizes.size());
+		assertEquals(SXGA, mGovernor.getPreviewSize());
+		assertEquals(1, mGovernor.getStepsDown());
+	}
+
+	@Test
+	public void lastingJank_stepsDownOnceEveryCooldown() {
+		janky(2);
+		janky(AFTER_STEP + 1);
+		assertEquals(1, mResizes.size());
+
+		janky(1);
+		assertEquals(2, mResizes.size());
+		assertEquals(XGA, mGovernor.getPreviewSize());
+
+		// Down to the smallest size, and no further
+		janky(100);
+		assertEquals(VGA, mGovernor.getPreviewSize());
+		assertEquals(4, mResizes.size());
+	}
+
+	@Test
+	public void singleJankyWindow_holds() {
+		for (int i = 0; i < 20; i++) {
+			janky(1);
+			healthy(1);
+		}
+
+		assertTrue(mResizes.isEmpty());
+	}
+
+	@Test
+	public void lowLightFrameRate_isNoLoad() {
+		// Half the frame rate, all of it displayed
+		for (int i = 0; i < 50; i++) {
+			window(15, 15, 15, 0);
+		}
+
+		assertTrue(mResizes.isEmpty());
+	}
+
+	@Test
+	public void analysisBacklog_stepsDown() {
+		for (int i = 0; i < 2; i++) {
+			window(30, 30, 30, 10);
+		}
+
+		assertEquals(SXGA, mGovernor.getPreviewSize());
+	}
+
+	@Test
+	public void fewFrames_areNotJudged() {
+		// The preview barely ran, e.g. paused during the window
+		for (int i = 0; i < 10; i++) {
+			window(PreviewGovernor.MIN_WINDOW_FRAMES - 1, 0, 0, 0);
+		}
+
+		assertTrue(mResizes.isEmpty());
+	}
+
+	@Test
+	public void restartedWindow_isOnlyABaseline() {
+		janky(1);
+		mGovernor.restartWindow();
+		// Frames started while the preview was stopped and not displayed
+		window(30, 0, 0, 0);
+		assertTrue(mResizes.isEmpty());
+
+		janky(1);
+		assertEquals(1, mResizes.size());
+	}
+
+	@Test
+	public void healthyAgain_stepsBackUp() {
+		janky(2);
+		healthy(AFTER_STEP + PreviewGovernor.UP_WINDOWS - 1);
+		assertEquals(SXGA, mGovernor.getPreviewSize());
+
+		healthy(1);
+		assertEquals(TOP, mGovernor.getPreviewSize());
+		assertEquals(1, mGovernor.getStepsUp());
+	}
+
+	@Test
+	public void stepUpNotHeld_takesTwiceAsLongNextTime() {
+		janky(2);
+		healthy(AFTER_STEP + PreviewGovernor.UP_WINDOWS);
+		assertEquals(TOP, mGovernor.getPreviewSize());
+		// Can't hold it
+		janky(AFTER_STEP + 2);
+		assertEquals(SXGA, mGovernor.getPreviewSize());
+
+		healthy(AFTER_STEP + 2 * PreviewGovernor.UP_WINDOWS - 1);
+		assertEquals(SXGA, mGovernor.getPreviewSize());
+		healthy(1);
+		assertEquals(TOP, mGovernor.getPreviewSize());
+	}
+
+	@Test
+	public void stepUpHeld_restoresTheUsualWait() {
+		janky(2);
+		healthy(AFTER_STEP + PreviewGovernor.UP_WINDOWS);
+		janky(AFTER_STEP + 2);
+		healthy(AFTER_STEP + 2 * PreviewGovernor.UP_WINDOWS);
+		assertEquals(TOP, mGovernor.getPreviewSize());
+		healthy(PreviewGovernor.PROBE_WINDOWS);
+
+		janky(AFTER_STEP + 2);
+		assertEquals(SXGA, mGovernor.getPreviewSize());
+		healthy(AFTER_STEP + PreviewGovernor.UP_WINDOWS);
+		assertEquals(TOP, mGovernor.getPreviewSize());
+	}
+
+	@Test
+	public void closeSizes_areSkipped() {
+		long close = ResolutionPlanner.pack(1200, 900); // Less than MIN_AREA_STEP below SXGA
+		mGovernor.setSizes(new long[]{VGA, close, SXGA});
+		window(0, 0, 0, 0);
+
+		janky(2);
+
+		assertEquals(VGA, mGovernor.getPreviewSize());
+	}
+
+	@Test
+	public void refusedResize_isRetried() {
+		mRefuse = true;
+		janky(5);
+		assertEquals(TOP, mGovernor.getPreviewSize());
+
+		mRefuse = false;
+		janky(1);
+		assertEquals(SXGA, mGovernor.getPreviewSize());
+	}
+
+	@Test
+	public void newConfiguration_startsAtTheSizeSteppedDownTo() {
+		janky(2);
+		janky(AFTER_STEP + 2);
+		assertEquals(XGA, mGovernor.getPreviewSize());
+
+		assertEquals(XGA, mGovernor.setSizes(SIZES));
+		// A ladder without that size starts below it
+		assertEquals(SVGA, mGovernor.setSizes(new long[]{VGA, SVGA, SXGA}));
+	}
+
+	@Test
+	public void singleSize_neverResizes() {
+		assertEquals(TOP, mGovernor.setSizes(new long[]{TOP}));
+		window(0, 0, 0, 0);
+
+		janky(20);
+
+		assertTrue(mResizes.isEmpty());
+		assertEquals(ResolutionPlanner.NO_SIZE, mGovernor.setSizes(new long[0]));
+	}
+}
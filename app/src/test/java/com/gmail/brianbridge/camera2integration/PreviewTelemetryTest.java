@@ -0,0 +1,137 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class PreviewTelemetryTest {
+	private static final long FRAME_NS = 33333333L; // 30fps
+	private static final long START_NS = 5000000000L;
+
+	private final PreviewTelemetry mTelemetry = new PreviewTelemetry();
+
+	/**
+	 * @return The timestamp of the last frame
+	 */
+	private long sensorFrames(long first, int count, long interval) {
+		long timestamp = first;
+		for (int i = 0; i < count; i++) {
+			timestamp = first + i * interval;
+			mTelemetry.onSensorFrame(timestamp);
+		}
+		return timestamp;
+	}
+
+	@Test
+	public void steadyPreview_hasNoLongFrames() {
+		sensorFrames(START_NS, 31, FRAME_NS);
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(31, snapshot.sensorFrames);
+		assertEquals(30, snapshot.sensorIntervals.count);
+		assertEquals(30.0, snapshot.sensorFps, 0.01);
+		assertEquals(FRAME_NS, snapshot.typicalSensorIntervalNanos);
+		assertEquals(0, snapshot.longSensorFrames);
+		assertEquals(0, snapshot.skippedSensorFrames);
+	}
+
+	@Test
+	public void gap_isALongFrameWithSkippedFrames() {
+		long last = sensorFrames(START_NS, 10, FRAME_NS);
+		// Two frames missing
+		sensorFrames(last + 3 * FRAME_NS, 10, FRAME_NS);
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(1, snapshot.longSensorFrames);
+		assertEquals(2, snapshot.skippedSensorFrames);
+		assertEquals(3 * FRAME_NS, snapshot.sensorIntervals.max);
+		// 18 intervals of one frame and one of three
+		assertEquals(19 * 1e9 / (21 * FRAME_NS), snapshot.sensorFps, 0.01);
+	}
+
+	@Test
+	public void lowerFrameRate_settlesAsTheTypicalInterval() {
+		long last = sensorFrames(START_NS, 30, FRAME_NS);
+		last = sensorFrames(last + 2 * FRAME_NS, 30, 2 * FRAME_NS);
+		long longFrames = mTelemetry.snapshot().longSensorFrames;
+		assertTrue(longFrames > 0);
+		assertTrue(String.valueOf(longFrames), longFrames <= 5);
+
+		sensorFrames(last + 2 * FRAME_NS, 30, 2 * FRAME_NS);
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(longFrames, snapshot.longSensorFrames);
+		assertEquals(2 * FRAME_NS, snapshot.typicalSensorIntervalNanos, FRAME_NS / 100);
+	}
+
+	@Test
+	public void stoppedPreview_isNotAnInterval() {
+		long last = sensorFrames(START_NS, 10, FRAME_NS);
+		mTelemetry.onPreviewStopped();
+		sensorFrames(last + 1000000000L, 10, FRAME_NS);
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(20, snapshot.sensorFrames);
+		assertEquals(18, snapshot.sensorIntervals.count);
+		assertEquals(0, snapshot.longSensorFrames);
+		assertEquals(30.0, snapshot.sensorFps, 0.01);
+	}
+
+	@Test
+	public void outOfOrderTimestamp_isIgnored() {
+		long last = sensorFrames(START_NS, 5, FRAME_NS);
+		mTelemetry.onSensorFrame(last);
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(6, snapshot.sensorFrames);
+		assertEquals(4, snapshot.sensorIntervals.count);
+	}
+
+	@Test
+	public void displayFrames_recordTheGapToTheSensor() {
+		long latency = 50000000L;
+		for (int i = 0; i < 10; i++) {
+			long sensor = START_NS + i * FRAME_NS;
+			// The sixth frame is drawn late
+			long drawn = sensor + latency + (i == 5 ? 3 * FRAME_NS / 4 : 0);
+			mTelemetry.onDisplayFrame(drawn, sensor);
+		}
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(10, snapshot.displayFrames);
+		assertEquals(9, snapshot.displayIntervals.count);
+		assertEquals(10, snapshot.sensorToDisplay.count);
+		assertEquals(latency + 3 * FRAME_NS / 4, snapshot.sensorToDisplay.max);
+		assertEquals(1, snapshot.longDisplayFrames);
+		assertEquals(0, snapshot.sensorFrames);
+	}
+
+	@Test
+	public void displayFrames_withoutSensorTimestamp_haveNoGap() {
+		mTelemetry.onDisplayFrame(START_NS, PreviewTelemetry.NO_TIMESTAMP);
+		mTelemetry.onDisplayFrame(START_NS + FRAME_NS, PreviewTelemetry.NO_TIMESTAMP);
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(2, snapshot.displayFrames);
+		assertEquals(30.0, snapshot.displayFps, 0.01);
+		assertEquals(0, snapshot.sensorToDisplay.count);
+	}
+
+	@Test
+	public void reset_startsOver() {
+		sensorFrames(START_NS, 10, FRAME_NS);
+		mTelemetry.onDisplayFrame(START_NS + FRAME_NS, START_NS);
+		mTelemetry.reset();
+
+		PreviewTelemetry.Snapshot snapshot = mTelemetry.snapshot();
+		assertEquals(0, snapshot.sensorFrames);
+		assertEquals(0, snapshot.sensorIntervals.count);
+		assertEquals(0, snapshot.displayFrames);
+		assertEquals(0, snapshot.sensorToDisplay.count);
+		assertEquals(0, snapshot.sensorFps, 0);
+
+		// The next frame doesn't make an interval with the ones before the reset
+		mTelemetry.onSensorFrame(START_NS + 20 * FRAME_NS);
+		assertEquals(0, mTelemetry.snapshot().sensorIntervals.count);
+	}
+}
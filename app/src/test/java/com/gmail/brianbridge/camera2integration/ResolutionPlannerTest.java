@@ -0,0 +1,337 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResolutionPlannerTest {
+	// Real JPEG size tables, in the (descending) order StreamConfigurationMap reports them
+	private static final int[] PIXEL_JPEG = {
+			4048, 3036, 4000, 3000, 3840, 2160, 3264, 2448, 3200, 2400, 2592, 1944, 2688, 1512,
+			2048, 1536, 1920, 1080, 1600, 1200, 1440, 1080, 1280, 960, 1280, 768, 1280, 720,
+			1024, 768, 800, 600, 720, 480, 640, 480, 640, 360, 352, 288, 320, 240, 176, 144};
+	private static final int[] PIXEL_PREVIEW = {
+			1920, 1080, 1440, 1080, 1280, 960, 1280, 768, 1280, 720, 1024, 768, 800, 600,
+			720, 480, 640, 480, 640, 360, 352, 288, 320, 240, 176, 144};
+	private static final int[] SAMSUNG_JPEG = {
+			4032, 3024, 4032, 2268, 3024, 3024, 3984, 2988, 3264, 2448, 3264, 1836, 2560, 1440,
+			2160, 2160, 2048, 1152, 1920, 1080, 1440, 1080, 1088, 1088, 1280, 720, 960, 720,
+			720, 480, 640, 480, 320, 240, 176, 144};
+	private static final int[] SAMSUNG_PREVIEW = {
+			2160, 1080, 1920, 1080, 1440, 1080, 1088, 1088, 1280, 720, 1056, 704, 1024, 768,
+			960, 720, 800, 450, 720, 720, 720, 480, 640, 480, 352, 288, 320, 240, 256, 144, 176, 144};
+	// Every size of the tables above, all of them with an exact ratio
+	private static final int[] SIZE_POOL = {
+			4048, 3036, 4032, 3024, 4032, 2268, 4000, 3000, 3984, 2988, 3840, 2160, 3264, 2448,
+			3264, 1836, 3200, 2400, 3024, 3024, 2688, 1512, 2592, 1944, 2560, 1440, 2160, 2160,
+			2160, 1080, 2048, 1536, 2048, 1152, 1920, 1080, 1600, 1200, 1440, 1080, 1280, 960,
+			1280, 768, 1280, 720, 1088, 1088, 1056, 704, 1024, 768, 960, 720, 800, 600, 800, 450,
+			720, 720, 720, 480, 640, 480, 640, 360, 352, 288, 320, 240, 256, 144, 176, 144};
+
+	private static final int[][] VIEW_SIZES = {
+			{1080, 1920}, {1920, 1080}, {1080, 1794}, {1794, 1080}, {1440, 2560}, {720, 1280},
+			{480, 800}, {1080, 2160}, {1200, 1920}, {300, 300}, {1, 1}, {4000, 4000}};
+	private static final int[][] DISPLAY_SIZES = {
+			{1080, 1920}, {1920, 1080}, {1440, 2560}, {720, 1280}, {1080, 2220}, {480, 854}};
+	private static final int[] SENSOR_ORIENTATIONS = {0, 90, 180, 270};
+
+	/**
+	 * The sizes selection of Camera2BaseFragment#initCamera before the planner, on int pairs.
+	 */
+	private static int[] legacyLargest(int[] jpeg) {
+		int[] largest = null;
+		for (int i = 0; i < jpeg.length; i += 2) {
+			int w = jpeg[i];
+			int h = jpeg[i + 1];
+			if ((float) w / h == (float) 4 / 3) {
+				if (w * h < 1000000) {
+					break;
+				}
+				largest = new int[]{w, h};
+			}
+		}
+		if (largest == null) {
+			largest = Collections.max(pairs(jpeg), BY_AREA);
+		}
+		return largest;
+	}
+
+	/**
+	 * A copy of CameraUtil#chooseOptimalSize, on int pairs.
+	 */
+	private static int[] legacyChooseOptimalSize(int[] choices, int textureViewWidth, int textureViewHeight,
+												 int maxWidth, int maxHeight, int[] aspectRatio) {
+		List<int[]> bigEnough = new ArrayList<>();
+		List<int[]> notBigEnough = new ArrayList<>();
+		int w = aspectRatio[0];
+		int h = aspectRatio[1];
+		for (int[] option : pairs(choices)) {
+			if (option[0] <= maxWidth && option[1] <= maxHeight &&
+					option[1] == option[0] * h / w) {
+				if (option[0] >= textureViewWidth &&
+						option[1] >= textureViewHeight) {
+					bigEnough.add(option);
+				} else {
+					notBigEnough.add(option);
+				}
+			}
+		}
+		if (bigEnough.size() > 0) {
+			return Collections.min(bigEnough, BY_AREA);
+		} else if (notBigEnough.size() > 0) {
+			return Collections.max(notBigEnough, BY_AREA);
+		} else {
+			return new int[]{choices[0], choices[1]};
+		}
+	}
+
+	private static int[] legacyPreview(int[] preview, int sensorOrientation, int displayRotation,
+									   int width, int height, int displayWidth, int displayHeight, int[] largest) {
+		int rotatedPreviewWidth = width;
+		int rotatedPreviewHeight = height;
+		int maxPreviewWidth = displayWidth;
+		int maxPreviewHeight = displayHeight;
+		if (ResolutionPlanner.isDimensionSwapped(displayRotation, sensorOrientation)) {
+			rotatedPreviewWidth = height;
+			rotatedPreviewHeight = width;
+			maxPreviewWidth = displayHeight;
+			maxPreviewHeight = displayWidth;
+		}
+		if (maxPreviewWidth > CameraUtil.API2_MAX_PREVIEW_WIDTH) {
+			maxPreviewWidth = CameraUtil.API2_MAX_PREVIEW_WIDTH;
+		}
+		if (maxPreviewHeight > CameraUtil.API2_MAX_PREVIEW_HEIGHT) {
+			maxPreviewHeight = CameraUtil.API2_MAX_PREVIEW_HEIGHT;
+		}
+		return legacyChooseOptimalSize(preview, rotatedPreviewWidth, rotatedPreviewHeight,
+				maxPreviewWidth, maxPreviewHeight, largest);
+	}
+
+	private static final Comparator<int[]> BY_AREA = new Comparator<int[]>() {
+		@Override
+		public int compare(int[] lhs, int[] rhs) {
+			return Long.signum((long) lhs[0] * lhs[1] - (long) rhs[0] * rhs[1]);
+		}
+	};
+
+	private static List<int[]> pairs(int[] packed) {
+		List<int[]> list = new ArrayList<>();
+		for (int i = 0; i < packed.length; i += 2) {
+			list.add(new int[]{packed[i], packed[i + 1]});
+		}
+		return list;
+	}
+
+	private static int[] unpack(long size) {
+		return new int[]{ResolutionPlanner.width(size), ResolutionPlanner.height(size)};
+	}
+
+	private static int[] sortedDescending(int[] packed) {
+		List<int[]> list = pairs(packed);
+		Collections.sort(list, Collections.reverseOrder(BY_AREA));
+		int[] sorted = new int[packed.length];
+		for (int i = 0; i < list.size(); i++) {
+			sorted[i * 2] = list.get(i)[0];
+			sorted[i * 2 + 1] = list.get(i)[1];
+		}
+		return sorted;
+	}
+
+	private static void assertMatchesLegacy(int[] jpeg, int[] preview) {
+		for (int sensorOrientation : SENSOR_ORIENTATIONS) {
+			ResolutionPlanner planner = new ResolutionPlanner(jpeg, preview, sensorOrientation);
+			int[] largest = legacyLargest(jpeg);
+			long capture = planner.chooseCaptureSize(4, 3, ResolutionPlanner.DEFAULT_MIN_CAPTURE_AREA);
+			assertArrayEquals(largest, unpack(capture));
+
+			for (int rotation = 0; rotation < 4; rotation++) {
+				for (int[] view : VIEW_SIZES) {
+					for (int[] display : DISPLAY_SIZES) {
+						int[] expected = legacyPreview(preview, sensorOrientation, rotation,
+								view[0], view[1], display[0], display[1], largest);
+						long actual = planner.choosePreviewSize(view[0], view[1], display[0], display[1],
+								rotation, capture);
+						assertArrayEquals("sensor " + sensorOrientation + " rotation " + rotation
+										+ " view " + Arrays.toString(view) + " display " + Arrays.toString(display),
+								expected, unpack(actual));
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void realTables_matchLegacySelection() {
+		assertMatchesLegacy(PIXEL_JPEG, PIXEL_PREVIEW);
+		assertMatchesLegacy(SAMSUNG_JPEG, SAMSUNG_PREVIEW);
+	}
+
+	@Test
+	public void randomTables_matchLegacySelection() {
+		Random random = new Random(42);
+		for (int round = 0; round < 200; round++) {
+			assertMatchesLegacy(randomTable(random), randomTable(random));
+		}
+	}
+
+	@Test
+	public void randomAspectRatiosAndBounds_matchLegacyChooseOptimalSize() {
+		Random random = new Random(7);
+		for (int round = 0; round < 300; round++) {
+			int[] preview = randomTable(random);
+			ResolutionPlanner planner = new ResolutionPlanner(new int[0], preview, 90);
+			for (int query = 0; query < 50; query++) {
+				int a = random.nextInt(SIZE_POOL.length / 2) * 2;
+				int[] aspect = {SIZE_POOL[a], SIZE_POOL[a + 1]};
+				int viewWidth = 1 + random.nextInt(3000);
+				int viewHeight = 1 + random.nextInt(3000);
+				int maxWidth = 1 + random.nextInt(4000);
+				int maxHeight = 1 + random.nextInt(4000);
+				assertArrayEquals(
+						legacyChooseOptimalSize(preview, viewWidth, viewHeight, maxWidth, maxHeight, aspect),
+						unpack(planner.chooseOptimalSize(viewWidth, viewHeight, maxWidth, maxHeight, aspect[0], aspect[1])));
+			}
+		}
+	}
+
+	private static int[] randomTable(Random random) {
+		int count = 1 + random.nextInt(SIZE_POOL.length / 2);
+		List<int[]> pool = pairs(SIZE_POOL);
+		Collections.shuffle(pool, random);
+		int[] table = new int[count * 2];
+		for (int i = 0; i < count; i++) {
+			table[i * 2] = pool.get(i)[0];
+			table[i * 2 + 1] = pool.get(i)[1];
+		}
+		return sortedDescending(table);
+	}
+
+	@Test
+	public void captureSize_noFourThree_fallsBackToLargest() {
+		ResolutionPlanner planner = new ResolutionPlanner(
+				new int[]{1920, 1080, 3840, 2160, 1280, 720}, new int[]{1920, 1080}, 90);
+		assertArrayEquals(new int[]{3840, 2160}, unpack(planner.chooseCaptureSize(4, 3, 1000000)));
+	}
+
+	@Test
+	public void captureSize_isIndependentOfCameraOrder() {
+		int[] shuffled = {640, 480, 4032, 3024, 1600, 1200, 3264, 2448, 800, 600};
+		ResolutionPlanner planner = new ResolutionPlanner(shuffled, new int[]{640, 480}, 90);
+		assertArrayEquals(new int[]{1600, 1200}, unpack(planner.chooseCaptureSize(4, 3, 1000000)));
+		assertArrayEquals(new int[]{4032, 3024}, unpack(planner.chooseCaptureSize(4, 3, 10000000)));
+	}
+
+	@Test
+	public void aspectRatio_comparedWithTolerance() {
+		// 1366x768 is not exactly 16:9 but is within tolerance
+		ResolutionPlanner planner = new ResolutionPlanner(new int[0],
+				new int[]{1366, 768, 640, 480}, 0);
+		assertArrayEquals(new int[]{1366, 768},
+				unpack(planner.chooseOptimalSize(1000, 500, 1920, 1080, 16, 9)));
+		// 1920x1088 is too far from 16:9
+		planner = new ResolutionPlanner(new int[0], new int[]{1920, 1088, 640, 360}, 0);
+		assertArrayEquals(new int[]{640, 360},
+				unpack(planner.chooseOptimalSize(1000, 500, 1920, 1088, 16, 9)));
+	}
+
+	@Test
+	public void nonMonotonicBucket_usesLinearScan() {
+		// Both within tolerance of 16:9, but the wider one is shorter
+		int[] preview = {1922, 1080, 1920, 1082, 1280, 720};
+		ResolutionPlanner planner = new ResolutionPlanner(new int[0], preview, 0);
+		assertArrayEquals(new int[]{1922, 1080},
+				unpack(planner.chooseOptimalSize(1921, 1000, 1922, 1080, 16, 9)));
+		assertArrayEquals(new int[]{1280, 720},
+				unpack(planner.chooseOptimalSize(1921, 1000, 1921, 1081, 16, 9)));
+	}
+
+	@Test
+	public void noMatchingRatio_returnsFirstSize() {
+		ResolutionPlanner planner = new ResolutionPlanner(new int[0], new int[]{1080, 1080, 720, 720}, 0);
+		assertArrayEquals(new int[]{1080, 1080},
+				unpack(planner.chooseOptimalSize(100, 100, 1920, 1080, 4, 3)));
+	}
+
+	@Test
+	public void emptyTables_returnNoSize() {
+		ResolutionPlanner planner = new ResolutionPlanner(new int[0], new int[0], 90);
+		assertEquals(ResolutionPlanner.NO_SIZE, planner.chooseCaptureSize(4, 3, 1000000));
+		assertEquals(ResolutionPlanner.NO_SIZE, planner.choosePreviewSize(1080, 1920, 1080, 1920, 0,
+				ResolutionPlanner.pack(4, 3)));
+	}
+
+	@Test
+	public void repeatedQueries_areMemoized() {
+		ResolutionPlanner planner = new ResolutionPlanner(PIXEL_JPEG, PIXEL_PREVIEW, 90);
+		long capture = planner.chooseCaptureSize(4, 3, 1000000);
+		long preview = planner.choosePreviewSize(1080, 1794, 1080, 1920, 0, capture);
+		assertEquals(2, planner.getMemoMisses());
+
+		for (int i = 0; i < 10; i++) {
+			assertEquals(capture, planner.chooseCaptureSize(4, 3, 1000000));
+			assertEquals(preview, planner.choosePreviewSize(1080, 1794, 1080, 1920, 0, capture));
+		}
+		assertEquals(2, planner.getMemoMisses());
+		assertEquals(20, planner.getMemoHits());
+
+		// A rotation is a different key
+		planner.choosePreviewSize(1794, 1080, 1920, 1080, 1, capture);
+		assertEquals(3, planner.getMemoMisses());
+	}
+
+	@Test
+	public void previewSizesUpTo_sameRatioNoLarger() {
+		ResolutionPlanner planner = new ResolutionPlanner(PIXEL_JPEG, PIXEL_PREVIEW, 90);
+
+		assertArrayEquals(new long[]{
+				ResolutionPlanner.pack(320, 240),
+				ResolutionPlanner.pack(640, 480),
+				ResolutionPlanner.pack(800, 600),
+				ResolutionPlanner.pack(1024, 768),
+				ResolutionPlanner.pack(1280, 960)}, planner.previewSizesUpTo(ResolutionPlanner.pack(1280, 960)));
+		assertArrayEquals(new long[]{
+				ResolutionPlanner.pack(640, 360),
+				ResolutionPlanner.pack(1280, 720)}, planner.previewSizesUpTo(ResolutionPlanner.pack(1280, 720)));
+	}
+
+	@Test
+	public void previewSizesUpTo_unknownSize_isAlone() {
+		ResolutionPlanner planner = new ResolutionPlanner(PIXEL_JPEG, new int[]{1920, 1080, 1920, 1080, 1280, 720}, 90);
+
+		// Repeated sizes are listed once
+		assertArrayEquals(new long[]{ResolutionPlanner.pack(1280, 720), ResolutionPlanner.pack(1920, 1080)},
+				planner.previewSizesUpTo(ResolutionPlanner.pack(1920, 1080)));
+		assertArrayEquals(new long[]{ResolutionPlanner.pack(1600, 900)},
+				planner.previewSizesUpTo(ResolutionPlanner.pack(1600, 900)));
+		assertArrayEquals(new long[]{ResolutionPlanner.pack(640, 480)},
+				planner.previewSizesUpTo(ResolutionPlanner.pack(640, 480)));
+		assertEquals(0, planner.previewSizesUpTo(ResolutionPlanner.NO_SIZE).length);
+	}
+
+	@Test
+	public void packedSize_roundTrips() {
+		long size = ResolutionPlanner.pack(4032, 3024);
+		assertEquals(4032, ResolutionPlanner.width(size));
+		assertEquals(3024, ResolutionPlanner.height(size));
+	}
+
+	@Test
+	public void thumbnailSize_prefersLargestOfCaptureRatio() {
+		int[] sizes = {0, 0, 160, 120, 320, 240, 512, 288, 256, 144};
+		long fourThree = ResolutionPlanner.pack(4032, 3024);
+		long sixteenNine = ResolutionPlanner.pack(3840, 2160);
+		long square = ResolutionPlanner.pack(3024, 3024);
+
+		assertEquals(ResolutionPlanner.pack(320, 240), ResolutionPlanner.chooseThumbnailSize(sizes, fourThree));
+		assertEquals(ResolutionPlanner.pack(512, 288), ResolutionPlanner.chooseThumbnailSize(sizes, sixteenNine));
+		assertEquals(ResolutionPlanner.pack(512, 288), ResolutionPlanner.chooseThumbnailSize(sizes, square));
+		assertEquals(ResolutionPlanner.NO_SIZE, ResolutionPlanner.chooseThumbnailSize(new int[]{0, 0}, fourThree));
+	}
+}
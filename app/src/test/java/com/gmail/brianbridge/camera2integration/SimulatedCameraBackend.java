@@ -0,0 +1,524 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureResult;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link CameraBackend} on a plain JVM, with its own camera thread. The preview produces
+ * synthetic YUV frames at the frame rate, and stills are synthetic JPEG payloads of the still size,
+ * both from pools of {@link #MAX_IMAGES} frames like an {@code ImageReader}: a frame that finds its
+ * pool empty is dropped.
+ *
+ * The AF and AE states of the results follow scripts, and open, session, still and close latencies,
+ * still failures, disconnects and device errors can be injected. Configure it before opening.
+ */
+class SimulatedCameraBackend implements CameraBackend<SimulatedCameraBackend.Frame> {
+	static final int MAX_IMAGES = 4;
+	static final int NO_ERROR = 0;
+
+	static class Frame {
+		final ByteBuffer buffer; // Direct, like the plane of an Image
+		final int width;
+		final int height;
+		volatile long timestamp;
+		private final BlockingQueue<Frame> mPool;
+
+		Frame(int width, int height, int length, BlockingQueue<Frame> pool) {
+			this.width = width;
+			this.height = height;
+			buffer = ByteBuffer.allocateDirect(length);
+			mPool = pool;
+		}
+
+		ByteBuffer getBuffer() {
+			return buffer.duplicate();
+		}
+
+		void close() {
+			mPool.offer(this);
+		}
+	}
+
+	/**
+	 * Takes the preview frames, on the camera thread. Closing them is up to the sink.
+	 */
+	interface PreviewSink {
+		void onPreviewFrame(Frame frame);
+	}
+
+	private final ScheduledExecutorService mCameraThread = Executors.newSingleThreadScheduledExecutor();
+	private final Random mRandom = new Random(0);
+	private volatile Listener<Frame> mListener;
+	private volatile PreviewSink mPreviewSink;
+
+	// Config
+	private volatile long mFrameIntervalNanos = 1000000000L / 30;
+	private volatile BlockingQueue<Frame> mPreviewPool = createPool(640, 480, 640 * 480 * 3 / 2, false);
+	private volatile BlockingQueue<Frame> mStillPool = createPool(1600, 1200, 1600 * 1200 / 3, true);
+	private volatile Integer[] mFocusScript = {CaptureResult.CONTROL_AF_STATE_FOCUSED_LOCKED};
+	private volatile Integer[] mPrecaptureScript = {CaptureResult.CONTROL_AE_STATE_CONVERGED};
+	private volatile Integer mAeState = CaptureResult.CONTROL_AE_STATE_CONVERGED;
+	private volatile long mOpenLatencyNanos;
+	private volatile long mSessionLatencyNanos;
+	private volatile long mStillLatencyNanos;
+	private volatile long mCloseLatencyNanos;
+	private volatile double mStillFailureRate;
+	private volatile int mOpenError = NO_ERROR;
+	private volatile boolean mDisconnectAtLock;
+
+	// Device, bumped by every open and close: tasks of an earlier device are dropped
+	private final AtomicInteger mGeneration = new AtomicInteger();
+	private final long mSensorStart = System.nanoTime(); // Origin of the frame ticks of the sensor
+	private volatile long mNextFrame; // Tick of the next preview frame
+	private volatile boolean mOpen;
+	private volatile boolean mSession;
+	private volatile ScheduledFuture<?> mRepeating;
+	private boolean mRepeatingResults; // On the camera thread, like the script positions
+	private int mFocusIndex = -1; // Results since lockFocus(), -1 if not locked
+	private int mPrecaptureIndex = -1; // Results since runPrecaptureSequence(), -1 if not running
+
+	// Stats, written on the camera thread
+	private volatile long mPreviewFrameCount;
+	private volatile long mDroppedFrameCount;
+	private volatile long mStillCount;
+	private volatile long mFailedStillCount;
+
+	private static BlockingQueue<Frame> createPool(int width, int height, int length, boolean jpeg) {
+		BlockingQueue<Frame> pool = new ArrayBlockingQueue<>(MAX_IMAGES);
+		byte[] data = new byte[length];
+		if (jpeg) {
+			// JPEG data is already compressed, random bytes behave the same for the disk
+			new Random(length).nextBytes(data);
+			data[0] = (byte) 0xFF;
+			data[1] = (byte) 0xD8;
+			data[length - 2] = (byte) 0xFF;
+			data[length - 1] = (byte) 0xD9;
+		}
+		for (int i = 0; i < MAX_IMAGES; i++) {
+			Frame frame = new Frame(width, height, length, pool);
+			frame.buffer.put(data).flip();
+			pool.add(frame);
+		}
+		return pool;
+	}
+
+	void setFrameRate(int fps) {
+		mFrameIntervalNanos = 1000000000L / fps;
+	}
+
+	/**
+	 * YUV_420_888 frames, 12 bits per pixel.
+	 */
+	void setPreviewSize(int width, int height) {
+		mPreviewPool = createPool(width, height, width * height * 3 / 2, false);
+	}
+
+	/**
+	 * JPEG payloads of about a third of a byte per pixel, like a detailed scene at quality 80.
+	 */
+	void setStillSize(int width, int height) {
+		mStillPool = createPool(width, height, width * height / 3, true);
+	}
+
+	void setPreviewSink(PreviewSink sink) {
+		mPreviewSink = sink;
+	}
+
+	/**
+	 * The AF states of the results from {@link #lockFocus()} on, the last one repeats. None for a
+	 * camera without auto focus.
+	 */
+	void setFocusScript(Integer... afStates) {
+		mFocusScript = afStates;
+	}
+
+	/**
+	 * The AE states of the results from {@link #runPrecaptureSequence()} until the still, the
+	 * last one repeats.
+	 */
+	void setPrecaptureScript(Integer... aeStates) {
+		mPrecaptureScript = aeStates;
+	}
+
+	/**
+	 * The AE state outside of the precapture sequence, null if not reported.
+	 */
+	void setAeState(Integer aeState) {
+		mAeState = aeState;
+	}
+
+	void setOpenLatency(long nanos) {
+		mOpenLatencyNanos = nanos;
+	}
+
+	void setSessionLatency(long nanos) {
+		mSessionLatencyNanos = nanos;
+	}
+
+	void setStillLatency(long nanos) {
+		mStillLatencyNanos = nanos;
+	}
+
+	/**
+	 * How long the task returned by {@link #close()} blocks.
+	 */
+	void setCloseLatency(long nanos) {
+		mCloseLatencyNanos = nanos;
+	}
+
+	/**
+	 * The share of stills reported with {@link Listener#onStillFailed(int, boolean)}, from a seeded random.
+	 */
+	void setStillFailureRate(double rate) {
+		mStillFailureRate = rate;
+	}
+
+	/**
+	 * The next open fails with {@code error}.
+	 */
+	void failNextOpen(int error) {
+		mOpenError = error;
+	}
+
+	/**
+	 * Disconnects the open device, as another app taking the camera would.
+	 */
+	void disconnect() {
+		post(0, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				if (lose()) {
+					mListener.onDisconnected();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Disconnects the device when the next {@link #lockFocus()} gets to it, in the middle of a shot.
+	 */
+	void disconnectAtNextLock() {
+		mDisconnectAtLock = true;
+	}
+
+	/**
+	 * Fails the open device with {@code error}.
+	 */
+	void fail(final int error) {
+		post(0, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				if (lose()) {
+					mListener.onError(error);
+				}
+			}
+		});
+	}
+
+	void shutdown() {
+		mCameraThread.shutdownNow();
+	}
+
+	@Override
+	public void setListener(Listener<Frame> listener) {
+		mListener = listener;
+	}
+
+	@Override
+	public boolean open(String cameraId) {
+		post(mOpenLatencyNanos, mGeneration.incrementAndGet(), new Runnable() {
+			@Override
+			public void run() {
+				int error = mOpenError;
+				if (error != NO_ERROR) {
+					mOpenError = NO_ERROR;
+					mListener.onError(error);
+					return;
+				}
+				mOpen = true;
+				mListener.onOpened();
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	@Override
+	public void createSession() {
+		post(mSessionLatencyNanos, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				if (!mOpen) {
+					mListener.onSessionConfigureFailed();
+					return;
+				}
+				mSession = true;
+				mListener.onSessionConfigured();
+			}
+		});
+	}
+
+	@Override
+	public boolean hasSession() {
+		return mSession;
+	}
+
+	@Override
+	public boolean startPreview() {
+		if (!mSession) {
+			return false;
+		}
+		post(0, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				startRepeating(false);
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public void stopPreview() {
+		post(0, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				stopRepeating();
+			}
+		});
+	}
+
+	@Override
+	public void lockFocus() {
+		post(mFrameIntervalNanos, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				if (mDisconnectAtLock) {
+					mDisconnectAtLock = false;
+					if (lose()) {
+						mListener.onDisconnected();
+					}
+					return;
+				}
+				mFocusIndex = 0;
+				sendResult();
+				mRepeatingResults = true;
+			}
+		});
+	}
+
+	@Override
+	public void runPrecaptureSequence() {
+		post(mFrameIntervalNanos, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				mPrecaptureIndex = 0;
+				sendResult();
+			}
+		});
+	}
+
+	@Override
+	public void captureStill(int jpegOrientation) {
+		// Right away like CameraCaptureSession#stopRepeating(), no preview frame follows the call
+		stopRepeating();
+		post(mStillLatencyNanos, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				deliverStill();
+			}
+		});
+	}
+
+	@Override
+	public void unlockFocus() {
+		post(0, mGeneration.get(), new Runnable() {
+			@Override
+			public void run() {
+				mFocusIndex = -1;
+				sendResult();
+				startRepeating(true);
+			}
+		});
+	}
+
+	@Override
+	public Runnable close() {
+		mGeneration.incrementAndGet();
+		detach();
+		return new Runnable() {
+			@Override
+			public void run() {
+				long latency = mCloseLatencyNanos;
+				if (latency > 0) {
+					try {
+						TimeUnit.NANOSECONDS.sleep(latency);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return false if the device is not open
+	 */
+	private boolean lose() {
+		if (!mOpen) {
+			return false;
+		}
+		mGeneration.incrementAndGet();
+		detach();
+		return true;
+	}
+
+	private void detach() {
+		mOpen = false;
+		mSession = false;
+		ScheduledFuture<?> repeating = mRepeating;
+		if (null != repeating) {
+			repeating.cancel(false);
+		}
+	}
+
+	/**
+	 * Runs {@code task} on the camera thread in {@code delayNanos}, if the device is still the one
+	 * of {@code generation} by then.
+	 */
+	private void post(long delayNanos, final int generation, final Runnable task) {
+		try {
+			mCameraThread.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (generation == mGeneration.get()) {
+						task.run();
+					}
+				}
+			}, delayNanos, TimeUnit.NANOSECONDS);
+		} catch (RejectedExecutionException e) {
+			// Shut down
+		}
+	}
+
+	private void startRepeating(boolean results) {
+		stopRepeating();
+		mRepeatingResults = results;
+		final int generation = mGeneration.get();
+		final long interval = mFrameIntervalNanos;
+		// The sensor keeps its cadence across requests: the first frame is the one of the current
+		// tick, unless it was sent already, so that a late restart doesn't skip a frame
+		long now = System.nanoTime();
+		final long firstFrame = Math.max(mNextFrame, (now - mSensorStart) / interval);
+		mRepeating = mCameraThread.scheduleAtFixedRate(new Runnable() {
+			private long mFrameIndex = firstFrame;
+
+			@Override
+			public void run() {
+				if (generation == mGeneration.get()) {
+					// On the grid even for the runs catching up after a stall
+					mNextFrame = mFrameIndex + 1;
+					sendPreviewFrame(mSensorStart + mFrameIndex++ * interval);
+				}
+			}
+		}, Math.max(0, mSensorStart + firstFrame * interval - now), interval, TimeUnit.NANOSECONDS);
+	}
+
+	private void stopRepeating() {
+		ScheduledFuture<?> repeating = mRepeating;
+		if (null != repeating) {
+			repeating.cancel(false);
+			mRepeating = null;
+		}
+	}
+
+	private void sendPreviewFrame(long sensorTimestampNs) {
+		mPreviewFrameCount++;
+		mListener.onPreviewFrameStarted(sensorTimestampNs);
+		PreviewSink sink = mPreviewSink;
+		if (null != sink) {
+			Frame frame = mPreviewPool.poll();
+			if (null == frame) {
+				mDroppedFrameCount++;
+			} else {
+				frame.timestamp = sensorTimestampNs;
+				sink.onPreviewFrame(frame);
+			}
+		}
+		if (mRepeatingResults) {
+			sendResult();
+		}
+	}
+
+	private void sendResult() {
+		mListener.onCaptureResult(nextFocusState(), nextAeState(), false);
+	}
+
+	private Integer nextFocusState() {
+		Integer[] script = mFocusScript;
+		if (script.length == 0) {
+			return null;
+		}
+		if (mFocusIndex < 0) {
+			return CaptureResult.CONTROL_AF_STATE_PASSIVE_FOCUSED;
+		}
+		return script[Math.min(mFocusIndex++, script.length - 1)];
+	}
+
+	private Integer nextAeState() {
+		Integer[] script = mPrecaptureScript;
+		if (mPrecaptureIndex < 0 || script.length == 0) {
+			return mAeState;
+		}
+		return script[Math.min(mPrecaptureIndex++, script.length - 1)];
+	}
+
+	private void deliverStill() {
+		mStillCount++;
+		mPrecaptureIndex = -1;
+		Frame frame = mRandom.nextDouble() < mStillFailureRate ? null : mStillPool.poll();
+		if (null == frame) {
+			// Failed, or no buffer to write it to
+			mFailedStillCount++;
+			mListener.onStillFailed(CaptureFailure.REASON_ERROR, false);
+			return;
+		}
+		frame.timestamp = System.nanoTime();
+		mListener.onStillStarted(frame.timestamp);
+		mListener.onJpegAvailable(frame);
+		mListener.onStillCompleted();
+	}
+
+	long getPreviewFrameCount() {
+		return mPreviewFrameCount;
+	}
+
+	/**
+	 * Preview frames dropped because the sink held on to all of them.
+	 */
+	long getDroppedFrameCount() {
+		return mDroppedFrameCount;
+	}
+
+	long getStillCount() {
+		return mStillCount;
+	}
+
+	long getFailedStillCount() {
+		return mFailedStillCount;
+	}
+}
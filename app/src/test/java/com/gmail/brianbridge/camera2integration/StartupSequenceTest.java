@@ -0,0 +1,190 @@
+package com.gmail.brianbridge.camera2integration;
+
+import com.gmail.brianbridge.camera2integration.StartupSequence.Step;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static com.gmail.brianbridge.camera2integration.StartupSequence.Step.*;
+import static org.junit.Assert.*;
+
+public class StartupSequenceTest {
+	private static final long MS = 1000000L;
+
+	/**
+	 * Completes each step after its delay, steps with no delay set are completed by the test.
+	 */
+	private class DelayingBackend implements StartupSequence.Backend {
+		final long[] delays = new long[Step.values().length];
+		final List<Step> started = new ArrayList<>();
+		final PriorityQueue<long[]> completions = new PriorityQueue<>(8, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] a, long[] b) {
+				return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+			}
+		});
+
+		DelayingBackend() {
+			Arrays.fill(delays, -1);
+		}
+
+		@Override
+		public void startStep(Step step) {
+			started.add(step);
+			long delay = delays[step.ordinal()];
+			if (delay == 0) {
+				mSequence.complete(step);
+			} else if (delay > 0) {
+				completions.add(new long[]{mClock.nanoTime() + delay, step.ordinal()});
+			}
+		}
+
+		/**
+		 * Runs the scheduled completions in time order.
+		 */
+		void run() {
+			while (!completions.isEmpty()) {
+				long[] completion = completions.poll();
+				mClock.advanceNanos(completion[0] - mClock.nanoTime());
+				mSequence.complete(Step.values()[(int) completion[1]]);
+			}
+		}
+	}
+
+	private final FakeClock mClock = new FakeClock();
+	private final DelayingBackend mBackend = new DelayingBackend();
+	private final List<long[]> mTraces = new ArrayList<>();
+	private StartupSequence mSequence;
+
+	@Before
+	public void setUp() {
+		mSequence = new StartupSequence(mBackend, mClock);
+		mSequence.setListener(new StartupSequence.Listener() {
+			@Override
+			public void onStartupFinished(long[] startNanos, long[] endNanos) {
+				long[] trace = new long[2 * startNanos.length];
+				System.arraycopy(startNanos, 0, trace, 0, startNanos.length);
+				System.arraycopy(endNanos, 0, trace, startNanos.length, endNanos.length);
+				mTraces.add(trace);
+			}
+		});
+	}
+
+	private void delay(Step step, long millis) {
+		mBackend.delays[step.ordinal()] = millis * MS;
+	}
+
+	private long start(Step step) {
+		return mTraces.get(0)[step.ordinal()];
+	}
+
+	private long end(Step step) {
+		return mTraces.get(0)[Step.values().length + step.ordinal()];
+	}
+
+	@Test
+	public void openOverlapsSurface() {
+		delay(CHOOSE_CAMERA, 20);
+		delay(OPEN_CAMERA, 150);
+		delay(SURFACE, 120);
+		delay(CONFIGURE_SESSION, 80);
+		delay(FIRST_FRAME, 50);
+
+		mSequence.start();
+		// Both roots start right away
+		assertEquals(2, mBackend.started.size());
+		assertTrue(mBackend.started.contains(CHOOSE_CAMERA));
+		assertTrue(mBackend.started.contains(SURFACE));
+		mBackend.run();
+
+		assertEquals(1, mTraces.size());
+		assertEquals(0, start(SURFACE));
+		assertEquals(20 * MS, start(OPEN_CAMERA));
+		assertEquals(170 * MS, end(OPEN_CAMERA));
+		// Waits for the open, not for the surface
+		assertEquals(170 * MS, start(CONFIGURE_SESSION));
+		assertEquals(250 * MS, end(CONFIGURE_SESSION));
+		// Serially it would be 20 + 150 + 120 + 80 + 50
+		assertEquals(300 * MS, end(FIRST_FRAME));
+		assertEquals(300 * MS, mSequence.getHistogram(FIRST_FRAME).getMax());
+		assertFalse(mSequence.isRunning());
+	}
+
+	@Test
+	public void lateSurface_isOnTheCriticalPath() {
+		delay(CHOOSE_CAMERA, 20);
+		delay(OPEN_CAMERA, 100);
+		delay(SURFACE, 400);
+		delay(CONFIGURE_SESSION, 80);
+		delay(FIRST_FRAME, 50);
+
+		mSequence.start();
+		mBackend.run();
+
+		assertEquals(400 * MS, start(CONFIGURE_SESSION));
+		assertEquals(530 * MS, end(FIRST_FRAME));
+	}
+
+	@Test
+	public void synchronousSteps_chainWithinStart() {
+		delay(CHOOSE_CAMERA, 0);
+		delay(SURFACE, 0);
+		delay(OPEN_CAMERA, 0);
+		delay(CONFIGURE_SESSION, 0);
+		delay(FIRST_FRAME, 0);
+
+		mSequence.start();
+
+		assertEquals(1, mTraces.size());
+		assertEquals(5, mBackend.started.size());
+		assertEquals(FIRST_FRAME, mBackend.started.get(4));
+	}
+
+	@Test
+	public void stepStartsOnlyOnce() {
+		mSequence.start();
+		mSequence.complete(CHOOSE_CAMERA);
+		mSequence.complete(CHOOSE_CAMERA);
+		// Not started yet
+		mSequence.complete(CONFIGURE_SESSION);
+
+		assertEquals(1, count(OPEN_CAMERA));
+		assertTrue(mSequence.isPending(OPEN_CAMERA));
+		assertFalse(mSequence.isPending(CONFIGURE_SESSION));
+		assertEquals(0, count(CONFIGURE_SESSION));
+	}
+
+	@Test
+	public void cancel_ignoresLateCompletions() {
+		mSequence.start();
+		mSequence.complete(CHOOSE_CAMERA);
+		mSequence.cancel();
+		mSequence.complete(OPEN_CAMERA);
+		mSequence.complete(SURFACE);
+
+		assertEquals(0, count(CONFIGURE_SESSION));
+		assertTrue(mTraces.isEmpty());
+		assertFalse(mSequence.isRunning());
+
+		// A new startup starts from scratch
+		mSequence.start();
+		assertEquals(2, count(CHOOSE_CAMERA));
+		assertFalse(mSequence.isPending(OPEN_CAMERA));
+	}
+
+	private int count(Step step) {
+		int count = 0;
+		for (Step started : mBackend.started) {
+			if (started == step) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
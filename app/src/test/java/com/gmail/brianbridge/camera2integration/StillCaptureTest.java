@@ -0,0 +1,254 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class StillCaptureTest {
+
+	private static class Image {
+		final byte[] jpeg;
+		final long timestamp;
+		int closeCount;
+
+		Image(int id) {
+			jpeg = new byte[]{(byte) 0xFF, (byte) 0xD8, (byte) id, (byte) 0xFF, (byte) 0xD9};
+			timestamp = id * 1000L;
+		}
+	}
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private final CaptureMetrics mMetrics = new CaptureMetrics(new FakeClock());
+	private final List<File> mSaved = new ArrayList<>();
+	private final List<Exception> mFailed = new ArrayList<>();
+	private CaptureStorage mStorage;
+	private StillCapture<Image> mStills;
+
+	@Before
+	public void setUp() throws IOException {
+		mStorage = new CaptureStorage(mFolder.newFolder("captures"), CaptureStorage.SyncPolicy.NONE, 1, 0, Clock.SYSTEM);
+		mStills = new StillCapture<>(mStorage, mMetrics, new StillCapture.Images<Image>() {
+			@Override
+			public ByteBuffer getJpeg(Image image) {
+				return ByteBuffer.wrap(image.jpeg);
+			}
+
+			@Override
+			public long getTimestamp(Image image) {
+				return image.timestamp;
+			}
+
+			@Override
+			public void close(Image image) {
+				image.closeCount++;
+			}
+		}, new StillCapture.Listener() {
+			@Override
+			public void onSaved(File file, long metricsShot) {
+				mSaved.add(file);
+			}
+
+			@Override
+			public void onFailed(Exception error) {
+				mFailed.add(error);
+			}
+		});
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) input.length()];
+			input.readFully(bytes);
+			return bytes;
+		} finally {
+			input.close();
+		}
+	}
+
+	private CaptureStorage.Shot addShot(StillCapture.Encoder<Image> encoder) {
+		CaptureStorage.Shot shot = mStorage.reserve("IMG", "jpg", 1024);
+		mStills.add(shot, encoder);
+		mStills.onTriggered(shot);
+		return shot;
+	}
+
+	@Test
+	public void deliver_savesToTheOldestShot() throws IOException {
+		CaptureStorage.Shot first = addShot(null);
+		CaptureStorage.Shot second = addShot(null);
+		Image image = new Image(1);
+
+		mStills.deliver(image);
+
+		assertEquals(Arrays.asList(first.file), mSaved);
+		assertArrayEquals(image.jpeg, readFile(first.file));
+		assertFalse(second.file.exists());
+		assertEquals(1, image.closeCount);
+		assertEquals(1, mStills.getPendingCount());
+		assertEquals(1, mMetrics.snapshot(CaptureMetrics.Stage.SAVE).count);
+	}
+
+	@Test
+	public void deliver_withoutShot_dropsTheImage() {
+		Image image = new Image(1);
+
+		mStills.deliver(image);
+
+		assertEquals(1, image.closeCount);
+		assertTrue(mSaved.isEmpty());
+		assertTrue(mFailed.isEmpty());
+	}
+
+	@Test
+	public void failAll_abortsEveryShot_andDropsTheirLateImages() {
+		CaptureStorage.Shot first = addShot(null);
+		addShot(null);
+
+		mStills.failAll();
+		Image late = new Image(1);
+		mStills.deliver(late);
+
+		assertEquals(Arrays.asList(null, null), mFailed);
+		assertEquals(0, mStills.getPendingCount());
+		assertEquals(0, mStorage.snapshot().backlog);
+		assertFalse(first.file.exists());
+		assertEquals(1, late.closeCount);
+		assertFalse(mStills.fail(false));
+	}
+
+	@Test
+	public void encoderFailure_publishesNothing() {
+		final IOException failure = new IOException("Disk full");
+		CaptureStorage.Shot shot = addShot(new StillCapture.Encoder<Image>() {
+			@Override
+			public void encode(Image image, File file) throws IOException {
+				image.closeCount++;
+				FileOutputStream stream = new FileOutputStream(file);
+				try {
+					stream.write(new byte[]{1, 2, 3});
+				} finally {
+					stream.close();
+				}
+				throw failure;
+			}
+		});
+		Image image = new Image(1);
+
+		mStills.deliver(image);
+
+		assertEquals(Arrays.<Exception>asList(failure), mFailed);
+		assertFalse(shot.file.exists());
+		assertFalse(shot.getTempFile().exists());
+		assertEquals(1, image.closeCount);
+		assertEquals(0, mStorage.snapshot().backlog);
+	}
+
+	@Test
+	public void failedShot_stopsBeingTracked() {
+		addShot(null);
+		mStills.fail(false);
+		CaptureStorage.Shot next = mStorage.reserve("IMG", "jpg", 1024);
+		mStills.add(next, null);
+
+		assertNotEquals(CaptureMetrics.NO_SHOT, mStills.onTriggered(next));
+		assertEquals(0, mMetrics.getDroppedShotCount());
+	}
+
+	@Test
+	public void cancel_takesTheShotBackSilently() {
+		CaptureStorage.Shot first = addShot(null);
+		CaptureStorage.Shot second = addShot(null);
+
+		mStills.cancel(second);
+		mStills.deliver(new Image(1));
+
+		assertEquals(Arrays.asList(first.file), mSaved);
+		assertTrue(mFailed.isEmpty());
+		assertEquals(0, mStorage.snapshot().backlog);
+	}
+
+	@Test
+	public void deliver_matchesTheStartTimestamp() throws IOException {
+		CaptureStorage.Shot first = addShot(null);
+		CaptureStorage.Shot second = addShot(null);
+		Image image = new Image(2);
+
+		mStills.onStarted(new Image(1).timestamp);
+		mStills.onStarted(image.timestamp);
+		mStills.deliver(image);
+
+		// The JPEG of the first would come before, it won't anymore
+		assertEquals(Arrays.asList(second.file), mSaved);
+		assertArrayEquals(image.jpeg, readFile(second.file));
+		assertEquals(Arrays.<Exception>asList((Exception) null), mFailed);
+		assertFalse(first.file.exists());
+		assertEquals(0, mStills.getPendingCount());
+	}
+
+	@Test
+	public void fail_withImageComing_dropsTheLateImage() throws IOException {
+		addShot(null);
+		CaptureStorage.Shot second = addShot(null);
+		Image late = new Image(1);
+		Image next = new Image(2);
+
+		mStills.onStarted(late.timestamp);
+		assertTrue(mStills.fail(true));
+		assertEquals(1, mStills.getPendingCount());
+		mStills.onStarted(next.timestamp);
+		mStills.deliver(late);
+		mStills.deliver(next);
+
+		assertEquals(1, late.closeCount);
+		assertEquals(Arrays.asList(second.file), mSaved);
+		assertArrayEquals(next.jpeg, readFile(second.file));
+		assertEquals(Arrays.<Exception>asList((Exception) null), mFailed);
+		assertEquals(0, mStorage.snapshot().backlog);
+	}
+
+	@Test
+	public void fail_withImageComing_beforeItStarted_dropsTheLateImage() throws IOException {
+		addShot(null);
+		CaptureStorage.Shot second = addShot(null);
+		Image late = new Image(1);
+		Image next = new Image(2);
+
+		assertTrue(mStills.fail(true));
+		mStills.onStarted(late.timestamp);
+		mStills.onStarted(next.timestamp);
+		mStills.deliver(late);
+		mStills.deliver(next);
+
+		assertEquals(1, late.closeCount);
+		assertEquals(Arrays.asList(second.file), mSaved);
+		assertArrayEquals(next.jpeg, readFile(second.file));
+	}
+
+	@Test
+	public void fail_withoutImage_savesTheNextImageToTheNextShot() throws IOException {
+		addShot(null);
+		CaptureStorage.Shot second = addShot(null);
+		Image image = new Image(2);
+
+		assertTrue(mStills.fail(false));
+		mStills.deliver(image);
+
+		assertEquals(Arrays.asList(second.file), mSaved);
+		assertArrayEquals(image.jpeg, readFile(second.file));
+	}
+}
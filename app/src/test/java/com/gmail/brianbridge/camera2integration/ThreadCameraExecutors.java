@@ -0,0 +1,88 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.os.Handler;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CameraExecutors} on a thread of its own per stage, to run the camera code as on a device.
+ *
+ * As with {@link ManualCameraExecutors}, no stage has a handler: there is no looper on the JVM.
+ */
+class ThreadCameraExecutors extends CameraExecutors {
+	private static final Stage[] STAGES = Stage.values();
+
+	private volatile ExecutorService[] mThreads;
+
+	ThreadCameraExecutors(Clock clock) {
+		super(clock);
+	}
+
+	@Override
+	public synchronized void start() {
+		if (null != mThreads) {
+			return;
+		}
+		ExecutorService[] threads = new ExecutorService[STAGES.length];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = Executors.newSingleThreadExecutor();
+		}
+		mThreads = threads;
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		ExecutorService[] threads = mThreads;
+		if (null == threads) {
+			return;
+		}
+		for (ExecutorService thread : threads) {
+			thread.shutdown();
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		ExecutorService[] threads = mThreads;
+		return null != threads && !threads[0].isShutdown();
+	}
+
+	/**
+	 * @throws UnsupportedOperationException always, see the class doc
+	 */
+	@Override
+	public Handler getHandler(Stage stage) {
+		throw new UnsupportedOperationException("No handler for " + stage + " on the JVM.");
+	}
+
+	@Override
+	protected void dispatch(Stage stage, Runnable task) {
+		ExecutorService[] threads = mThreads;
+		if (null == threads) {
+			throw new RejectedExecutionException(stage + " is not running.");
+		}
+		threads[stage.ordinal()].execute(task);
+	}
+
+	/**
+	 * Waits for the tasks left after {@link #shutdown()}.
+	 *
+	 * @return false if some were still running after {@code timeoutNanos}
+	 */
+	boolean awaitTermination(long timeoutNanos) throws InterruptedException {
+		ExecutorService[] threads = mThreads;
+		if (null == threads) {
+			return true;
+		}
+		long deadline = System.nanoTime() + timeoutNanos;
+		for (ExecutorService thread : threads) {
+			if (!thread.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,185 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TimeLapseSchedulerTest {
+	private static final long INTERVAL_MS = 1000;
+	private static final long INTERVAL_NS = INTERVAL_MS * 1000000L;
+
+	/**
+	 * Fires the timer when the clock reaches it, like a handler would.
+	 */
+	private class FakeCamera implements TimeLapseScheduler.Camera {
+		final List<Long> shotTimes = new ArrayList<>();
+		boolean busy;
+		long timerAt = -1; // -1 when not scheduled
+
+		@Override
+		public boolean capture(int index) {
+			if (busy) {
+				return false;
+			}
+			assertEquals(shotTimes.size(), index);
+			shotTimes.add(mClock.nanoTime());
+			return true;
+		}
+
+		@Override
+		public void scheduleTimer(long delayNanos) {
+			assertTrue(delayNanos > 0);
+			timerAt = mClock.nanoTime() + delayNanos;
+		}
+
+		@Override
+		public void cancelTimer() {
+			timerAt = -1;
+		}
+	}
+
+	private final FakeClock mClock = new FakeClock();
+	private final FakeCamera mCamera = new FakeCamera();
+	private TimeLapseScheduler mScheduler;
+	private int mFinishedShots = -1;
+
+	@Before
+	public void setUp() {
+		mScheduler = new TimeLapseScheduler(mCamera, mClock);
+		mScheduler.setListener(new TimeLapseScheduler.Listener() {
+			@Override
+			public void onTimeLapseFinished(int shotCount, long skippedCount) {
+				mFinishedShots = shotCount;
+			}
+		});
+	}
+
+	/**
+	 * Fires the timer {@code lateMs} after it's due.
+	 */
+	private void fireTimer(long lateMs) {
+		assertTrue(mCamera.timerAt >= 0);
+		mClock.advanceNanos(mCamera.timerAt - mClock.nanoTime());
+		mClock.advanceMillis(lateMs);
+		mScheduler.onTimer();
+	}
+
+	@Test
+	public void shotsFollowAbsoluteSlots_despiteLateTimers() {
+		long start = mClock.nanoTime();
+		mScheduler.start(INTERVAL_NS, 0);
+		for (int i = 1; i <= 10; i++) {
+			// Every timer fires 30ms late, and the shot completes right away
+			mScheduler.onCaptureFinished();
+			fireTimer(30);
+		}
+
+		assertEquals(11, mCamera.shotTimes.size());
+		// With fixed delays the last shot would be 300ms behind, here it's only its own timer late
+		assertEquals(start + 10 * INTERVAL_NS + 30000000L, (long) mCamera.shotTimes.get(10));
+		assertEquals(0, mScheduler.getSkippedCount());
+		assertEquals(30000000L, mScheduler.getLatenessHistogram().getMax(), 30000000L / 50);
+	}
+
+	@Test
+	public void slotWhileInFlight_isSkipped() {
+		mScheduler.start(INTERVAL_NS, 0);
+		fireTimer(0);
+		assertEquals(1, mCamera.shotTimes.size());
+		assertEquals(1, mScheduler.getSkippedCount());
+
+		mScheduler.onCaptureFinished();
+		fireTimer(0);
+
+		assertEquals(2, mCamera.shotTimes.size());
+		// Two intervals between the shots, as scheduled, no error
+		assertEquals(1, mScheduler.getIntervalErrorHistogram().getCount());
+		assertEquals(0, mScheduler.getIntervalErrorHistogram().getMax());
+	}
+
+	@Test
+	public void busyCamera_skipsTheSlot() {
+		mCamera.busy = true;
+		mScheduler.start(INTERVAL_NS, 0);
+		assertEquals(1, mScheduler.getSkippedCount());
+		assertEquals(0, mScheduler.getShotCount());
+
+		mCamera.busy = false;
+		fireTimer(0);
+		assertEquals(1, mScheduler.getShotCount());
+	}
+
+	@Test
+	public void missedSlots_areSkippedNotCaughtUp() {
+		mScheduler.start(INTERVAL_NS, 0);
+		mScheduler.onCaptureFinished();
+
+		// The timer comes 2.5 intervals late
+		fireTimer(2500);
+
+		assertEquals(2, mCamera.shotTimes.size());
+		assertEquals(2, mScheduler.getSkippedCount());
+		// Back on the grid for the next one
+		assertEquals(mClock.nanoTime() + INTERVAL_NS / 2, mCamera.timerAt);
+	}
+
+	@Test
+	public void earlyTimer_reschedules() {
+		mScheduler.start(INTERVAL_NS, 0);
+		mScheduler.onCaptureFinished();
+		mClock.advanceMillis(400);
+		mScheduler.onTimer();
+
+		assertEquals(1, mCamera.shotTimes.size());
+		assertEquals(mClock.nanoTime() + 600000000L, mCamera.timerAt);
+	}
+
+	@Test
+	public void finishesAfterMaxShots() {
+		mScheduler.start(INTERVAL_NS, 3);
+		mScheduler.onCaptureFinished();
+		fireTimer(0);
+		mScheduler.onCaptureFinished();
+		fireTimer(0);
+
+		assertFalse(mScheduler.isRunning());
+		assertEquals(3, mFinishedShots);
+		assertEquals(3, mCamera.shotTimes.size());
+	}
+
+	@Test
+	public void stop_cancelsTheTimer() {
+		mScheduler.start(INTERVAL_NS, 0);
+		mScheduler.stop();
+
+		assertFalse(mScheduler.isRunning());
+		assertEquals(-1, mCamera.timerAt);
+		assertEquals(1, mFinishedShots);
+
+		mClock.advanceMillis(INTERVAL_MS);
+		mScheduler.onTimer();
+		assertEquals(1, mCamera.shotTimes.size());
+	}
+
+	@Test
+	public void restart_afterStopDuringShot_shootsRightAway() {
+		mScheduler.start(INTERVAL_NS, 0);
+		// Stopped with its shot in flight, whose end never comes
+		mScheduler.stop();
+		mCamera.shotTimes.clear();
+
+		mScheduler.start(INTERVAL_NS, 0);
+
+		assertEquals(1, mCamera.shotTimes.size());
+		assertEquals(0, mScheduler.getSkippedCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroInterval_isRejected() {
+		mScheduler.start(0, 0);
+	}
+}
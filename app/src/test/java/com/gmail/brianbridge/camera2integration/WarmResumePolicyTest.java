@@ -0,0 +1,260 @@
+package com.gmail.brianbridge.camera2integration;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WarmResumePolicyTest {
+
+	private class FakeBackend implements WarmResumePolicy.Backend {
+		final List<String> calls = new ArrayList<>();
+		boolean open;
+		boolean previewing;
+		boolean sessionReusable = true;
+		long releaseAt = -1;
+
+		@Override
+		public void open() {
+			calls.add("open");
+			assertFalse("Opened twice", open);
+			open = true;
+			previewing = true;
+		}
+
+		@Override
+		public boolean resumePreview() {
+			calls.add("resume");
+			assertTrue(open);
+			if (!sessionReusable) {
+				return false;
+			}
+			previewing = true;
+			return true;
+		}
+
+		@Override
+		public void pausePreview() {
+			calls.add("pause");
+			previewing = false;
+		}
+
+		@Override
+		public void release() {
+			calls.add("release");
+			open = false;
+			previewing = false;
+		}
+
+		@Override
+		public void scheduleRelease(long delayNanos) {
+			releaseAt = mClock.nanoTime() + delayNanos;
+		}
+
+		@Override
+		public void cancelRelease() {
+			releaseAt = -1;
+		}
+
+		int count(String call) {
+			int count = 0;
+			for (String c : calls) {
+				if (c.equals(call)) {
+					count++;
+				}
+			}
+			return count;
+		}
+	}
+
+	private final FakeClock mClock = new FakeClock();
+	private final FakeBackend mBackend = new FakeBackend();
+	private WarmResumePolicy mPolicy;
+
+	@Before
+	public void setUp() {
+		mPolicy = new WarmResumePolicy(mBackend, mClock);
+	}
+
+	/**
+	 * Fires the scheduled release if there's one, like a delayed handler message.
+	 */
+	private void waitForRelease() {
+		if (mBackend.releaseAt >= 0) {
+			mClock.advanceNanos(mBackend.releaseAt - mClock.nanoTime());
+			mBackend.releaseAt = -1;
+			mPolicy.onReleaseTimeout();
+		}
+	}
+
+	private void startAndShowFrame(long frameAfterMillis) {
+		mPolicy.onStart();
+		mClock.advanceMillis(frameAfterMillis);
+		mPolicy.onPreviewFrame();
+		mPolicy.onPreviewFrame();
+	}
+
+	@Test
+	public void shortStop_resumesWarm() {
+		startAndShowFrame(400);
+		mPolicy.onStop();
+		assertTrue(mPolicy.isParked());
+		assertTrue(mBackend.open);
+		assertFalse(mBackend.previewing);
+
+		mClock.advanceMillis(2000);
+		startAndShowFrame(30);
+
+		assertEquals(1, mBackend.count("open"));
+		assertEquals(0, mBackend.count("release"));
+		assertTrue(mBackend.previewing);
+		assertEquals(-1, mBackend.releaseAt);
+		assertEquals(1, mPolicy.getColdResumeHistogram().getCount());
+		assertEquals(1, mPolicy.getWarmResumeHistogram().getCount());
+		assertTrue(mPolicy.getWarmResumeHistogram().getMax() < mPolicy.getColdResumeHistogram().getMax());
+	}
+
+	@Test
+	public void longStop_releasesAfterGracePeriod() {
+		startAndShowFrame(400);
+		mPolicy.onStop();
+		long stoppedAt = mClock.nanoTime();
+
+		waitForRelease();
+
+		assertEquals(WarmResumePolicy.DEFAULT_GRACE_PERIOD_NS, mClock.nanoTime() - stoppedAt);
+		assertFalse(mBackend.open);
+		assertFalse(mPolicy.isParked());
+		assertEquals(1, mPolicy.getExpiredCount());
+
+		startAndShowFrame(400);
+		assertEquals(2, mBackend.count("open"));
+		assertEquals(2, mPolicy.getColdResumeHistogram().getCount());
+		assertEquals(0, mPolicy.getWarmResumeHistogram().getCount());
+	}
+
+	@Test
+	public void staleReleaseTimeout_isRescheduled() {
+		startAndShowFrame(10);
+		mPolicy.onStop();
+		mClock.advanceMillis(4000);
+		mPolicy.onStart();
+		mPolicy.onStop();
+
+		// The first stop's timeout was cancelled, but fires anyway
+		mClock.advanceMillis(1000);
+		mPolicy.onReleaseTimeout();
+
+		assertTrue(mPolicy.isParked());
+		assertEquals(mClock.nanoTime() + 4000000000L, mBackend.releaseAt);
+		waitForRelease();
+		assertFalse(mBackend.open);
+	}
+
+	@Test
+	public void noGracePeriod_releasesOnStop() {
+		mPolicy.setGracePeriod(0);
+		startAndShowFrame(10);
+		mPolicy.onStop();
+
+		assertFalse(mBackend.open);
+		assertEquals(0, mBackend.count("pause"));
+		assertEquals(-1, mBackend.releaseAt);
+	}
+
+	@Test
+	public void memoryPressure_releasesParkedCameraOnly() {
+		startAndShowFrame(10);
+		mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+		assertTrue(mBackend.open);
+
+		mPolicy.onStop();
+		mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+		mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE);
+		assertTrue(mPolicy.isParked());
+
+		mPolicy.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+		assertFalse(mBackend.open);
+		assertEquals(-1, mBackend.releaseAt);
+		assertEquals(1, mPolicy.getTrimmedCount());
+
+		mPolicy.onLowMemory();
+		assertEquals(1, mBackend.count("release"));
+	}
+
+	@Test
+	public void cameraLostWhileParked_releases() {
+		startAndShowFrame(10);
+		mPolicy.onStop();
+		mPolicy.onCameraLost();
+
+		assertFalse(mBackend.open);
+		mPolicy.onStart();
+		assertEquals(2, mBackend.count("open"));
+		assertEquals(0, mBackend.count("resume"));
+	}
+
+	@Test
+	public void cameraLostWhileShown_releasesOnStop() {
+		startAndShowFrame(10);
+		mPolicy.onCameraLost();
+		assertTrue(mBackend.open);
+
+		mPolicy.onStop();
+		assertFalse(mBackend.open);
+		assertEquals(0, mBackend.count("pause"));
+		assertEquals(1, mPolicy.getLostCount());
+
+		// Lost is forgotten once the camera is opened again
+		startAndShowFrame(10);
+		mPolicy.onStop();
+		assertTrue(mPolicy.isParked());
+	}
+
+	@Test
+	public void sessionNotReusable_fallsBackToColdOpen() {
+		startAndShowFrame(10);
+		mPolicy.onStop();
+		mBackend.sessionReusable = false;
+		startAndShowFrame(300);
+
+		assertEquals(1, mBackend.count("resume"));
+		assertEquals(1, mBackend.count("release"));
+		assertEquals(2, mBackend.count("open"));
+		assertEquals(2, mPolicy.getColdResumeHistogram().getCount());
+		assertEquals(0, mPolicy.getWarmResumeHistogram().getCount());
+	}
+
+	@Test
+	public void release_closesWhateverTheState() {
+		mPolicy.release();
+		assertTrue(mBackend.calls.isEmpty());
+
+		startAndShowFrame(10);
+		mPolicy.release();
+		assertFalse(mBackend.open);
+
+		startAndShowFrame(10);
+		mPolicy.onStop();
+		mPolicy.release();
+		assertFalse(mBackend.open);
+		assertEquals(-1, mBackend.releaseAt);
+		assertEquals(2, mBackend.count("release"));
+	}
+
+	@Test
+	public void framesOutsideResume_areNotRecorded() {
+		mPolicy.onPreviewFrame();
+		mPolicy.onStart();
+		mPolicy.onStop();
+		mPolicy.onPreviewFrame();
+
+		assertEquals(0, mPolicy.getColdResumeHistogram().getCount());
+		assertEquals(0, mPolicy.getWarmResumeHistogram().getCount());
+	}
+}
@@ -0,0 +1,247 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+public class YuvConverterTest {
+	private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+	@AfterClass
+	public static void tearDownClass() {
+		POOL.shutdown();
+	}
+
+	private enum Layout {
+		PLANAR,			// I420, pixel stride 1
+		SEMI_PLANAR_UV,	// NV12, U and V share a buffer, pixel stride 2
+		SEMI_PLANAR_VU,	// NV21, V first
+		SPARSE			// Every plane with pixel stride 2, like a 16-bit source
+	}
+
+	/**
+	 * Lays out random Y, U and V samples in buffers the way an {@code Image} would, with padded
+	 * rows.
+	 */
+	private static class Frame {
+		final int width;
+		final int height;
+		final byte[] yData;
+		final byte[] uData;
+		final byte[] vData;
+		final YuvPlanes planes;
+
+		Frame(int width, int height, Layout layout, int rowPadding, boolean direct, long seed) {
+			this.width = width;
+			this.height = height;
+			int chromaWidth = (width + 1) / 2;
+			int chromaHeight = (height + 1) / 2;
+			Random random = new Random(seed);
+			yData = new byte[width * height];
+			uData = new byte[chromaWidth * chromaHeight];
+			vData = new byte[chromaWidth * chromaHeight];
+			random.nextBytes(yData);
+			random.nextBytes(uData);
+			random.nextBytes(vData);
+
+			int yPixelStride = layout == Layout.SPARSE ? 2 : 1;
+			int yRowStride = width * yPixelStride + rowPadding;
+			ByteBuffer y = allocate(yRowStride * height, direct);
+			for (int row = 0; row < height; row++) {
+				for (int x = 0; x < width; x++) {
+					y.put(row * yRowStride + x * yPixelStride, yData[row * width + x]);
+				}
+			}
+
+			int chromaPixelStride = layout == Layout.PLANAR ? 1 : 2;
+			int chromaRowStride = chromaWidth * chromaPixelStride + rowPadding;
+			ByteBuffer u;
+			ByteBuffer v;
+			if (layout == Layout.SEMI_PLANAR_UV || layout == Layout.SEMI_PLANAR_VU) {
+				ByteBuffer shared = allocate(chromaRowStride * chromaHeight + 1, direct);
+				boolean uFirst = layout == Layout.SEMI_PLANAR_UV;
+				u = slice(shared, uFirst ? 0 : 1);
+				v = slice(shared, uFirst ? 1 : 0);
+			} else {
+				u = allocate(chromaRowStride * chromaHeight, direct);
+				v = allocate(chromaRowStride * chromaHeight, direct);
+			}
+			for (int row = 0; row < chromaHeight; row++) {
+				for (int x = 0; x < chromaWidth; x++) {
+					u.put(row * chromaRowStride + x * chromaPixelStride, uData[row * chromaWidth + x]);
+					v.put(row * chromaRowStride + x * chromaPixelStride, vData[row * chromaWidth + x]);
+				}
+			}
+			// Positions are not used
+			y.position(y.limit() / 2);
+			planes = new YuvPlanes().set(width, height,
+					y, yRowStride, yPixelStride,
+					u, chromaRowStride, chromaPixelStride,
+					v, chromaRowStride, chromaPixelStride);
+		}
+
+		private static ByteBuffer allocate(int size, boolean direct) {
+			return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+
+		private static ByteBuffer slice(ByteBuffer buffer, int offset) {
+			ByteBuffer duplicate = buffer.duplicate();
+			duplicate.position(offset);
+			return duplicate.slice();
+		}
+
+		int y(int x, int row) {
+			return yData[row * width + x] & 0xff;
+		}
+
+		int u(int x, int row) {
+			return uData[(row / 2) * ((width + 1) / 2) + x / 2] & 0xff;
+		}
+
+		int v(int x, int row) {
+			return vData[(row / 2) * ((width + 1) / 2) + x / 2] & 0xff;
+		}
+	}
+
+	// Reference implementations, one pixel at a time from the unpacked samples
+
+	private static byte[] referenceNv21(Frame frame) {
+		int chromaWidth = (frame.width + 1) / 2;
+		byte[] out = new byte[YuvConverter.nv21Size(frame.width, frame.height)];
+		for (int row = 0; row < frame.height; row++) {
+			for (int x = 0; x < frame.width; x++) {
+				out[row * frame.width + x] = (byte) frame.y(x, row);
+			}
+		}
+		int base = frame.width * frame.height;
+		for (int row = 0; row < frame.height; row += 2) {
+			for (int x = 0; x < frame.width; x += 2) {
+				int index = base + (row / 2) * 2 * chromaWidth + x;
+				out[index] = (byte) frame.v(x, row);
+				out[index + 1] = (byte) frame.u(x, row);
+			}
+		}
+		return out;
+	}
+
+	private static int referenceArgb(int y, int u, int v) {
+		y = Math.max(0, y - 16);
+		u -= 128;
+		v -= 128;
+		int r = 1192 * y + 1634 * v;
+		int g = 1192 * y - 833 * v - 400 * u;
+		int b = 1192 * y + 2066 * u;
+		r = Math.min(262143, Math.max(0, r)) >> 10;
+		g = Math.min(262143, Math.max(0, g)) >> 10;
+		b = Math.min(262143, Math.max(0, b)) >> 10;
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+
+	private static void assertConverts(YuvConverter converter, Frame frame) {
+		String name = frame.width + "x" + frame.height;
+
+		byte[] luma = new byte[YuvConverter.lumaSize(frame.width, frame.height)];
+		converter.toLuma(frame.planes, luma);
+		assertArrayEquals(name, frame.yData, luma);
+
+		byte[] nv21 = new byte[YuvConverter.nv21Size(frame.width, frame.height)];
+		converter.toNv21(frame.planes, nv21);
+		assertArrayEquals(name, referenceNv21(frame), nv21);
+
+		int[] argb = new int[YuvConverter.argbSize(frame.width, frame.height)];
+		converter.toArgb(frame.planes, argb);
+		for (int row = 0; row < frame.height; row++) {
+			for (int x = 0; x < frame.width; x++) {
+				assertEquals(name + " at " + x + "," + row,
+						referenceArgb(frame.y(x, row), frame.u(x, row), frame.v(x, row)),
+						argb[row * frame.width + x]);
+			}
+		}
+	}
+
+	@Test
+	public void allLayouts_matchReference() {
+		YuvConverter converter = new YuvConverter(POOL);
+		long seed = 0;
+		for (Layout layout : Layout.values()) {
+			for (boolean direct : new boolean[]{false, true}) {
+				assertConverts(converter, new Frame(64, 48, layout, 0, direct, seed++));
+				assertConverts(converter, new Frame(64, 48, layout, 16, direct, seed++));
+			}
+		}
+	}
+
+	@Test
+	public void oddSizes_matchReference() {
+		YuvConverter converter = new YuvConverter(POOL);
+		assertConverts(converter, new Frame(101, 57, Layout.SEMI_PLANAR_VU, 3, true, 1));
+		assertConverts(converter, new Frame(1, 1, Layout.PLANAR, 0, false, 2));
+		assertConverts(converter, new Frame(3, 301, Layout.PLANAR, 5, false, 3));
+	}
+
+	@Test
+	public void parallelBands_matchSingleThreaded() {
+		// Enough rows for 4 bands, and an odd height so the last band has a half chroma row
+		Frame frame = new Frame(320, 4 * YuvConverter.MIN_BAND_ROWS + 3, Layout.SEMI_PLANAR_UV, 8, true, 4);
+		assertConverts(new YuvConverter(POOL), frame);
+		assertConverts(new YuvConverter(null), frame);
+	}
+
+	@Test
+	public void reusedConverterAndBuffers_overwriteFully() {
+		YuvConverter converter = new YuvConverter(POOL);
+		Frame first = new Frame(160, 300, Layout.PLANAR, 0, false, 5);
+		Frame second = new Frame(160, 300, Layout.SEMI_PLANAR_VU, 32, true, 6);
+		int[] argb = new int[YuvConverter.argbSize(160, 300)];
+		int[] expected = new int[argb.length];
+
+		converter.toArgb(first.planes, argb);
+		converter.toArgb(second.planes, argb);
+		new YuvConverter(null).toArgb(second.planes, expected);
+
+		assertArrayEquals(expected, argb);
+	}
+
+	@Test
+	public void lastRowWithoutPadding_isCopied() {
+		// Like an Image plane, the buffer ends at the last pixel rather than the last stride
+		Frame frame = new Frame(100, 130, Layout.PLANAR, 28, true, 9);
+		YuvPlanes planes = frame.planes;
+		ByteBuffer y = planes.y.duplicate();
+		y.position(0);
+		y.limit((planes.height - 1) * planes.yRowStride + planes.width);
+		planes.y = y.slice();
+		byte[] luma = new byte[YuvConverter.lumaSize(frame.width, frame.height)];
+
+		new YuvConverter(POOL).toLuma(planes, luma);
+
+		assertArrayEquals(frame.yData, luma);
+	}
+
+	@Test
+	public void knownColors() {
+		assertEquals(0xff000000, referenceArgb(16, 128, 128));
+		assertEquals(0xffffffff, referenceArgb(255, 128, 128));
+		// BT.601 red
+		assertTrue(((referenceArgb(82, 90, 240) >> 16) & 0xff) > 250);
+
+		Frame frame = new Frame(2, 2, Layout.PLANAR, 0, false, 7);
+		frame.planes.y.put(0, (byte) 255);
+		frame.planes.u.put(0, (byte) 128);
+		frame.planes.v.put(0, (byte) 128);
+		int[] argb = new int[4];
+		new YuvConverter(null).toArgb(frame.planes, argb);
+		assertEquals(0xffffffff, argb[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void destinationTooSmall_throws() {
+		Frame frame = new Frame(16, 16, Layout.PLANAR, 0, false, 8);
+		new YuvConverter(null).toNv21(frame.planes, new byte[16 * 16]);
+	}
+}
@@ -0,0 +1,247 @@
+package com.gmail.brianbridge.camera2integration;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ZslRingBufferTest {
+	// 30fps, sensor clock 5s behind the press clock, 20ms delivery latency
+	private static final long FRAME_NS = 33333333L;
+	private static final long OFFSET_NS = 5000000000L;
+	private static final long LATENCY_NS = 20000000L;
+
+	private static class Frame {
+		final long timestamp;
+		boolean closed;
+
+		Frame(long timestamp) {
+			this.timestamp = timestamp;
+		}
+	}
+
+	private final List<Frame> mRecycled = new ArrayList<>();
+	private ZslRingBuffer<Frame> mRing;
+
+	@Before
+	public void setUp() {
+		mRing = new ZslRingBuffer<>(4, 1, new ZslRingBuffer.Recycler<Frame>() {
+			@Override
+			public void recycle(Frame frame) {
+				assertFalse("Closed twice", frame.closed);
+				frame.closed = true;
+				mRecycled.add(frame);
+			}
+		});
+	}
+
+	private Frame deliver(int index) {
+		Frame frame = new Frame(1000000000L + index * FRAME_NS);
+		mRing.add(frame.timestamp, frame.timestamp + OFFSET_NS + LATENCY_NS, frame);
+		return frame;
+	}
+
+	private static long pressAtExposureOf(Frame frame, long deltaNs) {
+		return frame.timestamp + OFFSET_NS + LATENCY_NS + deltaNs;
+	}
+
+	@Test
+	public void add_beyondCapacity_evictsOldestInOrder() {
+		List<Frame> frames = new ArrayList<>();
+		for (int i = 0; i < 7; i++) {
+			frames.add(deliver(i));
+		}
+
+		assertEquals(4, mRing.size());
+		assertEquals(3, mRing.getEvictedCount());
+		assertEquals(frames.subList(0, 3), mRecycled);
+		for (int i = 3; i < 7; i++) {
+			assertFalse(frames.get(i).closed);
+		}
+	}
+
+	@Test
+	public void take_picksClosestTimestamp() {
+		List<Frame> frames = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			frames.add(deliver(i));
+		}
+
+		Frame taken = mRing.take(pressAtExposureOf(frames.get(1), FRAME_NS / 3));
+
+		assertSame(frames.get(1), taken);
+		assertFalse(taken.closed);
+		assertEquals(3, mRing.size());
+	}
+
+	@Test
+	public void take_tie_picksOlder() {
+		Frame first = deliver(0);
+		deliver(1);
+
+		assertSame(first, mRing.take(pressAtExposureOf(first, FRAME_NS / 2)));
+	}
+
+	@Test
+	public void take_outOfRange_picksNearestEnd() {
+		List<Frame> frames = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			frames.add(deliver(i));
+		}
+
+		assertSame(frames.get(3), mRing.take(pressAtExposureOf(frames.get(3), 10 * FRAME_NS)));
+		mRing.recycle(frames.get(3));
+		assertSame(frames.get(0), mRing.take(pressAtExposureOf(frames.get(0), -10 * FRAME_NS)));
+	}
+
+	@Test
+	public void take_estimatesOffsetFromFastestDelivery() {
+		// A late frame doesn't shift the estimate
+		Frame late = new Frame(1000000000L);
+		mRing.add(late.timestamp, late.timestamp + OFFSET_NS + 5 * LATENCY_NS, late);
+		Frame onTime = new Frame(late.timestamp + FRAME_NS);
+		mRing.add(onTime.timestamp, onTime.timestamp + OFFSET_NS + LATENCY_NS, onTime);
+		Frame next = new Frame(onTime.timestamp + FRAME_NS);
+		mRing.add(next.timestamp, next.timestamp + OFFSET_NS + 2 * LATENCY_NS, next);
+
+		assertSame(onTime, mRing.take(pressAtExposureOf(onTime, 0)));
+	}
+
+	@Test
+	public void take_sharedTimeBase_ignoresDeliveryLatency() {
+		ZslRingBuffer<Frame> ring = new ZslRingBuffer<>(4, 1, true, new ZslRingBuffer.Recycler<Frame>() {
+			@Override
+			public void recycle(Frame frame) {
+				frame.closed = true;
+			}
+		});
+		List<Frame> frames = new ArrayList<>();
+		for (int i = 0; i < 4; i++) {
+			Frame frame = new Frame(1000000000L + i * FRAME_NS);
+			// Delivered a frame and a half late, the estimate would pick the frame before
+			ring.add(frame.timestamp, frame.timestamp + FRAME_NS + FRAME_NS / 2, frame);
+			frames.add(frame);
+		}
+
+		assertSame(frames.get(1), ring.take(frames.get(1).timestamp));
+	}
+
+	@Test
+	public void take_empty_returnsNull() {
+		assertNull(mRing.take(0));
+	}
+
+	@Test
+	public void take_limitsFramesOut() {
+		Frame first = deliver(0);
+		deliver(1);
+
+		Frame taken = mRing.take(pressAtExposureOf(first, 0));
+		assertNull(mRing.take(pressAtExposureOf(first, 0)));
+
+		mRing.recycle(taken);
+		assertTrue(taken.closed);
+		assertNotNull(mRing.take(pressAtExposureOf(first, 0)));
+	}
+
+	@Test
+	public void framesHeld_neverExceedMaxImages() {
+		int held = 0;
+		int maxHeld = 0;
+		Frame out = null;
+		for (int i = 0; i < 100; i++) {
+			// Acquiring holds one more slot until add() returns
+			maxHeld = Math.max(maxHeld, mRing.size() + mRing.getTakenCount() + 1);
+			Frame frame = deliver(i);
+			if (i % 7 == 0) {
+				if (out != null) {
+					mRing.recycle(out);
+				}
+				out = mRing.take(pressAtExposureOf(frame, 0));
+			}
+			held = mRing.size() + mRing.getTakenCount();
+		}
+
+		assertTrue(maxHeld <= mRing.getMaxImages());
+		assertEquals(100 - held, mRecycled.size());
+	}
+
+	@Test
+	public void clear_closesRingButNotFramesOut() {
+		Frame first = deliver(0);
+		deliver(1);
+		deliver(2);
+		Frame taken = mRing.take(pressAtExposureOf(first, 0));
+
+		mRing.clear();
+
+		assertEquals(0, mRing.size());
+		assertEquals(2, mRecycled.size());
+		assertFalse(taken.closed);
+	}
+
+	@Test
+	public void close_withFrameOut_waitsForItsRecycle() {
+		Frame first = deliver(0);
+		deliver(1);
+		Frame taken = mRing.take(pressAtExposureOf(first, 0));
+		final int[] drained = new int[1];
+
+		mRing.close(new Runnable() {
+			@Override
+			public void run() {
+				drained[0]++;
+			}
+		});
+
+		assertEquals(0, drained[0]);
+		assertEquals(0, mRing.size());
+		assertFalse(taken.closed);
+		Frame late = deliver(2);
+		assertTrue(late.closed);
+		assertNull(mRing.take(pressAtExposureOf(late, 0)));
+		mRing.recycle(taken);
+		assertTrue(taken.closed);
+		assertEquals(1, drained[0]);
+	}
+
+	@Test
+	public void close_withoutFrameOut_drainsRightAway() {
+		deliver(0);
+		final int[] drained = new int[1];
+
+		mRing.close(new Runnable() {
+			@Override
+			public void run() {
+				drained[0]++;
+			}
+		});
+
+		assertEquals(1, drained[0]);
+		assertEquals(1, mRecycled.size());
+	}
+
+	@Test
+	public void wrapsAround_keepsArrivalOrder() {
+		List<Frame> frames = new ArrayList<>();
+		for (int i = 0; i < 10; i++) {
+			frames.add(deliver(i));
+		}
+		// Remove from the middle of a wrapped ring
+		Frame taken = mRing.take(pressAtExposureOf(frames.get(8), 0));
+		assertSame(frames.get(8), taken);
+		mRing.recycle(taken);
+		deliver(10);
+		deliver(11);
+
+		// Only 6 evicted, then 7, 9, 10 and 11 remain
+		assertSame(frames.get(6), mRecycled.get(mRecycled.size() - 1));
+		assertSame(frames.get(8), mRecycled.get(mRecycled.size() - 2));
+		assertEquals(4, mRing.size());
+		assertFalse(frames.get(7).closed);
+		assertSame(frames.get(9), mRing.take(pressAtExposureOf(frames.get(9), 0)));
+	}
+}
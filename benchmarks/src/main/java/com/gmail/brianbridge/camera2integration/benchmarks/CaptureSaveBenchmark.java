@@ -0,0 +1,104 @@
+package com.gmail.brianbridge.camera2integration.benchmarks;
+
+import com.gmail.brianbridge.camera2integration.BufferPool;
+import com.gmail.brianbridge.camera2integration.CameraUtil;
+import com.gmail.brianbridge.camera2integration.ChannelJpegWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The capture save path on synthetic JPEG payloads: copying the plane out of the image, and
+ * writing it to a file, or writing the plane through a channel without the copy.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class CaptureSaveBenchmark {
+	@Param({"4", "8", "12"})
+	public int payloadMegabytes;
+
+	private ByteBuffer mPlane; // Direct, like the buffer of an Image plane
+	private byte[] mBytes;
+	private BufferPool mBufferPool;
+	private ChannelJpegWriter mChannelWriter;
+	private File mFile;
+
+	@Setup
+	public void setUp() throws IOException {
+		int length = payloadMegabytes * 1024 * 1024;
+		// JPEG data is already compressed, random bytes behave the same for the disk
+		mBytes = new byte[length];
+		new Random(length).nextBytes(mBytes);
+		mBytes[0] = (byte) 0xFF;
+		mBytes[1] = (byte) 0xD8;
+		mBytes[length - 2] = (byte) 0xFF;
+		mBytes[length - 1] = (byte) 0xD9;
+		mPlane = ByteBuffer.allocateDirect(length);
+		mPlane.put(mBytes).flip();
+		mBufferPool = new BufferPool(32 * 1024 * 1024);
+		mChannelWriter = new ChannelJpegWriter(true, ChannelJpegWriter.ForcePolicy.NONE);
+		mFile = File.createTempFile("capture", ".jpg");
+	}
+
+	@TearDown
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public byte[] copyToNewArray() {
+		ByteBuffer buffer = mPlane.duplicate();
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		return data;
+	}
+
+	@Benchmark
+	public byte[] copyToPooledArray() {
+		ByteBuffer buffer = mPlane.duplicate();
+		byte[] data = mBufferPool.acquire(buffer.remaining());
+		buffer.get(data, 0, buffer.remaining());
+		mBufferPool.release(data);
+		return data;
+	}
+
+	@Benchmark
+	public void imageSaver() {
+		new CameraUtil.ImageSaver(new FakeJpegImage(mPlane), mFile).run();
+	}
+
+	@Benchmark
+	public void imageSaverPooled() {
+		new CameraUtil.ImageSaver(new FakeJpegImage(mPlane), mFile, mBufferPool).run();
+	}
+
+	@Benchmark
+	public void imageSaverChannel() {
+		new CameraUtil.ImageSaver(new FakeJpegImage(mPlane), mFile, mChannelWriter).run();
+	}
+
+	@Benchmark
+	public void imageByteSaver() {
+		new CameraUtil.ImageByteSaver(mBytes, mFile).run();
+	}
+}
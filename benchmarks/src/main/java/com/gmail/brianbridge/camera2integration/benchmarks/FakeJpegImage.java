@@ -0,0 +1,60 @@
+package com.gmail.brianbridge.camera2integration.benchmarks;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A JPEG {@link Image} with a single plane backed by the given buffer.
+ */
+class FakeJpegImage extends Image {
+	private final ByteBuffer mBuffer;
+
+	FakeJpegImage(ByteBuffer buffer) {
+		mBuffer = buffer;
+	}
+
+	@Override
+	public int getFormat() {
+		return ImageFormat.JPEG;
+	}
+
+	@Override
+	public int getWidth() {
+		return mBuffer.capacity();
+	}
+
+	@Override
+	public int getHeight() {
+		return 1;
+	}
+
+	@Override
+	public long getTimestamp() {
+		return 0;
+	}
+
+	@Override
+	public Plane[] getPlanes() {
+		return new Plane[]{new Plane() {
+			@Override
+			public int getRowStride() {
+				return 0;
+			}
+
+			@Override
+			public int getPixelStride() {
+				return 0;
+			}
+
+			@Override
+			public ByteBuffer getBuffer() {
+				return mBuffer.duplicate();
+			}
+		}};
+	}
+
+	@Override
+	public void close() {}
+}
@@ -0,0 +1,43 @@
+package com.gmail.brianbridge.camera2integration.benchmarks;
+
+import com.gmail.brianbridge.camera2integration.CameraUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OrientationBenchmark {
+	// Not final, so the JIT can't fold the calls
+	private int[] mRotations = {0, 1, 2, 3};
+	private int[] mSensorOrientations = {0, 90, 180, 270};
+
+	/**
+	 * Every display rotation against every sensor orientation.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(16)
+	public int getOrientation() {
+		int sum = 0;
+		for (int rotation : mRotations) {
+			for (int sensorOrientation : mSensorOrientations) {
+				sum += CameraUtil.getOrientation(rotation, sensorOrientation);
+			}
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,92 @@
+package com.gmail.brianbridge.camera2integration.benchmarks;
+
+import android.util.Size;
+
+import com.gmail.brianbridge.camera2integration.CameraUtil;
+import com.gmail.brianbridge.camera2integration.ResolutionPlanner;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preview and capture size selection, as done by {@code Camera2BaseFragment#initCamera}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SizeSelectionBenchmark {
+	@Param({"pixel", "samsung"})
+	public String device;
+
+	private Size[] mJpegSizes;
+	private Size[] mPreviewSizes;
+	private Size mAspectRatio;
+	private ResolutionPlanner mPlanner;
+	private long mCaptureSize;
+	private final CameraUtil.CompareSizesByArea mComparator = new CameraUtil.CompareSizesByArea();
+
+	@Setup
+	public void setUp() {
+		mJpegSizes = SizeTables.toSizes(SizeTables.jpeg(device));
+		mPreviewSizes = SizeTables.toSizes(SizeTables.preview(device));
+		mAspectRatio = new Size(4032, 3024);
+		mPlanner = new ResolutionPlanner(SizeTables.jpeg(device), SizeTables.preview(device), 90);
+		mCaptureSize = mPlanner.chooseCaptureSize(4, 3, ResolutionPlanner.DEFAULT_MIN_CAPTURE_AREA);
+	}
+
+	/**
+	 * A portrait 1080p phone, texture view under the status bar.
+	 */
+	@Benchmark
+	public Size chooseOptimalSize() {
+		return CameraUtil.chooseOptimalSize(mPreviewSizes, 1794, 1080, 1920, 1080, mAspectRatio);
+	}
+
+	@Benchmark
+	public Size[] sortByArea() {
+		Size[] sizes = Arrays.copyOf(mJpegSizes, mJpegSizes.length);
+		Arrays.sort(sizes, mComparator);
+		return sizes;
+	}
+
+	@Benchmark
+	public Size maxByArea() {
+		Size largest = mJpegSizes[0];
+		for (Size size : mJpegSizes) {
+			if (mComparator.compare(size, largest) > 0) {
+				largest = size;
+			}
+		}
+		return largest;
+	}
+
+	@Benchmark
+	public ResolutionPlanner resolutionPlannerIndex() {
+		return new ResolutionPlanner(SizeTables.jpeg(device), SizeTables.preview(device), 90);
+	}
+
+	@Benchmark
+	public long resolutionPlannerPreviewUnmemoized() {
+		return mPlanner.chooseOptimalSize(1794, 1080, 1920, 1080, 4032, 3024);
+	}
+
+	@Benchmark
+	public long resolutionPlannerPreviewMemoized() {
+		return mPlanner.choosePreviewSize(1080, 1794, 1080, 1920, 0, mCaptureSize);
+	}
+}
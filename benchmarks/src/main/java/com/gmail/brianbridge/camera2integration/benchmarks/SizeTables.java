@@ -0,0 +1,41 @@
+package com.gmail.brianbridge.camera2integration.benchmarks;
+
+import android.util.Size;
+
+/**
+ * Output size tables reported by real devices, in the order of {@code StreamConfigurationMap}.
+ */
+final class SizeTables {
+	static final int[] PIXEL_JPEG = {
+			4048, 3036, 4000, 3000, 3840, 2160, 3264, 2448, 3200, 2400, 2592, 1944, 2688, 1512,
+			2048, 1536, 1920, 1080, 1600, 1200, 1440, 1080, 1280, 960, 1280, 768, 1280, 720,
+			1024, 768, 800, 600, 720, 480, 640, 480, 640, 360, 352, 288, 320, 240, 176, 144};
+	static final int[] PIXEL_PREVIEW = {
+			1920, 1080, 1440, 1080, 1280, 960, 1280, 768, 1280, 720, 1024, 768, 800, 600,
+			720, 480, 640, 480, 640, 360, 352, 288, 320, 240, 176, 144};
+	static final int[] SAMSUNG_JPEG = {
+			4032, 3024, 4032, 2268, 3024, 3024, 3984, 2988, 3264, 2448, 3264, 1836, 2560, 1440,
+			2160, 2160, 2048, 1152, 1920, 1080, 1440, 1080, 1088, 1088, 1280, 720, 960, 720,
+			720, 480, 640, 480, 320, 240, 176, 144};
+	static final int[] SAMSUNG_PREVIEW = {
+			2160, 1080, 1920, 1080, 1440, 1080, 1088, 1088, 1280, 720, 1056, 704, 1024, 768,
+			960, 720, 800, 450, 720, 720, 720, 480, 640, 480, 352, 288, 320, 240, 256, 144, 176, 144};
+
+	private SizeTables() {}
+
+	static int[] jpeg(String device) {
+		return "samsung".equals(device) ? SAMSUNG_JPEG : PIXEL_JPEG;
+	}
+
+	static int[] preview(String device) {
+		return "samsung".equals(device) ? SAMSUNG_PREVIEW : PIXEL_PREVIEW;
+	}
+
+	static Size[] toSizes(int[] packed) {
+		Size[] sizes = new Size[packed.length / 2];
+		for (int i = 0; i < sizes.length; i++) {
+			sizes[i] = new Size(packed[i * 2], packed[i * 2 + 1]);
+		}
+		return sizes;
+	}
+}
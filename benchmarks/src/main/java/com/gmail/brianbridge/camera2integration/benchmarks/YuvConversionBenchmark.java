@@ -0,0 +1,135 @@
+package com.gmail.brianbridge.camera2integration.benchmarks;
+
+import com.gmail.brianbridge.camera2integration.YuvConverter;
+import com.gmail.brianbridge.camera2integration.YuvPlanes;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * YUV_420_888 conversion of a 1080p frame, on the calling thread and in parallel bands, against a
+ * per-pixel loop allocating its output like the analysis code did before {@link YuvConverter}.
+ * A frame has to take well under 33ms to keep up with 30fps.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = {"-Xms1g", "-Xmx1g"})
+public class YuvConversionBenchmark {
+	private static final int WIDTH = 1920;
+	private static final int HEIGHT = 1080;
+	private static final int ROW_PADDING = 64;
+
+	/**
+	 * "planar" is I420, "semiPlanar" is the NV21 memory layout most HALs use.
+	 */
+	@Param({"planar", "semiPlanar"})
+	public String layout;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	private ForkJoinPool mPool;
+	private YuvConverter mConverter;
+	private YuvPlanes mPlanes;
+	private byte[] mBytes;
+	private int[] mInts;
+
+	@Setup
+	public void setUp() {
+		boolean semiPlanar = "semiPlanar".equals(layout);
+		Random random = new Random(WIDTH);
+		int yRowStride = WIDTH + ROW_PADDING;
+		ByteBuffer y = randomDirect(yRowStride * HEIGHT, random);
+		int chromaPixelStride = semiPlanar ? 2 : 1;
+		int chromaRowStride = WIDTH / 2 * chromaPixelStride + ROW_PADDING;
+		ByteBuffer u;
+		ByteBuffer v;
+		if (semiPlanar) {
+			ByteBuffer vu = randomDirect(chromaRowStride * HEIGHT / 2, random);
+			v = vu.duplicate();
+			vu.position(1);
+			u = vu.slice();
+		} else {
+			u = randomDirect(chromaRowStride * HEIGHT / 2, random);
+			v = randomDirect(chromaRowStride * HEIGHT / 2, random);
+		}
+		mPlanes = new YuvPlanes().set(WIDTH, HEIGHT,
+				y, yRowStride, 1,
+				u, chromaRowStride, chromaPixelStride,
+				v, chromaRowStride, chromaPixelStride);
+
+		mPool = threads > 1 ? new ForkJoinPool(threads) : null;
+		mConverter = new YuvConverter(mPool);
+		mBytes = new byte[YuvConverter.nv21Size(WIDTH, HEIGHT)];
+		mInts = new int[YuvConverter.argbSize(WIDTH, HEIGHT)];
+	}
+
+	@TearDown
+	public void tearDown() {
+		if (mPool != null) {
+			mPool.shutdown();
+		}
+	}
+
+	private static ByteBuffer randomDirect(int size, Random random) {
+		byte[] bytes = new byte[size];
+		random.nextBytes(bytes);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+		buffer.put(bytes).flip();
+		return buffer;
+	}
+
+	@Benchmark
+	public byte[] luma() {
+		mConverter.toLuma(mPlanes, mBytes);
+		return mBytes;
+	}
+
+	@Benchmark
+	public byte[] nv21() {
+		mConverter.toNv21(mPlanes, mBytes);
+		return mBytes;
+	}
+
+	@Benchmark
+	public int[] argb() {
+		mConverter.toArgb(mPlanes, mInts);
+		return mInts;
+	}
+
+	@Benchmark
+	public int[] argbNaive() {
+		YuvPlanes p = mPlanes;
+		int[] argb = new int[WIDTH * HEIGHT];
+		for (int row = 0; row < HEIGHT; row++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int yy = Math.max(0, (p.y.get(row * p.yRowStride + x) & 0xff) - 16);
+				int cu = (p.u.get(row / 2 * p.uRowStride + x / 2 * p.uPixelStride) & 0xff) - 128;
+				int cv = (p.v.get(row / 2 * p.vRowStride + x / 2 * p.vPixelStride) & 0xff) - 128;
+				int r = (int) Math.min(255, Math.max(0, 1.164f * yy + 1.596f * cv));
+				int g = (int) Math.min(255, Math.max(0, 1.164f * yy - 0.813f * cv - 0.391f * cu));
+				int b = (int) Math.min(255, Math.max(0, 1.164f * yy + 2.018f * cu));
+				argb[row * WIDTH + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+			}
+		}
+		return argb;
+	}
+}